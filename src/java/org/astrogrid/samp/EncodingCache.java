@@ -0,0 +1,32 @@
+package org.astrogrid.samp;
+
+/**
+ * Object which can store serialized forms of itself for reuse.
+ * Encoders which may write the same object many times, for instance
+ * when a message is broadcast to many recipients, can use this to
+ * avoid serializing it more than once.
+ *
+ * <p>Implementations must ensure that stored encodings remain valid,
+ * typically by not allowing their content to change.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public interface EncodingCache {
+
+    /**
+     * Returns a previously stored encoded form of this object.
+     *
+     * @param  key  key identifying the encoding
+     * @return   encoded form, or null if none is stored
+     */
+    Object getEncoding( Object key );
+
+    /**
+     * Stores an encoded form of this object for later reuse.
+     *
+     * @param  key  key identifying the encoding
+     * @param  encoding  encoded form
+     */
+    void setEncoding( Object key, Object encoding );
+}
@@ -0,0 +1,35 @@
+package org.astrogrid.samp.client;
+
+/**
+ * HubConnection which can pass a sequence of hub operations to the hub
+ * in a single exchange.
+ * Where a connection implements this interface, the {@link HubConnector}
+ * uses it to reduce the number of round trips required
+ * when registering with a hub.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public interface BatchHubConnection extends HubConnection {
+
+    /**
+     * Executes a sequence of hub operations, in order.
+     * Each operation is identified by its unqualified SAMP hub API
+     * method name (for instance "<code>getMetadata</code>"),
+     * and its parameters exclude the identification of the calling
+     * client, which is supplied by the connection.
+     * Failure of one operation does not prevent execution of the others.
+     *
+     * <p>If the hub is unable to execute the sequence as a batch,
+     * the operations may be made one at a time, so the sequence should
+     * not contain any operation which would be harmful to repeat.
+     *
+     * @param  methodNames  unqualified hub API method names
+     * @param  paramArrays  array of parameters for each operation
+     * @return  array with an element for each operation, containing
+     *          either its SAMP-friendly return value or a
+     *          {@link SampException} describing its failure
+     */
+    Object[] execBatch( String[] methodNames, Object[][] paramArrays )
+            throws SampException;
+}
@@ -98,15 +98,41 @@ class ClientTracker extends AbstractMessageHandler {
         }
 
         // Prepare an array of client objects, populating their characteristics
-        // by interrogating the connection.
+        // by interrogating the connection.  If possible, all the queries
+        // are made in a single batch.
         int nc = clientIds.length;
         TrackedClient[] clients = new TrackedClient[ nc ];
-        for ( int ic = 0; ic < nc; ic++ ) {
-            String id = clientIds[ ic ];
-            TrackedClient client = new TrackedClient( id );
-            client.setMetadata( connection.getMetadata( id ) );
-            client.setSubscriptions( connection.getSubscriptions( id ) );
-            clients[ ic ] = client;
+        if ( connection instanceof BatchHubConnection && nc > 0 ) {
+            String[] methods = new String[ nc * 2 ];
+            Object[][] paramArrays = new Object[ nc * 2 ][];
+            for ( int ic = 0; ic < nc; ic++ ) {
+                Object[] params = new Object[] { clientIds[ ic ] };
+                methods[ ic * 2 ] = "getMetadata";
+                methods[ ic * 2 + 1 ] = "getSubscriptions";
+                paramArrays[ ic * 2 ] = params;
+                paramArrays[ ic * 2 + 1 ] = params;
+            }
+            Object[] results =
+                ((BatchHubConnection) connection)
+               .execBatch( methods, paramArrays );
+            for ( int ic = 0; ic < nc; ic++ ) {
+                TrackedClient client = new TrackedClient( clientIds[ ic ] );
+                client.setMetadata( Metadata
+                                   .asMetadata( toMap( results[ ic * 2 ] ) ) );
+                client.setSubscriptions( Subscriptions
+                                        .asSubscriptions(
+                                             toMap( results[ ic * 2 + 1 ] ) ) );
+                clients[ ic ] = client;
+            }
+        }
+        else {
+            for ( int ic = 0; ic < nc; ic++ ) {
+                String id = clientIds[ ic ];
+                TrackedClient client = new TrackedClient( id );
+                client.setMetadata( connection.getMetadata( id ) );
+                client.setSubscriptions( connection.getSubscriptions( id ) );
+                clients[ ic ] = client;
+            }
         }
 
         // Populate the client set.  Discard any queued operations first.
@@ -120,6 +146,29 @@ class ClientTracker extends AbstractMessageHandler {
         }
     }
 
+    /**
+     * Converts a result from a batched hub operation to a map.
+     *
+     * @param  result  element of array returned from
+     *                 {@link BatchHubConnection#execBatch}
+     * @return  map result
+     * @throws  SampException  if the operation failed or its result
+     *                         was not a map
+     */
+    private static Map toMap( Object result ) throws SampException {
+        if ( result instanceof Map ) {
+            return (Map) result;
+        }
+        else if ( result instanceof SampException ) {
+            throw (SampException) result;
+        }
+        else {
+            throw new SampException( "Hub returned unexpected type ("
+                                   + result.getClass().getName()
+                                   + " not map)" );
+        }
+    }
+
     public Map processCall( HubConnection connection, String senderId,
                             Message message ) {
         String mtype = message.getMType();
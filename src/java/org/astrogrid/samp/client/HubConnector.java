@@ -685,11 +685,36 @@ public class HubConnector {
      * this object.
      * The hub is made aware of how to perform callbacks on the registered
      * client, and any current metadata and subscriptions are declared.
+     * Where possible, the declarations are sent to the hub together.
      *
      * @param  connection  connection representing registration with a hub
      */
     public void configureConnection( HubConnection connection )
             throws SampException {
+
+        // If both metadata and subscriptions are to be declared,
+        // and the connection permits it, declare them together
+        // once callbacks are set up.
+        if ( metadata_ != null && callable_ != null &&
+             subscriptions_ != null &&
+             connection instanceof BatchHubConnection ) {
+            connection.setCallable( callable_ );
+            callable_.setConnection( connection );
+            Object[] results =
+                ((BatchHubConnection) connection)
+               .execBatch( new String[] { "declareMetadata",
+                                          "declareSubscriptions" },
+                           new Object[][] { { metadata_ },
+                                            { subscriptions_ } } );
+            for ( int i = 0; i < results.length; i++ ) {
+                if ( results[ i ] instanceof SampException ) {
+                    throw (SampException) results[ i ];
+                }
+            }
+            return;
+        }
+
+        // Otherwise, make the declarations separately.
         if ( metadata_ != null ) {
             connection.declareMetadata( metadata_ );
         }
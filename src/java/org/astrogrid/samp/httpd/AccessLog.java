@@ -0,0 +1,366 @@
+package org.astrogrid.samp.httpd;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes one line per HTTP request to a rolling log file,
+ * with low overhead for the threads serving the requests.
+ *
+ * <p>Entries are recorded into a ring buffer of preallocated slots;
+ * the caller only copies a few values into a free slot,
+ * and formatting and file I/O are done by a background writer thread.
+ * If the buffer fills up because the writer cannot keep up,
+ * further entries are discarded rather than delaying the caller,
+ * and the number discarded is noted in the log.
+ * When the file exceeds a given size it is renamed with a
+ * "<code>.1</code>" suffix (older files being shifted to
+ * "<code>.2</code>" etc) and a new file is started.
+ *
+ * <p>The line format is the Common Log Format followed by the
+ * request body size in bytes and the service time in microseconds, e.g.
+ * <pre>
+ *    127.0.0.1 - - [17/Oct/2026:10:22:05 +0000] "POST /xmlrpc" 200 412 871 950
+ * </pre>
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public class AccessLog {
+
+    private final File file_;
+    private final long maxFileSize_;
+    private final int nBackup_;
+    private final Entry[] ring_;
+    private final Thread writerThread_;
+    private int head_;
+    private int size_;
+    private long dropCount_;
+    private boolean closed_;
+    private Writer out_;
+    private long fileSize_;
+
+    /** Default number of entries in the ring buffer. */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /** Default maximum size in bytes of a log file before it is rolled. */
+    public static final long DEFAULT_MAX_FILE_SIZE = 16 * 1024 * 1024;
+
+    /** Default number of rolled log files kept. */
+    public static final int DEFAULT_BACKUPS = 4;
+
+    /** Maximum interval in milliseconds between writes to the file. */
+    private static final long FLUSH_MILLIS = 1000;
+
+    private static final Logger logger_ =
+        Logger.getLogger( AccessLog.class.getName() );
+
+    /**
+     * Constructs an access log with default properties.
+     *
+     * @param  file  log file
+     */
+    public AccessLog( File file ) throws IOException {
+        this( file, DEFAULT_CAPACITY, DEFAULT_MAX_FILE_SIZE, DEFAULT_BACKUPS );
+    }
+
+    /**
+     * Constructs an access log with custom properties.
+     * The file is opened for appending, and a daemon writer thread
+     * is started.
+     *
+     * @param  file  log file
+     * @param  capacity  number of entries which can be buffered
+     * @param  maxFileSize  size in bytes beyond which the log file is rolled
+     * @param  nBackup   number of rolled log files kept
+     */
+    public AccessLog( File file, int capacity, long maxFileSize, int nBackup )
+            throws IOException {
+        file_ = file;
+        maxFileSize_ = maxFileSize;
+        nBackup_ = nBackup;
+        ring_ = new Entry[ capacity ];
+        for ( int i = 0; i < capacity; i++ ) {
+            ring_[ i ] = new Entry();
+        }
+        out_ = openFile();
+        writerThread_ = new Thread( "Access log " + file.getName() ) {
+            public void run() {
+                try {
+                    writeEntries();
+                }
+                catch ( IOException e ) {
+                    logger_.log( Level.WARNING,
+                                 "Access log " + file_ + " failed", e );
+                }
+                catch ( InterruptedException e ) {
+                }
+                finally {
+                    synchronized ( AccessLog.this ) {
+                        closed_ = true;
+                    }
+                    try {
+                        out_.close();
+                    }
+                    catch ( IOException e ) {
+                    }
+                }
+            }
+        };
+        writerThread_.setDaemon( true );
+        writerThread_.start();
+    }
+
+    /**
+     * Returns the file to which this log is written.
+     *
+     * @return  log file
+     */
+    public File getFile() {
+        return file_;
+    }
+
+    /**
+     * Records an entry for a served request.
+     * This method does not block on I/O.
+     *
+     * @param  method  request method, or null if unknown
+     * @param  url   request URL path, or null if unknown
+     * @param  remote  client address, or null if unknown
+     * @param  status  response status code
+     * @param  reqBytes  size of request body in bytes
+     * @param  respBytes  size of response body in bytes,
+     *                    or negative if unknown
+     * @param  micros   service time in microseconds
+     */
+    public void log( String method, String url, SocketAddress remote,
+                     int status, long reqBytes, long respBytes,
+                     long micros ) {
+        long time = System.currentTimeMillis();
+        synchronized ( this ) {
+            if ( closed_ || size_ == ring_.length ) {
+                dropCount_++;
+                return;
+            }
+            Entry entry = ring_[ head_ ];
+            entry.time_ = time;
+            entry.method_ = method;
+            entry.url_ = url;
+            entry.remote_ = remote;
+            entry.status_ = status;
+            entry.reqBytes_ = reqBytes;
+            entry.respBytes_ = respBytes;
+            entry.micros_ = micros;
+            head_ = ( head_ + 1 ) % ring_.length;
+            if ( ++size_ == ring_.length / 2 ) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of entries which have been discarded
+     * because the buffer was full.
+     *
+     * @return  dropped entry count
+     */
+    public synchronized long getDropCount() {
+        return dropCount_;
+    }
+
+    /**
+     * Writes any buffered entries to the file, closes it, and stops the
+     * writer thread.  Subsequent entries are discarded.
+     */
+    public void close() {
+        synchronized ( this ) {
+            closed_ = true;
+            notifyAll();
+        }
+        if ( Thread.currentThread() != writerThread_ ) {
+            try {
+                writerThread_.join( 10 * 1000 );
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Loop run by the writer thread.
+     * Entries are written in batches; the slots are only released
+     * after they have been formatted, so the loggers never write
+     * into a slot that is being read.
+     */
+    private void writeEntries() throws IOException, InterruptedException {
+        SimpleDateFormat fmt =
+            new SimpleDateFormat( "dd/MMM/yyyy:HH:mm:ss Z", Locale.US );
+        StringBuffer sbuf = new StringBuffer();
+        Date date = new Date();
+        long reportedDrops = 0;
+        while ( true ) {
+            int start;
+            int n;
+            long drops;
+            boolean isClosed;
+            synchronized ( this ) {
+                if ( size_ < ring_.length / 2 && ! closed_ ) {
+                    wait( FLUSH_MILLIS );
+                }
+                n = size_;
+                start = ( head_ - n + ring_.length ) % ring_.length;
+                drops = dropCount_ - reportedDrops;
+                isClosed = closed_;
+            }
+            for ( int i = 0; i < n; i++ ) {
+                Entry entry = ring_[ ( start + i ) % ring_.length ];
+                date.setTime( entry.time_ );
+                sbuf.setLength( 0 );
+                entry.format( sbuf, fmt, date );
+                entry.clear();
+                write( sbuf.toString() );
+            }
+            if ( drops > 0 ) {
+                write( "# " + drops + " entries dropped\n" );
+                reportedDrops += drops;
+            }
+            if ( n > 0 || drops > 0 ) {
+                out_.flush();
+            }
+            synchronized ( this ) {
+                size_ -= n;
+            }
+            if ( isClosed ) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes a line to the log file, rolling it if it has become too large.
+     * Only called from the writer thread.
+     *
+     * @param  line  text terminated by a newline
+     */
+    private void write( String line ) throws IOException {
+        if ( fileSize_ > 0 && fileSize_ + line.length() > maxFileSize_ ) {
+            out_.close();
+            roll();
+            out_ = openFile();
+        }
+        out_.write( line );
+        fileSize_ += line.length();
+    }
+
+    /**
+     * Opens the log file for appending.
+     *
+     * @return  writer
+     */
+    private Writer openFile() throws IOException {
+        fileSize_ = file_.length();
+        return new BufferedWriter(
+                   new OutputStreamWriter( new FileOutputStream( file_, true ),
+                                           "UTF-8" ) );
+    }
+
+    /**
+     * Renames the current log file and its backups
+     * to make way for a new one.
+     */
+    private void roll() {
+        String base = file_.getPath();
+        for ( int i = nBackup_ - 1; i >= 0; i-- ) {
+            File from = i == 0 ? file_ : new File( base + "." + i );
+            File to = new File( base + "." + ( i + 1 ) );
+            if ( from.exists() ) {
+                to.delete();
+                if ( ! from.renameTo( to ) ) {
+                    logger_.warning( "Failed to rename " + from
+                                   + " to " + to );
+                }
+            }
+        }
+        if ( nBackup_ <= 0 ) {
+            file_.delete();
+        }
+    }
+
+    /**
+     * Mutable record of a single request, kept in the ring buffer.
+     */
+    private static class Entry {
+        long time_;
+        String method_;
+        String url_;
+        SocketAddress remote_;
+        int status_;
+        long reqBytes_;
+        long respBytes_;
+        long micros_;
+
+        /**
+         * Appends a log line representing this entry to a buffer.
+         *
+         * @param  sbuf  buffer
+         * @param  fmt   date format
+         * @param  date  date object set to this entry's time
+         */
+        void format( StringBuffer sbuf, SimpleDateFormat fmt, Date date ) {
+            if ( remote_ instanceof InetSocketAddress &&
+                 ((InetSocketAddress) remote_).getAddress() != null ) {
+                sbuf.append( ((InetSocketAddress) remote_).getAddress()
+                                                          .getHostAddress() );
+            }
+            else {
+                sbuf.append( '-' );
+            }
+            sbuf.append( " - - [" )
+                .append( fmt.format( date ) )
+                .append( "] \"" );
+            if ( method_ != null ) {
+                sbuf.append( method_ )
+                    .append( ' ' )
+                    .append( url_ );
+            }
+            else {
+                sbuf.append( '-' );
+            }
+            sbuf.append( "\" " )
+                .append( status_ )
+                .append( ' ' );
+            if ( respBytes_ >= 0 ) {
+                sbuf.append( respBytes_ );
+            }
+            else {
+                sbuf.append( '-' );
+            }
+            sbuf.append( ' ' )
+                .append( reqBytes_ )
+                .append( ' ' )
+                .append( micros_ )
+                .append( '\n' );
+        }
+
+        /**
+         * Drops object references held by this entry.
+         */
+        void clear() {
+            method_ = null;
+            url_ = null;
+            remote_ = null;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package org.astrogrid.samp.httpd;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * HTTP response which serves all or part of a local file.
+ * Byte ranges requested using the HTTP/1.1 <code>Range</code> header
+ * (RFC 7233) are honoured, so that interrupted downloads of large files
+ * may be resumed, and conditional requests are answered with
+ * 304 Not Modified where the client's cached copy is still current.
+ *
+ * <p>The body is written using {@link java.nio.channels.FileChannel#transferTo}
+ * so that, where the platform and the connection allow it,
+ * the bytes go from the file to the socket without being copied
+ * through the JVM heap.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public class FileResponse extends HttpServer.Response {
+
+    private final File file_;
+    private final long start_;
+    private final long length_;
+
+    /**
+     * Constructor.
+     *
+     * @param  statusCode  status code
+     * @param  statusPhrase  status phrase
+     * @param  headerMap  header map
+     * @param  file   file to serve
+     * @param  start  offset into file of first byte of body
+     * @param  length  number of bytes in body
+     */
+    private FileResponse( int statusCode, String statusPhrase, Map headerMap,
+                          File file, long start, long length ) {
+        super( statusCode, statusPhrase, headerMap );
+        file_ = file;
+        start_ = start;
+        length_ = length;
+    }
+
+    public void writeBody( OutputStream out ) throws IOException {
+        if ( length_ <= 0 ) {
+            return;
+        }
+        WritableByteChannel chan = HttpServer.getChannel( out );
+        FileInputStream in = new FileInputStream( file_ );
+        try {
+            FileChannel fchan = in.getChannel();
+            long pos = start_;
+            long end = start_ + length_;
+            while ( pos < end ) {
+                long nb = fchan.transferTo( pos, end - pos, chan );
+                if ( nb <= 0 && pos >= fchan.size() ) {
+                    throw new IOException( "File " + file_ + " truncated" );
+                }
+                pos += nb;
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns a response to a request for the content of a given file.
+     * GET and HEAD methods are served.
+     * The response advertises support for byte ranges,
+     * and a satisfiable single byte range in the request
+     * yields a 206 Partial Content response.
+     *
+     * @param  request  HTTP request
+     * @param  file   file to serve
+     * @return  response
+     */
+    public static HttpServer.Response createFileResponse(
+            HttpServer.Request request, File file ) {
+        String method = request.getMethod();
+        boolean isGet = "GET".equals( method );
+        if ( ! isGet && ! "HEAD".equals( method ) ) {
+            return HttpServer
+                  .create405Response( new String[] { "HEAD", "GET" } );
+        }
+        if ( ! file.isFile() || ! file.canRead() ) {
+            return HttpServer.createErrorResponse( 404, "Not found" );
+        }
+        long size = file.length();
+        long mtime = file.lastModified();
+        String lastModified = HttpServer.formatDate( mtime );
+        String etag = createEtag( size, mtime );
+        Map hdrMap = new LinkedHashMap();
+        String contentType =
+            URLConnection.getFileNameMap().getContentTypeFor( file.getName() );
+        if ( contentType != null ) {
+            hdrMap.put( "Content-Type", contentType );
+        }
+        hdrMap.put( "Last-Modified", lastModified );
+        hdrMap.put( "ETag", etag );
+        hdrMap.put( "Cache-Control", "no-cache" );
+        hdrMap.put( "Accept-Ranges", "bytes" );
+
+        // Tell the client if its cached copy is still good.
+        if ( HttpServer.isNotModified( request, etag, mtime ) ) {
+            return HttpServer.create304Response( hdrMap );
+        }
+
+        // Honour a Range header if there is one, unless an If-Range header
+        // indicates that the client's partial copy is out of date.
+        Map reqHdrs = request.getHeaderMap();
+        String range = HttpServer.getHeader( reqHdrs, "Range" );
+        String ifRange = HttpServer.getHeader( reqHdrs, "If-Range" );
+        if ( ifRange != null ) {
+            ifRange = ifRange.trim();
+        }
+        if ( range != null &&
+             ( ifRange == null ||
+               ifRange.equals( lastModified ) ||
+               ( ifRange.startsWith( "\"" ) &&
+                 HttpServer.matchesEtag( ifRange, etag, false ) ) ) ) {
+            long[] span = parseRange( range, size );
+            if ( span == null ) {
+                // Unparseable or multiple ranges; ignore the header.
+            }
+            else if ( span.length == 0 ) {
+                hdrMap.put( "Content-Range", "bytes */" + size );
+                hdrMap.put( "Content-Length", "0" );
+                return new FileResponse( 416, "Range not satisfiable",
+                                         hdrMap, file, 0, 0 );
+            }
+            else {
+                long start = span[ 0 ];
+                long length = span[ 1 ] - span[ 0 ] + 1;
+                hdrMap.put( "Content-Range",
+                            "bytes " + span[ 0 ] + "-" + span[ 1 ]
+                          + "/" + size );
+                hdrMap.put( "Content-Length", Long.toString( length ) );
+                return new FileResponse( 206, "Partial content", hdrMap, file,
+                                         start, isGet ? length : 0 );
+            }
+        }
+        hdrMap.put( "Content-Length", Long.toString( size ) );
+        return new FileResponse( 200, "OK", hdrMap, file,
+                                 0, isGet ? size : 0 );
+    }
+
+    /**
+     * Returns an entity tag for a file or other resource
+     * characterised by its size and modification time.
+     *
+     * @param  size  size in bytes
+     * @param  mtime  modification time in milliseconds since the epoch
+     * @return  quoted entity tag
+     */
+    static String createEtag( long size, long mtime ) {
+        return new StringBuffer()
+              .append( '"' )
+              .append( Long.toHexString( mtime ) )
+              .append( '-' )
+              .append( Long.toHexString( size ) )
+              .append( '"' )
+              .toString();
+    }
+
+    /**
+     * Parses the value of an HTTP Range header for an entity of known size.
+     * Only a single range is supported.
+     *
+     * @param  range  Range header value
+     * @param  size   entity size in bytes
+     * @return  2-element array giving the first and last byte positions
+     *          (inclusive) of a satisfiable range;
+     *          a zero-element array for an unsatisfiable range; or
+     *          null if the header cannot be used
+     */
+    static long[] parseRange( String range, long size ) {
+        range = range.trim();
+        if ( ! range.toLowerCase().startsWith( "bytes=" ) ) {
+            return null;
+        }
+        String spec = range.substring( 6 ).trim();
+        int idash = spec.indexOf( '-' );
+        if ( idash < 0 || spec.indexOf( ',' ) >= 0 ) {
+            return null;
+        }
+        String sFirst = spec.substring( 0, idash ).trim();
+        String sLast = spec.substring( idash + 1 ).trim();
+        long first;
+        long last;
+        try {
+            if ( sFirst.length() == 0 ) {
+                long suffix = Long.parseLong( sLast );
+                if ( suffix < 0 ) {
+                    return null;
+                }
+                first = Math.max( 0, size - suffix );
+                last = size - 1;
+                if ( suffix == 0 ) {
+                    return new long[ 0 ];
+                }
+            }
+            else {
+                first = Long.parseLong( sFirst );
+                last = sLast.length() == 0 ? Long.MAX_VALUE
+                                           : Long.parseLong( sLast );
+                if ( first < 0 || last < first ) {
+                    return null;
+                }
+                last = Math.min( last, size - 1 );
+            }
+        }
+        catch ( NumberFormatException e ) {
+            return null;
+        }
+        return first < size ? new long[] { first, last }
+                            : new long[ 0 ];
+    }
+}
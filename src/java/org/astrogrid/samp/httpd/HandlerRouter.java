@@ -0,0 +1,178 @@
+package org.astrogrid.samp.httpd;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable lookup table which determines the handlers that may serve
+ * a request for a given URL path.
+ * Handlers implementing {@link HttpServer.PrefixHandler} are stored in
+ * a trie keyed on their path prefixes; other handlers are candidates
+ * for every path.
+ * Each trie node holds the complete array of candidate handlers for paths
+ * ending there, in the order in which they were registered,
+ * so lookup takes time proportional to the path length
+ * and does not allocate or lock.
+ * Since instances are immutable, changes are made by building a new
+ * router and replacing the old one.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+class HandlerRouter {
+
+    private final Node root_;
+
+    /** Router with no handlers. */
+    public static final HandlerRouter EMPTY =
+        new HandlerRouter( new HttpServer.Handler[ 0 ] );
+
+    /**
+     * Constructor.
+     *
+     * @param  handlers  handlers in order of registration
+     */
+    public HandlerRouter( HttpServer.Handler[] handlers ) {
+        root_ = new Node();
+        for ( int ih = 0; ih < handlers.length; ih++ ) {
+            HttpServer.Handler handler = handlers[ ih ];
+            String prefix = handler instanceof HttpServer.PrefixHandler
+                          ? ((HttpServer.PrefixHandler) handler)
+                           .getPathPrefix()
+                          : null;
+            Node node = root_;
+            if ( prefix != null ) {
+                for ( int ic = 0; ic < prefix.length(); ic++ ) {
+                    node = node.addChild( prefix.charAt( ic ) );
+                }
+            }
+            node.handlerList_.add( handler );
+        }
+        root_.complete( new HttpServer.Handler[ 0 ], handlers );
+    }
+
+    /**
+     * Returns the handlers which may be able to serve a request for
+     * a given path, in order of registration.
+     * The returned array must not be modified.
+     *
+     * @param  path  requested URL path
+     * @return   candidate handlers
+     */
+    public HttpServer.Handler[] getHandlers( String path ) {
+        Node node = root_;
+        int leng = path.length();
+        for ( int ic = 0; ic < leng; ic++ ) {
+            Node child = node.getChild( path.charAt( ic ) );
+            if ( child == null ) {
+                break;
+            }
+            node = child;
+        }
+        return node.handlers_;
+    }
+
+    /**
+     * Trie node.
+     */
+    private static class Node {
+        private char[] keys_;
+        private Node[] children_;
+        private List handlerList_;
+        private HttpServer.Handler[] handlers_;
+
+        /**
+         * Constructor.
+         */
+        Node() {
+            keys_ = new char[ 0 ];
+            children_ = new Node[ 0 ];
+            handlerList_ = new ArrayList();
+        }
+
+        /**
+         * Returns the child node for a given character.
+         *
+         * @param  c  character
+         * @return  child, or null
+         */
+        Node getChild( char c ) {
+            for ( int i = 0; i < keys_.length; i++ ) {
+                if ( keys_[ i ] == c ) {
+                    return children_[ i ];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns the child node for a given character, creating it
+         * if necessary.  Only used during construction.
+         *
+         * @param  c  character
+         * @return  child
+         */
+        Node addChild( char c ) {
+            Node child = getChild( c );
+            if ( child == null ) {
+                int n = keys_.length;
+                char[] keys = new char[ n + 1 ];
+                Node[] children = new Node[ n + 1 ];
+                System.arraycopy( keys_, 0, keys, 0, n );
+                System.arraycopy( children_, 0, children, 0, n );
+                child = new Node();
+                keys[ n ] = c;
+                children[ n ] = child;
+                keys_ = keys;
+                children_ = children;
+            }
+            return child;
+        }
+
+        /**
+         * Fills in the candidate handler arrays of this node and
+         * its descendants.  Only used during construction.
+         *
+         * @param  inherited  candidates inherited from ancestor nodes
+         * @param  allHandlers  all handlers in order of registration
+         */
+        void complete( HttpServer.Handler[] inherited,
+                       HttpServer.Handler[] allHandlers ) {
+            if ( handlerList_.isEmpty() ) {
+                handlers_ = inherited;
+            }
+            else {
+                List list = new ArrayList();
+                for ( int ih = 0; ih < allHandlers.length; ih++ ) {
+                    HttpServer.Handler h = allHandlers[ ih ];
+                    if ( handlerList_.contains( h ) ||
+                         contains( inherited, h ) ) {
+                        list.add( h );
+                    }
+                }
+                handlers_ = (HttpServer.Handler[])
+                            list.toArray( new HttpServer.Handler[ 0 ] );
+            }
+            handlerList_ = null;
+            for ( int i = 0; i < children_.length; i++ ) {
+                children_[ i ].complete( handlers_, allHandlers );
+            }
+        }
+
+        /**
+         * Indicates whether an array contains a given object.
+         *
+         * @param  array  array
+         * @param  item  item to look for
+         * @return  true iff present
+         */
+        private static boolean contains( Object[] array, Object item ) {
+            for ( int i = 0; i < array.length; i++ ) {
+                if ( array[ i ] == item ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
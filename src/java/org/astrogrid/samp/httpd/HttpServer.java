@@ -1,25 +1,38 @@
 package org.astrogrid.samp.httpd;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.TimeZone;
+import java.util.TreeMap;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import javax.net.ssl.SSLServerSocket;
@@ -27,15 +40,34 @@ import org.astrogrid.samp.SampUtils;
 
 /**
  * Simple modular HTTP server.
- * One thread is started per request.  Connections are not kept open between
- * requests.  
- * Suitable for very large response bodies, but not for very large 
- * request bodies.
+ * By default one thread is started per request; alternatively a
+ * non-blocking engine may be used in which a few I/O threads read requests
+ * from all connections (see {@link #ENGINE_PROP}).
+ * Requests may also be served by a bounded pool of threads
+ * (see {@link #setExecutor}); if that is saturated, further requests
+ * are rejected with a 503 response.
+ * Suitable for very large response bodies.  Request bodies are
+ * supplied to handlers as streams, up to a configurable maximum size.
  * Add one or more {@link HttpServer.Handler}s to serve actual requests.
- * The protocol version served is HTTP/1.0.
+ * The protocol version served is HTTP/1.1.
+ * Connections are kept open between requests if the client permits it
+ * and the response has a declared length,
+ * until they have been idle for the keep-alive timeout.
+ * Connections which are slow to supply a request, or too many connections
+ * from the same address, are dropped (see {@link #getDropCounts}),
+ * so that misbehaving clients cannot tie up the server's resources.
+ * When the server is stopped, requests in progress are given a
+ * limited time to complete (see {@link #setDrainTimeout}).
  *
- * <p>This class is completely self-contained, so that it can easily be 
- * lifted out and used in other packages if required.
+ * <p>The implementation is spread over this class and several helper
+ * classes in the same package: <code>NioEngine</code>,
+ * <code>RequestExecutor</code>, <code>RequestReader</code>,
+ * <code>HandlerRouter</code>, <code>ServerMetrics</code>,
+ * <code>AccessLog</code> and <code>FileResponse</code>.
+ * Together these depend only on the J2SE and on
+ * {@link org.astrogrid.samp.SampUtils}, so the package can be lifted
+ * out and used elsewhere if required, but this class cannot be
+ * used on its own.
  *
  * @author   Mark Taylor
  * @since    21 Aug 2008
@@ -45,33 +77,131 @@ public class HttpServer {
     private final ServerSocket serverSocket_;
     private boolean isDaemon_;
     private List handlerList_;
+    private volatile HandlerRouter router_;
     private final URL baseUrl_;
+    private boolean useNio_;
+    private int keepAliveMillis_;
+    private int idleMillis_;
+    private int headerMillis_;
+    private int bodyMillis_;
+    private int minBodyRate_;
+    private int maxAddressConnections_;
+    private long maxBodySize_;
+    private int drainMillis_;
+    private long abortCount_;
+    private final Map activeMap_;
+    private final Map connAddressMap_;
+    private final Map addressCountMap_;
+    private final Map dropCountMap_;
+    private NioEngine nioEngine_;
+    private RequestExecutor executor_;
+    private boolean ownsExecutor_;
+    private boolean persistOk_;
     private volatile boolean started_;
     private volatile boolean stopped_;
+    private volatile ServerMetrics metrics_;
+    private volatile AccessLog accessLog_;
+
+    /**
+     * System property key determining the I/O engine used by default
+     * for new servers.
+     * If set to "<code>nio</code>", connections are managed by a small
+     * fixed number of threads using non-blocking I/O;
+     * otherwise ("<code>socket</code>", the default) a blocking socket
+     * is used with a new thread for each connection.
+     * The NIO engine can only be used if the server socket has
+     * an associated channel, see {@link #createServerSocket}.
+     * The property name is {@value}.
+     */
+    public static final String ENGINE_PROP = "jsamp.server.engine";
+
+    /**
+     * System property key determining whether new servers gather
+     * request statistics by default.
+     * If set to "<code>true</code>", a {@link ServerMetrics} object is
+     * installed in each new server and registered as a JMX MBean
+     * while the server is running.
+     * The property name is {@value}.
+     */
+    public static final String METRICS_PROP = "jsamp.server.metrics";
+
+    /**
+     * System property key giving the default maximum number of
+     * concurrent connections from a single remote address.
+     * If unset or zero there is no limit.
+     * Note that all clients on the local host, which includes all
+     * Standard Profile clients, share the loopback address.
+     * The property name is {@value}.
+     */
+    public static final String ADDRESS_LIMIT_PROP = "jsamp.server.addresslimit";
 
     /** Header string for MIME content type. */
     public static final String HDR_CONTENT_TYPE = "Content-Type";
     private static final String HDR_CONTENT_LENGTH = "Content-Length";
+    private static final String HDR_CONNECTION = "Connection";
+    private static final String HDR_TRANSFER_ENCODING = "Transfer-Encoding";
+    private static final String CHUNKED = "chunked";
+
+    /** Default idle timeout in milliseconds for persistent connections. */
+    public static final int DEFAULT_KEEPALIVE_MILLIS = 10 * 1000;
+
+    /** Default maximum silence in milliseconds while awaiting a request. */
+    public static final int DEFAULT_IDLE_MILLIS = 20 * 1000;
+
+    /** Default time in milliseconds allowed for receiving a request header. */
+    public static final int DEFAULT_HEADER_MILLIS = 30 * 1000;
+
+    /** Default maximum silence in milliseconds while reading a request body. */
+    public static final int DEFAULT_BODY_MILLIS = 20 * 1000;
+
+    /** Default minimum transfer rate in bytes per second for request bodies. */
+    public static final int DEFAULT_MIN_BODY_RATE = 1024;
+
+    /**
+     * Default maximum number of concurrent connections from one address,
+     * if not set by {@link #ADDRESS_LIMIT_PROP}; 0 means no limit.
+     */
+    public static final int DEFAULT_MAX_ADDRESS_CONNECTIONS = 0;
+
+    /** Drop reason: no request header started within the idle timeout. */
+    public static final String DROP_IDLE = "idle";
+
+    /** Drop reason: request header not complete within the header timeout. */
+    public static final String DROP_HEADER = "header";
+
+    /** Drop reason: request body silent for longer than the body timeout. */
+    public static final String DROP_BODY = "body";
+
+    /** Drop reason: request body arriving below the minimum rate. */
+    public static final String DROP_SLOW = "slow";
+
+    /** Drop reason: too many concurrent connections from one address. */
+    public static final String DROP_LIMIT = "limit";
+
+    /**
+     * Period in milliseconds at the start of a request body
+     * during which the minimum transfer rate is not enforced.
+     */
+    static final long RATE_GRACE_MILLIS = 5 * 1000;
+
+    /** Default maximum size in bytes of request bodies. */
+    public static final long DEFAULT_MAX_BODY_SIZE = 64 * 1024 * 1024;
+
+    /** Maximum time in milliseconds spent discarding unread request input
+     *  before closing a connection. */
+    private static final int LINGER_MILLIS = 2 * 1000;
+
+    /** Maximum number of unread request bytes discarded
+     *  before closing a connection. */
+    private static final int LINGER_BYTES = 1024 * 1024;
+
+    /** Default time in milliseconds allowed for requests to complete
+     *  when the server is stopped. */
+    public static final int DEFAULT_DRAIN_MILLIS = 5 * 1000;
 
     /** Status code for OK (200). */
     public static final int STATUS_OK = 200;
 
-    private static final String URI_REGEX =
-        "([^\\s\\?]*)\\??([^\\s\\?]*)";
-    private static final String HTTP_VERSION_REGEX =
-        "HTTP/[0-9]+\\.[0-9]+";
-    private static final String HTTP_TOKEN_REGEX =
-        "[a-zA-Z0-9_\\.\\-]+";
-
-    private static final Pattern SIMPLE_REQUEST_PATTERN =
-        Pattern.compile( "GET" + " " + "(" + "\\S+" + ")" );
-    private static final Pattern REQUEST_LINE_PATTERN =
-        Pattern.compile( "(" + HTTP_TOKEN_REGEX + ")" // typically GET, HEAD etc
-                       + " " + "(" + "\\S+" + ")"
-                       + " " + HTTP_VERSION_REGEX );
-    private static final Pattern HEADER_PATTERN =
-        Pattern.compile( "(" + "[^\\s:]+" +")" + ":\\s*(.*)" );
-
     private static final Logger logger_ =
         Logger.getLogger( HttpServer.class.getName() );
 
@@ -83,7 +213,28 @@ public class HttpServer {
     public HttpServer( ServerSocket socket ) {
         serverSocket_ = socket;
         isDaemon_ = true;
-        handlerList_ = Collections.synchronizedList( new ArrayList() );
+        useNio_ = isNioDefault();
+        keepAliveMillis_ = DEFAULT_KEEPALIVE_MILLIS;
+        idleMillis_ = DEFAULT_IDLE_MILLIS;
+        headerMillis_ = DEFAULT_HEADER_MILLIS;
+        bodyMillis_ = DEFAULT_BODY_MILLIS;
+        minBodyRate_ = DEFAULT_MIN_BODY_RATE;
+        maxAddressConnections_ = getAddressLimitDefault();
+        maxBodySize_ = DEFAULT_MAX_BODY_SIZE;
+        drainMillis_ = DEFAULT_DRAIN_MILLIS;
+        activeMap_ = new IdentityHashMap();
+        connAddressMap_ = new IdentityHashMap();
+        addressCountMap_ = new HashMap();
+        dropCountMap_ = new LinkedHashMap();
+        String[] reasons = new String[] {
+            DROP_IDLE, DROP_HEADER, DROP_BODY, DROP_SLOW, DROP_LIMIT,
+        };
+        for ( int i = 0; i < reasons.length; i++ ) {
+            dropCountMap_.put( reasons[ i ], new long[ 1 ] );
+        }
+        metrics_ = isMetricsDefault() ? new ServerMetrics() : null;
+        handlerList_ = new ArrayList();
+        router_ = HandlerRouter.EMPTY;
         boolean isTls = socket instanceof SSLServerSocket;
         String scheme = isTls ? "https" : "http";
         StringBuffer ubuf = new StringBuffer()
@@ -107,7 +258,7 @@ public class HttpServer {
      * Constructs a server based on a default socket, on any free port.
      */
     public HttpServer() throws IOException {
-        this( new ServerSocket( 0 ) );
+        this( createServerSocket( 0 ) );
     }
 
     /**
@@ -116,7 +267,10 @@ public class HttpServer {
      * @param  handler   handler to add
      */
     public void addHandler( Handler handler ) {
-        handlerList_.add( handler );
+        synchronized ( handlerList_ ) {
+            handlerList_.add( handler );
+            updateRouter();
+        }
     }
 
     /**
@@ -125,7 +279,20 @@ public class HttpServer {
      * @param  handler   handler to remove
      */
     public void removeHandler( Handler handler ) {
-        handlerList_.remove( handler );
+        synchronized ( handlerList_ ) {
+            handlerList_.remove( handler );
+            updateRouter();
+        }
+    }
+
+    /**
+     * Replaces the routing table following a change to the handler list.
+     * Must be called while synchronized on the handler list.
+     */
+    private void updateRouter() {
+        router_ = new HandlerRouter( (Handler[])
+                                     handlerList_
+                                    .toArray( new Handler[ 0 ] ) );
     }
 
     /**
@@ -150,19 +317,30 @@ public class HttpServer {
      * Does the work for providing output corresponding to a given HTTP request.
      * This implementation calls each Handler in turn and the first one
      * to provide a non-null response is used.
+     * Handlers implementing {@link PrefixHandler} are only called
+     * for URLs which start with their path prefix;
+     * the others are called for every request.
      *
      * @param  request  represents an HTTP request that has been received
      * @return   represents the content of an HTTP response that should be sent
      */
     public Response serve( Request request ) {
-        Handler[] handlers =
-            (Handler[]) handlerList_.toArray( new Handler[ 0 ] );
+        Handler[] handlers = router_.getHandlers( request.getUrl() );
+        ServerMetrics metrics = request.metrics_;
         for ( int ih = 0; ih < handlers.length; ih++ ) {
             Handler handler = handlers[ ih ];
+            if ( metrics != null ) {
+                metrics.handlerEntered( handler );
+                request.handler_ = handler;
+            }
             Response response = handler.serveRequest( request );
             if ( response != null ) {
                 return response;
             }
+            if ( metrics != null ) {
+                metrics.handlerDeclined( handler );
+                request.handler_ = null;
+            }
         }
         return createErrorResponse( 404, "No handler for URL" );
     }
@@ -179,53 +357,590 @@ public class HttpServer {
         isDaemon_ = isDaemon;
     }
 
+    /**
+     * Determines whether connections will be handled using the
+     * non-blocking I/O engine.
+     * Must be called before {@link #start} to have an effect.
+     * The default is determined by the {@link #ENGINE_PROP} system property.
+     * If the server socket has no associated channel, the blocking
+     * engine will be used regardless.
+     *
+     * @param  useNio  true to use NIO, false for one thread per connection
+     */
+    public void setUseNio( boolean useNio ) {
+        useNio_ = useNio;
+    }
+
+    /**
+     * Sets the time for which an idle persistent connection will be
+     * kept open awaiting a further request.
+     * If zero, a connection is closed after each response.
+     * Connections are also closed after each response if the server
+     * uses blocking I/O with a {@link RequestExecutor#isBounded bounded}
+     * executor, since each idle connection would hold one of its threads.
+     * The default is {@link #DEFAULT_KEEPALIVE_MILLIS}.
+     *
+     * @param  millis  keep-alive timeout in milliseconds
+     */
+    public void setKeepAliveTimeout( int millis ) {
+        keepAliveMillis_ = millis;
+    }
+
+    /**
+     * Returns the time for which an idle persistent connection will be
+     * kept open awaiting a further request.
+     *
+     * @return  keep-alive timeout in milliseconds
+     */
+    public int getKeepAliveTimeout() {
+        return keepAliveMillis_;
+    }
+
+    /**
+     * Sets the longest time for which a connection may be silent while
+     * a request is awaited or its header is being read.
+     * For persistent connections between requests, the keep-alive
+     * timeout applies instead.
+     * The default is {@link #DEFAULT_IDLE_MILLIS}.
+     *
+     * @param  millis  idle timeout in milliseconds, or 0 for no limit
+     */
+    public void setIdleTimeout( int millis ) {
+        idleMillis_ = millis;
+    }
+
+    /**
+     * Returns the longest time for which a connection may be silent while
+     * a request is awaited or its header is being read.
+     *
+     * @return  idle timeout in milliseconds, or 0 for no limit
+     */
+    public int getIdleTimeout() {
+        return idleMillis_;
+    }
+
+    /**
+     * Sets the time allowed for the whole of a request header to arrive,
+     * measured from the arrival of its first byte.
+     * The default is {@link #DEFAULT_HEADER_MILLIS}.
+     *
+     * @param  millis  header timeout in milliseconds, or 0 for no limit
+     */
+    public void setHeaderTimeout( int millis ) {
+        headerMillis_ = millis;
+    }
+
+    /**
+     * Returns the time allowed for the whole of a request header to arrive.
+     *
+     * @return  header timeout in milliseconds, or 0 for no limit
+     */
+    public int getHeaderTimeout() {
+        return headerMillis_;
+    }
+
+    /**
+     * Sets the longest time for which a connection may be silent while
+     * a request body is being read.
+     * The default is {@link #DEFAULT_BODY_MILLIS}.
+     *
+     * @param  millis  body timeout in milliseconds, or 0 for no limit
+     */
+    public void setBodyTimeout( int millis ) {
+        bodyMillis_ = millis;
+    }
+
+    /**
+     * Returns the longest time for which a connection may be silent while
+     * a request body is being read.
+     *
+     * @return  body timeout in milliseconds, or 0 for no limit
+     */
+    public int getBodyTimeout() {
+        return bodyMillis_;
+    }
+
+    /**
+     * Sets the lowest average rate at which a request body may arrive.
+     * The rate is not enforced during the first few seconds of the body.
+     * Only time spent waiting for the client counts towards the rate,
+     * so handlers which read the body slowly are not penalised.
+     * The default is {@link #DEFAULT_MIN_BODY_RATE}.
+     *
+     * @param  bytesPerSec  minimum rate in bytes per second, or 0 for none
+     */
+    public void setMinBodyRate( int bytesPerSec ) {
+        minBodyRate_ = bytesPerSec;
+    }
+
+    /**
+     * Returns the lowest average rate at which a request body may arrive.
+     *
+     * @return  minimum rate in bytes per second, or 0 for none
+     */
+    public int getMinBodyRate() {
+        return minBodyRate_;
+    }
+
+    /**
+     * Sets the largest number of connections from a single remote address
+     * which may be open at once.  Further connections are closed
+     * immediately.
+     * Since all clients on the local host share the loopback address,
+     * a limit should be set with care.
+     * The default is given by the {@link #ADDRESS_LIMIT_PROP}
+     * system property, or if that is not set
+     * {@link #DEFAULT_MAX_ADDRESS_CONNECTIONS} (no limit).
+     *
+     * @param  maxConns  maximum connection count per address,
+     *                   or 0 for no limit
+     */
+    public void setMaxAddressConnections( int maxConns ) {
+        maxAddressConnections_ = maxConns;
+    }
+
+    /**
+     * Returns the largest number of connections from a single remote
+     * address which may be open at once.
+     *
+     * @return  maximum connection count per address, or 0 for no limit
+     */
+    public int getMaxAddressConnections() {
+        return maxAddressConnections_;
+    }
+
+    /**
+     * Returns the number of connections that this server has dropped
+     * to protect itself, for each reason.
+     * The keys are the <code>DROP_*</code> constants of this class,
+     * and the values are Long counts.
+     *
+     * @return  ordered map from reason to drop count
+     */
+    public Map getDropCounts() {
+        Map map = new LinkedHashMap();
+        synchronized ( dropCountMap_ ) {
+            for ( Iterator it = dropCountMap_.entrySet().iterator();
+                  it.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) it.next();
+                map.put( entry.getKey(),
+                         new Long( ((long[]) entry.getValue())[ 0 ] ) );
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Records that a connection has been dropped.
+     *
+     * @param  reason  one of the <code>DROP_*</code> constants
+     * @param  sock   connection socket
+     */
+    void noteDrop( String reason, Socket sock ) {
+        synchronized ( dropCountMap_ ) {
+            ((long[]) dropCountMap_.get( reason ))[ 0 ]++;
+        }
+        logger_.info( "Drop connection from " + sock.getInetAddress()
+                    + " (" + reason + ")" );
+    }
+
+    /**
+     * Registers a newly accepted connection, unless there are already
+     * too many from the same address.
+     * A connection successfully registered must be passed to
+     * {@link #connectionClosed} when it is closed.
+     *
+     * @param  sock  newly accepted connection socket
+     * @return  true iff the connection may be served;
+     *          if false, the caller should close it
+     */
+    boolean connectionOpened( Socket sock ) {
+        InetAddress addr = sock.getInetAddress();
+        if ( addr == null ) {
+            return true;
+        }
+        synchronized ( connAddressMap_ ) {
+            int[] count = (int[]) addressCountMap_.get( addr );
+            if ( count == null ) {
+                count = new int[ 1 ];
+                addressCountMap_.put( addr, count );
+            }
+            if ( maxAddressConnections_ <= 0 ||
+                 count[ 0 ] < maxAddressConnections_ ) {
+                count[ 0 ]++;
+                connAddressMap_.put( sock, addr );
+                return true;
+            }
+        }
+        noteDrop( DROP_LIMIT, sock );
+        return false;
+    }
+
+    /**
+     * Deregisters a connection which has been closed.
+     * It is harmless to call this more than once for the same socket,
+     * or for a socket that was never registered.
+     *
+     * @param  sock  connection socket
+     */
+    void connectionClosed( Socket sock ) {
+        synchronized ( connAddressMap_ ) {
+            Object addr = connAddressMap_.remove( sock );
+            if ( addr != null ) {
+                int[] count = (int[]) addressCountMap_.get( addr );
+                if ( --count[ 0 ] <= 0 ) {
+                    addressCountMap_.remove( addr );
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes a connection socket, ignoring any errors,
+     * and deregisters it.
+     *
+     * @param  sock  connection socket
+     */
+    void closeConnection( Socket sock ) {
+        try {
+            sock.close();
+        }
+        catch ( IOException e ) {
+        }
+        connectionClosed( sock );
+    }
+
+    /**
+     * Sets the largest request body which will be accepted.
+     * Requests declaring a larger Content-Length are rejected with
+     * a 413 response without the body being passed to a handler;
+     * a limited amount of it is read and discarded before the
+     * connection is closed, so that the client can see the response.
+     * The default is {@link #DEFAULT_MAX_BODY_SIZE}.
+     *
+     * @param  maxBytes  maximum request body size in bytes
+     */
+    public void setMaxBodySize( long maxBytes ) {
+        maxBodySize_ = maxBytes;
+    }
+
+    /**
+     * Returns the largest request body which will be accepted.
+     *
+     * @return  maximum request body size in bytes
+     */
+    public long getMaxBodySize() {
+        return maxBodySize_;
+    }
+
+    /**
+     * Sets the time allowed for requests in progress to complete
+     * when this server is stopped.  Connections still busy after this
+     * time are closed, and counted by {@link #getAbortedCount}.
+     * The default is {@link #DEFAULT_DRAIN_MILLIS}.
+     *
+     * @param  millis  drain timeout in milliseconds
+     */
+    public void setDrainTimeout( int millis ) {
+        drainMillis_ = millis;
+    }
+
+    /**
+     * Returns the time allowed for requests in progress to complete
+     * when this server is stopped.
+     *
+     * @return  drain timeout in milliseconds
+     */
+    public int getDrainTimeout() {
+        return drainMillis_;
+    }
+
+    /**
+     * Returns the number of requests which were aborted because they
+     * had not completed within the drain timeout when this server
+     * was stopped.
+     *
+     * @return  aborted request count
+     */
+    public long getAbortedCount() {
+        synchronized ( activeMap_ ) {
+            return abortCount_;
+        }
+    }
+
+    /**
+     * Sets the executor which runs the tasks serving requests.
+     * Must be called before {@link #start} to have an effect.
+     * If no executor is set, one is created at start time according to
+     * the {@link RequestExecutor#WORKERS_PROP} system property,
+     * and shut down when this server is stopped.
+     * An executor set explicitly is not shut down by this server.
+     *
+     * @param  executor  request executor
+     */
+    public void setExecutor( RequestExecutor executor ) {
+        executor_ = executor;
+        ownsExecutor_ = false;
+    }
+
+    /**
+     * Returns the executor which runs the tasks serving requests.
+     * This may be null if the server has not been started.
+     *
+     * @return  request executor
+     */
+    public RequestExecutor getExecutor() {
+        return executor_;
+    }
+
+    /**
+     * Returns the number of requests which have been rejected by this
+     * server's executor because it was saturated.
+     *
+     * @return  rejected request count
+     */
+    public long getRejectedCount() {
+        return executor_ == null ? 0 : executor_.getRejectedCount();
+    }
+
+    /**
+     * Sets the object which gathers statistics about the requests
+     * served by this server.  While the server is running,
+     * the metrics object is registered as a JMX MBean if possible.
+     * The default is determined by the {@link #METRICS_PROP}
+     * system property.
+     *
+     * @param  metrics  metrics object, or null for no statistics
+     */
+    public synchronized void setMetrics( ServerMetrics metrics ) {
+        if ( isRunning() && metrics_ != null ) {
+            metrics_.unregisterMBean();
+        }
+        metrics_ = metrics;
+        if ( isRunning() && metrics_ != null ) {
+            metrics_.registerMBean( getMBeanName() );
+        }
+    }
+
+    /**
+     * Returns the object which gathers statistics about the requests
+     * served by this server.
+     *
+     * @return  metrics object, or null if statistics are not gathered
+     */
+    public ServerMetrics getMetrics() {
+        return metrics_;
+    }
+
+    /**
+     * Sets a log to which a line is written for each request served
+     * by this server.  The log is closed when this server is stopped.
+     *
+     * @param  accessLog  access log, or null for no logging
+     */
+    public void setAccessLog( AccessLog accessLog ) {
+        accessLog_ = accessLog;
+    }
+
+    /**
+     * Returns the log to which a line is written for each request served
+     * by this server.
+     *
+     * @return  access log, or null
+     */
+    public AccessLog getAccessLog() {
+        return accessLog_;
+    }
+
+    /**
+     * Returns the name under which this server's metrics object is
+     * registered with JMX.
+     *
+     * @return  text of JMX ObjectName
+     */
+    private String getMBeanName() {
+        return HttpServer.class.getPackage().getName()
+             + ":type=HttpServer,port=" + serverSocket_.getLocalPort();
+    }
+
     /**
      * Starts the server if it is not already started.
      */
     public synchronized void start() {
         if ( ! started_ ) {
-            Thread server = new Thread( "HTTP Server" ) {
-                public void run() {
-                    try {
-                        while ( ! stopped_ ) {
-                            try {
-                                final Socket sock = serverSocket_.accept();
-                                new Thread( "HTTP Request" ) {
-                                    public void run() {
-                                        try {
-                                            serveRequest( sock );
-                                        }
-                                        catch ( Throwable e ) {
-                                            logger_.log( Level.WARNING,
-                                                         "Httpd error", e );
-                                        }
+            if ( executor_ == null ) {
+                executor_ = RequestExecutor.createDefaultExecutor( isDaemon_ );
+                ownsExecutor_ = true;
+            }
+            nioEngine_ = useNio_ ? createNioEngine() : null;
+            persistOk_ = nioEngine_ != null || ! executor_.isBounded();
+            if ( nioEngine_ != null ) {
+                logger_.info( "Server " + getBaseUrl() + " starting (NIO)" );
+                nioEngine_.start( isDaemon_, keepAliveMillis_ );
+            }
+            else {
+                Thread server = new Thread( "HTTP Server" ) {
+                    public void run() {
+                        try {
+                            while ( ! stopped_ ) {
+                                try {
+                                    Socket sock = serverSocket_.accept();
+                                    if ( connectionOpened( sock ) ) {
+                                        dispatchRequest( sock, null, 0 );
+                                    }
+                                    else {
+                                        closeConnection( sock );
+                                    }
+                                }
+                                catch ( IOException e ) {
+                                    if ( ! stopped_ ) {
+                                        logger_.log( Level.WARNING,
+                                                     "Socket error", e );
                                     }
-                                }.start();
-                            }
-                            catch ( IOException e ) {
-                                if ( ! stopped_ ) {
-                                    logger_.log( Level.WARNING,
-                                                 "Socket error", e );
                                 }
                             }
                         }
+                        finally {
+                            HttpServer.this.stop();
+                        }
                     }
-                    finally {
-                        HttpServer.this.stop();
-                    }
-                }
-            };
-            server.setDaemon( isDaemon_ );
-            logger_.info( "Server " + getBaseUrl() + " starting" );
-            server.start();
+                };
+                server.setDaemon( isDaemon_ );
+                logger_.info( "Server " + getBaseUrl() + " starting" );
+                server.start();
+            }
             started_ = true;
+            if ( metrics_ != null ) {
+                metrics_.registerMBean( getMBeanName() );
+            }
             logger_.config( "Server " + getBaseUrl() + " started" );
         }
     }
 
     /**
-     * Stops the server if it is currently running.  Processing of any requests
-     * which have already been received is completed.
+     * Attempts to create a non-blocking I/O engine for this server.
+     *
+     * @return   new engine, or null if NIO cannot be used
+     */
+    private NioEngine createNioEngine() {
+        ServerSocketChannel channel = serverSocket_.getChannel();
+        if ( channel == null ) {
+            logger_.warning( "No channel for server socket"
+                           + " - can't use NIO engine" );
+            return null;
+        }
+        try {
+            return new NioEngine( this, channel );
+        }
+        catch ( IOException e ) {
+            logger_.log( Level.WARNING,
+                         "Can't start NIO engine - use blocking sockets", e );
+            return null;
+        }
+    }
+
+    /**
+     * Arranges for a request received on a given connection to be served
+     * asynchronously.  If the executor is saturated, a 503 response
+     * is sent and the connection is closed.
+     * Since that write may block, this should not be called from
+     * a thread which must not be held up.
+     *
+     * @param  sock   client connection socket
+     * @param  buf   buffer containing request bytes already read from
+     *               the socket, or null if none have been read
+     * @param  count  number of bytes at the start of <code>buf</code>
+     *                which have been read
+     */
+    void dispatchRequest( Socket sock, byte[] buf, int count ) {
+        if ( ! submitRequest( sock, buf, count ) ) {
+            rejectRequest( sock );
+        }
+    }
+
+    /**
+     * Attempts to arrange for a request received on a given connection
+     * to be served asynchronously.  If the executor is saturated,
+     * false is returned and the connection is left untouched;
+     * the caller is then responsible for rejecting it.
+     *
+     * @param  sock   blocking-mode client connection socket
+     * @param  buf   buffer containing request bytes already read from
+     *               the socket, or null if none have been read
+     * @param  count  number of bytes at the start of <code>buf</code>
+     *                which have been read
+     * @return  true iff the request has been accepted for service
+     */
+    boolean submitRequest( final Socket sock, final byte[] buf,
+                           final int count ) {
+        Runnable task = new Runnable() {
+            public void run() {
+                try {
+                    if ( buf == null ) {
+                        serveRequest( sock );
+                    }
+                    else {
+                        serveBufferedRequest( sock, buf, count );
+                    }
+                }
+                catch ( Throwable e ) {
+
+                    // Connections aborted by a drain are expected to fail.
+                    Level level = stopped_ && e instanceof IOException
+                                ? Level.CONFIG
+                                : Level.WARNING;
+                    logger_.log( level, "Httpd error", e );
+                }
+            }
+        };
+        if ( executor_.execute( task ) ) {
+            return true;
+        }
+        else {
+            logger_.info( "Server busy - reject request from "
+                        + sock.getInetAddress() );
+            return false;
+        }
+    }
+
+    /**
+     * Sends a 503 Service Unavailable response on a connection without
+     * serving its request, and closes it.
+     *
+     * @param  sock  client connection socket
+     */
+    private void rejectRequest( Socket sock ) {
+        Response response =
+            createErrorResponse( 503, "Service unavailable" );
+        setHeader( response, HDR_CONNECTION, "close" );
+        try {
+            OutputStream out = sock.getOutputStream();
+            response.writeResponse( out );
+            out.flush();
+            sock.shutdownOutput();
+
+            // Discard any request bytes already received, since closing
+            // a socket with unread input may reset the connection
+            // before the client has seen the response.
+            InputStream in = sock.getInputStream();
+            for ( int n; ( n = in.available() ) > 0; ) {
+                in.skip( n );
+            }
+        }
+        catch ( IOException e ) {
+            logger_.log( Level.CONFIG, "Can't send 503 response", e );
+        }
+        finally {
+            closeConnection( sock );
+        }
+    }
+
+    /**
+     * Stops the server if it is currently running.
+     * No new connections are accepted, and connections waiting for
+     * a request are closed.  Requests already being received or
+     * processed are given up to the drain timeout to complete,
+     * after which their connections are closed.
      */
     public synchronized void stop() {
         if ( ! stopped_ ) {
@@ -238,42 +953,247 @@ public class HttpServer {
                 logger_.log( Level.WARNING,
                              "Error during server stop: " + e, e );
             }
+            if ( nioEngine_ != null ) {
+                nioEngine_.stop();
+            }
+            drain();
+            if ( ownsExecutor_ && executor_ != null ) {
+                executor_.shutdown();
+            }
+            if ( metrics_ != null ) {
+                metrics_.unregisterMBean();
+            }
+            if ( accessLog_ != null ) {
+                accessLog_.close();
+            }
+        }
+    }
+
+    /**
+     * Waits for active connections to finish their current requests,
+     * up to the drain timeout, then closes any that remain.
+     * Connections waiting for a request to start are closed first.
+     * A request being served by the calling thread is not waited for.
+     */
+    private void drain() {
+        long deadline = System.currentTimeMillis() + drainMillis_;
+        List busyList = new ArrayList();
+        synchronized ( activeMap_ ) {
+            while ( true ) {
+                busyList.clear();
+                for ( Iterator it = activeMap_.entrySet().iterator();
+                      it.hasNext(); ) {
+                    Map.Entry entry = (Map.Entry) it.next();
+                    Socket sock = (Socket) entry.getKey();
+                    ActiveConnection conn = (ActiveConnection) entry.getValue();
+                    if ( conn.sin_ != null && conn.sin_.isWaiting() ) {
+                        conn.sin_.unblock();
+                    }
+                    else if ( conn.thread_ != Thread.currentThread() ) {
+                        busyList.add( sock );
+                    }
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if ( busyList.isEmpty() || remaining <= 0 ) {
+                    break;
+                }
+                try {
+                    activeMap_.wait( Math.min( remaining, 100 ) );
+                }
+                catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            abortCount_ += busyList.size();
+        }
+        if ( ! busyList.isEmpty() ) {
+            logger_.warning( "Server " + getBaseUrl() + " aborting "
+                           + busyList.size() + " unfinished requests" );
+            for ( Iterator it = busyList.iterator(); it.hasNext(); ) {
+                closeConnection( (Socket) it.next() );
+            }
+        }
+    }
+
+    /**
+     * Records that a connection is being handled by the current thread.
+     *
+     * @param  sock  connection socket
+     * @param  sin   stream from which requests will be read,
+     *               or null if a request has already been read
+     */
+    private void connectionActive( Socket sock, SocketInputStream sin ) {
+        synchronized ( activeMap_ ) {
+            activeMap_.put( sock, new ActiveConnection( sin ) );
+        }
+    }
+
+    /**
+     * Records that a connection is no longer being handled.
+     *
+     * @param  sock  connection socket
+     */
+    private void connectionInactive( Socket sock ) {
+        synchronized ( activeMap_ ) {
+            activeMap_.remove( sock );
+            activeMap_.notifyAll();
+        }
+    }
+
+    /**
+     * Indicates whether this server is stopped or stopping.
+     *
+     * @return  true once {@link #stop} has been called
+     */
+    boolean isStopped() {
+        return stopped_;
+    }
+
+    /**
+     * Indicates whether this server is currently running.
+     *
+     * @return   true if running
+     */
+    public boolean isRunning() {
+        return started_ && ! stopped_;
+    }
+
+    /**
+     * Called by the server thread for each new connection.
+     * Requests are read and served in turn until the connection
+     * is not to be kept alive, or the client has sent nothing further
+     * within the keep-alive timeout.
+     *
+     * @param  sock   client connection socket
+     */
+    protected void serveRequest( Socket sock ) throws IOException {
+        SocketInputStream sin = new SocketInputStream( sock );
+        RequestReader in = new RequestReader( sin );
+        SocketOutputStream out = new SocketOutputStream( sock );
+        connectionActive( sock, sin );
+        try {
+            while ( serveRequest( sock, in, out, sin ) &&
+                    awaitInput( sin, in ) ) {
+            }
+        }
+        finally {
+            try {
+                out.close();
+            }
+            catch ( IOException e ) {
+            }
+            connectionClosed( sock );
+            connectionInactive( sock );
+        }
+    }
+
+    /**
+     * Waits for the start of a further request on a persistent connection.
+     *
+     * @param  sin  socket input stream
+     * @param  in   request reader for socket input
+     * @return   true iff at least one byte of input is available;
+     *           false for end of stream or keep-alive timeout
+     */
+    private boolean awaitInput( SocketInputStream sin, RequestReader in )
+            throws IOException {
+        sin.startWait( keepAliveMillis_ );
+        try {
+            if ( ! in.fill() ) {
+                return false;
+            }
+        }
+        catch ( SocketTimeoutException e ) {
+            return false;
         }
+        return ! stopped_;
     }
 
     /**
-     * Indicates whether this server is currently running.
+     * Serves a request whose head, and possibly some or all of its body,
+     * have already been read from a non-blocking connection.
+     * Any remaining body bytes are read from the socket as the
+     * handler consumes them.
+     * If the connection can be kept alive, it is returned to the
+     * NIO engine to await the next request, otherwise it is closed.
      *
-     * @return   true if running
+     * @param  sock   blocking-mode client connection socket
+     * @param  buf   buffer containing the bytes read from the
+     *               connection so far
+     * @param  count  number of bytes at the start of <code>buf</code>
+     *                which have been read
      */
-    public boolean isRunning() {
-        return started_ && ! stopped_;
+    private void serveBufferedRequest( Socket sock, byte[] buf, int count )
+            throws IOException {
+        SocketInputStream sin = new SocketInputStream( sock );
+        RequestReader in = new RequestReader( sin, buf, count );
+        SocketOutputStream out = new SocketOutputStream( sock );
+        boolean keepAlive = false;
+        connectionActive( sock, sin );
+        try {
+            keepAlive = serveRequest( sock, in, out, sin )
+                     && nioEngine_ != null;
+        }
+        finally {
+            connectionInactive( sock );
+            if ( keepAlive ) {
+                nioEngine_.resumeConnection( sock.getChannel(),
+                                             in.takeBuffered() );
+            }
+            else {
+                try {
+                    out.close();
+                }
+                catch ( IOException e ) {
+                }
+                connectionClosed( sock );
+            }
+        }
     }
 
     /**
-     * Called by the server thread for each new connection.
+     * Reads a single request from a given input stream, and writes
+     * the response to a given output stream.
+     * The streams are not closed.
      *
      * @param  sock   client connection socket
+     * @param  in    stream supplying the request bytes
+     * @param  out   stream to receive the response bytes
+     * @param  sin   socket stream underlying <code>in</code>,
+     *               or null if the request bytes have already been read
+     * @return  true iff the connection may be kept alive for
+     *          another request
      */
-    protected void serveRequest( Socket sock ) throws IOException {
+    boolean serveRequest( Socket sock, RequestReader in,
+                          SocketOutputStream out, SocketInputStream sin )
+            throws IOException {
 
         // Try to generate a request object by examining the socket's 
         // input stream.  If that fails, generate a response representing
         // the error.
-        InputStream in = sock.getInputStream();
-        in = new BufferedInputStream( in );
         Response response = null;
         Request request = null; 
+        boolean isRejected = false;
         try {
-            request = parseRequest( in, sock.getRemoteSocketAddress() );
+            if ( sin != null ) {
+                sin.startHeader( idleMillis_, headerMillis_,
+                                 in.available() > 0 );
+            }
+            request = parseRequest( in, sock.getRemoteSocketAddress(),
+                                    maxBodySize_ );
 
             // If there was no input, make no response at all.
             if ( request == null ) {
-                return;
+                return false;
+            }
+            if ( sin != null ) {
+                sin.startBody( bodyMillis_, minBodyRate_ );
             }
         }
         catch ( HttpException e ) {
             response = e.createResponse();
+            isRejected = true;
         }
         catch ( IOException e ) {
             response = createErrorResponse( 400, "I/O error", e );
@@ -282,6 +1202,21 @@ public class HttpServer {
             response = createErrorResponse( 500, "Server error", e );
         }
 
+        // If statistics are being gathered or requests logged,
+        // note the start of service.
+        ServerMetrics metrics = metrics_;
+        AccessLog accessLog = accessLog_;
+        long startMicros = 0;
+        if ( metrics != null || accessLog != null ) {
+            startMicros = ServerMetrics.currentMicros();
+        }
+        if ( metrics != null ) {
+            metrics.requestStarted();
+            if ( request != null ) {
+                request.metrics_ = metrics;
+            }
+        }
+
         // If we have a request (and hence no error response) process it to
         // obtain a response object.
         if ( response == null ) {
@@ -293,9 +1228,18 @@ public class HttpServer {
                 response = createErrorResponse( 500, e.toString(), e );
             }
         }
+
+        // If the client was too slow supplying the request, drop it.
+        String dropReason = sin == null ? null : sin.takeDropReason();
+        if ( dropReason != null ) {
+            noteDrop( dropReason, sock );
+            response = createErrorResponse( 408, "Request timeout" );
+        }
         final Level level;
         switch ( response.getStatusCode() ) {
             case 200:
+            case 206:
+            case 304:
                 level = Level.CONFIG;
                 break;
             case 404:
@@ -321,20 +1265,208 @@ public class HttpServer {
             logger_.log( level, sbuf.toString() );
         }
 
+        // The connection management headers are passed to the output
+        // stream rather than added to the response's own header map,
+        // which belongs to the handler and may be shared between requests.
+        Map connHdrMap = new LinkedHashMap();
+
+        // If the body length is not known in advance, send it in chunks
+        // where the client understands that, rather than delimiting it
+        // by closing the connection.
+        boolean delimited = request != null
+                         && isDelimited( request, response );
+        if ( request != null && request.http11_ && ! delimited ) {
+            connHdrMap.put( HDR_TRANSFER_ENCODING, CHUNKED );
+            delimited = true;
+        }
+
+        // Decide whether the connection can be kept open
+        // and tell the client.
+        boolean keepAlive = request != null
+                         && request.keepAlive_
+                         && keepAliveMillis_ > 0
+                         && persistOk_
+                         && ! stopped_
+                         && dropReason == null
+                         && delimited;
+        if ( keepAlive && ! request.http11_ ) {
+            connHdrMap.put( HDR_CONNECTION, "keep-alive" );
+        }
+        else if ( ! keepAlive && request != null && request.http11_ ) {
+            connHdrMap.put( HDR_CONNECTION, "close" );
+        }
+        out.setConnectionHeaders( connHdrMap );
+
         // Send the response back to the client.
-        BufferedOutputStream bos =
-            new BufferedOutputStream( sock.getOutputStream() );
+        if ( metrics == null && accessLog == null ) {
+            response.writeResponse( out );
+            out.flush();
+        }
+        else {
+            long respBytes = getBodyLength( request, response );
+            try {
+                response.writeResponse( out );
+                out.flush();
+            }
+            finally {
+                long count = out.takeBodyCount();
+                if ( respBytes < 0 ) {
+                    respBytes = count;
+                }
+                long micros =
+                    Math.max( 0, ServerMetrics.currentMicros() - startMicros );
+                int status = response.getStatusCode();
+                long reqBytes = request == null ? 0 : request.bodyLength_;
+                if ( metrics != null ) {
+                    metrics.requestCompleted( request == null
+                                                  ? null : request.handler_,
+                                              status, reqBytes, respBytes,
+                                              micros );
+                }
+                if ( accessLog != null ) {
+                    accessLog.log( request == null ? null : request.method_,
+                                   request == null ? null : request.url_,
+                                   sock.getRemoteSocketAddress(), status,
+                                   reqBytes, respBytes, micros );
+                }
+            }
+        }
+
+        // Skip any part of the request body which the handler did not
+        // read, so that the next request on the connection can be found.
+        if ( keepAlive && request.bodyIn_ instanceof BodyInputStream ) {
+            keepAlive = ((BodyInputStream) request.bodyIn_).drain();
+            dropReason = sin == null ? null : sin.takeDropReason();
+            if ( dropReason != null ) {
+                noteDrop( dropReason, sock );
+            }
+        }
+
+        // If the connection is to be closed while the client may still
+        // be sending the request, give it a chance to see the response.
+        else if ( isRejected ||
+                  ( ! keepAlive && request != null &&
+                    request.bodyIn_ instanceof BodyInputStream &&
+                    ((BodyInputStream) request.bodyIn_).remaining_ > 0 ) ) {
+            discardInput( sock, out );
+        }
+        return keepAlive;
+    }
+
+    /**
+     * Prepares to close a connection on which the client may still be
+     * sending request bytes.
+     * Closing a socket with unread input may reset the connection,
+     * in which case the client may never see the response.
+     * So output is shut down, and input is read and discarded until
+     * the client closes its end or a time or byte limit is reached.
+     *
+     * @param  sock  client connection socket
+     * @param  out   stream to which the response has been written
+     */
+    private static void discardInput( Socket sock, OutputStream out ) {
         try {
-            response.writeResponse( bos );
-            bos.flush();
+            out.flush();
+            sock.shutdownOutput();
+            InputStream in = sock.getInputStream();
+            byte[] buf = new byte[ 8192 ];
+            long deadline = System.currentTimeMillis() + LINGER_MILLIS;
+            for ( int nb = 0; nb < LINGER_BYTES; ) {
+                long wait = deadline - System.currentTimeMillis();
+                if ( wait <= 0 ) {
+                    break;
+                }
+                sock.setSoTimeout( (int) wait );
+                int n = in.read( buf );
+                if ( n < 0 ) {
+                    break;
+                }
+                nb += n;
+            }
         }
-        finally {
+        catch ( IOException e ) {
+        }
+    }
+
+    /**
+     * Indicates whether the end of a response's body can be determined
+     * by the client without the connection being closed.
+     *
+     * @param  request  request
+     * @param  response  response to request
+     * @return  true iff the response body is explicitly delimited
+     */
+    private static boolean isDelimited( Request request, Response response ) {
+        int status = response.getStatusCode();
+        return "HEAD".equals( request.getMethod() )
+            || status / 100 == 1
+            || status == 204
+            || status == 304
+            || getHeader( response.getHeaderMap(), HDR_CONTENT_LENGTH )
+               != null
+            || isChunked( response.getHeaderMap() );
+    }
+
+    /**
+     * Returns the number of bytes that will be written in a response body,
+     * if it can be determined from the request and response headers.
+     *
+     * @param  request  request, or null if it could not be parsed
+     * @param  response  response
+     * @return  body length in bytes, or -1 if not known
+     */
+    private static long getBodyLength( Request request, Response response ) {
+        int status = response.getStatusCode();
+        if ( ( request != null && "HEAD".equals( request.getMethod() ) ) ||
+             status / 100 == 1 || status == 204 || status == 304 ) {
+            return 0;
+        }
+        String leng = response.headerMap_ == null
+                    ? null
+                    : getHeader( response.headerMap_, HDR_CONTENT_LENGTH );
+        if ( leng != null ) {
             try {
-                bos.close();
+                return Long.parseLong( leng.trim() );
             }
-            catch ( IOException e ) {
+            catch ( NumberFormatException e ) {
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Indicates whether a header map declares the chunked transfer coding.
+     *
+     * @param  headerMap  header map, may be null
+     * @return  true iff body is to be sent in chunks
+     */
+    private static boolean isChunked( Map headerMap ) {
+        String te = headerMap == null
+                  ? null
+                  : getHeader( headerMap, HDR_TRANSFER_ENCODING );
+        return te != null && te.trim().toLowerCase().endsWith( CHUNKED );
+    }
+
+    /**
+     * Attempts to set a header value in a response.
+     *
+     * @param  response  response
+     * @param  key   header name
+     * @param  value  header value
+     * @return  true iff the header was successfully set
+     */
+    private static boolean setHeader( Response response, String key,
+                                      String value ) {
+        Map hdrMap = response.getHeaderMap();
+        if ( hdrMap != null ) {
+            try {
+                hdrMap.put( key, value );
+                return true;
+            }
+            catch ( UnsupportedOperationException e ) {
             }
         }
+        return false;
     }
 
     /**
@@ -343,210 +1475,193 @@ public class HttpServer {
      * As a special case, if the input stream has no content at all,
      * null is returned.
      *
-     * @param   in   input stream
+     * The body, if any, is not read here, but is made available
+     * as a stream from the request.
+     *
+     * @param   in   request reader
      * @param   remoteAddress  address of requesting client
+     * @param   maxBody   maximum permitted body size in bytes
      * @return  parsed request, or null
      */
-    private static Request parseRequest( InputStream in,
-                                         SocketAddress remoteAddress )
+    private static Request parseRequest( RequestReader in,
+                                         SocketAddress remoteAddress,
+                                         long maxBody )
             throws IOException {
 
-        // Read the pre-body part.
-        String[] hdrLines = readHeaderLines( in );
+        // Read and parse the pre-body part.
+        RequestReader.RequestHead head = in.readHead();
 
         // No text at all?
-        if ( hdrLines == null ) {
+        if ( head == null ) {
             return null;
         }
 
-        // No header content?
-        if ( hdrLines.length == 0 ) {
-            throw new HttpException( 400, "Empty request" );
-        }
-
         // HTTP/0.9 style simple request - probably rare.
-        Matcher simpleMatcher = SIMPLE_REQUEST_PATTERN.matcher( hdrLines[ 0 ] );
-        if ( simpleMatcher.matches() ) {
-            return new Request( "GET", simpleMatcher.group( 1 ),
+        if ( head.version_ == null ) {
+            return new Request( "GET", head.uri_,
                                 new HashMap(), remoteAddress, null );
         }
 
-        // Normal HTTP/1.0 request.
-        // First parse the request line.
-        Matcher fullMatcher = REQUEST_LINE_PATTERN.matcher( hdrLines[ 0 ] );
-        if ( fullMatcher.matches() ) {
-            String method = fullMatcher.group( 1 );
-            String uri = fullMatcher.group( 2 );
-
-            // Then read and parse header lines.
-            HttpHeaderMap headerMap = new HttpHeaderMap();
-            int iLine = 1;
-            boolean headerEnd = false;
-            int contentLength = 0;
-            for ( ; iLine < hdrLines.length; iLine++ ) {
-                String line = hdrLines[ iLine ];
-                Matcher headerMatcher = HEADER_PATTERN.matcher( line );
-                if ( headerMatcher.matches() ) {
-                    String key = headerMatcher.group( 1 );
-                    String value = headerMatcher.group( 2 );
-
-                    // Cope with continuation lines.
-                    boolean cont = true;
-                    while ( iLine + 1 < hdrLines.length && cont ) {
-                        cont = false;
-                        String line1 = hdrLines[ iLine + 1 ];
-                        if ( line1.length() > 0 ) {
-                            char c1 = line1.charAt( 0 ); 
-                            if ( c1 == ' ' || c1 == '\t' ) {
-                                value += line1.trim();
-                                iLine++;
-                                cont = true;
-                            }
-                        }
-                    }
-
-                    // Store the header.
-                    headerMap.addHeader( key, value );
+        // Normal HTTP/1.x request.
+        // Check the size of the body if there is one.
+        int contentLength = head.contentLength_;
+        if ( contentLength > maxBody ) {
+            throw new HttpException( 413, "Request body too large" );
+        }
+        InputStream bodyIn = contentLength > 0
+                           ? new BodyInputStream( in, contentLength )
+                           : null;
 
-                    // Iff we have a content-length line it means we can expect
-                    // a body later.
-                    if ( key.equalsIgnoreCase( HDR_CONTENT_LENGTH ) ) {
-                        try {
-                            contentLength =
-                                Integer.parseInt( value.trim() );
-                        }
-                        catch ( NumberFormatException e ) {
-                            throw new HttpException( 400, 
-                                                     "Failed to parse "
-                                                    + key + " header "
-                                                    + value );
-                        }
-                    }
-                }
-            }
+        // Decode escaped characters in the requested URI.
+        String uri = SampUtils.uriDecode( head.uri_ );
 
-            // Read body if there is one.
-            final byte[] body;
-            if ( contentLength > 0 ) {
-                body = new byte[ contentLength ];
-                int ib = 0;
-                while ( ib < contentLength ) {
-                    int nb = in.read( body, ib, contentLength - ib );
-                    if ( nb < 0 ) {
-                        throw new HttpException( 500,
-                            "Insufficient bytes for declared Content-Length: "
-                           + ib + "<" + contentLength );
-                    }
-                    ib += nb;
+        // Make sure it's a relative URI (probably not necessary
+        // at HTTP 1.1).
+        if ( uri.startsWith( "http://" ) ) {
+            String path;
+            try {
+                URL url = new URL( uri );
+                path = url.getPath();
+                String query = url.getQuery();
+                if ( query != null ) {
+                    path += '?' + query;
                 }
-                assert ib == contentLength;
+                uri = path;
             }
-            else {
-                body = null;
+            catch ( MalformedURLException e ) {
+                // never mind
             }
- 
-            // Decode escaped characters in the requested URI.
-            uri = SampUtils.uriDecode( uri );
+        }
 
-            // Make sure it's a relative URI (probably not necessary
-            // at HTTP 1.1).
-            if ( uri.startsWith( "http://" ) ) {
-                String path;
-                try {
-                    URL url = new URL( uri );
-                    path = url.getPath();
-                    String query = url.getQuery();
-                    if ( query != null ) {
-                        path += '?' + query;
-                    }
-                    uri = path;
-                }
-                catch ( MalformedURLException e ) {
-                    // never mind
-                }
-            }
+        // Work out whether the client will accept a persistent
+        // connection.
+        Map headerMap = head.headerMap_;
+        Request request =
+            new Request( head.method_, uri, headerMap, remoteAddress,
+                         bodyIn, Math.max( contentLength, 0 ) );
+        String version = head.version_;
+        request.http11_ = ! version.equals( "HTTP/1.0" )
+                       && ! version.startsWith( "HTTP/0." );
+        request.keepAlive_ = isKeepAlive( request.http11_, headerMap );
+        return request;
+    }
 
-            // Return the request.
-            return new Request( method, uri, headerMap, remoteAddress, body );
+    /**
+     * Determines whether a client has indicated it can accept a
+     * persistent connection.
+     * This is the default for HTTP/1.1, and must be requested explicitly
+     * for HTTP/1.0.  Requests with a transfer coding never qualify,
+     * since the body is not read in that case.
+     *
+     * @param  http11   true for HTTP/1.1 or later, false for HTTP/1.0
+     * @param  headerMap  request headers
+     * @return  true iff the connection may be kept alive
+     */
+    private static boolean isKeepAlive( boolean http11, Map headerMap ) {
+        if ( getHeader( headerMap, HDR_TRANSFER_ENCODING ) != null ) {
+            return false;
         }
-
-        // Unrecognised.
-        else {
-            throw new HttpException( 400, "Bad request" );
+        String conn = getHeader( headerMap, HDR_CONNECTION );
+        if ( conn == null ) {
+            return http11;
         }
+        String[] tokens = conn.trim().toLowerCase().split( " *, *" );
+        for ( int i = 0; i < tokens.length; i++ ) {
+            if ( "close".equals( tokens[ i ] ) ) {
+                return false;
+            }
+            else if ( "keep-alive".equals( tokens[ i ] ) ) {
+                return true;
+            }
+        }
+        return http11;
     }
 
     /**
-     * Reads the header lines from an HTTP client connection input stream.
-     * All lines are read up to the first CRLF, which is when the body starts.
-     * The input stream is left in a state ready to read the first body line.
-     * As a special case, if the input stream has no content at all,
-     * null is returned.
+     * Returns a new server socket suitable for use with this class,
+     * bound to a given port on all local interfaces.
+     * If the {@link #ENGINE_PROP} system property requests the
+     * NIO engine, the returned socket will have an associated channel.
      *
-     * @param  is   socket input stream
-     * @return   array  of header lines (including initial request line);
-     *           the terminal blank line is not included, or null
+     * @param  port  port number, or 0 for any free port
+     * @return  new bound server socket
      */
-    private static String[] readHeaderLines( InputStream is )
+    public static ServerSocket createServerSocket( int port )
             throws IOException {
-        List lineList = new ArrayList();
-        StringBuffer sbuf = new StringBuffer();
-        boolean hasChars = false;
-        for ( int c; ( c = is.read() ) >= 0; ) {
-            hasChars = true;
-            switch ( c ) {
-
-                // CRLF is the correct HTTP line terminator.
-                case '\r':
-                    if ( is.read() == '\n' ) {
-                        if ( sbuf.length() == 0 ) {
-                            return (String[])
-                                   lineList.toArray( new String[ 0 ] );
-                        }
-                        else {
-                            lineList.add( sbuf.toString() );
-                            sbuf.setLength( 0 );
-                        }
-                    }
-                    else {
-                        throw new HttpException( 400, "CR w/o LF" );
-                    }
-                    break;
+        ServerSocket sock = createUnboundServerSocket();
+        sock.bind( new InetSocketAddress( port ) );
+        return sock;
+    }
 
-                // HTTP 1.1 recommends that a lone LF is also tolerated as a
-                // line terminator.
-                case '\n':
-                    if ( sbuf.length() == 0 ) {
-                        return (String[])
-                               lineList.toArray( new String[ 0 ] );
-                    }
-                    else {
-                        lineList.add( sbuf.toString() );
-                        sbuf.setLength( 0 );
-                    }
-                    break;
+    /**
+     * Returns a new unbound server socket suitable for use with this class.
+     * If the {@link #ENGINE_PROP} system property requests the
+     * NIO engine, the returned socket will have an associated channel.
+     *
+     * @return  new unbound server socket
+     */
+    public static ServerSocket createUnboundServerSocket()
+            throws IOException {
+        return isNioDefault() ? ServerSocketChannel.open().socket()
+                              : new ServerSocket();
+    }
 
-                default:
-                   sbuf.append( (char) c );
-            }
+    /**
+     * Indicates whether the NIO engine is requested by default.
+     *
+     * @return  true iff the {@link #ENGINE_PROP} property has the value "nio"
+     */
+    private static boolean isNioDefault() {
+        try {
+            return "nio".equalsIgnoreCase( System.getProperty( ENGINE_PROP ) );
         }
-
-        // No input.
-        if ( ! hasChars ) {
-            return null;
+        catch ( SecurityException e ) {
+            return false;
         }
+    }
 
-        // Special case: can handle HTTP/0.9 type simple requests. 
-        // Probably very rare.
-        if ( lineList.size() == 1 ) {
-            String line = (String) lineList.get( 0 );
-            if ( SIMPLE_REQUEST_PATTERN.matcher( line ).matches() ) {
-                return new String[] { line };
+    /**
+     * Returns the default per-address connection limit.
+     *
+     * @return  value of the {@link #ADDRESS_LIMIT_PROP} property,
+     *          or {@link #DEFAULT_MAX_ADDRESS_CONNECTIONS}
+     */
+    private static int getAddressLimitDefault() {
+        String txt;
+        try {
+            txt = System.getProperty( ADDRESS_LIMIT_PROP );
+        }
+        catch ( SecurityException e ) {
+            txt = null;
+        }
+        if ( txt != null && txt.trim().length() > 0 ) {
+            try {
+                int value = Integer.parseInt( txt.trim() );
+                if ( value >= 0 ) {
+                    return value;
+                }
+            }
+            catch ( NumberFormatException e ) {
             }
+            logger_.warning( "Bad value for " + ADDRESS_LIMIT_PROP + " \""
+                           + txt + "\" - use default" );
         }
+        return DEFAULT_MAX_ADDRESS_CONNECTIONS;
+    }
 
-        // If it's got this far, there was no blank line.
-        throw new HttpException( 500, "No CRLF line" );
+    /**
+     * Indicates whether request statistics are gathered by default.
+     *
+     * @return  true iff the {@link #METRICS_PROP} property is "true"
+     */
+    private static boolean isMetricsDefault() {
+        try {
+            return "true"
+                  .equalsIgnoreCase( System.getProperty( METRICS_PROP ) );
+        }
+        catch ( SecurityException e ) {
+            return false;
+        }
     }
 
     /**
@@ -598,7 +1713,9 @@ public class HttpServer {
      * @return   new response object
      */
     public static Response createErrorResponse( int code, String phrase ) {
-        return new Response( code, phrase, new HashMap() ) {
+        Map hdrMap = new HashMap();
+        hdrMap.put( HDR_CONTENT_LENGTH, "0" );
+        return new Response( code, phrase, hdrMap ) {
             public void writeBody( OutputStream out ) {
             }
         };
@@ -649,6 +1766,158 @@ public class HttpServer {
         };
     }
 
+    /**
+     * Determines whether a GET or HEAD request may be answered with
+     * a 304 Not Modified response, according to its
+     * If-None-Match and If-Modified-Since headers (RFC 7232).
+     *
+     * @param  request  request
+     * @param  etag   entity tag of the current representation, or null
+     * @param  lastModified  last modification time of the current
+     *                       representation in milliseconds since the epoch,
+     *                       or negative if unknown
+     * @return  true iff the client's cached copy is still valid
+     */
+    public static boolean isNotModified( Request request, String etag,
+                                         long lastModified ) {
+        String method = request.getMethod();
+        if ( ! "GET".equals( method ) && ! "HEAD".equals( method ) ) {
+            return false;
+        }
+        Map hdrMap = request.getHeaderMap();
+        String ifNoneMatch = getHeader( hdrMap, "If-None-Match" );
+        if ( ifNoneMatch != null ) {
+            return etag != null && matchesEtag( ifNoneMatch, etag, true );
+        }
+        String ifModifiedSince = getHeader( hdrMap, "If-Modified-Since" );
+        if ( ifModifiedSince != null && lastModified >= 0 ) {
+            long since = parseDate( ifModifiedSince );
+            return since >= 0 && lastModified / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    /**
+     * Indicates whether an entity tag matches any of those in a
+     * comma-separated list taken from a request header.
+     *
+     * @param  tagList  header value, a list of entity tags or "*"
+     * @param  etag   entity tag of the current representation
+     * @param  isWeak  true to use weak comparison, false for strong
+     * @return  true iff there is a match
+     */
+    public static boolean matchesEtag( String tagList, String etag,
+                                       boolean isWeak ) {
+        if ( isWeak ) {
+            etag = stripWeak( etag );
+        }
+        else if ( etag.startsWith( "W/" ) ) {
+            return false;
+        }
+        String[] tags = tagList.split( "," );
+        for ( int i = 0; i < tags.length; i++ ) {
+            String tag = tags[ i ].trim();
+            if ( "*".equals( tag ) ||
+                 ( isWeak ? stripWeak( tag ) : tag ).equals( etag ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes any weakness indicator from an entity tag.
+     *
+     * @param  etag  entity tag
+     * @return   opaque tag
+     */
+    private static String stripWeak( String etag ) {
+        return etag.startsWith( "W/" ) ? etag.substring( 2 ) : etag;
+    }
+
+    /**
+     * Creates a 304 Not Modified response corresponding to the
+     * response that would otherwise have been sent.
+     * The validator and caching headers are retained.
+     *
+     * @param  headerMap  headers of the full response
+     * @return   new response object
+     */
+    public static Response create304Response( Map headerMap ) {
+        Map hdrMap = new LinkedHashMap();
+        String[] keys = new String[] { "ETag", "Last-Modified",
+                                       "Cache-Control", };
+        for ( int i = 0; i < keys.length; i++ ) {
+            String value = getHeader( headerMap, keys[ i ] );
+            if ( value != null ) {
+                hdrMap.put( keys[ i ], value );
+            }
+        }
+        return new Response( 304, "Not modified", hdrMap ) {
+            public void writeBody( OutputStream out ) {
+            }
+        };
+    }
+
+    /**
+     * Formats a time as an HTTP-date (RFC 7231 sec 7.1.1.1),
+     * as used for instance in the Last-Modified header.
+     *
+     * @param  time  milliseconds since the Unix epoch
+     * @return   formatted date
+     */
+    public static String formatDate( long time ) {
+        return createDateFormat().format( new Date( time ) );
+    }
+
+    /**
+     * Parses an HTTP-date in the preferred format.
+     *
+     * @param  date  formatted date
+     * @return   milliseconds since the Unix epoch,
+     *           or -1 if the date cannot be parsed
+     */
+    public static long parseDate( String date ) {
+        if ( date != null ) {
+            try {
+                return createDateFormat().parse( date.trim() ).getTime();
+            }
+            catch ( ParseException e ) {
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a new formatter for HTTP-dates.
+     *
+     * @return  date format
+     */
+    private static DateFormat createDateFormat() {
+        DateFormat fmt =
+            new SimpleDateFormat( "EEE, dd MMM yyyy HH:mm:ss 'GMT'",
+                                  Locale.US );
+        fmt.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+        return fmt;
+    }
+
+    /**
+     * Returns a channel which writes to a given output stream.
+     * If the stream is one to which this server writes a response,
+     * any buffered bytes are flushed and the channel may write directly
+     * to the socket, which allows transfers from file channels
+     * to avoid copying.
+     *
+     * @param  out  output stream
+     * @return   channel writing to <code>out</code>
+     */
+    static WritableByteChannel getChannel( OutputStream out )
+            throws IOException {
+        return out instanceof SocketOutputStream
+             ? ((SocketOutputStream) out).getChannel()
+             : Channels.newChannel( out );
+    }
+
     /**
      * Represents a parsed HTTP client request.
      */
@@ -657,7 +1926,13 @@ public class HttpServer {
         private final String url_;
         private final Map headerMap_;
         private final SocketAddress remoteAddress_;
-        private final byte[] body_;
+        private final InputStream bodyIn_;
+        private final long bodyLength_;
+        private byte[] body_;
+        private boolean http11_;
+        private boolean keepAlive_;
+        private ServerMetrics metrics_;
+        private Handler handler_;
 
         /**
          * Constructor.
@@ -675,6 +1950,30 @@ public class HttpServer {
             headerMap_ = headerMap;
             remoteAddress_ = remoteAddress;
             body_ = body;
+            bodyIn_ = null;
+            bodyLength_ = body == null ? 0 : body.length;
+        }
+
+        /**
+         * Constructs a request whose body is supplied as a stream.
+         *
+         * @param  method  HTTP method string (GET, HEAD etc)
+         * @param  url     requested URL path (should start "/")
+         * @param  headerMap  map of HTTP request header key-value pairs
+         * @param  remoteAddress  address of the client making the request
+         * @param  bodyIn  stream supplying the bytes of the request body,
+         *                 or null if none present
+         * @param  bodyLength  number of bytes in the body
+         */
+        public Request( String method, String url, Map headerMap,
+                        SocketAddress remoteAddress, InputStream bodyIn,
+                        long bodyLength ) {
+            method_ = method;
+            url_ = url;
+            headerMap_ = headerMap;
+            remoteAddress_ = remoteAddress;
+            bodyIn_ = bodyIn;
+            bodyLength_ = bodyIn == null ? 0 : bodyLength;
         }
 
         /**
@@ -718,12 +2017,60 @@ public class HttpServer {
         }
 
         /**
-         * Returns the body of the HTTP request if there was one.
+         * Returns the body of the HTTP request if there was one.
+         * If the body has not already been read, this reads all of it
+         * into memory; {@link #getBodyStream} may be more efficient.
+         *
+         * @return  body bytes or null
+         * @throws  RuntimeException  if the body cannot be read
+         */
+        public synchronized byte[] getBody() {
+            if ( body_ == null && bodyIn_ != null ) {
+                byte[] body = new byte[ (int) bodyLength_ ];
+                try {
+                    int ib = 0;
+                    while ( ib < body.length ) {
+                        int nb = bodyIn_.read( body, ib, body.length - ib );
+                        if ( nb < 0 ) {
+                            throw new IOException( "Request body truncated" );
+                        }
+                        ib += nb;
+                    }
+                }
+                catch ( IOException e ) {
+                    throw new RuntimeException( "Can't read request body: "
+                                              + e.getMessage(), e );
+                }
+                body_ = body;
+            }
+            return body_;
+        }
+
+        /**
+         * Returns a stream supplying the body of the HTTP request if
+         * there was one.  Unless the body has already been read using
+         * {@link #getBody}, it is read from the connection as required,
+         * so the returned stream should only be read once.
+         * Closing the stream does not affect the connection.
+         *
+         * @return  body stream, or null
+         */
+        public synchronized InputStream getBodyStream() {
+            if ( body_ != null ) {
+                return new ByteArrayInputStream( body_ );
+            }
+            else {
+                return bodyIn_;
+            }
+        }
+
+        /**
+         * Returns the length of the HTTP request body.
          *
-         * @return  body bytes or null
+         * @return  number of bytes in body, zero if none
          */
-        public byte[] getBody() {
-            return body_;
+        public long getBodyLength() {
+            return bodyLength_;
         }
 
         public String toString() {
@@ -735,10 +2082,10 @@ public class HttpServer {
                 sbuf.append( "\n    " )
                     .append( headerMap_ );
             }
-            if ( body_ != null && body_.length > 0 ) {
+            if ( bodyLength_ > 0 ) {
                 sbuf.append( "\n    " )
                     .append( "body[" )
-                    .append( body_.length )
+                    .append( bodyLength_ )
                     .append( ']' );
             }
             return sbuf.toString();
@@ -815,12 +2162,21 @@ public class HttpServer {
          * replying to the client.
          * Status line and any headers are written, then {@link #writeBody}
          * is called.
+         * If the headers declare the chunked transfer coding,
+         * the body is chunk-encoded on its way to the stream.
+         * When called by the server, any connection management headers
+         * it has chosen for this exchange are written as well,
+         * without modifying this response's header map.
          *
          * @param  out  destination stream
          */
         public void writeResponse( OutputStream out ) throws IOException {
+            Map connHdrMap = out instanceof SocketOutputStream
+                           ? ((SocketOutputStream) out)
+                            .takeConnectionHeaders()
+                           : null;
             String statusLine = new StringBuffer()
-                .append( "HTTP/1.0" )
+                .append( "HTTP/1.1" )
                 .append( ' ' )
                 .append( getStatusCode() )
                 .append( ' ' )
@@ -830,25 +2186,596 @@ public class HttpServer {
                 .toString();
             out.write( statusLine.getBytes( "UTF-8" ) );
             if ( headerMap_ != null ) {
-                StringBuffer sbuf = new StringBuffer();
                 for ( Iterator it = getHeaderMap().entrySet().iterator();
                       it.hasNext(); ) {
                     Map.Entry entry = (Map.Entry) it.next();
-                    sbuf.setLength( 0 );
-                    String line = sbuf
-                        .append( entry.getKey() )
-                        .append( ':' )
-                        .append( ' ' )
-                        .append( entry.getValue() )
-                        .append( '\r' )
-                        .append( '\n' )
-                        .toString();
-                    out.write( line.getBytes( "UTF-8" ) );
+                    String key = String.valueOf( entry.getKey() );
+                    if ( connHdrMap == null ||
+                         HttpServer.getHeader( connHdrMap, key ) == null ) {
+                        writeHeader( out, key, entry.getValue() );
+                    }
+                }
+            }
+            if ( connHdrMap != null ) {
+                for ( Iterator it = connHdrMap.entrySet().iterator();
+                      it.hasNext(); ) {
+                    Map.Entry entry = (Map.Entry) it.next();
+                    writeHeader( out, (String) entry.getKey(),
+                                 entry.getValue() );
                 }
             }
             out.write( '\r' );
             out.write( '\n' );
-            writeBody( out );
+            if ( out instanceof SocketOutputStream ) {
+                ((SocketOutputStream) out).markBody();
+            }
+            if ( isChunked( headerMap_ ) || isChunked( connHdrMap ) ) {
+                ChunkedOutputStream cout = new ChunkedOutputStream( out );
+                writeBody( cout );
+                cout.finish();
+            }
+            else {
+                writeBody( out );
+            }
+        }
+
+        /**
+         * Writes a header line.
+         *
+         * @param  out  destination stream
+         * @param  key  header name
+         * @param  value  header value
+         */
+        private static void writeHeader( OutputStream out, String key,
+                                         Object value )
+                throws IOException {
+            String line = new StringBuffer()
+                .append( key )
+                .append( ':' )
+                .append( ' ' )
+                .append( value )
+                .append( '\r' )
+                .append( '\n' )
+                .toString();
+            out.write( line.getBytes( "UTF-8" ) );
+        }
+    }
+
+    /**
+     * Records the state of a connection being handled by a server thread.
+     */
+    private static class ActiveConnection {
+        final Thread thread_;
+        final SocketInputStream sin_;
+
+        /**
+         * Constructs an object for a connection handled by the
+         * current thread.
+         *
+         * @param  sin  stream from which requests are read, or null
+         */
+        ActiveConnection( SocketInputStream sin ) {
+            thread_ = Thread.currentThread();
+            sin_ = sin;
+        }
+    }
+
+    /**
+     * Stream for reading requests from a client socket, which enforces
+     * limits on how slowly the client may supply them.
+     * Reads which breach a limit fail with a SocketTimeoutException,
+     * and the reason is recorded for the server to collect.
+     */
+    private static class SocketInputStream extends FilterInputStream {
+        private final Socket sock_;
+        private int soTimeout_;
+        private int readMillis_;
+        private String readReason_;
+        private long deadline_;
+        private String deadlineReason_;
+        private String timeoutReason_;
+        private int minRate_;
+        private long rateCount_;
+        private long rateMillis_;
+        private String dropReason_;
+        private volatile boolean waiting_;
+
+        /**
+         * Constructor.
+         *
+         * @param  sock  client connection socket
+         */
+        SocketInputStream( Socket sock ) throws IOException {
+            super( sock.getInputStream() );
+            sock_ = sock;
+            soTimeout_ = sock.getSoTimeout();
+        }
+
+        /**
+         * Applies the limits for awaiting and reading a request header.
+         *
+         * @param  idleMillis  maximum silence, or 0
+         * @param  headerMillis  maximum time for header from now, or 0
+         * @param  hasInput  true iff request bytes have already been
+         *                   read from this stream but not consumed
+         */
+        void startHeader( int idleMillis, int headerMillis,
+                          boolean hasInput ) {
+            setLimits( idleMillis, DROP_IDLE,
+                       headerMillis > 0
+                           ? System.currentTimeMillis() + headerMillis
+                           : 0,
+                       DROP_HEADER, 0 );
+            dropReason_ = null;
+            waiting_ = ! hasInput;
+        }
+
+        /**
+         * Applies the limits for reading a request body.
+         *
+         * @param  bodyMillis  maximum silence, or 0
+         * @param  minRate   minimum transfer rate in bytes/sec, or 0
+         */
+        void startBody( int bodyMillis, int minRate ) {
+            setLimits( bodyMillis, DROP_BODY, 0, null, minRate );
+        }
+
+        /**
+         * Applies the limits for awaiting a further request on a
+         * persistent connection.  Timing out in this state is not
+         * regarded as a drop.
+         *
+         * @param  millis  maximum wait
+         */
+        void startWait( int millis ) {
+            setLimits( millis, null, 0, null, 0 );
+            waiting_ = true;
+        }
+
+        /**
+         * Indicates whether no bytes have yet been read since the
+         * last call to {@link #startHeader} or {@link #startWait}.
+         *
+         * @return  true iff waiting for a request to start
+         */
+        boolean isWaiting() {
+            return waiting_;
+        }
+
+        /**
+         * Causes any current or future read to return end of stream,
+         * without closing the socket for output.
+         */
+        void unblock() {
+            waiting_ = false;
+            try {
+                sock_.shutdownInput();
+            }
+            catch ( IOException e ) {
+                closeQuietly();
+            }
+            catch ( RuntimeException e ) {
+                closeQuietly();
+            }
+        }
+
+        /**
+         * Closes the socket, ignoring any errors.
+         */
+        private void closeQuietly() {
+            try {
+                sock_.close();
+            }
+            catch ( IOException e ) {
+            }
+        }
+
+        /**
+         * Returns the reason for which a read most recently failed,
+         * if any, and clears it.
+         *
+         * @return   one of the DROP_* constants, or null
+         */
+        String takeDropReason() {
+            String reason = dropReason_;
+            dropReason_ = null;
+            return reason;
+        }
+
+        public int read() throws IOException {
+            long t0 = prepareRead();
+            int b;
+            try {
+                b = super.read();
+            }
+            catch ( SocketTimeoutException e ) {
+                throw drop( timeoutReason_, e );
+            }
+            if ( b >= 0 ) {
+                waiting_ = false;
+            }
+            checkRate( t0, b >= 0 ? 1 : 0 );
+            return b;
+        }
+
+        public int read( byte[] b, int off, int len ) throws IOException {
+            long t0 = prepareRead();
+            int n;
+            try {
+                n = super.read( b, off, len );
+            }
+            catch ( SocketTimeoutException e ) {
+                throw drop( timeoutReason_, e );
+            }
+            if ( n > 0 ) {
+                waiting_ = false;
+            }
+            checkRate( t0, Math.max( n, 0 ) );
+            return n;
+        }
+
+        /**
+         * Sets the current limits.
+         *
+         * @param  readMillis  maximum silence, or 0
+         * @param  readReason  drop reason for silence, or null
+         * @param  deadline   epoch time after which no reads may be made,
+         *                    or 0
+         * @param  deadlineReason  drop reason for passing deadline
+         * @param  minRate   minimum transfer rate in bytes/sec, or 0
+         */
+        private void setLimits( int readMillis, String readReason,
+                                long deadline, String deadlineReason,
+                                int minRate ) {
+            readMillis_ = readMillis;
+            readReason_ = readReason;
+            deadline_ = deadline;
+            deadlineReason_ = deadlineReason;
+            minRate_ = minRate;
+            rateCount_ = 0;
+            rateMillis_ = 0;
+        }
+
+        /**
+         * Sets the socket timeout for the next read.
+         *
+         * @return  current time in milliseconds
+         */
+        private long prepareRead() throws IOException {
+            long now = System.currentTimeMillis();
+            int timeout = readMillis_;
+            timeoutReason_ = readReason_;
+            if ( deadline_ > 0 ) {
+                long remaining = deadline_ - now;
+                if ( remaining <= 0 ) {
+                    throw drop( deadlineReason_, null );
+                }
+                if ( timeout <= 0 || remaining < timeout ) {
+                    timeout = (int) remaining;
+                    timeoutReason_ = deadlineReason_;
+                }
+            }
+            if ( timeout != soTimeout_ ) {
+                sock_.setSoTimeout( timeout );
+                soTimeout_ = timeout;
+            }
+            return now;
+        }
+
+        /**
+         * Checks that the transfer rate is acceptable following a read.
+         *
+         * @param  t0  time at which the read started
+         * @param  nb  number of bytes read
+         */
+        private void checkRate( long t0, int nb ) throws IOException {
+            if ( minRate_ > 0 ) {
+                rateCount_ += nb;
+                rateMillis_ += System.currentTimeMillis() - t0;
+                long excess = rateMillis_ - RATE_GRACE_MILLIS;
+                if ( excess > 0 && rateCount_ * 1000 < excess * minRate_ ) {
+                    throw drop( DROP_SLOW, null );
+                }
+            }
+        }
+
+        /**
+         * Records a drop reason and returns an exception to throw.
+         *
+         * @param  reason  drop reason, or null if not a drop
+         * @param  cause   underlying timeout exception, or null
+         * @return  exception
+         */
+        private SocketTimeoutException drop( String reason,
+                                             SocketTimeoutException cause ) {
+            if ( reason == null ) {
+                return cause == null ? new SocketTimeoutException()
+                                     : cause;
+            }
+            dropReason_ = reason;
+            return new SocketTimeoutException( "Client too slow ("
+                                             + reason + ")" );
+        }
+    }
+
+    /**
+     * Buffered stream for writing responses to a client socket.
+     * It keeps count of the bytes written to it since the start of
+     * the most recent response body.
+     */
+    private static class SocketOutputStream extends BufferedOutputStream {
+        private final Socket sock_;
+        private long count_;
+        private long bodyStart_;
+        private Map connHdrMap_;
+
+        /**
+         * Constructor.
+         *
+         * @param  sock  client connection socket
+         */
+        SocketOutputStream( Socket sock ) throws IOException {
+            super( sock.getOutputStream() );
+            sock_ = sock;
+            bodyStart_ = -1;
+        }
+
+        public void write( int b ) throws IOException {
+            super.write( b );
+            count_++;
+        }
+
+        public void write( byte[] b, int off, int len ) throws IOException {
+            super.write( b, off, len );
+            count_ += len;
+        }
+
+        /**
+         * Notes that the bytes of a response body are about to be written.
+         */
+        void markBody() {
+            bodyStart_ = count_;
+        }
+
+        /**
+         * Returns the number of bytes written since the last call of
+         * {@link #markBody}, and resets the mark.
+         * Where a body uses the chunked transfer coding,
+         * this includes the chunk delimiters.
+         *
+         * @return  body byte count, or -1 if there has been no mark
+         */
+        long takeBodyCount() {
+            long count = bodyStart_ < 0 ? -1 : count_ - bodyStart_;
+            bodyStart_ = -1;
+            return count;
+        }
+
+        /**
+         * Sets the connection management headers to be written with
+         * the next response, in addition to the response's own headers.
+         *
+         * @param  connHdrMap  header map, may be null
+         */
+        void setConnectionHeaders( Map connHdrMap ) {
+            connHdrMap_ = connHdrMap;
+        }
+
+        /**
+         * Returns and clears the headers set by
+         * {@link #setConnectionHeaders}.
+         *
+         * @return  header map, or null
+         */
+        Map takeConnectionHeaders() {
+            Map map = connHdrMap_;
+            connHdrMap_ = null;
+            return map;
+        }
+
+        /**
+         * Flushes this stream and returns a channel which writes
+         * to the same destination.
+         *
+         * @return   channel
+         */
+        WritableByteChannel getChannel() throws IOException {
+            flush();
+            SocketChannel chan = sock_.getChannel();
+            return chan != null && chan.isBlocking()
+                 ? (WritableByteChannel) chan
+                 : Channels.newChannel( out );
+        }
+    }
+
+    /**
+     * Stream which writes bytes to an underlying stream using the HTTP/1.1
+     * chunked transfer coding.
+     * Closing it finishes the coded body, but does not close the
+     * underlying stream.
+     */
+    private static class ChunkedOutputStream extends OutputStream {
+        private final OutputStream out_;
+        private final byte[] buf_;
+        private int count_;
+        private boolean finished_;
+        private static final byte[] CRLF = new byte[] { '\r', '\n' };
+        private static final byte[] LAST_CHUNK =
+            new byte[] { '0', '\r', '\n', '\r', '\n' };
+
+        /**
+         * Constructor.
+         *
+         * @param  out  destination stream
+         */
+        ChunkedOutputStream( OutputStream out ) {
+            out_ = out;
+            buf_ = new byte[ 8 * 1024 ];
+        }
+
+        public void write( int b ) throws IOException {
+            checkOpen();
+            if ( count_ == buf_.length ) {
+                writeBuffer();
+            }
+            buf_[ count_++ ] = (byte) b;
+        }
+
+        public void write( byte[] b, int off, int len ) throws IOException {
+            checkOpen();
+            if ( count_ + len <= buf_.length ) {
+                System.arraycopy( b, off, buf_, count_, len );
+                count_ += len;
+            }
+            else {
+                writeBuffer();
+                if ( len < buf_.length ) {
+                    System.arraycopy( b, off, buf_, 0, len );
+                    count_ = len;
+                }
+                else {
+                    writeChunk( b, off, len );
+                }
+            }
+        }
+
+        public void flush() throws IOException {
+            writeBuffer();
+            out_.flush();
+        }
+
+        public void close() throws IOException {
+            finish();
+        }
+
+        /**
+         * Writes any buffered bytes and the terminating zero-length chunk.
+         * Has no effect if called more than once.
+         */
+        void finish() throws IOException {
+            if ( ! finished_ ) {
+                writeBuffer();
+                out_.write( LAST_CHUNK );
+                finished_ = true;
+            }
+        }
+
+        /**
+         * Throws an exception if this stream has been finished.
+         */
+        private void checkOpen() throws IOException {
+            if ( finished_ ) {
+                throw new IOException( "Chunked stream closed" );
+            }
+        }
+
+        /**
+         * Writes the buffered bytes, if any, as a chunk.
+         */
+        private void writeBuffer() throws IOException {
+            if ( count_ > 0 ) {
+                writeChunk( buf_, 0, count_ );
+                count_ = 0;
+            }
+        }
+
+        /**
+         * Writes a single non-empty chunk.
+         *
+         * @param  b  byte array
+         * @param  off  offset of first byte in chunk
+         * @param  len  number of bytes in chunk
+         */
+        private void writeChunk( byte[] b, int off, int len )
+                throws IOException {
+            out_.write( Integer.toHexString( len ).getBytes( "US-ASCII" ) );
+            out_.write( CRLF );
+            out_.write( b, off, len );
+            out_.write( CRLF );
+        }
+    }
+
+    /**
+     * Stream which supplies a request body of known length from
+     * a connection, without reading beyond it.
+     * Closing it does not close the connection.
+     */
+    private static class BodyInputStream extends InputStream {
+        private final InputStream in_;
+        private long remaining_;
+
+        /**
+         * Constructor.
+         *
+         * @param  in  connection input stream positioned at start of body
+         * @param  length  body length in bytes
+         */
+        BodyInputStream( InputStream in, long length ) {
+            in_ = in;
+            remaining_ = length;
+        }
+
+        public int read() throws IOException {
+            if ( remaining_ <= 0 ) {
+                return -1;
+            }
+            int b = in_.read();
+            if ( b < 0 ) {
+                throw truncated();
+            }
+            remaining_--;
+            return b;
+        }
+
+        public int read( byte[] b, int off, int len ) throws IOException {
+            if ( remaining_ <= 0 ) {
+                return -1;
+            }
+            int nb = in_.read( b, off, (int) Math.min( len, remaining_ ) );
+            if ( nb < 0 ) {
+                throw truncated();
+            }
+            remaining_ -= nb;
+            return nb;
+        }
+
+        public int available() throws IOException {
+            return (int) Math.min( in_.available(), remaining_ );
+        }
+
+        public void close() {
+        }
+
+        /**
+         * Reads and discards any remaining body bytes.
+         *
+         * @return  true iff the whole body has been consumed
+         */
+        boolean drain() {
+            if ( remaining_ <= 0 ) {
+                return true;
+            }
+            byte[] buf = new byte[ 4096 ];
+            try {
+                while ( read( buf, 0, buf.length ) >= 0 ) {
+                }
+                return true;
+            }
+            catch ( IOException e ) {
+                return false;
+            }
+        }
+
+        /**
+         * Returns an exception indicating that the connection ended
+         * before the declared body length.
+         *
+         * @return  new exception
+         */
+        private IOException truncated() {
+            return new IOException( "Insufficient bytes for declared "
+                                  + "Content-Length: " + remaining_
+                                  + " missing" );
         }
     }
 
@@ -856,7 +2783,7 @@ public class HttpServer {
      * Convenience class for representing an error whose content should be
      * returned to the user as an HTTP erro response of some kind.
      */
-    private static class HttpException extends IOException {
+    static class HttpException extends IOException {
         private final int code_;
         private final String phrase_;
 
@@ -892,6 +2819,10 @@ public class HttpServer {
      */
     static class HttpHeaderMap extends LinkedHashMap {
 
+        /** Maps header names case-insensitively to the keys used here. */
+        private final Map keyMap_ =
+            new TreeMap( String.CASE_INSENSITIVE_ORDER );
+
         /**
          * Adds a header value to this map.
          * This differs from put in two subtle ways.
@@ -904,16 +2835,12 @@ public class HttpServer {
          * @param   value  header value
          */
         public void addHeader( String key, String value ) {
-            boolean added = false;
-            for ( Iterator it = entrySet().iterator();
-                  it.hasNext() && ! added; ) {
-                Map.Entry entry = (Map.Entry) it.next();
-                if ( ((String) entry.getKey()).equalsIgnoreCase( key ) ) {
-                    entry.setValue( entry.getValue() + ", " + value );
-                    added = true;
-                }
+            String key0 = (String) keyMap_.get( key );
+            if ( key0 != null && containsKey( key0 ) ) {
+                put( key0, get( key0 ) + ", " + value );
             }
-            if ( ! added ) {
+            else {
+                keyMap_.put( key, key );
                 put( key, value );
             }
         }
@@ -937,4 +2864,22 @@ public class HttpServer {
          */
         Response serveRequest( Request request );
     }
+
+    /**
+     * Handler which only serves URLs beginning with a fixed path prefix.
+     * The server will not invoke such a handler for requests whose
+     * URL does not start with the prefix, which allows it to find
+     * the relevant handlers without consulting all the others.
+     * The prefix must not change while the handler is installed.
+     */
+    public interface PrefixHandler extends Handler {
+
+        /**
+         * Returns the string with which the URL of any request served by
+         * this handler must begin.
+         *
+         * @return   URL path prefix, or null if any URL may be served
+         */
+        String getPathPrefix();
+    }
 }
@@ -0,0 +1,774 @@
+package org.astrogrid.samp.httpd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Connection-handling engine for {@link HttpServer} based on
+ * non-blocking I/O.
+ * A small fixed number of I/O threads accept connections and read
+ * request bytes from all of them using selectors.
+ * Once the head of a request has been read from a connection,
+ * along with the body declared by a Content-Length header
+ * or the first part of it if it is large,
+ * the connection is switched to blocking mode and handed to the server
+ * for parsing and processing by its usual handler chain.
+ * Any remainder of a large body is read from the socket as the
+ * handler consumes it, so the bytes buffered per connection are
+ * limited to the head and a modest amount of body.
+ * Threads are therefore not tied up by slow or idle connections,
+ * except while they stream large bodies.
+ * Persistent connections are handed back to the engine after each
+ * response, and closed if no further request starts within the
+ * keep-alive timeout.
+ * If the server's executor refuses a request, the 503 response is
+ * written without blocking, so that a client which does not read
+ * cannot hold up the other connections on the same I/O thread.
+ * The server's idle, header and body timeouts and minimum body rate
+ * are enforced here for the bytes read by the engine.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+class NioEngine {
+
+    private final HttpServer server_;
+    private final ServerSocketChannel serverChannel_;
+    private final IoThread[] ioThreads_;
+    private int keepAliveMillis_;
+    private int iNext_;
+
+    /** Size of buffer used for channel reads. */
+    private static final int BUFSIZ = 16 * 1024;
+
+    /** Maximum number of body bytes read before dispatch. */
+    private static final int BODY_PREFETCH = 64 * 1024;
+
+    /** Interval between checks for expired idle connections. */
+    private static final long IDLE_CHECK_MILLIS = 1000;
+
+    /** Response sent to clients dropped for being too slow. */
+    private static final byte[] TIMEOUT_RESPONSE =
+        ( "HTTP/1.1 408 Request Timeout\r\n"
+        + "Connection: close\r\n"
+        + "Content-Length: 0\r\n"
+        + "\r\n" ).getBytes();
+
+    /** Response sent to clients whose requests cannot be served. */
+    private static final byte[] BUSY_RESPONSE =
+        ( "HTTP/1.1 503 Service unavailable\r\n"
+        + "Connection: close\r\n"
+        + "Content-Length: 0\r\n"
+        + "\r\n" ).getBytes();
+
+    /** Time in milliseconds allowed for a busy response to be written. */
+    private static final long BUSY_MILLIS = 5 * 1000;
+
+    private static final Logger logger_ =
+        Logger.getLogger( NioEngine.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param  server  server on behalf of which this engine works
+     * @param  serverChannel  channel of the server's listening socket
+     */
+    public NioEngine( HttpServer server, ServerSocketChannel serverChannel )
+            throws IOException {
+        server_ = server;
+        serverChannel_ = serverChannel;
+        int nthread =
+            Math.max( 1, Math.min( 4, Runtime.getRuntime()
+                                             .availableProcessors() ) );
+        ioThreads_ = new IoThread[ nthread ];
+        for ( int i = 0; i < nthread; i++ ) {
+            ioThreads_[ i ] = new IoThread( "HTTP I/O-" + i );
+        }
+        serverChannel_.configureBlocking( false );
+        serverChannel_.register( ioThreads_[ 0 ].selector_,
+                                 SelectionKey.OP_ACCEPT );
+    }
+
+    /**
+     * Starts the I/O threads.
+     *
+     * @param  isDaemon  whether the I/O threads are daemons
+     * @param  keepAliveMillis  idle timeout for persistent connections
+     */
+    public void start( boolean isDaemon, int keepAliveMillis ) {
+        keepAliveMillis_ = keepAliveMillis;
+        for ( int i = 0; i < ioThreads_.length; i++ ) {
+            ioThreads_[ i ].setDaemon( isDaemon );
+            ioThreads_[ i ].start();
+        }
+    }
+
+    /**
+     * Stops the I/O threads.  The server socket should already have been
+     * closed, and the server should report itself as stopped.
+     * Connections on which a complete request has not yet been
+     * received are closed, but requests which have already been passed
+     * to the server continue to be processed.
+     */
+    public void stop() {
+        for ( int i = 0; i < ioThreads_.length; i++ ) {
+            ioThreads_[ i ].selector_.wakeup();
+        }
+    }
+
+    /**
+     * Returns a persistent connection to the control of this engine
+     * after a response has been written, so that it can wait for
+     * the next request.  If the bytes already read contain a complete
+     * request, that is passed straight back to the server instead.
+     *
+     * @param  channel  blocking-mode channel
+     * @param  unread   bytes already read from the channel but not
+     *                  yet consumed
+     */
+    public void resumeConnection( SocketChannel channel, byte[] unread ) {
+        if ( server_.isStopped() ) {
+            closeQuietly( channel );
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Connection conn = new Connection( channel );
+        conn.deadline_ = now + keepAliveMillis_;
+        if ( unread.length > 0 ) {
+            conn.append( unread, unread.length, now );
+            if ( conn.isComplete( server_.getMaxBodySize() ) ) {
+                server_.dispatchRequest( channel.socket(), conn.buf_,
+                                         conn.count_ );
+                return;
+            }
+            conn.updateDeadline( server_, now );
+        }
+        try {
+            channel.configureBlocking( false );
+        }
+        catch ( IOException e ) {
+            closeQuietly( channel );
+            return;
+        }
+        nextIoThread().addConnection( conn );
+    }
+
+    /**
+     * Returns the I/O thread which should handle the next connection.
+     *
+     * @return  I/O thread
+     */
+    private synchronized IoThread nextIoThread() {
+        iNext_ = ( iNext_ + 1 ) % ioThreads_.length;
+        return ioThreads_[ iNext_ ];
+    }
+
+    /**
+     * Accepts all pending connections on the server channel,
+     * sharing them out between the I/O threads.
+     */
+    private void acceptConnections() {
+        while ( true ) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel_.accept();
+                if ( channel == null ) {
+                    return;
+                }
+                channel.configureBlocking( false );
+            }
+            catch ( IOException e ) {
+                if ( ! server_.isStopped() ) {
+                    logger_.log( Level.WARNING, "Socket error", e );
+                }
+                return;
+            }
+            if ( ! server_.connectionOpened( channel.socket() ) ) {
+                closeQuietly( channel );
+                continue;
+            }
+            Connection conn = new Connection( channel );
+            int idleMillis = server_.getIdleTimeout();
+            if ( idleMillis > 0 ) {
+                conn.deadline_ = System.currentTimeMillis() + idleMillis;
+                conn.deadlineReason_ = HttpServer.DROP_IDLE;
+            }
+            nextIoThread().addConnection( conn );
+        }
+    }
+
+    /**
+     * Closes a channel, ignoring any errors, and deregisters it
+     * from the server.
+     *
+     * @param  channel  channel to close
+     */
+    private void closeQuietly( SocketChannel channel ) {
+        try {
+            channel.close();
+        }
+        catch ( IOException e ) {
+        }
+        server_.connectionClosed( channel.socket() );
+    }
+
+    /**
+     * Thread which services a selector for a number of connections.
+     */
+    private class IoThread extends Thread {
+
+        final Selector selector_;
+        private final List pendingList_;
+        private final ByteBuffer readBuf_;
+        private boolean closed_;
+
+        /**
+         * Constructor.
+         *
+         * @param  name  thread name
+         */
+        IoThread( String name ) throws IOException {
+            super( name );
+            selector_ = Selector.open();
+            pendingList_ = new ArrayList();
+            readBuf_ = ByteBuffer.allocate( BUFSIZ );
+        }
+
+        /**
+         * Adds a new or resumed connection to those serviced by this thread.
+         * May be called from any thread.
+         * If this thread has already shut down, the connection is closed.
+         *
+         * @param  conn  connection with a non-blocking socket channel
+         */
+        void addConnection( Connection conn ) {
+            synchronized ( pendingList_ ) {
+                if ( ! closed_ ) {
+                    pendingList_.add( conn );
+                    selector_.wakeup();
+                    return;
+                }
+            }
+            closeQuietly( conn.channel_ );
+        }
+
+        public void run() {
+            try {
+                while ( ! server_.isStopped() ) {
+
+                    // Register new connections before selecting rather than
+                    // after, since the selectNow call below may clear
+                    // the wakeup which signalled their arrival.
+                    registerPending();
+                    selector_.select( IDLE_CHECK_MILLIS );
+                    closeIdleConnections();
+                    List completeList = new ArrayList();
+                    for ( Iterator it = selector_.selectedKeys().iterator();
+                          it.hasNext(); ) {
+                        SelectionKey key = (SelectionKey) it.next();
+                        it.remove();
+                        if ( key.isValid() && key.isAcceptable() ) {
+                            acceptConnections();
+                        }
+                        else if ( key.isValid() && key.isReadable() ) {
+                            if ( readRequest( key ) ) {
+                                key.cancel();
+                                completeList.add( key );
+                            }
+                        }
+                        else if ( key.isValid() && key.isWritable() ) {
+                            writeRejection( key );
+                        }
+                    }
+
+                    // Channels can only be switched back to blocking mode
+                    // once their cancelled keys have been deregistered,
+                    // which happens during the next selection operation.
+                    if ( ! completeList.isEmpty() ) {
+                        selector_.selectNow();
+                        for ( Iterator it = completeList.iterator();
+                              it.hasNext(); ) {
+                            dispatch( (SelectionKey) it.next() );
+                        }
+                    }
+                }
+            }
+            catch ( ClosedSelectorException e ) {
+            }
+            catch ( IOException e ) {
+                if ( ! server_.isStopped() ) {
+                    logger_.log( Level.WARNING, "Selector error", e );
+                }
+            }
+            finally {
+                shutdown();
+            }
+        }
+
+        /**
+         * Registers any newly accepted connections with this thread's
+         * selector.
+         */
+        private void registerPending() {
+            Connection[] conns;
+            synchronized ( pendingList_ ) {
+                conns = (Connection[])
+                        pendingList_.toArray( new Connection[ 0 ] );
+                pendingList_.clear();
+            }
+            for ( int i = 0; i < conns.length; i++ ) {
+                SocketChannel channel = conns[ i ].channel_;
+                try {
+                    channel.register( selector_, SelectionKey.OP_READ,
+                                      conns[ i ] );
+                }
+                catch ( IOException e ) {
+                    closeQuietly( channel );
+                }
+            }
+        }
+
+        /**
+         * Closes any connections which have been waiting too long for
+         * a new request, or for the rest of the current one.
+         */
+        private void closeIdleConnections() {
+            long now = System.currentTimeMillis();
+            for ( Iterator it = selector_.keys().iterator(); it.hasNext(); ) {
+                SelectionKey key = (SelectionKey) it.next();
+                Object att = key.attachment();
+                if ( att instanceof Rejection ) {
+                    if ( now > ((Rejection) att).deadline_ ) {
+                        key.cancel();
+                        closeQuietly( (SocketChannel) key.channel() );
+                    }
+                }
+                else if ( att instanceof Connection ) {
+                    Connection conn = (Connection) att;
+                    if ( conn.deadline_ > 0 && now > conn.deadline_ ) {
+                        if ( conn.deadlineReason_ == null ) {
+                            key.cancel();
+                            closeQuietly( conn.channel_ );
+                        }
+                        else {
+                            drop( key, conn.deadlineReason_ );
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Closes a connection whose client is misbehaving,
+         * making a best-effort attempt to send a 408 response first.
+         *
+         * @param  key  selection key for connection
+         * @param  reason  one of the HttpServer <code>DROP_*</code>
+         *                 constants
+         */
+        private void drop( SelectionKey key, String reason ) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            key.cancel();
+            server_.noteDrop( reason, channel.socket() );
+            try {
+                channel.write( ByteBuffer.wrap( TIMEOUT_RESPONSE ) );
+            }
+            catch ( IOException e ) {
+            }
+            closeQuietly( channel );
+        }
+
+        /**
+         * Reads available bytes from a readable connection.
+         * If the connection fails it is closed.
+         *
+         * @param   key  selection key for a readable connection
+         * @return  true iff the connection has now supplied
+         *          everything it is going to for the current request
+         */
+        private boolean readRequest( SelectionKey key ) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection conn = (Connection) key.attachment();
+            readBuf_.clear();
+            int nb;
+            try {
+                nb = channel.read( readBuf_ );
+            }
+            catch ( IOException e ) {
+                key.cancel();
+                closeQuietly( channel );
+                return false;
+            }
+            if ( nb > 0 ) {
+                long now = System.currentTimeMillis();
+                conn.append( readBuf_.array(), nb, now );
+                if ( conn.isComplete( server_.getMaxBodySize() ) ) {
+                    return true;
+                }
+                else if ( ! conn.updateDeadline( server_, now ) ) {
+                    drop( key, HttpServer.DROP_SLOW );
+                }
+                return false;
+            }
+
+            // End of stream.  If nothing has been read, make no response;
+            // otherwise pass on what we have, and the parser will
+            // report on what's wrong with it.
+            else if ( nb < 0 ) {
+                if ( conn.count_ == 0 ) {
+                    key.cancel();
+                    closeQuietly( channel );
+                    return false;
+                }
+                else {
+                    return true;
+                }
+            }
+            else {
+                return false;
+            }
+        }
+
+        /**
+         * Passes a connection bearing a complete request to the server
+         * for processing.
+         *
+         * @param  key  deregistered selection key
+         */
+        private void dispatch( SelectionKey key ) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection conn = (Connection) key.attachment();
+            try {
+                channel.configureBlocking( true );
+            }
+            catch ( IOException e ) {
+                closeQuietly( channel );
+                return;
+            }
+            if ( ! server_.submitRequest( channel.socket(), conn.buf_,
+                                          conn.count_ ) ) {
+                reject( channel );
+            }
+        }
+
+        /**
+         * Starts sending a 503 response on a connection whose request
+         * has been refused.  The channel is put back into non-blocking
+         * mode, and any of the response which cannot be written at once
+         * is written when the channel becomes writable.
+         *
+         * @param  channel  deregistered blocking-mode channel
+         */
+        private void reject( SocketChannel channel ) {
+            Rejection rejection = new Rejection();
+            try {
+                channel.configureBlocking( false );
+                channel.write( rejection.buf_ );
+                if ( rejection.buf_.hasRemaining() ) {
+                    channel.register( selector_, SelectionKey.OP_WRITE,
+                                      rejection );
+                    return;
+                }
+            }
+            catch ( IOException e ) {
+                closeQuietly( channel );
+                return;
+            }
+            finishRejection( channel );
+        }
+
+        /**
+         * Continues writing a 503 response to a writable connection.
+         *
+         * @param  key  selection key for a connection being rejected
+         */
+        private void writeRejection( SelectionKey key ) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Rejection rejection = (Rejection) key.attachment();
+            try {
+                channel.write( rejection.buf_ );
+            }
+            catch ( IOException e ) {
+                key.cancel();
+                closeQuietly( channel );
+                return;
+            }
+            if ( ! rejection.buf_.hasRemaining() ) {
+                key.cancel();
+                finishRejection( channel );
+            }
+        }
+
+        /**
+         * Closes a connection once its 503 response has been written.
+         * Output is shut down and any request bytes already received
+         * are discarded first, since closing a socket with unread input
+         * may reset the connection before the client has seen the
+         * response.
+         *
+         * @param  channel  non-blocking channel
+         */
+        private void finishRejection( SocketChannel channel ) {
+            try {
+                channel.socket().shutdownOutput();
+                readBuf_.clear();
+                while ( channel.read( readBuf_ ) > 0 ) {
+                    readBuf_.clear();
+                }
+            }
+            catch ( IOException e ) {
+            }
+            closeQuietly( channel );
+        }
+
+        /**
+         * Closes this thread's selector and any connections still
+         * registered with it.
+         */
+        private void shutdown() {
+            try {
+                for ( Iterator it = selector_.keys().iterator();
+                      it.hasNext(); ) {
+                    Object chan = ((SelectionKey) it.next()).channel();
+                    if ( chan instanceof SocketChannel ) {
+                        closeQuietly( (SocketChannel) chan );
+                    }
+                }
+            }
+            catch ( ClosedSelectorException e ) {
+            }
+            try {
+                selector_.close();
+            }
+            catch ( IOException e ) {
+            }
+            synchronized ( pendingList_ ) {
+                closed_ = true;
+                for ( Iterator it = pendingList_.iterator(); it.hasNext(); ) {
+                    closeQuietly( ((Connection) it.next()).channel_ );
+                }
+                pendingList_.clear();
+            }
+        }
+    }
+
+    /**
+     * Records the progress of a 503 response being written to a
+     * connection whose request has been refused.
+     */
+    private static class Rejection {
+        final ByteBuffer buf_;
+        final long deadline_;
+
+        /**
+         * Constructor.
+         */
+        Rejection() {
+            buf_ = ByteBuffer.wrap( BUSY_RESPONSE );
+            deadline_ = System.currentTimeMillis() + BUSY_MILLIS;
+        }
+    }
+
+    /**
+     * Accumulates the bytes read from a single connection and determines
+     * when they constitute a complete request.
+     */
+    private static class Connection {
+        final SocketChannel channel_;
+        byte[] buf_;
+        int count_;
+        long deadline_;
+        String deadlineReason_;
+        private long headerStart_;
+        private long bodyStartTime_;
+        private int scanPos_;
+        private int lineStart_;
+        private int bodyStart_;
+        private int contentLength_;
+
+        private static final byte[] CONTENT_LENGTH_BYTES =
+            "content-length:".getBytes();
+
+        /**
+         * Constructor.
+         *
+         * @param  channel  channel from which bytes will be read
+         */
+        Connection( SocketChannel channel ) {
+            channel_ = channel;
+            buf_ = new byte[ 1024 ];
+            bodyStart_ = -1;
+        }
+
+        /**
+         * Appends bytes to this connection's buffer.
+         *
+         * @param  b  byte array
+         * @param  len  number of bytes from the start of <code>b</code>
+         *              to append
+         * @param  now  current time in milliseconds
+         */
+        void append( byte[] b, int len, long now ) {
+            if ( count_ + len > buf_.length ) {
+                byte[] buf = new byte[ Math.max( buf_.length * 2,
+                                                 count_ + len ) ];
+                System.arraycopy( buf_, 0, buf, 0, count_ );
+                buf_ = buf;
+            }
+            System.arraycopy( b, 0, buf_, count_, len );
+            count_ += len;
+            if ( len > 0 && headerStart_ == 0 ) {
+                headerStart_ = now;
+            }
+        }
+
+        /**
+         * Sets the deadline by which more bytes must arrive for an
+         * incomplete request, according to the server's timeouts,
+         * and checks that the body is arriving fast enough.
+         * Must be called after {@link #isComplete} has returned false.
+         *
+         * @param  server  server whose limits apply
+         * @param  now  current time in milliseconds
+         * @return  false iff the body is arriving too slowly
+         */
+        boolean updateDeadline( HttpServer server, long now ) {
+            deadline_ = 0;
+            deadlineReason_ = null;
+            if ( bodyStart_ < 0 ) {
+                int idleMillis = server.getIdleTimeout();
+                int headerMillis = server.getHeaderTimeout();
+                if ( idleMillis > 0 ) {
+                    deadline_ = now + idleMillis;
+                    deadlineReason_ = HttpServer.DROP_IDLE;
+                }
+                if ( headerMillis > 0 &&
+                     ( deadline_ == 0 ||
+                       headerStart_ + headerMillis < deadline_ ) ) {
+                    deadline_ = headerStart_ + headerMillis;
+                    deadlineReason_ = HttpServer.DROP_HEADER;
+                }
+                return true;
+            }
+            else {
+                if ( bodyStartTime_ == 0 ) {
+                    bodyStartTime_ = now;
+                }
+                int bodyMillis = server.getBodyTimeout();
+                if ( bodyMillis > 0 ) {
+                    deadline_ = now + bodyMillis;
+                    deadlineReason_ = HttpServer.DROP_BODY;
+                }
+                long minRate = server.getMinBodyRate();
+                long excess = now - bodyStartTime_
+                            - HttpServer.RATE_GRACE_MILLIS;
+                return minRate <= 0
+                    || excess <= 0
+                    || ( count_ - bodyStart_ ) * 1000L >= excess * minRate;
+            }
+        }
+
+        /**
+         * Indicates whether enough bytes have been read to pass the
+         * request on for processing.
+         * That is the case when the header is complete and the body
+         * has either been read in full or has reached the prefetch limit.
+         * A request whose declared body is too large counts as complete
+         * once its header has been read, since the body will not be
+         * accepted anyway, and so does an oversized header,
+         * which will be rejected by the parser.
+         *
+         * @param  maxBody  maximum permitted body size in bytes
+         * @return  true iff the request can be dispatched
+         */
+        boolean isComplete( long maxBody ) {
+            if ( bodyStart_ < 0 ) {
+                scanHeader();
+                if ( bodyStart_ < 0 ) {
+                    return count_ >= RequestReader.MAX_HEAD;
+                }
+            }
+            int nBody = count_ - bodyStart_;
+            return nBody >= contentLength_
+                || nBody >= BODY_PREFETCH
+                || contentLength_ > maxBody;
+        }
+
+        /**
+         * Scans header lines not previously seen, looking for the
+         * content length and the blank line which ends the header.
+         * LF, as well as CRLF, is tolerated as a line terminator.
+         */
+        private void scanHeader() {
+            for ( ; scanPos_ < count_ && bodyStart_ < 0; scanPos_++ ) {
+                if ( buf_[ scanPos_ ] == '\n' ) {
+                    int lineEnd = scanPos_;
+                    if ( lineEnd > lineStart_ && buf_[ lineEnd - 1 ] == '\r' ) {
+                        lineEnd--;
+                    }
+                    if ( lineEnd == lineStart_ ) {
+                        bodyStart_ = scanPos_ + 1;
+                    }
+
+                    // An HTTP/0.9 simple request has no header to end.
+                    else if ( lineStart_ == 0 &&
+                              RequestReader
+                             .isSimpleRequest( buf_, 0, lineEnd ) ) {
+                        bodyStart_ = scanPos_ + 1;
+                    }
+                    else {
+                        scanHeaderLine( lineStart_, lineEnd );
+                    }
+                    lineStart_ = scanPos_ + 1;
+                }
+            }
+        }
+
+        /**
+         * Examines a header line for a Content-Length value.
+         * Malformed values are ignored here; they will be reported
+         * when the request is parsed.
+         *
+         * @param  start  index of first byte in line
+         * @param  end   index after last byte in line
+         */
+        private void scanHeaderLine( int start, int end ) {
+            int nc = CONTENT_LENGTH_BYTES.length;
+            if ( end - start <= nc ) {
+                return;
+            }
+            for ( int i = 0; i < nc; i++ ) {
+                if ( Character.toLowerCase( (char) buf_[ start + i ] )
+                     != CONTENT_LENGTH_BYTES[ i ] ) {
+                    return;
+                }
+            }
+            long leng = 0;
+            boolean hasDigit = false;
+            for ( int i = start + nc; i < end; i++ ) {
+                int c = buf_[ i ];
+                if ( c >= '0' && c <= '9' && leng < Integer.MAX_VALUE ) {
+                    leng = leng * 10 + ( c - '0' );
+                    hasDigit = true;
+                }
+                else if ( c != ' ' && c != '\t' ) {
+                    return;
+                }
+            }
+            if ( hasDigit ) {
+                contentLength_ = (int) Math.min( leng, Integer.MAX_VALUE );
+            }
+        }
+
+    }
+}
@@ -0,0 +1,388 @@
+package org.astrogrid.samp.httpd;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the tasks which serve requests received by an {@link HttpServer}.
+ * Implementations may refuse tasks when they are saturated,
+ * in which case the server sends the client a
+ * 503 Service Unavailable response rather than queueing the request.
+ *
+ * <p>Note that some SAMP operations (for instance
+ * <code>samp.hub.callAndWait</code> or Web Profile callback polling)
+ * block the serving thread until a further request has been received
+ * by the same server, so a pool which is too small can stall the hub
+ * until those operations time out.
+ *
+ * <p>A server using blocking I/O holds a thread for each persistent
+ * connection while it waits for the next request, so it does not keep
+ * connections alive if its executor is {@link #isBounded bounded};
+ * otherwise a few idle clients could occupy the whole pool.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public abstract class RequestExecutor {
+
+    private long nRejected_;
+
+    /**
+     * System property key determining the default executor used
+     * by new servers.  Permitted values are:
+     * <ul>
+     * <li><code>thread</code>: a new thread for each connection,
+     *     never rejects (the default)</li>
+     * <li><code>virtual</code>: a new virtual thread for each connection,
+     *     if the JVM supports them, otherwise as for <code>thread</code></li>
+     * <li><code>&lt;n&gt;</code> or <code>&lt;n&gt;:&lt;q&gt;</code>:
+     *     a pool of at most <em>n</em> threads, with at most <em>q</em>
+     *     tasks (default {@link #DEFAULT_QUEUE_LENGTH})
+     *     waiting for a free thread</li>
+     * </ul>
+     * The property name is {@value}.
+     */
+    public static final String WORKERS_PROP = "jsamp.server.workers";
+
+    /** Default maximum number of waiting tasks for a thread pool. */
+    public static final int DEFAULT_QUEUE_LENGTH = 100;
+
+    private static final Logger logger_ =
+        Logger.getLogger( RequestExecutor.class.getName() );
+
+    /**
+     * Attempts to arrange for a task to be run asynchronously.
+     *
+     * @param  task  task to run
+     * @return  true if the task has been accepted,
+     *          false if it has been rejected
+     */
+    protected abstract boolean submit( Runnable task );
+
+    /**
+     * Indicates that no further tasks will be submitted.
+     * Tasks already accepted are completed, but resources associated
+     * with this executor may be released afterwards.
+     */
+    public abstract void shutdown();
+
+    /**
+     * Returns the number of tasks currently waiting to be run.
+     *
+     * @return  queue length
+     */
+    public abstract int getQueueLength();
+
+    /**
+     * Indicates whether this executor runs tasks on a limited number
+     * of threads.  This implementation returns true.
+     *
+     * @return  true iff the number of tasks run at once may be limited
+     */
+    public boolean isBounded() {
+        return true;
+    }
+
+    /**
+     * Attempts to arrange for a task to be run asynchronously,
+     * counting rejections.
+     *
+     * @param  task  task to run
+     * @return  true if the task has been accepted,
+     *          false if it has been rejected
+     */
+    public boolean execute( Runnable task ) {
+        boolean accepted = submit( task );
+        if ( ! accepted ) {
+            synchronized ( this ) {
+                nRejected_++;
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Returns the number of tasks which have been rejected by this executor.
+     *
+     * @return  rejected task count
+     */
+    public synchronized long getRejectedCount() {
+        return nRejected_;
+    }
+
+    /**
+     * Returns an executor which starts a new platform thread for each task.
+     * It never rejects tasks.
+     *
+     * @param  isDaemon  whether the threads are daemons
+     * @return  new executor
+     */
+    public static RequestExecutor createThreadExecutor( boolean isDaemon ) {
+        return new ThreadExecutor( isDaemon );
+    }
+
+    /**
+     * Returns an executor which starts a new virtual thread for each task,
+     * if the running JVM supports virtual threads (Java 21+).
+     * It never rejects tasks.
+     *
+     * @return  new executor, or null if virtual threads are not available
+     */
+    public static RequestExecutor createVirtualThreadExecutor() {
+        final Method startMethod;
+        try {
+            startMethod = Thread.class
+                         .getMethod( "startVirtualThread",
+                                     new Class[] { Runnable.class } );
+        }
+        catch ( NoSuchMethodException e ) {
+            return null;
+        }
+        catch ( SecurityException e ) {
+            return null;
+        }
+        return new RequestExecutor() {
+            protected boolean submit( Runnable task ) {
+                try {
+                    startMethod.invoke( null, new Object[] { task } );
+                    return true;
+                }
+                catch ( IllegalAccessException e ) {
+                    throw (AssertionError) new AssertionError().initCause( e );
+                }
+                catch ( InvocationTargetException e ) {
+                    logger_.log( Level.WARNING, "Can't start virtual thread",
+                                 e.getCause() );
+                    return false;
+                }
+            }
+            public void shutdown() {
+            }
+            public int getQueueLength() {
+                return 0;
+            }
+            public boolean isBounded() {
+                return false;
+            }
+            public String toString() {
+                return "virtual";
+            }
+        };
+    }
+
+    /**
+     * Returns an executor which runs tasks on a bounded pool of threads.
+     * Threads are started as required, up to the given maximum.
+     * When all threads are busy, tasks are queued up to a given limit,
+     * and further tasks are rejected.
+     *
+     * @param  nthread  maximum number of threads
+     * @param  maxQueue  maximum number of tasks waiting for a thread
+     * @param  isDaemon  whether the threads are daemons
+     * @return  new executor
+     */
+    public static RequestExecutor createPoolExecutor( int nthread,
+                                                      int maxQueue,
+                                                      boolean isDaemon ) {
+        return new PoolExecutor( nthread, maxQueue, isDaemon );
+    }
+
+    /**
+     * Returns an executor configured according to the
+     * {@link #WORKERS_PROP} system property.
+     *
+     * @param  isDaemon  whether platform threads are daemons
+     * @return  new executor
+     */
+    public static RequestExecutor createDefaultExecutor( boolean isDaemon ) {
+        String spec;
+        try {
+            spec = System.getProperty( WORKERS_PROP );
+        }
+        catch ( SecurityException e ) {
+            spec = null;
+        }
+        if ( spec == null || spec.trim().length() == 0 ||
+             "thread".equalsIgnoreCase( spec.trim() ) ) {
+            return createThreadExecutor( isDaemon );
+        }
+        spec = spec.trim();
+        if ( "virtual".equalsIgnoreCase( spec ) ) {
+            RequestExecutor vExec = createVirtualThreadExecutor();
+            if ( vExec != null ) {
+                return vExec;
+            }
+            else {
+                logger_.warning( "No virtual threads in this JVM"
+                               + " - use one thread per request" );
+                return createThreadExecutor( isDaemon );
+            }
+        }
+        try {
+            int icolon = spec.indexOf( ':' );
+            int nthread = Integer.parseInt( icolon >= 0
+                                          ? spec.substring( 0, icolon )
+                                          : spec );
+            int maxQueue = icolon >= 0
+                         ? Integer.parseInt( spec.substring( icolon + 1 ) )
+                         : DEFAULT_QUEUE_LENGTH;
+            return createPoolExecutor( nthread, maxQueue, isDaemon );
+        }
+        catch ( RuntimeException e ) {
+            logger_.warning( "Bad value for " + WORKERS_PROP + " \"" + spec
+                           + "\" - use one thread per request" );
+            return createThreadExecutor( isDaemon );
+        }
+    }
+
+    /**
+     * Executor which starts a new thread for each task.
+     */
+    private static class ThreadExecutor extends RequestExecutor {
+        private final boolean isDaemon_;
+
+        /**
+         * Constructor.
+         *
+         * @param  isDaemon  whether the threads are daemons
+         */
+        ThreadExecutor( boolean isDaemon ) {
+            isDaemon_ = isDaemon;
+        }
+
+        protected boolean submit( Runnable task ) {
+            Thread thread = new Thread( task, "HTTP Request" );
+            thread.setDaemon( isDaemon_ );
+            thread.start();
+            return true;
+        }
+
+        public void shutdown() {
+        }
+
+        public int getQueueLength() {
+            return 0;
+        }
+
+        public boolean isBounded() {
+            return false;
+        }
+
+        public String toString() {
+            return "thread";
+        }
+    }
+
+    /**
+     * Executor which runs tasks on a bounded pool of threads
+     * with a bounded queue.
+     */
+    private static class PoolExecutor extends RequestExecutor {
+        private final int nthread_;
+        private final int maxQueue_;
+        private final boolean isDaemon_;
+        private final LinkedList queue_;
+        private int nWorker_;
+        private int nIdle_;
+        private boolean isShutdown_;
+
+        /**
+         * Constructor.
+         *
+         * @param  nthread  maximum number of threads
+         * @param  maxQueue  maximum number of tasks waiting for a thread
+         * @param  isDaemon  whether the threads are daemons
+         */
+        PoolExecutor( int nthread, int maxQueue, boolean isDaemon ) {
+            if ( nthread < 1 || maxQueue < 0 ) {
+                throw new IllegalArgumentException( "Bad pool size "
+                                                  + nthread + ":"
+                                                  + maxQueue );
+            }
+            nthread_ = nthread;
+            maxQueue_ = maxQueue;
+            isDaemon_ = isDaemon;
+            queue_ = new LinkedList();
+        }
+
+        protected synchronized boolean submit( Runnable task ) {
+            if ( isShutdown_ ) {
+                return false;
+            }
+            int nWaiting = queue_.size() - nIdle_;
+            if ( nWaiting < 0 ) {
+                queue_.addLast( task );
+                notify();
+                return true;
+            }
+            else if ( nWorker_ < nthread_ ) {
+                queue_.addLast( task );
+                nWorker_++;
+                Thread worker = new Thread( "HTTP Worker-" + nWorker_ ) {
+                    public void run() {
+                        work();
+                    }
+                };
+                worker.setDaemon( isDaemon_ );
+                worker.start();
+                return true;
+            }
+            else if ( nWaiting < maxQueue_ ) {
+                queue_.addLast( task );
+                return true;
+            }
+            else {
+                return false;
+            }
+        }
+
+        public synchronized void shutdown() {
+            isShutdown_ = true;
+            notifyAll();
+        }
+
+        public synchronized int getQueueLength() {
+            return queue_.size();
+        }
+
+        /**
+         * Runs tasks from the queue until shutdown.
+         */
+        private void work() {
+            while ( true ) {
+                Runnable task;
+                synchronized ( this ) {
+                    while ( queue_.isEmpty() && ! isShutdown_ ) {
+                        nIdle_++;
+                        try {
+                            wait();
+                        }
+                        catch ( InterruptedException e ) {
+                        }
+                        finally {
+                            nIdle_--;
+                        }
+                    }
+                    if ( queue_.isEmpty() ) {
+                        nWorker_--;
+                        return;
+                    }
+                    task = (Runnable) queue_.removeFirst();
+                }
+                try {
+                    task.run();
+                }
+                catch ( Throwable e ) {
+                    logger_.log( Level.WARNING, "Httpd error", e );
+                }
+            }
+        }
+
+        public String toString() {
+            return nthread_ + ":" + maxQueue_;
+        }
+    }
+}
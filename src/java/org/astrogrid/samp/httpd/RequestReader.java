@@ -0,0 +1,730 @@
+package org.astrogrid.samp.httpd;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered input stream which can parse the head of an HTTP/1.x request
+ * directly from its buffer.
+ * Bytes are read from the underlying stream in bulk, and the request line
+ * and header lines are examined in place without regular expressions
+ * or intermediate line strings.
+ * Bytes following the request head (body, or subsequent pipelined
+ * requests) remain available from the <code>read</code> methods,
+ * so a single instance may be used for all the requests on
+ * a persistent connection.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+class RequestReader extends InputStream {
+
+    private final InputStream in_;
+    private byte[] buf_;
+    private int pos_;
+    private int count_;
+    private char[] cbuf_;
+
+    /** Initial size of read buffer. */
+    private static final int BUFSIZ = 8 * 1024;
+
+    /** Maximum permitted size of request line plus header in bytes. */
+    public static final int MAX_HEAD = 64 * 1024;
+
+    private static final String[] METHODS = new String[] {
+        "GET", "POST", "HEAD", "OPTIONS", "PUT", "DELETE",
+    };
+
+    private static final String CONTENT_LENGTH = "Content-Length";
+    private static final String[] KNOWN_HEADERS = new String[] {
+        CONTENT_LENGTH,
+        "Content-Type",
+        "Content-Encoding",
+        "Host",
+        "Connection",
+        "Keep-Alive",
+        "Transfer-Encoding",
+        "User-Agent",
+        "Accept",
+        "Accept-Encoding",
+        "Accept-Language",
+        "Authorization",
+        "Cache-Control",
+        "Pragma",
+        "Cookie",
+        "Referer",
+        "Origin",
+        "Expect",
+        "Range",
+        "If-Range",
+        "If-Modified-Since",
+        "If-None-Match",
+        "Access-Control-Request-Method",
+        "Access-Control-Request-Headers",
+        "Access-Control-Request-Private-Network",
+    };
+
+    /** Open-addressed hash table of KNOWN_HEADERS keyed by lower case. */
+    private static final String[] HEADER_TABLE = new String[ 128 ];
+    static {
+        for ( int i = 0; i < KNOWN_HEADERS.length; i++ ) {
+            String name = KNOWN_HEADERS[ i ];
+            String lname = name.toLowerCase();
+            int h = 0;
+            for ( int j = 0; j < lname.length(); j++ ) {
+                h = 31 * h + lname.charAt( j );
+            }
+            int mask = HEADER_TABLE.length - 1;
+            int slot = h & mask;
+            while ( HEADER_TABLE[ slot ] != null ) {
+                slot = ( slot + 1 ) & mask;
+            }
+            HEADER_TABLE[ slot ] = name;
+        }
+    }
+
+    /**
+     * Constructs a reader which reads from a given stream.
+     *
+     * @param  in  underlying input stream
+     */
+    public RequestReader( InputStream in ) {
+        in_ = in;
+        buf_ = new byte[ BUFSIZ ];
+        cbuf_ = new char[ 256 ];
+    }
+
+    /**
+     * Constructs a reader which reads from a fixed array of bytes.
+     * The array is used directly, not copied.
+     *
+     * @param  buf  byte buffer
+     * @param  count  number of bytes at the start of <code>buf</code>
+     *                to supply
+     */
+    public RequestReader( byte[] buf, int count ) {
+        this( null, buf, count );
+    }
+
+    /**
+     * Constructs a reader which supplies bytes already read into
+     * an array, followed by bytes from a given stream.
+     * The array is used directly, not copied.
+     *
+     * @param  in  underlying input stream, or null
+     * @param  buf  byte buffer
+     * @param  count  number of bytes at the start of <code>buf</code>
+     *                to supply before reading from <code>in</code>
+     */
+    public RequestReader( InputStream in, byte[] buf, int count ) {
+        in_ = in;
+        buf_ = buf;
+        count_ = count;
+        cbuf_ = new char[ 256 ];
+    }
+
+    public int read() throws IOException {
+        return pos_ < count_ || fill() ? ( buf_[ pos_++ ] & 0xff )
+                                       : -1;
+    }
+
+    public int read( byte[] b, int off, int len ) throws IOException {
+        if ( len == 0 ) {
+            return 0;
+        }
+        if ( pos_ >= count_ ) {
+
+            // Large reads bypass the buffer.
+            if ( in_ != null && len >= buf_.length ) {
+                return in_.read( b, off, len );
+            }
+            if ( ! fill() ) {
+                return -1;
+            }
+        }
+        int n = Math.min( count_ - pos_, len );
+        System.arraycopy( buf_, pos_, b, off, n );
+        pos_ += n;
+        return n;
+    }
+
+    public int available() throws IOException {
+        return count_ - pos_ + ( in_ == null ? 0 : in_.available() );
+    }
+
+    /**
+     * Removes and returns any bytes which have been read from the
+     * underlying stream into this reader's buffer but not yet consumed.
+     * Bytes not yet read from the underlying stream are not affected.
+     *
+     * @return  unconsumed buffered bytes
+     */
+    public byte[] takeBuffered() {
+        byte[] buf = new byte[ count_ - pos_ ];
+        System.arraycopy( buf_, pos_, buf, 0, buf.length );
+        pos_ = count_;
+        return buf;
+    }
+
+    public void close() throws IOException {
+        if ( in_ != null ) {
+            in_.close();
+        }
+    }
+
+    /**
+     * Ensures that at least one unread byte is buffered,
+     * blocking if necessary.
+     *
+     * @return  true iff a byte is available; false at end of stream
+     */
+    public boolean fill() throws IOException {
+        if ( pos_ < count_ ) {
+            return true;
+        }
+        pos_ = 0;
+        count_ = 0;
+        return readMore();
+    }
+
+    /**
+     * Reads the head of the next request, consisting of the request line
+     * and any header lines, and leaves the stream positioned at the start
+     * of the body.
+     * As a special case, if the stream has no content at all,
+     * null is returned.
+     *
+     * @return  parsed request head, or null
+     * @throws  HttpServer.HttpException  if the request is malformed
+     */
+    public RequestHead readHead() throws IOException {
+        if ( ! fill() ) {
+            return null;
+        }
+
+        // Locate the blank line which ends the head, reading more bytes
+        // as required.  Any CR must be part of a CRLF line terminator,
+        // but HTTP/1.1 recommends that a lone LF is also tolerated.
+        int scan = pos_;
+        int lineStart = pos_;
+        int nLine = 0;
+        int headEnd = -1;
+        while ( headEnd < 0 ) {
+            if ( scan >= count_ ) {
+                int off = pos_;
+                if ( ! readMore() ) {
+
+                    // Special case: HTTP/0.9 style simple request
+                    // terminated by end of stream.  Probably very rare.
+                    if ( nLine == 1 ) {
+                        RequestHead head =
+                            parseSimpleRequest( pos_, lineEnd( pos_ ) );
+                        if ( head != null ) {
+                            pos_ = count_;
+                            return head;
+                        }
+                    }
+                    throw new HttpServer.HttpException( 500, "No CRLF line" );
+                }
+                scan -= off - pos_;
+                lineStart -= off - pos_;
+            }
+            byte b = buf_[ scan++ ];
+            if ( b == '\n' ) {
+                int leng = scan - 1 - lineStart;
+                if ( leng > 0 && buf_[ scan - 2 ] == '\r' ) {
+                    leng--;
+                }
+                for ( int i = 0; i < leng; i++ ) {
+                    if ( buf_[ lineStart + i ] == '\r' ) {
+                        throw new HttpServer.HttpException( 400, "CR w/o LF" );
+                    }
+                }
+                if ( leng == 0 ) {
+                    headEnd = lineStart;
+                }
+
+                // An HTTP/0.9 style simple request consists of a single
+                // line with no header, so don't wait for a blank line.
+                else if ( nLine == 0 &&
+                          isSimpleRequest( buf_, lineStart,
+                                           lineStart + leng ) ) {
+                    RequestHead head =
+                        parseSimpleRequest( lineStart, lineStart + leng );
+                    pos_ = scan;
+                    return head;
+                }
+                else {
+                    nLine++;
+                }
+                lineStart = scan;
+            }
+        }
+        int bodyStart = scan;
+
+        // No header content?
+        if ( nLine == 0 ) {
+            pos_ = bodyStart;
+            throw new HttpServer.HttpException( 400, "Empty request" );
+        }
+
+        // Parse the request line.
+        int rlEnd = lineEnd( pos_ );
+        RequestHead head = parseSimpleRequest( pos_, rlEnd );
+        if ( head == null ) {
+            head = parseRequestLine( pos_, rlEnd );
+        }
+        if ( head == null ) {
+            pos_ = bodyStart;
+            throw new HttpServer.HttpException( 400, "Bad request" );
+        }
+
+        // Then the header lines.
+        if ( head.version_ != null ) {
+            try {
+                parseHeaders( nextLine( pos_ ), headEnd, head );
+            }
+            catch ( HttpServer.HttpException e ) {
+                pos_ = bodyStart;
+                throw e;
+            }
+        }
+        pos_ = bodyStart;
+        return head;
+    }
+
+    /**
+     * Reads more bytes from the underlying stream into the buffer,
+     * compacting or enlarging it as required.
+     * Unread bytes may be moved to the start of the buffer,
+     * so callers must adjust any indices relative to <code>pos_</code>.
+     *
+     * @return  true iff at least one more byte was read
+     */
+    private boolean readMore() throws IOException {
+        if ( in_ == null ) {
+            return false;
+        }
+        if ( count_ == buf_.length ) {
+            int nUnread = count_ - pos_;
+            if ( pos_ > 0 ) {
+                System.arraycopy( buf_, pos_, buf_, 0, nUnread );
+            }
+            else if ( buf_.length < MAX_HEAD ) {
+                byte[] buf = new byte[ Math.min( buf_.length * 2, MAX_HEAD ) ];
+                System.arraycopy( buf_, 0, buf, 0, nUnread );
+                buf_ = buf;
+            }
+            else {
+                throw new HttpServer
+                         .HttpException( 431, "Request header too large" );
+            }
+            pos_ = 0;
+            count_ = nUnread;
+        }
+        int n = in_.read( buf_, count_, buf_.length - count_ );
+        if ( n > 0 ) {
+            count_ += n;
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the index of the start of the line following the one starting
+     * at a given index.  The head must be known to contain an LF
+     * after the given index.
+     *
+     * @param  lineStart  index of start of a line
+     * @return   index of start of next line
+     */
+    private int nextLine( int lineStart ) {
+        int i = lineStart;
+        while ( buf_[ i ] != '\n' ) {
+            i++;
+        }
+        return i + 1;
+    }
+
+    /**
+     * Returns the index of the end of the line starting at a given index,
+     * excluding the line terminator.  The line need not be terminated.
+     *
+     * @param  lineStart  index of start of a line
+     * @return   index after last content byte of line
+     */
+    private int lineEnd( int lineStart ) {
+        int i = lineStart;
+        while ( i < count_ && buf_[ i ] != '\n' ) {
+            i++;
+        }
+        if ( i > lineStart && buf_[ i - 1 ] == '\r' ) {
+            i--;
+        }
+        return i;
+    }
+
+    /**
+     * Attempts to parse a line as an HTTP/0.9 style simple request,
+     * "GET" SP Request-URI.
+     *
+     * @param  start  index of line start
+     * @param  end   index of line end
+     * @return  parsed head with null version and no headers,
+     *          or null if the line is not a simple request
+     */
+    private RequestHead parseSimpleRequest( int start, int end ) {
+        return isSimpleRequest( buf_, start, end )
+             ? new RequestHead( "GET", decode( start + 4, end ), null )
+             : null;
+    }
+
+    /**
+     * Indicates whether a line has the form of an HTTP/0.9 style
+     * simple request, "GET" SP Request-URI.
+     *
+     * @param  buf  byte buffer
+     * @param  start  index of line start
+     * @param  end   index of line end, excluding any line terminator
+     * @return  true iff the line is a simple request
+     */
+    static boolean isSimpleRequest( byte[] buf, int start, int end ) {
+        if ( end - start > 4 &&
+             buf[ start ] == 'G' &&
+             buf[ start + 1 ] == 'E' &&
+             buf[ start + 2 ] == 'T' &&
+             buf[ start + 3 ] == ' ' ) {
+            for ( int i = start + 4; i < end; i++ ) {
+                if ( isSpace( buf[ i ] ) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    /**
+     * Attempts to parse a line as a full request line,
+     * Method SP Request-URI SP HTTP-Version.
+     *
+     * @param  start  index of line start
+     * @param  end   index of line end
+     * @return  parsed head with no headers yet, or null if the line
+     *          is not a request line
+     */
+    private RequestHead parseRequestLine( int start, int end ) {
+
+        // Method token.
+        int i = start;
+        while ( i < end && isTokenChar( buf_[ i ] ) ) {
+            i++;
+        }
+        int methodEnd = i;
+        if ( methodEnd == start || i >= end || buf_[ i++ ] != ' ' ) {
+            return null;
+        }
+
+        // Request-URI.
+        int uriStart = i;
+        while ( i < end && ! isSpace( buf_[ i ] ) ) {
+            i++;
+        }
+        int uriEnd = i;
+        if ( uriEnd == uriStart || i >= end || buf_[ i++ ] != ' ' ) {
+            return null;
+        }
+
+        // Version, "HTTP/" 1*DIGIT "." 1*DIGIT.
+        int versionStart = i;
+        if ( end - i < 8 ||
+             buf_[ i++ ] != 'H' || buf_[ i++ ] != 'T' ||
+             buf_[ i++ ] != 'T' || buf_[ i++ ] != 'P' ||
+             buf_[ i++ ] != '/' ) {
+            return null;
+        }
+        int nd1 = 0;
+        while ( i < end && isDigit( buf_[ i ] ) ) {
+            i++;
+            nd1++;
+        }
+        if ( nd1 == 0 || i >= end || buf_[ i++ ] != '.' ) {
+            return null;
+        }
+        int nd2 = 0;
+        while ( i < end && isDigit( buf_[ i ] ) ) {
+            i++;
+            nd2++;
+        }
+        if ( nd2 == 0 || i != end ) {
+            return null;
+        }
+
+        String version = end - versionStart == 8
+                      && buf_[ versionStart + 5 ] == '1'
+                      && buf_[ versionStart + 7 ] <= '1'
+                       ? ( buf_[ versionStart + 7 ] == '1' ? "HTTP/1.1"
+                                                           : "HTTP/1.0" )
+                       : decode( versionStart, end );
+        return new RequestHead( getMethod( start, methodEnd ),
+                                decode( uriStart, uriEnd ), version );
+    }
+
+    /**
+     * Parses header lines into a request head.
+     * Lines which do not look like headers are ignored.
+     * Continuation lines are appended to the preceding header value.
+     *
+     * @param  start  index of start of first header line
+     * @param  end   index of start of terminating blank line
+     * @param  head  request head to populate
+     */
+    private void parseHeaders( int start, int end, RequestHead head )
+            throws HttpServer.HttpException {
+        String name = null;
+        String value = null;
+        for ( int ls = start; ls < end; ls = nextLine( ls ) ) {
+            int le = lineEnd( ls );
+            byte b0 = buf_[ ls ];
+
+            // Continuation line.
+            if ( b0 == ' ' || b0 == '\t' ) {
+                if ( name != null ) {
+                    int s = ls;
+                    int e = le;
+                    while ( s < e && buf_[ s ] <= ' ' ) {
+                        s++;
+                    }
+                    while ( e > s && buf_[ e - 1 ] <= ' ' ) {
+                        e--;
+                    }
+                    value += decode( s, e );
+                }
+                continue;
+            }
+
+            // Store the previous header.
+            if ( name != null ) {
+                head.headerMap_.addHeader( name, value );
+                name = null;
+            }
+
+            // Header line: name ":" *SP value.
+            int i = ls;
+            while ( i < le && buf_[ i ] != ':' && ! isSpace( buf_[ i ] ) ) {
+                i++;
+            }
+            if ( i > ls && i < le && buf_[ i ] == ':' ) {
+                int nameEnd = i++;
+                while ( i < le && isSpace( buf_[ i ] ) ) {
+                    i++;
+                }
+                name = getHeaderName( ls, nameEnd );
+
+                // Known names are canonical instances, so identity
+                // comparison is sufficient.
+                if ( name == CONTENT_LENGTH ) {
+                    if ( head.contentLength_ >= 0 ) {
+                        throw new HttpServer
+                                 .HttpException( 400, "Multiple "
+                                               + CONTENT_LENGTH
+                                               + " headers" );
+                    }
+                    head.contentLength_ = parseContentLength( i, le );
+                }
+                value = decode( i, le );
+            }
+        }
+        if ( name != null ) {
+            head.headerMap_.addHeader( name, value );
+        }
+    }
+
+    /**
+     * Parses the value of a Content-Length header directly from the buffer.
+     *
+     * @param  start  index of value start
+     * @param  end   index of value end
+     * @return   content length
+     * @throws  HttpServer.HttpException  if the value is not a
+     *          non-negative integer
+     */
+    private int parseContentLength( int start, int end )
+            throws HttpServer.HttpException {
+        while ( end > start && isSpace( buf_[ end - 1 ] ) ) {
+            end--;
+        }
+        long leng = 0;
+        for ( int i = start; i < end; i++ ) {
+            byte b = buf_[ i ];
+            if ( isDigit( b ) && leng <= Integer.MAX_VALUE ) {
+                leng = leng * 10 + ( b - '0' );
+            }
+            else {
+                leng = -1;
+                break;
+            }
+        }
+        if ( end == start || leng < 0 || leng > Integer.MAX_VALUE ) {
+            throw new HttpServer.HttpException( 400, "Failed to parse "
+                                                   + CONTENT_LENGTH
+                                                   + " header "
+                                                   + decode( start, end ) );
+        }
+        return (int) leng;
+    }
+
+    /**
+     * Returns the request method named by a range of bytes.
+     * Common methods are returned as shared constants.
+     *
+     * @param  start  index of method start
+     * @param  end   index of method end
+     * @return  method name
+     */
+    private String getMethod( int start, int end ) {
+        for ( int im = 0; im < METHODS.length; im++ ) {
+            String method = METHODS[ im ];
+            int leng = method.length();
+            if ( end - start == leng ) {
+                boolean match = true;
+                for ( int i = 0; i < leng && match; i++ ) {
+                    match = buf_[ start + i ] == method.charAt( i );
+                }
+                if ( match ) {
+                    return method;
+                }
+            }
+        }
+        return decode( start, end );
+    }
+
+    /**
+     * Returns the header name given by a range of bytes.
+     * Well-known names are matched case-insensitively and returned
+     * in their canonical form as shared constants;
+     * others are returned as they appear.
+     *
+     * @param  start  index of name start
+     * @param  end   index of name end
+     * @return  header name
+     */
+    private String getHeaderName( int start, int end ) {
+        int h = 0;
+        for ( int i = start; i < end; i++ ) {
+            h = 31 * h + toLower( buf_[ i ] );
+        }
+        int mask = HEADER_TABLE.length - 1;
+        for ( int slot = h & mask; HEADER_TABLE[ slot ] != null;
+              slot = ( slot + 1 ) & mask ) {
+            String name = HEADER_TABLE[ slot ];
+            int leng = name.length();
+            if ( end - start == leng ) {
+                boolean match = true;
+                for ( int i = 0; i < leng && match; i++ ) {
+                    match = toLower( buf_[ start + i ] )
+                         == Character.toLowerCase( name.charAt( i ) );
+                }
+                if ( match ) {
+                    return name;
+                }
+            }
+        }
+        return decode( start, end );
+    }
+
+    /**
+     * Turns a range of bytes into a string, using ISO-8859-1.
+     *
+     * @param  start  index of first byte
+     * @param  end   index after last byte
+     * @return  string
+     */
+    private String decode( int start, int end ) {
+        int leng = end - start;
+        if ( cbuf_.length < leng ) {
+            cbuf_ = new char[ Math.max( leng, cbuf_.length * 2 ) ];
+        }
+        for ( int i = 0; i < leng; i++ ) {
+            cbuf_[ i ] = (char) ( buf_[ start + i ] & 0xff );
+        }
+        return new String( cbuf_, 0, leng );
+    }
+
+    /**
+     * Indicates whether a byte is whitespace in the sense of
+     * the regular expression <code>\s</code>.
+     *
+     * @param  b  byte
+     * @return  true iff whitespace
+     */
+    private static boolean isSpace( byte b ) {
+        return b == ' ' || b == '\t' || b == '\n'
+            || b == 0x0b || b == '\f' || b == '\r';
+    }
+
+    /**
+     * Indicates whether a byte is a decimal digit.
+     *
+     * @param  b  byte
+     * @return  true iff digit
+     */
+    private static boolean isDigit( byte b ) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * Indicates whether a byte may form part of a request method token.
+     *
+     * @param  b  byte
+     * @return  true iff token character
+     */
+    private static boolean isTokenChar( byte b ) {
+        return ( b >= 'a' && b <= 'z' )
+            || ( b >= 'A' && b <= 'Z' )
+            || ( b >= '0' && b <= '9' )
+            || b == '_' || b == '.' || b == '-';
+    }
+
+    /**
+     * Returns the lower case ASCII equivalent of a byte.
+     *
+     * @param  b  byte
+     * @return  lower case character
+     */
+    private static char toLower( byte b ) {
+        return b >= 'A' && b <= 'Z' ? (char) ( b + ( 'a' - 'A' ) )
+                                    : (char) ( b & 0xff );
+    }
+
+    /**
+     * Parsed request line and headers of an HTTP request.
+     */
+    static class RequestHead {
+        final String method_;
+        final String uri_;
+        final String version_;
+        final HttpServer.HttpHeaderMap headerMap_;
+        int contentLength_;
+
+        /**
+         * Constructor.
+         *
+         * @param  method  request method
+         * @param  uri   request URI, not decoded
+         * @param  version  HTTP version string,
+         *                  or null for an HTTP/0.9 simple request
+         */
+        RequestHead( String method, String uri, String version ) {
+            method_ = method;
+            uri_ = uri;
+            version_ = version;
+            headerMap_ = new HttpServer.HttpHeaderMap();
+            contentLength_ = -1;
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package org.astrogrid.samp.httpd;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -14,11 +17,13 @@ import java.util.logging.Logger;
 /**
  * Handler implementation which implements dynamic resource provision.
  * HTTP HEAD and GET methods are implemented.
+ * Resources of modest size are given content-derived entity tags,
+ * so that clients can revalidate cached copies with conditional requests.
  *
  * @author   Mark Taylor
  * @since    7 Jan 2009
  */
-public class ResourceHandler implements HttpServer.Handler {
+public class ResourceHandler implements HttpServer.PrefixHandler {
     private final String basePath_;
     private final URL serverUrl_;
     private final Map resourceMap_;
@@ -27,6 +32,9 @@ public class ResourceHandler implements HttpServer.Handler {
     private static Logger logger_ =
         Logger.getLogger( ResourceHandler.class.getName() );
 
+    /** Largest resource for which an entity tag is calculated. */
+    private static final long MAX_ETAG_LENGTH = 1024 * 1024;
+
     /** Dummy resource indicating a withdrawn item. */
     private static final ServerResource EXPIRED = new ServerResource() {
         public String getContentType() {
@@ -105,6 +113,10 @@ public class ResourceHandler implements HttpServer.Handler {
         }
     }
 
+    public String getPathPrefix() {
+        return basePath_;
+    }
+
     public HttpServer.Response serveRequest( HttpServer.Request request ) {
         String path = request.getUrl();
         if ( ! path.startsWith( basePath_ ) ) {
@@ -123,27 +135,87 @@ public class ResourceHandler implements HttpServer.Handler {
                 hdrMap.put( "Content-Length", Long.toString( contentLength ) );
             }
             String method = request.getMethod();
-            if ( method.equals( "HEAD" ) ) {
+            boolean isGet = method.equals( "GET" );
+            if ( ! isGet && ! method.equals( "HEAD" ) ) {
+                return HttpServer
+                      .create405Response( new String[] { "HEAD", "GET" } );
+            }
+
+            // For resources of modest size, generate the content up front
+            // so that an entity tag can be calculated from it.
+            final byte[] body;
+            if ( contentLength >= 0 && contentLength <= MAX_ETAG_LENGTH ) {
+                ByteArrayOutputStream bout =
+                    new ByteArrayOutputStream( (int) contentLength );
+                try {
+                    resource.writeBody( bout );
+                }
+                catch ( IOException e ) {
+                    return HttpServer
+                          .createErrorResponse( 500, "Server error", e );
+                }
+                body = bout.toByteArray();
+                String etag = createEtag( body );
+                hdrMap.put( "ETag", etag );
+                hdrMap.put( "Cache-Control", "no-cache" );
+                if ( HttpServer.isNotModified( request, etag, -1 ) ) {
+                    return HttpServer.create304Response( hdrMap );
+                }
+            }
+            else {
+                body = null;
+            }
+            if ( ! isGet ) {
                 return new HttpServer.Response( 200, "OK", hdrMap ) {
                     public void writeBody( OutputStream out ) {
                     }
                 };
             }
-            else if ( method.equals( "GET" ) ) {
+            else if ( body != null ) {
                 return new HttpServer.Response( 200, "OK", hdrMap ) {
                     public void writeBody( OutputStream out )
                             throws IOException {
-                        resource.writeBody( out );
+                        out.write( body );
                     }
                 };
             }
             else {
-                return HttpServer
-                      .create405Response( new String[] { "HEAD", "GET" } );
+                return new HttpServer.Response( 200, "OK", hdrMap ) {
+                    public void writeBody( OutputStream out )
+                            throws IOException {
+                        resource.writeBody( out );
+                    }
+                };
             }
         }
         else {
             return HttpServer.createErrorResponse( 404, "Not found" );
         }
     }
+
+    /**
+     * Returns an entity tag derived from the content of a resource.
+     *
+     * @param  body  resource content
+     * @return   quoted entity tag
+     */
+    private static String createEtag( byte[] body ) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance( "MD5" ).digest( body );
+        }
+        catch ( NoSuchAlgorithmException e ) {
+            throw (AssertionError)
+                  new AssertionError( "No MD5??" ).initCause( e );
+        }
+        StringBuffer sbuf = new StringBuffer( 2 + 2 * digest.length );
+        sbuf.append( '"' );
+        for ( int i = 0; i < digest.length; i++ ) {
+            int b = digest[ i ] & 0xff;
+            sbuf.append( Character.forDigit( b >> 4, 16 ) )
+                .append( Character.forDigit( b & 0xf, 16 ) );
+        }
+        sbuf.append( '"' );
+        return sbuf.toString();
+    }
 }
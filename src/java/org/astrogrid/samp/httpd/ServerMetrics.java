@@ -0,0 +1,525 @@
+package org.astrogrid.samp.httpd;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Accumulates statistics about the requests served by an HttpServer.
+ * For each handler, counts of requests and of response status codes,
+ * request and response body sizes, a latency histogram and the number
+ * of requests currently in progress are recorded.
+ * Requests which are not attributed to any handler,
+ * for instance because they could not be parsed, are recorded
+ * under the name "<code>(none)</code>".
+ *
+ * <p>Latencies are measured from the time the request has been read
+ * to the time the response has been written, and are stored in
+ * histogram bins whose widths increase by factors of two;
+ * reported percentile values are therefore upper bounds accurate
+ * to within a factor of two, though the maximum is exact.
+ *
+ * <p>The statistics may be examined using the methods of this class,
+ * by JMX, or over HTTP using a {@link StatusHandler}.
+ * Instances are thread-safe.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    private final Map statsMap_;
+    private final List statsList_;
+    private final HandlerStats total_;
+    private Object objectName_;
+
+    private static final String NONE_NAME = "(none)";
+    private static final Method NANO_METHOD = getNanoMethod();
+    private static final Logger logger_ =
+        Logger.getLogger( ServerMetrics.class.getName() );
+
+    /**
+     * Constructor.
+     */
+    public ServerMetrics() {
+        statsMap_ = new IdentityHashMap();
+        statsList_ = new ArrayList();
+        total_ = new HandlerStats( "total" );
+    }
+
+    public long getRequestCount() {
+        return total_.getCount();
+    }
+
+    public int getInFlight() {
+        return total_.getInFlight();
+    }
+
+    public String[] getHandlerSummaries() {
+        HandlerStats[] stats = getHandlerStats();
+        String[] summaries = new String[ stats.length ];
+        for ( int i = 0; i < stats.length; i++ ) {
+            summaries[ i ] = stats[ i ].toString();
+        }
+        return summaries;
+    }
+
+    public String getStatusJson() {
+        StringBuffer sbuf = new StringBuffer();
+        sbuf.append( "{\n" )
+            .append( "  \"inFlight\": " )
+            .append( total_.getInFlight() )
+            .append( ",\n" )
+            .append( "  \"total\": " );
+        total_.appendJson( sbuf );
+        sbuf.append( ",\n" )
+            .append( "  \"handlers\": [" );
+        HandlerStats[] stats = getHandlerStats();
+        for ( int i = 0; i < stats.length; i++ ) {
+            sbuf.append( i == 0 ? "\n" : ",\n" )
+                .append( "    " );
+            stats[ i ].appendJson( sbuf );
+        }
+        sbuf.append( "\n  ]\n" )
+            .append( "}\n" );
+        return sbuf.toString();
+    }
+
+    public void reset() {
+        total_.reset();
+        HandlerStats[] stats = getHandlerStats();
+        for ( int i = 0; i < stats.length; i++ ) {
+            stats[ i ].reset();
+        }
+    }
+
+    /**
+     * Records that a request has been read and is about to be served.
+     */
+    void requestStarted() {
+        total_.enter();
+    }
+
+    /**
+     * Records that a handler has been asked to serve a request.
+     *
+     * @param  handler  handler
+     */
+    void handlerEntered( HttpServer.Handler handler ) {
+        getStats( handler ).enter();
+    }
+
+    /**
+     * Records that a handler previously passed to {@link #handlerEntered}
+     * has declined to serve a request.
+     *
+     * @param  handler  handler
+     */
+    void handlerDeclined( HttpServer.Handler handler ) {
+        getStats( handler ).exit();
+    }
+
+    /**
+     * Records that the response to a request has been sent.
+     *
+     * @param  handler  handler which served the request,
+     *                  previously passed to {@link #handlerEntered},
+     *                  or null if none
+     * @param  status   response status code
+     * @param  reqBytes   number of bytes in request body
+     * @param  respBytes  number of bytes in response body,
+     *                    or negative if not known
+     * @param  micros   service time in microseconds
+     */
+    void requestCompleted( HttpServer.Handler handler, int status,
+                           long reqBytes, long respBytes, long micros ) {
+        total_.exit();
+        total_.record( status, reqBytes, respBytes, micros );
+        HandlerStats stats = getStats( handler );
+        if ( handler != null ) {
+            stats.exit();
+        }
+        stats.record( status, reqBytes, respBytes, micros );
+    }
+
+    /**
+     * Registers this object with the platform MBean server,
+     * if JMX is available.
+     *
+     * @param  name  text of the JMX ObjectName
+     * @return  true iff registration succeeded
+     */
+    synchronized boolean registerMBean( String name ) {
+        if ( objectName_ != null ) {
+            return true;
+        }
+        try {
+            Class onClazz = Class.forName( "javax.management.ObjectName" );
+            Object objName = onClazz
+                            .getConstructor( new Class[] { String.class } )
+                            .newInstance( new Object[] { name } );
+            Class.forName( "javax.management.MBeanServer" )
+                 .getMethod( "registerMBean",
+                             new Class[] { Object.class, onClazz } )
+                 .invoke( getMBeanServer(), new Object[] { this, objName } );
+            objectName_ = objName;
+            logger_.config( "Registered server metrics MBean " + name );
+            return true;
+        }
+        catch ( Exception e ) {
+            logger_.log( Level.INFO, "Can't register MBean " + name, e );
+            return false;
+        }
+    }
+
+    /**
+     * Unregisters this object from the platform MBean server
+     * if it has previously been registered.
+     */
+    synchronized void unregisterMBean() {
+        if ( objectName_ != null ) {
+            Object objName = objectName_;
+            objectName_ = null;
+            try {
+                Class.forName( "javax.management.MBeanServer" )
+                     .getMethod( "unregisterMBean",
+                                 new Class[] { objName.getClass() } )
+                     .invoke( getMBeanServer(), new Object[] { objName } );
+            }
+            catch ( Exception e ) {
+                logger_.log( Level.INFO, "Can't unregister MBean " + objName,
+                             e );
+            }
+        }
+    }
+
+    /**
+     * Returns the statistics for each handler that has been seen,
+     * in order of first use.
+     *
+     * @return  handler stats array
+     */
+    private HandlerStats[] getHandlerStats() {
+        synchronized ( statsMap_ ) {
+            return (HandlerStats[])
+                   statsList_.toArray( new HandlerStats[ 0 ] );
+        }
+    }
+
+    /**
+     * Returns the statistics object for a given handler,
+     * creating it if necessary.
+     *
+     * @param  handler  handler, or null
+     * @return  stats object
+     */
+    private HandlerStats getStats( HttpServer.Handler handler ) {
+        synchronized ( statsMap_ ) {
+            HandlerStats stats = (HandlerStats) statsMap_.get( handler );
+            if ( stats == null ) {
+                stats = new HandlerStats( getHandlerName( handler ) );
+                statsMap_.put( handler, stats );
+                statsList_.add( stats );
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * Returns a human-readable name for a handler.
+     * This is its path prefix if it has one, otherwise its class name.
+     *
+     * @param  handler  handler, or null
+     * @return  name
+     */
+    private static String getHandlerName( HttpServer.Handler handler ) {
+        if ( handler == null ) {
+            return NONE_NAME;
+        }
+        if ( handler instanceof HttpServer.PrefixHandler ) {
+            String prefix =
+                ((HttpServer.PrefixHandler) handler).getPathPrefix();
+            if ( prefix != null ) {
+                return prefix;
+            }
+        }
+        return handler.getClass().getName();
+    }
+
+    /**
+     * Returns the current time in microseconds from some arbitrary origin.
+     * Where available, the JVM's high-resolution timer is used.
+     *
+     * @return  time in microseconds
+     */
+    public static long currentMicros() {
+        if ( NANO_METHOD != null ) {
+            try {
+                return ((Number) NANO_METHOD.invoke( null, new Object[ 0 ] ))
+                      .longValue() / 1000;
+            }
+            catch ( IllegalAccessException e ) {
+            }
+            catch ( InvocationTargetException e ) {
+            }
+        }
+        return System.currentTimeMillis() * 1000;
+    }
+
+    /**
+     * Returns the System.nanoTime method if available (Java 5+).
+     *
+     * @return  nanoTime method, or null
+     */
+    private static Method getNanoMethod() {
+        try {
+            return System.class.getMethod( "nanoTime", new Class[ 0 ] );
+        }
+        catch ( NoSuchMethodException e ) {
+            return null;
+        }
+        catch ( SecurityException e ) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the JVM's platform MBean server.
+     *
+     * @return  MBeanServer instance
+     */
+    private static Object getMBeanServer() throws Exception {
+        return Class.forName( "java.lang.management.ManagementFactory" )
+                    .getMethod( "getPlatformMBeanServer", new Class[ 0 ] )
+                    .invoke( null, new Object[ 0 ] );
+    }
+
+    /**
+     * Appends a JSON string literal to a buffer.
+     *
+     * @param  sbuf  buffer
+     * @param  txt   string content
+     */
+    private static void appendJsonString( StringBuffer sbuf, String txt ) {
+        sbuf.append( '"' );
+        for ( int i = 0; i < txt.length(); i++ ) {
+            char c = txt.charAt( i );
+            if ( c == '"' || c == '\\' ) {
+                sbuf.append( '\\' )
+                    .append( c );
+            }
+            else if ( c < 0x20 ) {
+                String hex = Integer.toHexString( c );
+                sbuf.append( "\\u00" )
+                    .append( hex.length() < 2 ? "0" : "" )
+                    .append( hex );
+            }
+            else {
+                sbuf.append( c );
+            }
+        }
+        sbuf.append( '"' );
+    }
+
+    /**
+     * Statistics for a single handler.
+     */
+    private static class HandlerStats {
+        private final String name_;
+        private final Map statusMap_;
+        private final long[] bins_;
+        private int inFlight_;
+        private long count_;
+        private long reqBytes_;
+        private long respBytes_;
+        private long maxMicros_;
+
+        /**
+         * Constructor.
+         *
+         * @param  name  handler name
+         */
+        HandlerStats( String name ) {
+            name_ = name;
+            statusMap_ = new TreeMap();
+            bins_ = new long[ 64 ];
+        }
+
+        /**
+         * Returns the number of recorded requests.
+         *
+         * @return  count
+         */
+        synchronized long getCount() {
+            return count_;
+        }
+
+        /**
+         * Returns the number of requests in progress.
+         *
+         * @return  in-flight count
+         */
+        synchronized int getInFlight() {
+            return inFlight_;
+        }
+
+        /**
+         * Increments the in-flight count.
+         */
+        synchronized void enter() {
+            inFlight_++;
+        }
+
+        /**
+         * Decrements the in-flight count.
+         */
+        synchronized void exit() {
+            inFlight_--;
+        }
+
+        /**
+         * Records a completed request.
+         *
+         * @param  status   response status code
+         * @param  reqBytes   request body size
+         * @param  respBytes  response body size, or negative if unknown
+         * @param  micros   latency in microseconds
+         */
+        synchronized void record( int status, long reqBytes, long respBytes,
+                                  long micros ) {
+            count_++;
+            reqBytes_ += Math.max( 0, reqBytes );
+            respBytes_ += Math.max( 0, respBytes );
+            Integer key = new Integer( status );
+            long[] scount = (long[]) statusMap_.get( key );
+            if ( scount == null ) {
+                scount = new long[ 1 ];
+                statusMap_.put( key, scount );
+            }
+            scount[ 0 ]++;
+            int ib = 0;
+            while ( ( micros >> ib ) > 0 ) {
+                ib++;
+            }
+            bins_[ ib ]++;
+            maxMicros_ = Math.max( maxMicros_, micros );
+        }
+
+        /**
+         * Clears the cumulative statistics.
+         */
+        synchronized void reset() {
+            count_ = 0;
+            reqBytes_ = 0;
+            respBytes_ = 0;
+            maxMicros_ = 0;
+            statusMap_.clear();
+            for ( int ib = 0; ib < bins_.length; ib++ ) {
+                bins_[ ib ] = 0;
+            }
+        }
+
+        /**
+         * Returns an upper bound for a given latency percentile.
+         * Must be called while synchronized.
+         *
+         * @param  fraction  percentile as a fraction in the range 0..1
+         * @return   latency upper bound in microseconds
+         */
+        private long getPercentile( double fraction ) {
+            long target = (long) Math.ceil( fraction * count_ );
+            long sum = 0;
+            for ( int ib = 0; ib < bins_.length; ib++ ) {
+                sum += bins_[ ib ];
+                if ( sum >= target && sum > 0 ) {
+                    return Math.min( ( 1L << ib ) - 1, maxMicros_ );
+                }
+            }
+            return maxMicros_;
+        }
+
+        /**
+         * Appends a JSON object representing these statistics to a buffer.
+         *
+         * @param  sbuf  buffer
+         */
+        synchronized void appendJson( StringBuffer sbuf ) {
+            sbuf.append( "{\"name\": " );
+            appendJsonString( sbuf, name_ );
+            sbuf.append( ", \"requests\": " )
+                .append( count_ )
+                .append( ", \"inFlight\": " )
+                .append( inFlight_ )
+                .append( ", \"status\": {" );
+            for ( Iterator it = statusMap_.entrySet().iterator();
+                  it.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) it.next();
+                sbuf.append( '"' )
+                    .append( entry.getKey() )
+                    .append( "\": " )
+                    .append( ((long[]) entry.getValue())[ 0 ] )
+                    .append( it.hasNext() ? ", " : "" );
+            }
+            sbuf.append( "}, \"requestBytes\": " )
+                .append( reqBytes_ )
+                .append( ", \"responseBytes\": " )
+                .append( respBytes_ )
+                .append( ", \"latencyMicros\": {\"p50\": " )
+                .append( getPercentile( 0.50 ) )
+                .append( ", \"p99\": " )
+                .append( getPercentile( 0.99 ) )
+                .append( ", \"max\": " )
+                .append( maxMicros_ )
+                .append( "}}" );
+        }
+
+        public synchronized String toString() {
+            return new StringBuffer()
+                  .append( name_ )
+                  .append( ": requests=" )
+                  .append( count_ )
+                  .append( ", inFlight=" )
+                  .append( inFlight_ )
+                  .append( ", status=" )
+                  .append( statusMapText() )
+                  .append( ", requestBytes=" )
+                  .append( reqBytes_ )
+                  .append( ", responseBytes=" )
+                  .append( respBytes_ )
+                  .append( ", p50=" )
+                  .append( getPercentile( 0.50 ) )
+                  .append( "us, p99=" )
+                  .append( getPercentile( 0.99 ) )
+                  .append( "us, max=" )
+                  .append( maxMicros_ )
+                  .append( "us" )
+                  .toString();
+        }
+
+        /**
+         * Returns a compact representation of the status code counts.
+         * Must be called while synchronized.
+         *
+         * @return  text
+         */
+        private String statusMapText() {
+            StringBuffer sbuf = new StringBuffer( "{" );
+            for ( Iterator it = statusMap_.entrySet().iterator();
+                  it.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) it.next();
+                sbuf.append( entry.getKey() )
+                    .append( '=' )
+                    .append( ((long[]) entry.getValue())[ 0 ] )
+                    .append( it.hasNext() ? "," : "" );
+            }
+            return sbuf.append( '}' ).toString();
+        }
+    }
+}
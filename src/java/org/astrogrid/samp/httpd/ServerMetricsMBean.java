@@ -0,0 +1,49 @@
+package org.astrogrid.samp.httpd;
+
+/**
+ * Management interface for {@link ServerMetrics}.
+ * This follows the JMX Standard MBean naming convention,
+ * so that the metrics of a running server can be examined
+ * from a JMX console.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public interface ServerMetricsMBean {
+
+    /**
+     * Returns the total number of requests completed since the
+     * last reset.
+     *
+     * @return  completed request count
+     */
+    long getRequestCount();
+
+    /**
+     * Returns the number of requests currently being served.
+     *
+     * @return  in-flight request count
+     */
+    int getInFlight();
+
+    /**
+     * Returns one-line summaries of the statistics for each handler
+     * which has served requests.
+     *
+     * @return  per-handler summary strings
+     */
+    String[] getHandlerSummaries();
+
+    /**
+     * Returns a JSON report of all the statistics.
+     *
+     * @return  JSON text
+     */
+    String getStatusJson();
+
+    /**
+     * Resets all the cumulative statistics.
+     * In-flight counts are not affected.
+     */
+    void reset();
+}
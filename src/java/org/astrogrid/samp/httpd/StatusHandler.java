@@ -0,0 +1,66 @@
+package org.astrogrid.samp.httpd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Handler which serves a read-only JSON report of the request statistics
+ * gathered by a {@link ServerMetrics} object.
+ * Only GET and HEAD requests for the handler's path are served.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public class StatusHandler implements HttpServer.PrefixHandler {
+
+    private final ServerMetrics metrics_;
+    private final String path_;
+
+    /**
+     * Constructor.
+     *
+     * @param  metrics  metrics object whose statistics are reported
+     * @param  path   URL path at which the report is served
+     */
+    public StatusHandler( ServerMetrics metrics, String path ) {
+        metrics_ = metrics;
+        path_ = path;
+    }
+
+    public String getPathPrefix() {
+        return path_;
+    }
+
+    public HttpServer.Response serveRequest( HttpServer.Request request ) {
+        if ( ! request.getUrl().equals( path_ ) ) {
+            return null;
+        }
+        String method = request.getMethod();
+        boolean isGet = "GET".equals( method );
+        if ( ! isGet && ! "HEAD".equals( method ) ) {
+            return HttpServer
+                  .create405Response( new String[] { "HEAD", "GET" } );
+        }
+        final byte[] buf;
+        try {
+            buf = metrics_.getStatusJson().getBytes( "UTF-8" );
+        }
+        catch ( IOException e ) {
+            throw (AssertionError) new AssertionError().initCause( e );
+        }
+        Map hdrMap = new LinkedHashMap();
+        hdrMap.put( "Content-Type", "application/json" );
+        hdrMap.put( "Content-Length", Integer.toString( buf.length ) );
+        hdrMap.put( "Cache-Control", "no-store" );
+        final boolean hasBody = isGet;
+        return new HttpServer.Response( 200, "OK", hdrMap ) {
+            public void writeBody( OutputStream out ) throws IOException {
+                if ( hasBody ) {
+                    out.write( buf );
+                }
+            }
+        };
+    }
+}
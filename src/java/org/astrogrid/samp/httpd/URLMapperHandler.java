@@ -1,5 +1,6 @@
 package org.astrogrid.samp.httpd;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -8,6 +9,7 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import org.astrogrid.samp.SampUtils;
 
 /**
  * Handler implementation which allows the server to serve resources which
@@ -19,7 +21,7 @@ import java.util.Map;
  * @author   Mark Taylor
  * @since    8 Jan 2009
  */
-public class URLMapperHandler implements HttpServer.Handler {
+public class URLMapperHandler implements HttpServer.PrefixHandler {
     private final String basePath_;
     private final URL baseUrl_;
     private final URL sourceUrl_;
@@ -65,6 +67,10 @@ public class URLMapperHandler implements HttpServer.Handler {
         return baseUrl_;
     }
 
+    public String getPathPrefix() {
+        return basePath_;
+    }
+
     public HttpServer.Response serveRequest( HttpServer.Request request ) {
 
         // Determine the source URL from which the data will be obtained.
@@ -93,7 +99,35 @@ public class URLMapperHandler implements HttpServer.Handler {
         }
 
         // Forward header and data from the source URL to the response.
-        return mapUrlResponse( request.getMethod(), srcUrl );
+        return mapUrlResponse( request, srcUrl );
+    }
+
+    /**
+     * Repackages a resource from a given target URL as an HTTP response
+     * to a given request.
+     * If the URL refers to a local file, it is served directly from
+     * the file system with support for byte range requests;
+     * otherwise this behaves like {@link #mapUrlResponse(String,URL)}.
+     * In either case, validators (ETag, Last-Modified) are supplied
+     * where possible and conditional requests are honoured.
+     *
+     * @param  request  HTTP request
+     * @param  targetUrl  URL containing the resource to forward
+     * @return   response redirecting to the given target URL
+     */
+    public static HttpServer.Response mapUrlResponse( HttpServer.Request
+                                                          request,
+                                                      URL targetUrl ) {
+        File file;
+        try {
+            file = SampUtils.urlToFile( targetUrl );
+        }
+        catch ( RuntimeException e ) {
+            file = null;
+        }
+        return file != null && file.isFile()
+             ? FileResponse.createFileResponse( request, file )
+             : mapUrlResponse( request.getMethod(), request, targetUrl );
     }
 
     /**
@@ -107,6 +141,22 @@ public class URLMapperHandler implements HttpServer.Handler {
      */
     public static HttpServer.Response mapUrlResponse( String method,
                                                       URL targetUrl ) {
+        return mapUrlResponse( method, null, targetUrl );
+    }
+
+    /**
+     * Does the work for the <code>mapUrlResponse</code> methods
+     * for URLs which are not served directly from the file system.
+     *
+     * @param  method  HTTP method
+     * @param  request  HTTP request for conditional GET handling, or null
+     * @param  targetUrl  URL containing the resource to forward
+     * @return   response redirecting to the given target URL
+     */
+    private static HttpServer.Response mapUrlResponse( String method,
+                                                       HttpServer.Request
+                                                           request,
+                                                       URL targetUrl ) {
         final URLConnection conn;
         try {
             conn = targetUrl.openConnection();
@@ -130,6 +180,30 @@ public class URLMapperHandler implements HttpServer.Handler {
             if ( contentEncoding != null ) {
                 hdrMap.put( "Content-Encoding", contentEncoding );
             }
+
+            // Supply validators if the source has (or allows us to make)
+            // them, so that clients can revalidate cached copies cheaply.
+            long lastModified = conn.getLastModified();
+            String etag = conn.getHeaderField( "ETag" );
+            if ( etag == null && lastModified > 0 && contentLength >= 0 ) {
+                etag = FileResponse.createEtag( contentLength, lastModified );
+            }
+            if ( lastModified > 0 ) {
+                hdrMap.put( "Last-Modified",
+                            HttpServer.formatDate( lastModified ) );
+            }
+            if ( etag != null ) {
+                hdrMap.put( "ETag", etag );
+            }
+            if ( lastModified > 0 || etag != null ) {
+                hdrMap.put( "Cache-Control", "no-cache" );
+                if ( request != null &&
+                     HttpServer.isNotModified( request, etag,
+                                               lastModified > 0 ? lastModified
+                                                                : -1 ) ) {
+                    return HttpServer.create304Response( hdrMap );
+                }
+            }
             if ( "GET".equals( method ) ) {
                 return new HttpServer.Response( 200, "OK", hdrMap ) {
                     public void writeBody( OutputStream out )
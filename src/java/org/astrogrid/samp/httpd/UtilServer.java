@@ -41,6 +41,7 @@ public class UtilServer {
     private final Set baseSet_;
     private MultiURLMapperHandler mapperHandler_;
     private ResourceHandler resourceHandler_;
+    private URL statusUrl_;
 
     /**
      * System Property key giving a preferred port number for the server.
@@ -50,6 +51,33 @@ public class UtilServer {
      */
     public static final String PORT_PROP = "jsamp.server.port";
 
+    /**
+     * System property key determining whether the server uses a
+     * non-blocking I/O engine; set it to "<code>nio</code>" to do so.
+     * The property name is {@value}.
+     * @see  HttpServer#ENGINE_PROP
+     */
+    public static final String ENGINE_PROP = HttpServer.ENGINE_PROP;
+
+    /**
+     * System property key determining how the server's requests are
+     * executed, for instance "<code>8:100</code>" for a pool of 8 threads
+     * with up to 100 queued requests.
+     * The property name is {@value}.
+     * @see  RequestExecutor#WORKERS_PROP
+     */
+    public static final String WORKERS_PROP = RequestExecutor.WORKERS_PROP;
+
+    /**
+     * System property key determining whether the server gathers
+     * request statistics; set it to "<code>true</code>" to do so.
+     * In that case the default instance also serves a JSON status report,
+     * see {@link #addStatusHandler}.
+     * The property name is {@value}.
+     * @see  HttpServer#METRICS_PROP
+     */
+    public static final String METRICS_PROP = HttpServer.METRICS_PROP;
+
     /** Buffer size for copy data from input to output stream. */
     private static int BUFSIZ = 16 * 1024;
 
@@ -119,6 +147,33 @@ public class UtilServer {
         return resourceHandler_;
     }
 
+    /**
+     * Arranges for this object's server to serve a read-only JSON report
+     * of its request statistics.  If the server is not already gathering
+     * statistics, it is made to do so.
+     * Calling this method more than once has no further effect.
+     *
+     * @return  URL at which the status report is served
+     */
+    public synchronized URL addStatusHandler() {
+        if ( statusUrl_ == null ) {
+            ServerMetrics metrics = server_.getMetrics();
+            if ( metrics == null ) {
+                metrics = new ServerMetrics();
+                server_.setMetrics( metrics );
+            }
+            String path = getBasePath( "/status" );
+            server_.addHandler( new StatusHandler( metrics, path ) );
+            try {
+                statusUrl_ = new URL( server_.getBaseUrl(), path );
+            }
+            catch ( MalformedURLException e ) {
+                throw (AssertionError) new AssertionError().initCause( e );
+            }
+        }
+        return statusUrl_;
+    }
+
     /**
      * Exposes a resource from a given URL as a publicly visible URL.
      * This is typically used if the given <code>localUrl</code> is
@@ -222,7 +277,7 @@ public class UtilServer {
             if ( sPort != null && sPort.length() > 0 ) {
                 int port = Integer.parseInt( sPort );
                 try {
-                    sock = new ServerSocket( port );
+                    sock = HttpServer.createServerSocket( port );
                 }
                 catch ( BindException e ) {
                     logger_.warning( "Can't open socket on port " + port
@@ -230,12 +285,16 @@ public class UtilServer {
                 }
             }
             if ( sock == null ) {
-                sock = new ServerSocket( 0 );
+                sock = HttpServer.createServerSocket( 0 );
             }
             HttpServer server = new HttpServer( sock );
             server.setDaemon( true );
             server.start();
             instance_ = new UtilServer( server );
+            if ( server.getMetrics() != null ) {
+                logger_.info( "Server status at "
+                            + instance_.addStatusHandler() );
+            }
         }
         return instance_;
     }
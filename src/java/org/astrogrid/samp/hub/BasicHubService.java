@@ -527,7 +527,7 @@ public class BasicHubService implements HubService {
      */
     protected List notifyAll( HubClient caller, Map message )
             throws SampException {
-        Message msg = Message.asMessage( message );
+        Message msg = new BroadcastMessage( message );
         msg.check();
         String mtype = msg.getMType();
         HubClient[] recipients = clientSet_.getClients();
@@ -564,7 +564,7 @@ public class BasicHubService implements HubService {
      */
     protected Map callAll( HubClient caller, String msgTag, Map message )
             throws SampException {
-        Message msg = Message.asMessage( message );
+        Message msg = new BroadcastMessage( message );
         msg.check();
         String mtype = msg.getMType();
         String msgId = MessageId.encode( caller, msgTag, false );
@@ -0,0 +1,209 @@
+package org.astrogrid.samp.hub;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import org.astrogrid.samp.EncodingCache;
+import org.astrogrid.samp.Message;
+
+/**
+ * Message which is delivered unchanged to many recipients.
+ * The hub uses instances of this class for the <code>notifyAll</code>
+ * and <code>callAll</code> operations.
+ *
+ * <p>As well as the message content, a broadcast message can hold
+ * encoded forms of itself, so that profiles delivering it to several
+ * clients can serialize it only once.  To keep those encodings valid,
+ * the content is a snapshot taken at construction time, including
+ * copies of any contained lists and maps, and cannot be modified
+ * afterwards; attempts to do so throw an
+ * <code>UnsupportedOperationException</code>.
+ * Later changes to the map it was constructed from have no effect on it.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public class BroadcastMessage extends Message implements EncodingCache {
+
+    private final Map encodingMap_;
+    private final Set entrySet_;
+
+    /**
+     * Constructs a broadcast message as a snapshot of an existing map.
+     *
+     * @param  map  map containing data for this object
+     */
+    public BroadcastMessage( Map map ) {
+        super();
+        encodingMap_ = new HashMap();
+        for ( Iterator it = map.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            super.put( entry.getKey(), snapshot( entry.getValue() ) );
+        }
+        List entryList = new ArrayList();
+        for ( Iterator it = super.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            entryList.add( new Entry( entry.getKey(), entry.getValue() ) );
+        }
+        entrySet_ = new EntrySet( (Map.Entry[])
+                                  entryList.toArray( new Map.Entry[ 0 ] ) );
+    }
+
+    /**
+     * Throws an UnsupportedOperationException, since broadcast messages
+     * are read-only.
+     */
+    public Object put( Object key, Object value ) {
+        throw new UnsupportedOperationException( "Broadcast message"
+                                               + " is read-only" );
+    }
+
+    /**
+     * Returns an unmodifiable view of this message's entries.
+     */
+    public Set entrySet() {
+        return entrySet_;
+    }
+
+    public Object getEncoding( Object key ) {
+        synchronized ( encodingMap_ ) {
+            return encodingMap_.get( key );
+        }
+    }
+
+    public void setEncoding( Object key, Object encoding ) {
+        synchronized ( encodingMap_ ) {
+            encodingMap_.put( key, encoding );
+        }
+    }
+
+    /**
+     * Returns an unmodifiable deep copy of a message value.
+     * Lists and maps are copied recursively, and other values,
+     * which are expected to be immutable strings, are returned as is.
+     *
+     * @param  value  map value
+     * @return   unmodifiable copy of <code>value</code>
+     */
+    private static Object snapshot( Object value ) {
+        if ( value instanceof Map ) {
+            Map map = new LinkedHashMap();
+            for ( Iterator it = ((Map) value).entrySet().iterator();
+                  it.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) it.next();
+                map.put( entry.getKey(), snapshot( entry.getValue() ) );
+            }
+            return Collections.unmodifiableMap( map );
+        }
+        else if ( value instanceof List ) {
+            List list = new ArrayList( ((List) value).size() );
+            for ( Iterator it = ((List) value).iterator(); it.hasNext(); ) {
+                list.add( snapshot( it.next() ) );
+            }
+            return Collections.unmodifiableList( list );
+        }
+        else {
+            return value;
+        }
+    }
+
+    /**
+     * Fixed set of entries.
+     */
+    private static class EntrySet extends AbstractSet {
+        private final Map.Entry[] entries_;
+
+        /**
+         * Constructor.
+         *
+         * @param  entries  entry array, which must not be modified
+         */
+        EntrySet( Map.Entry[] entries ) {
+            entries_ = entries;
+        }
+
+        public int size() {
+            return entries_.length;
+        }
+
+        public Iterator iterator() {
+            return new Iterator() {
+                private int index_;
+                public boolean hasNext() {
+                    return index_ < entries_.length;
+                }
+                public Object next() {
+                    if ( index_ < entries_.length ) {
+                        return entries_[ index_++ ];
+                    }
+                    else {
+                        throw new NoSuchElementException();
+                    }
+                }
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    /**
+     * Map entry whose value cannot be changed.
+     */
+    private static class Entry implements Map.Entry {
+        private final Object key_;
+        private final Object value_;
+
+        /**
+         * Constructor.
+         *
+         * @param  key  key
+         * @param  value  value
+         */
+        Entry( Object key, Object value ) {
+            key_ = key;
+            value_ = value;
+        }
+
+        public Object getKey() {
+            return key_;
+        }
+
+        public Object getValue() {
+            return value_;
+        }
+
+        public Object setValue( Object value ) {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean equals( Object o ) {
+            if ( o instanceof Map.Entry ) {
+                Map.Entry other = (Map.Entry) o;
+                return ( key_ == null ? other.getKey() == null
+                                      : key_.equals( other.getKey() ) )
+                    && ( value_ == null ? other.getValue() == null
+                                        : value_.equals( other.getValue() ) );
+            }
+            else {
+                return false;
+            }
+        }
+
+        public int hashCode() {
+            return ( key_ == null ? 0 : key_.hashCode() )
+                 ^ ( value_ == null ? 0 : value_.hashCode() );
+        }
+
+        public String toString() {
+            return key_ + "=" + value_;
+        }
+    }
+}
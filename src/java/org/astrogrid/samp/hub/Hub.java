@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -12,17 +13,23 @@ import java.util.WeakHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JFrame;
+import org.astrogrid.samp.Metadata;
 import org.astrogrid.samp.ShutdownManager;
+import org.astrogrid.samp.Response;
 import org.astrogrid.samp.SampUtils;
+import org.astrogrid.samp.Subscriptions;
+import org.astrogrid.samp.client.CallableClient;
 import org.astrogrid.samp.client.ClientProfile;
 import org.astrogrid.samp.client.HubConnection;
 import org.astrogrid.samp.client.SampException;
+import org.astrogrid.samp.httpd.HttpServer;
 import org.astrogrid.samp.httpd.UtilServer;
 import org.astrogrid.samp.web.WebHubProfile;
 import org.astrogrid.samp.web.WebHubProfileFactory;
 import org.astrogrid.samp.xmlrpc.StandardHubProfile;
 import org.astrogrid.samp.xmlrpc.StandardHubProfileFactory;
 import org.astrogrid.samp.xmlrpc.XmlRpcKit;
+import org.astrogrid.samp.xmlrpc.internal.InternalServer;
 
 /**
  * Class which manages a hub and its associated profiles.
@@ -41,6 +48,10 @@ import org.astrogrid.samp.xmlrpc.XmlRpcKit;
  * using both the Standard and Web profiles if it does not explicitly choose
  * profiles.
  *
+ * <p>When the hub is shut down, hub calls already in progress are given
+ * a limited time to complete before the service stops
+ * (see {@link #setDrainTimeout}).
+ *
  * @author   Mark Taylor
  * @author   Sylvain Lafrasse
  * @since    31 Jan 2011
@@ -49,6 +60,9 @@ public class Hub {
 
     private final HubService service_;
     private final List profileList_;
+    private final Map activeCallMap_;
+    private int drainMillis_;
+    private boolean draining_;
     private static Class[] defaultDefaultProfileClasses_ = {
         StandardHubProfile.class,
         WebHubProfile.class,
@@ -82,6 +96,14 @@ public class Hub {
     public static final String EXTRAHUBPROFILES_PROP =
         "jsamp.hub.profiles.extra";
 
+    /**
+     * System property name for the default time in milliseconds ({@value})
+     * allowed for hub calls in progress to complete when a hub is
+     * shut down.
+     * If not set, {@link HttpServer#DEFAULT_DRAIN_MILLIS} is used.
+     */
+    public static final String DRAIN_PROP = "jsamp.hub.drain";
+
     /**
      * Constructor.
      * Note that this object does not start the service, it must be
@@ -92,16 +114,44 @@ public class Hub {
     public Hub( HubService service ) {
         service_ = service;
         profileList_ = new ArrayList();
+        activeCallMap_ = new HashMap();
+        drainMillis_ = getDefaultDrainMillis();
         synchronized ( hubList_ ) {
             hubList_.put( this, null );
         }
     }
 
+    /**
+     * Sets the time allowed for hub calls in progress to complete
+     * when this hub is shut down.
+     * The default is given by the {@link #DRAIN_PROP} system property.
+     *
+     * @param  millis  drain timeout in milliseconds
+     */
+    public void setDrainTimeout( int millis ) {
+        drainMillis_ = millis;
+    }
+
+    /**
+     * Returns the time allowed for hub calls in progress to complete
+     * when this hub is shut down.
+     *
+     * @return  drain timeout in milliseconds
+     */
+    public int getDrainTimeout() {
+        return drainMillis_;
+    }
+
     /**
      * Stops this hub and its profiles running.
+     * New registrations and hub calls (other than replies and
+     * unregistrations) are refused at once, but calls already in
+     * progress are given up to the drain timeout to complete
+     * before the hub service is shut down.
      */
     public synchronized void shutdown() {
         logger_.info( "Shutting down hub service" );
+        drainCalls();
         try {
             service_.shutdown();
         }
@@ -128,6 +178,94 @@ public class Hub {
         ShutdownManager.getInstance().unregisterHook( this );
     }
 
+    /**
+     * Refuses further hub calls, and waits until those in progress
+     * have completed or the drain timeout has expired.
+     * Calls made by the current thread are not waited for.
+     */
+    private void drainCalls() {
+        long deadline = System.currentTimeMillis() + drainMillis_;
+        int nActive;
+        synchronized ( activeCallMap_ ) {
+            draining_ = true;
+            while ( ( nActive = countActiveCalls() ) > 0 ) {
+                long remaining = deadline - System.currentTimeMillis();
+                if ( remaining <= 0 ) {
+                    break;
+                }
+                try {
+                    activeCallMap_.wait( remaining );
+                }
+                catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        if ( nActive > 0 ) {
+            logger_.warning( "Hub shutdown aborting " + nActive
+                           + " unfinished hub calls" );
+        }
+    }
+
+    /**
+     * Returns the number of hub calls in progress on threads other than
+     * the current one.  Must be called with the lock on
+     * <code>activeCallMap_</code> held.
+     *
+     * @return  active call count
+     */
+    private int countActiveCalls() {
+        int n = 0;
+        for ( Iterator it = activeCallMap_.entrySet().iterator();
+              it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            if ( entry.getKey() != Thread.currentThread() ) {
+                n += ((int[]) entry.getValue())[ 0 ];
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Records the start of a hub call by the current thread.
+     * Every successful call must be matched by a call to
+     * {@link #callEnded}.
+     *
+     * @param  isFinishing  true if the call may be needed to complete
+     *                      calls already in progress, so should be
+     *                      permitted while draining
+     * @throws  SampException  if the hub is shutting down
+     */
+    private void callStarted( boolean isFinishing ) throws SampException {
+        Thread thread = Thread.currentThread();
+        synchronized ( activeCallMap_ ) {
+            if ( draining_ && ! isFinishing ) {
+                throw new SampException( "Hub is shutting down" );
+            }
+            int[] count = (int[]) activeCallMap_.get( thread );
+            if ( count == null ) {
+                count = new int[ 1 ];
+                activeCallMap_.put( thread, count );
+            }
+            count[ 0 ]++;
+        }
+    }
+
+    /**
+     * Records the end of a hub call by the current thread.
+     */
+    private void callEnded() {
+        Thread thread = Thread.currentThread();
+        synchronized ( activeCallMap_ ) {
+            int[] count = (int[]) activeCallMap_.get( thread );
+            if ( --count[ 0 ] == 0 ) {
+                activeCallMap_.remove( thread );
+            }
+            activeCallMap_.notifyAll();
+        }
+    }
+
     /**
      * Starts a profile running on behalf of this hub.
      *
@@ -142,7 +280,14 @@ public class Hub {
         else {
             profile.start( new ClientProfile() {
                 public HubConnection register() throws SampException {
-                    return service_.register( profile );
+                    callStarted( false );
+                    try {
+                        return new DrainHubConnection( service_
+                                                      .register( profile ) );
+                    }
+                    finally {
+                        callEnded();
+                    }
                 }
                 public boolean isHubRunning() {
                     return service_.isHubRunning();
@@ -282,6 +427,32 @@ public class Hub {
         }
     }
 
+    /**
+     * Returns the default drain timeout, taken from the {@link #DRAIN_PROP}
+     * system property if it is set.
+     *
+     * @return  drain timeout in milliseconds
+     */
+    private static int getDefaultDrainMillis() {
+        String txt;
+        try {
+            txt = System.getProperty( DRAIN_PROP );
+        }
+        catch ( SecurityException e ) {
+            txt = null;
+        }
+        if ( txt != null && txt.trim().length() > 0 ) {
+            try {
+                return Integer.parseInt( txt.trim() );
+            }
+            catch ( NumberFormatException e ) {
+                logger_.warning( "Bad value for " + DRAIN_PROP + " \""
+                               + txt + "\" - use default" );
+            }
+        }
+        return HttpServer.DEFAULT_DRAIN_MILLIS;
+    }
+
     /**
      * Parses a string representing a list of hub profiles.
      * The result is an array of HubProfileFactories.
@@ -578,6 +749,10 @@ public class Hub {
         String[] propagateProps = new String[] {
             XmlRpcKit.IMPL_PROP,
             UtilServer.PORT_PROP,
+            UtilServer.ENGINE_PROP,
+            UtilServer.WORKERS_PROP,
+            UtilServer.METRICS_PROP,
+            InternalServer.GZIP_THRESHOLD_PROP,
             SampUtils.LOCALHOST_PROP,
             HUBPROFILES_PROP,
             EXTRAHUBPROFILES_PROP,
@@ -979,4 +1154,173 @@ public class Hub {
         eater.setDaemon( true );
         eater.start();
     }
+
+    /**
+     * HubConnection wrapper which records calls in progress,
+     * and refuses new ones while the hub is shutting down.
+     */
+    private class DrainHubConnection extends WrapperHubConnection {
+
+        /**
+         * Constructor.
+         *
+         * @param  base  hub connection to which calls are delegated
+         */
+        DrainHubConnection( HubConnection base ) {
+            super( base );
+        }
+
+        public void setCallable( CallableClient client ) throws SampException {
+            callStarted( false );
+            try {
+                super.setCallable( client );
+            }
+            finally {
+                callEnded();
+            }
+        }
+
+        public void ping() throws SampException {
+            callStarted( false );
+            try {
+                super.ping();
+            }
+            finally {
+                callEnded();
+            }
+        }
+
+        public void unregister() throws SampException {
+            callStarted( true );
+            try {
+                super.unregister();
+            }
+            finally {
+                callEnded();
+            }
+        }
+
+        public void declareMetadata( Map meta ) throws SampException {
+            callStarted( false );
+            try {
+                super.declareMetadata( meta );
+            }
+            finally {
+                callEnded();
+            }
+        }
+
+        public Metadata getMetadata( String clientId ) throws SampException {
+            callStarted( false );
+            try {
+                return super.getMetadata( clientId );
+            }
+            finally {
+                callEnded();
+            }
+        }
+
+        public void declareSubscriptions( Map subs ) throws SampException {
+            callStarted( false );
+            try {
+                super.declareSubscriptions( subs );
+            }
+            finally {
+                callEnded();
+            }
+        }
+
+        public Subscriptions getSubscriptions( String clientId )
+                throws SampException {
+            callStarted( false );
+            try {
+                return super.getSubscriptions( clientId );
+            }
+            finally {
+                callEnded();
+            }
+        }
+
+        public String[] getRegisteredClients() throws SampException {
+            callStarted( false );
+            try {
+                return super.getRegisteredClients();
+            }
+            finally {
+                callEnded();
+            }
+        }
+
+        public Map getSubscribedClients( String mtype ) throws SampException {
+            callStarted( false );
+            try {
+                return super.getSubscribedClients( mtype );
+            }
+            finally {
+                callEnded();
+            }
+        }
+
+        public void notify( String recipientId, Map msg ) throws SampException {
+            callStarted( false );
+            try {
+                super.notify( recipientId, msg );
+            }
+            finally {
+                callEnded();
+            }
+        }
+
+        public List notifyAll( Map msg ) throws SampException {
+            callStarted( false );
+            try {
+                return super.notifyAll( msg );
+            }
+            finally {
+                callEnded();
+            }
+        }
+
+        public String call( String recipientId, String msgTag, Map msg )
+                throws SampException {
+            callStarted( false );
+            try {
+                return super.call( recipientId, msgTag, msg );
+            }
+            finally {
+                callEnded();
+            }
+        }
+
+        public Map callAll( String msgTag, Map msg ) throws SampException {
+            callStarted( false );
+            try {
+                return super.callAll( msgTag, msg );
+            }
+            finally {
+                callEnded();
+            }
+        }
+
+        public Response callAndWait( String recipientId, Map msg, int timeout )
+                throws SampException {
+            callStarted( false );
+            try {
+                return super.callAndWait( recipientId, msg, timeout );
+            }
+            finally {
+                callEnded();
+            }
+        }
+
+        public void reply( String msgId, Map response ) throws SampException {
+            callStarted( true );
+            try {
+                super.reply( msgId, response );
+            }
+            finally {
+                callEnded();
+            }
+        }
+    }
 }
@@ -12,6 +12,10 @@ import java.util.Map;
 /**
  * CorsHttpServer subclass which performs logging to a given print stream
  * at the HTTP level.  Logging is not done through the logging system.
+ * Since full request and response content is formatted and written
+ * synchronously, this is intended for debugging; for low-overhead
+ * logging of a busy server see
+ * {@link org.astrogrid.samp.httpd.HttpServer#setAccessLog}.
  *
  * @author   Mark Taylor
  * @since    2 Feb 2011
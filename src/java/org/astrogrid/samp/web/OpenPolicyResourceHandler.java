@@ -16,7 +16,7 @@ import org.astrogrid.samp.httpd.ServerResource;
  * @author   Mark Taylor
  * @since    2 Feb 2011
  */
-public class OpenPolicyResourceHandler implements HttpServer.Handler {
+public class OpenPolicyResourceHandler implements HttpServer.PrefixHandler {
 
     private final String policyPath_;
     private final ServerResource policyResource_;
@@ -41,6 +41,10 @@ public class OpenPolicyResourceHandler implements HttpServer.Handler {
             HttpServer.create405Response( new String[] { "GET", "HEAD", } );
     }
 
+    public String getPathPrefix() {
+        return policyPath_;
+    }
+
     public HttpServer.Response serveRequest( HttpServer.Request request ) {
         if ( request.getUrl().equals( policyPath_ ) ) {
             String method = request.getMethod();
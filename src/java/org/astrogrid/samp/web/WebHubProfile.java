@@ -1,5 +1,6 @@
 package org.astrogrid.samp.web;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.InetSocketAddress;
@@ -8,6 +9,7 @@ import java.util.logging.Logger;
 import javax.swing.JToggleButton;
 import javax.swing.SwingUtilities;
 import org.astrogrid.samp.client.ClientProfile;
+import org.astrogrid.samp.httpd.AccessLog;
 import org.astrogrid.samp.httpd.HttpServer;
 import org.astrogrid.samp.hub.ConfigHubProfile;
 import org.astrogrid.samp.hub.HubProfile;
@@ -271,6 +273,7 @@ public class WebHubProfile implements HubProfile, ConfigHubProfile {
      */
     public static class ServerFactory {
         private String logType_;
+        private File accessLogFile_;
         private int port_;
         private String xmlrpcPath_;
         private boolean allowFlash_;
@@ -282,6 +285,8 @@ public class WebHubProfile implements HubProfile, ConfigHubProfile {
          */
         public ServerFactory() {
             logType_ = null;
+            accessLogFile_ = new File( System.getProperty( "java.io.tmpdir" ),
+                                       "jsamp-web-access.log" );
             port_ = WebClientProfile.WEBSAMP_PORT;
             xmlrpcPath_ = WebClientProfile.WEBSAMP_PATH;
             allowFlash_ = true;
@@ -325,6 +330,11 @@ public class WebHubProfile implements HubProfile, ConfigHubProfile {
                             + "Silverlight-style cross-domain access" );
             }
             hServer.setDaemon( true );
+            if ( "access".equals( logType ) ) {
+                File logFile = getAccessLogFile();
+                hServer.setAccessLog( new AccessLog( logFile ) );
+                logger_.info( "Web Profile HTTP access log: " + logFile );
+            }
             if ( "rpc".equals( logType ) ) {
                 return new RpcLoggingInternalServer( hServer, path, logOut );
             }
@@ -332,6 +342,7 @@ public class WebHubProfile implements HubProfile, ConfigHubProfile {
                 return new XmlLoggingInternalServer( hServer, path, logOut );
             }
             else if ( "none".equals( logType ) || "http".equals( logType ) ||
+                      "access".equals( logType ) ||
                       logType == null || logType.length() == 0 ) {
                 return new InternalServer( hServer, path );
             }
@@ -343,13 +354,18 @@ public class WebHubProfile implements HubProfile, ConfigHubProfile {
 
         /**
          * Sets the type of logging to use.
+         * The "access" type writes a one-line summary of each HTTP request
+         * to the {@link #setAccessLogFile access log file}
+         * with low overhead; the others write more detailed information
+         * to standard error.
          *
-         * @param  logType  logging type;
-         *                  may be "http", "rpc", "xml", "none" or null
+         * @param  logType  logging type; may be "http", "rpc", "xml",
+         *                  "access", "none" or null
          */
         public void setLogType( String logType ) {
             if ( logType == null ||
                  logType.equals( "http" ) ||
+                 logType.equals( "access" ) ||
                  logType.equals( "rpc" ) ||
                  logType.equals( "xml" ) ||
                  logType.equals( "none" ) ) {
@@ -364,12 +380,35 @@ public class WebHubProfile implements HubProfile, ConfigHubProfile {
         /**
          * Returns the type of logging to use.
          *
-         * @return  logging type; may be "http", "rpc", "xml", "none" or null
+         * @return  logging type; may be "http", "rpc", "xml", "access",
+         *          "none" or null
          */
         public String getLogType() {
             return logType_;
         }
 
+        /**
+         * Sets the file to which the access log is written if the
+         * log type is "access".  Rolled files are kept alongside it.
+         * The default is <code>jsamp-web-access.log</code> in the
+         * temporary directory.
+         *
+         * @param  accessLogFile  access log file
+         */
+        public void setAccessLogFile( File accessLogFile ) {
+            accessLogFile_ = accessLogFile;
+        }
+
+        /**
+         * Returns the file to which the access log is written if the
+         * log type is "access".
+         *
+         * @return  access log file
+         */
+        public File getAccessLogFile() {
+            return accessLogFile_;
+        }
+
         /**
          * Sets the port number the server will run on.
          * If port=0, then an unused port will be used at run time.
@@ -475,7 +514,7 @@ public class WebHubProfile implements HubProfile, ConfigHubProfile {
          */
         protected ServerSocket createServerSocket( int port )
                 throws IOException {
-            ServerSocket sock = new ServerSocket();
+            ServerSocket sock = HttpServer.createUnboundServerSocket();
             sock.setReuseAddress( true );
             sock.bind( new InetSocketAddress( port ) );
             return sock;
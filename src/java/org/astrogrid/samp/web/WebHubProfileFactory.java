@@ -18,7 +18,8 @@ import org.astrogrid.samp.xmlrpc.internal.InternalServer;
  */
 public class WebHubProfileFactory implements HubProfileFactory {
 
-    private static final String logUsage_ = "[-web:log none|http|xml|rpc]";
+    private static final String logUsage_ =
+        "[-web:log none|http|xml|rpc|access]";
     private static final String authUsage_ =
         "[-web:auth swing|true|false|extreme]";
     private static final String corsUsage_ = "[-web:[no]cors]";
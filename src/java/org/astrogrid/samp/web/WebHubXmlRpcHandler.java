@@ -343,7 +343,8 @@ public class WebHubXmlRpcHandler extends ActorHandler {
      * HTTP handler which provides URL translation services for sandboxed
      * clients.
      */
-    private static class URLTranslationHandler implements HttpServer.Handler {
+    private static class URLTranslationHandler
+                implements HttpServer.PrefixHandler {
         private final String basePath_;
         private final Set keySet_;
         private final UrlTracker urlTracker_;
@@ -382,6 +383,10 @@ public class WebHubXmlRpcHandler extends ActorHandler {
             return basePath_ + privateKey + "?";
         }
 
+        public String getPathPrefix() {
+            return basePath_;
+        }
+
         public HttpServer.Response serveRequest( HttpServer.Request request ) {
 
             // Ignore requests outside this handler's domain.
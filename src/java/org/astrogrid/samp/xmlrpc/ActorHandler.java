@@ -21,6 +21,9 @@ import org.astrogrid.samp.DataException;
  * implementation object as they are required from incoming XML-RPC
  * <code>execute</code> requests.  This insulates the implementation object
  * from having to worry about any XML-RPC specifics.
+ * The interface is examined once at construction time to build a
+ * lookup table, so that dispatching each call requires only a hash
+ * lookup on the method name and some type checks on its parameters.
  *
  * @author   Mark Taylor
  * @since    15 Jul 2008
@@ -45,23 +48,35 @@ public abstract class ActorHandler implements SampXmlRpcHandler {
     public ActorHandler( String prefix, Class actorType, Object actor ) {
         prefix_ = prefix;
         actor_ = actor;
-        methodMap_ = new HashMap();
 
-        // Construct a map keyed by method signature of the known methods.
+        // Construct a map keyed by method name of the known method
+        // signatures.  Most names have only one signature, but the
+        // interface may contain overloaded methods.
+        Map sigListMap = new HashMap();
         Method[] methods = actorType.getDeclaredMethods();
         for ( int im = 0; im < methods.length; im++ ) {
             Method method = methods[ im ];
             if ( Modifier.isPublic( method.getModifiers() ) ) {
-                String name = method.getName();
+                String fqName = prefix_ + method.getName();
                 Class[] clazzes = method.getParameterTypes();
                 SampType[] types = new SampType[ clazzes.length ];
                 for ( int ic = 0; ic < clazzes.length; ic++ ) {
                     types[ ic ] = SampType.getClassType( clazzes[ ic ] );
                 }
-                Signature sig = new Signature( prefix_ + name, types );
-                methodMap_.put( sig, method );
+                if ( ! sigListMap.containsKey( fqName ) ) {
+                    sigListMap.put( fqName, new ArrayList() );
+                }
+                ((List) sigListMap.get( fqName ))
+                       .add( new Signature( fqName, types, method ) );
             }
         }
+        methodMap_ = new HashMap();
+        for ( Iterator it = sigListMap.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            methodMap_.put( entry.getKey(),
+                            ((List) entry.getValue())
+                           .toArray( new Signature[ 0 ] ) );
+        }
     }
 
     public boolean canHandleCall( String fqName ) {
@@ -74,15 +89,20 @@ public abstract class ActorHandler implements SampXmlRpcHandler {
             throw new IllegalArgumentException( "No I can't" );
         }
 
-        // Work out the signature for this method and see if it is recognised.
-        String name = fqName.substring( prefix_.length() );
-        List typeList = new ArrayList();
-        for ( Iterator it = params.iterator(); it.hasNext(); ) {
-            typeList.add( SampType.getParamType( it.next() ) );
+        // Find the signature matching this call, if any.
+        // This is done without allocating any objects, since it is
+        // executed for every incoming call.
+        Signature[] sigs = (Signature[]) methodMap_.get( fqName );
+        if ( sigs == null ) {
+            throw new UnsupportedOperationException( "Unknown method "
+                                                   + fqName );
+        }
+        Method method = null;
+        for ( int is = 0; is < sigs.length && method == null; is++ ) {
+            if ( sigs[ is ].matches( params ) ) {
+                method = sigs[ is ].method_;
+            }
         }
-        SampType[] types = (SampType[]) typeList.toArray( new SampType[ 0 ] );
-        Signature sig = new Signature( fqName, types );
-        Method method = (Method) methodMap_.get( sig );
 
         // If the signature is recognised, invoke the relevant method
         // on the implementation object.
@@ -113,17 +133,12 @@ public abstract class ActorHandler implements SampXmlRpcHandler {
         // If the signature is not recognised, but the method name is,
         // try to make a helpful comment.
         else {
-            for ( Iterator it = methodMap_.keySet().iterator();
-                  it.hasNext(); ) {
-                Signature foundSig = (Signature) it.next();
-                if ( foundSig.name_.equals( fqName ) ) {
-                    throw new IllegalArgumentException(
-                            "Bad arguments: " + foundSig + " got "
-                          + sig.typeList_ );
-                }
+            List typeList = new ArrayList();
+            for ( Iterator it = params.iterator(); it.hasNext(); ) {
+                typeList.add( SampType.getParamType( it.next() ) );
             }
-            throw new UnsupportedOperationException( "Unknown method "
-                                                   + fqName );
+            throw new IllegalArgumentException( "Bad arguments: " + sigs[ 0 ]
+                                              + " got " + typeList );
         }
     }
 
@@ -254,45 +269,48 @@ public abstract class ActorHandler implements SampXmlRpcHandler {
     }
 
     /**
-     * Characterises a method signature.
-     * The <code>equals</code> and <code>hashCode</code> methods are
-     * implemented sensibly.
+     * Characterises a method signature, and the method which implements it.
      */
     private static class Signature {
         private final String name_;
-        private final List typeList_;
+        private final SampType[] types_;
+        private final Method method_;
 
         /**
          * Constructor.
          *
          * @param  name   method name
          * @param  types  types of method arguments
+         * @param  method  implementing method
          */
-        Signature( String name, SampType[] types ) {
+        Signature( String name, SampType[] types, Method method ) {
             name_ = name;
-            typeList_ = new ArrayList( Arrays.asList( types ) );
+            types_ = types;
+            method_ = method;
         }
 
-        public boolean equals( Object o ) {
-            if ( o instanceof Signature ) {
-                Signature other = (Signature) o;
-                return this.name_.equals( other.name_ )
-                    && this.typeList_.equals( other.typeList_ );
-            }
-            else {
+        /**
+         * Indicates whether a given parameter list is suitable for
+         * invoking this signature's method.
+         *
+         * @param  params  parameter list
+         * @return  true iff params have the right number and types
+         */
+        boolean matches( List params ) {
+            int np = types_.length;
+            if ( params.size() != np ) {
                 return false;
             }
-        }
-
-        public int hashCode() {
-            int code = 999;
-            code = 23 * code + name_.hashCode();
-            code = 23 * code + typeList_.hashCode();
-            return code;
+            for ( int ip = 0; ip < np; ip++ ) {
+                if ( ! types_[ ip ].clazz_.isInstance( params.get( ip ) ) ) {
+                    return false;
+                }
+            }
+            return true;
         }
 
         public String toString() {
-            return name_ + typeList_;
+            return name_ + Arrays.asList( types_ );
         }
     }
 }
@@ -0,0 +1,57 @@
+package org.astrogrid.samp.xmlrpc;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * SampXmlRpcClient which can report the outcome of calls that it
+ * delivers asynchronously.
+ * This allows a caller of <code>callAndForget</code> to find out
+ * about a delivery which fails after the method has returned.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public interface AsyncSampXmlRpcClient extends SampXmlRpcClient {
+
+    /**
+     * Sends a call without waiting for the response, and reports
+     * the outcome of the delivery to a listener when it is known.
+     * If the call cannot even be queued for delivery, an exception
+     * is thrown and the listener is not notified.
+     * Otherwise, exactly one of the listener's methods will be called
+     * later, probably from a different thread.
+     *
+     * @param  method    XML-RPC method name
+     * @param  params    parameters for XML-RPC call (SAMP-compatible)
+     * @param  listener  listener to be informed of the delivery outcome;
+     *                   may be null
+     */
+    void callAndForget( String method, List params,
+                        DeliveryListener listener )
+            throws IOException;
+
+    /**
+     * Receives notification of the outcome of an asynchronous delivery.
+     */
+    public interface DeliveryListener {
+
+        /**
+         * Called when the call has been sent and the server has not
+         * reported an HTTP-level error.
+         * This includes the case in which the call was sent but
+         * no response was received, since the server may nevertheless
+         * have acted on it.
+         */
+        void deliverySucceeded();
+
+        /**
+         * Called when the call is known not to have been accepted,
+         * because it could not be sent, the server responded with an
+         * error, or it was discarded before delivery.
+         *
+         * @param  error  reason for failure
+         */
+        void deliveryFailed( IOException error );
+    }
+}
@@ -2,7 +2,10 @@ package org.astrogrid.samp.xmlrpc;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -17,12 +20,21 @@ import org.astrogrid.samp.client.HubConnection;
  * calls to one or more {@link CallableClient}s to provide client callbacks
  * from the hub.
  *
+ * <p>As well as the standard <code>samp.client.*</code> methods,
+ * this handler understands the <code>x-samp.client.receiveBatch</code>
+ * extension method, which delivers a sequence of those calls together.
+ *
  * @author   Mark Taylor
  * @since    16 Jul 2008
  */
 class ClientXmlRpcHandler extends ActorHandler {
 
     private final ClientActorImpl clientActor_;
+
+    /** XML-RPC method name for delivery of a batch of callbacks. */
+    static final String BATCH_METHOD = "x-samp.client.receiveBatch";
+
+    private static final String CLIENT_PREFIX = "samp.client.";
     private static final Logger logger_ = 
         Logger.getLogger( ClientXmlRpcHandler.class.getName() );
 
@@ -30,7 +42,7 @@ class ClientXmlRpcHandler extends ActorHandler {
      * Constructor.
      */
     public ClientXmlRpcHandler() {
-        super( "samp.client.", ClientActor.class, new ClientActorImpl() );
+        super( CLIENT_PREFIX, ClientActor.class, new ClientActorImpl() );
         clientActor_ = (ClientActorImpl) getActor();
     }
 
@@ -65,6 +77,72 @@ class ClientXmlRpcHandler extends ActorHandler {
         return clientActor_.entryMap_.size();
     }
 
+    public boolean canHandleCall( String fqName ) {
+        return BATCH_METHOD.equals( fqName ) || super.canHandleCall( fqName );
+    }
+
+    public Object handleCall( String fqName, List params, Object reqInfo )
+            throws Exception {
+        if ( BATCH_METHOD.equals( fqName ) ) {
+            receiveBatch( params, reqInfo );
+            return "";
+        }
+        else {
+            return super.handleCall( fqName, params, reqInfo );
+        }
+    }
+
+    /**
+     * Unpacks a batch of callbacks and dispatches each one in turn
+     * as if it had been received as a separate call.
+     * The parameters are the recipient's private key and a list of
+     * maps, each with a <code>methodName</code> entry giving a
+     * <code>samp.client.*</code> method name, and a <code>params</code>
+     * entry giving its parameters excluding the private key.
+     * Failure of one callback does not affect the others.
+     *
+     * @param  params  XML-RPC parameters for the batch method
+     * @param  reqInfo  request information
+     */
+    private void receiveBatch( List params, Object reqInfo ) {
+        if ( params.size() != 2 ||
+             ! ( params.get( 0 ) instanceof String ) ||
+             ! ( params.get( 1 ) instanceof List ) ) {
+            throw new IllegalArgumentException( "Bad arguments for "
+                                              + BATCH_METHOD );
+        }
+        String privateKey = (String) params.get( 0 );
+        clientActor_.getEntry( privateKey );
+        for ( Iterator it = ((List) params.get( 1 )).iterator();
+              it.hasNext(); ) {
+            Object item = it.next();
+            Object methodName = item instanceof Map
+                              ? ((Map) item).get( "methodName" )
+                              : null;
+            Object callParams = item instanceof Map
+                              ? ((Map) item).get( "params" )
+                              : null;
+            if ( methodName instanceof String &&
+                 ((String) methodName).startsWith( CLIENT_PREFIX ) &&
+                 callParams instanceof List ) {
+                List paramList = new ArrayList();
+                paramList.add( privateKey );
+                paramList.addAll( (List) callParams );
+                try {
+                    super.handleCall( (String) methodName, paramList,
+                                      reqInfo );
+                }
+                catch ( Throwable e ) {
+                    logger_.log( Level.WARNING,
+                                 "Batched " + methodName + " failed", e );
+                }
+            }
+            else {
+                logger_.warning( "Bad item in " + BATCH_METHOD + " batch" );
+            }
+        }
+    }
+
     protected Object invokeMethod( Method method, Object obj, Object[] args )
             throws IllegalAccessException, InvocationTargetException {
         return method.invoke( obj, args );
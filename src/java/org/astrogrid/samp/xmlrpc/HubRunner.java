@@ -31,6 +31,7 @@ import org.astrogrid.samp.hub.MessageRestriction;
 import org.astrogrid.samp.hub.ProfileToken;
 import org.astrogrid.samp.httpd.ServerResource;
 import org.astrogrid.samp.httpd.UtilServer;
+import org.astrogrid.samp.xmlrpc.internal.InternalServer;
 
 /**
  * Runs a SAMP hub using the SAMP Standard Profile.
@@ -635,6 +636,10 @@ public class HubRunner {
         String[] propagateProps = new String[] {
             XmlRpcKit.IMPL_PROP,
             UtilServer.PORT_PROP,
+            UtilServer.ENGINE_PROP,
+            UtilServer.WORKERS_PROP,
+            UtilServer.METRICS_PROP,
+            InternalServer.GZIP_THRESHOLD_PROP,
             SampUtils.LOCALHOST_PROP,
             "java.awt.Window.locationByPlatform",
         };
@@ -57,6 +57,7 @@ class HubXmlRpcHandler extends ActorHandler {
         private final String secret_;
         private final KeyGenerator keyGen_;
         private final Map clientMap_;
+        private final Map callableMap_;
 
         /**
          * Constructor.
@@ -74,6 +75,7 @@ class HubXmlRpcHandler extends ActorHandler {
             secret_ = secret;
             keyGen_ = keyGen;
             clientMap_ = Collections.synchronizedMap( new HashMap() );
+            callableMap_ = Collections.synchronizedMap( new HashMap() );
         }
 
         public Map register( String secret ) throws SampException {
@@ -99,6 +101,7 @@ class HubXmlRpcHandler extends ActorHandler {
         public void unregister( String privateKey ) throws SampException {
             HubConnection connection =
                 (HubConnection) clientMap_.remove( privateKey );
+            callableMap_.remove( privateKey );
             if ( connection == null ) {
                 throw new SampException( "Unknown private key" );
             }
@@ -124,13 +127,28 @@ class HubXmlRpcHandler extends ActorHandler {
                 throw new SampException( "No connection: "
                                        + e.getMessage(), e );
             }
-            getConnection( privateKey )
-                .setCallable( new XmlRpcCallableClient( xClient, privateKey ) );
+            HubConnection connection = getConnection( privateKey );
+            XmlRpcCallableClient callable =
+                new XmlRpcCallableClient( xClient, privateKey, connection );
+
+            // Metadata may have been declared before the callback was set.
+            Map meta =
+                connection.getMetadata( connection.getRegInfo().getSelfId() );
+            callable.setBatchAccepted( XmlRpcCallableClient
+                                      .isBatchDeclared( meta ) );
+            connection.setCallable( callable );
+            callableMap_.put( privateKey, callable );
         }
 
         public void declareMetadata( String privateKey, Map metadata )
                 throws SampException {
             getConnection( privateKey ).declareMetadata( metadata );
+            XmlRpcCallableClient callable =
+                (XmlRpcCallableClient) callableMap_.get( privateKey );
+            if ( callable != null ) {
+                callable.setBatchAccepted( XmlRpcCallableClient
+                                          .isBatchDeclared( metadata ) );
+            }
         }
 
         public Map getMetadata( String privateKey, String clientId ) 
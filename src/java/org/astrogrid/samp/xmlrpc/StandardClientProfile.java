@@ -39,6 +39,19 @@ public class StandardClientProfile implements ClientProfile {
     /** Prefix in SAMP_HUB value indicating lockfile URL ({@value}). */
     public static final String STDPROFILE_HUB_PREFIX = "std-lockurl:";
 
+    /**
+     * Metadata key by which a client declares that its callable XML-RPC
+     * server accepts batches of callbacks ({@value}).
+     * If a client registered with a JSAMP hub declares this key with
+     * the value "1", callbacks which would otherwise be delivered
+     * one HTTP request at a time are queued and delivered together
+     * in a single <code>x-samp.client.receiveBatch</code> call.
+     * Callback servers set up by this class understand that method,
+     * so JSAMP clients may declare this key to reduce HTTP overhead
+     * when receiving many messages.
+     */
+    public static final String RECEIVE_BATCH_KEY = "x-samp.client.receiveBatch";
+
     /**
      * Constructs a profile given client and server factory implementations.
      *
@@ -0,0 +1,149 @@
+package org.astrogrid.samp.xmlrpc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accumulates a sequence of XML-RPC calls so that they can be sent
+ * to a server together.
+ *
+ * <p>The batch is sent using the widely supported
+ * <code>system.multicall</code> convention, so that all the calls
+ * are made in a single HTTP exchange.
+ * Servers which do not support that method can still be used
+ * by executing the calls one at a time.
+ * Either way, the result is an array with an element for each call,
+ * which is either the call's return value, or an <code>IOException</code>
+ * if that call failed.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public class XmlRpcBatch {
+
+    private final List methodList_;
+    private final List paramsList_;
+
+    /** XML-RPC method name for executing a batch of calls. */
+    public static final String MULTICALL_METHOD = "system.multicall";
+
+    /**
+     * Constructs an empty batch.
+     */
+    public XmlRpcBatch() {
+        methodList_ = new ArrayList();
+        paramsList_ = new ArrayList();
+    }
+
+    /**
+     * Adds a call to this batch.
+     *
+     * @param  method    XML-RPC method name
+     * @param  params    parameters for XML-RPC call (SAMP-compatible)
+     * @return  index of the call's result in the array returned by
+     *          the execute methods
+     */
+    public int addCall( String method, List params ) {
+        methodList_.add( method );
+        paramsList_.add( params );
+        return methodList_.size() - 1;
+    }
+
+    /**
+     * Returns the number of calls in this batch.
+     *
+     * @return  call count
+     */
+    public int getCallCount() {
+        return methodList_.size();
+    }
+
+    /**
+     * Executes the calls in this batch using a single
+     * <code>system.multicall</code> call.
+     * An IOException is thrown if the batch as a whole fails,
+     * for instance because the server does not support the
+     * multicall method; in that case none of the calls has been made.
+     *
+     * @param  client  XML-RPC client
+     * @return  array with an element for each call in this batch,
+     *          containing either its return value or an IOException
+     */
+    public Object[] execute( SampXmlRpcClient client ) throws IOException {
+        int nc = methodList_.size();
+        List callList = new ArrayList( nc );
+        for ( int ic = 0; ic < nc; ic++ ) {
+            Map callMap = new HashMap();
+            callMap.put( "methodName", methodList_.get( ic ) );
+            callMap.put( "params", paramsList_.get( ic ) );
+            callList.add( callMap );
+        }
+        List multiParams = new ArrayList( 1 );
+        multiParams.add( callList );
+        Object multiResult = client.callAndWait( MULTICALL_METHOD,
+                                                 multiParams );
+        if ( ! ( multiResult instanceof List ) ||
+             ((List) multiResult).size() != nc ) {
+            throw new IOException( "Bad return value from "
+                                 + MULTICALL_METHOD );
+        }
+        List resultList = (List) multiResult;
+        Object[] results = new Object[ nc ];
+        for ( int ic = 0; ic < nc; ic++ ) {
+            results[ ic ] = decodeResult( resultList.get( ic ) );
+        }
+        return results;
+    }
+
+    /**
+     * Executes the calls in this batch one at a time.
+     * This works with any server, but requires one HTTP exchange per call.
+     *
+     * @param  client  XML-RPC client
+     * @return  array with an element for each call in this batch,
+     *          containing either its return value or an IOException
+     */
+    public Object[] executeSequentially( SampXmlRpcClient client ) {
+        int nc = methodList_.size();
+        Object[] results = new Object[ nc ];
+        for ( int ic = 0; ic < nc; ic++ ) {
+            try {
+                results[ ic ] =
+                    client.callAndWait( (String) methodList_.get( ic ),
+                                        (List) paramsList_.get( ic ) );
+            }
+            catch ( IOException e ) {
+                results[ ic ] = e;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Decodes an element of the list returned from a multicall.
+     * According to the convention, this is either a one-element list
+     * holding the return value, or a fault struct.
+     *
+     * @param  item  multicall result list element
+     * @return  call return value, or an IOException describing its failure
+     */
+    private static Object decodeResult( Object item ) {
+        if ( item instanceof List && ((List) item).size() == 1 ) {
+            return ((List) item).get( 0 );
+        }
+        else if ( item instanceof Map &&
+                  ((Map) item).containsKey( "faultString" ) ) {
+            Map fault = (Map) item;
+            return new IOException( "XML-RPC Fault ("
+                                  + fault.get( "faultCode" ) + ": "
+                                  + fault.get( "faultString" ) + ")" );
+        }
+        else {
+            return new IOException( "Bad " + MULTICALL_METHOD
+                                  + " result element" );
+        }
+    }
+}
@@ -2,17 +2,38 @@ package org.astrogrid.samp.xmlrpc;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.astrogrid.samp.ErrInfo;
 import org.astrogrid.samp.Message;
 import org.astrogrid.samp.Response;
 import org.astrogrid.samp.ShutdownManager;
 import org.astrogrid.samp.client.CallableClient;
+import org.astrogrid.samp.client.HubConnection;
 import org.astrogrid.samp.client.SampException;
 
 /**
  * CallableClient implementation used to communicate with XML-RPC-based
  * callable clients.
  *
+ * <p>If the client has declared the
+ * {@link StandardClientProfile#RECEIVE_BATCH_KEY} metadata item,
+ * and the XML-RPC client can deliver calls asynchronously,
+ * callbacks are queued rather than sent individually.
+ * At most one batch per client is in transit at a time;
+ * when it has been delivered, all the callbacks that have accumulated
+ * meanwhile are sent in a single <code>x-samp.client.receiveBatch</code>
+ * call, so that when messages arrive faster than they can be delivered,
+ * the per-request HTTP overhead is shared between many of them.
+ * Callbacks are delivered in the order in which they were queued.
+ * The queue is bounded; when it is full, further callbacks are rejected.
+ * If a batch cannot be delivered, the calls it contained are
+ * answered with error responses.
+ *
  * @author   Mark Taylor
  * @since    28 Jan 2011
  */
@@ -20,7 +41,20 @@ class XmlRpcCallableClient implements CallableClient {
 
     private final SampXmlRpcClient xClient_;
     private final String privateKey_;
+    private final HubConnection connection_;
+    private final List batchQueue_;
+    private volatile boolean acceptsBatch_;
+    private boolean isFlushing_;
     private static volatile boolean isShutdown_;
+    private static final Logger logger_ =
+        Logger.getLogger( XmlRpcCallableClient.class.getName() );
+
+    /** Maximum number of callbacks sent in a single batch. */
+    private static final int MAX_BATCH = 256;
+
+    /** Maximum number of callbacks waiting for batched delivery. */
+    private static final int MAX_QUEUE = 1000;
+
     static {
         ShutdownManager.getInstance()
                        .registerHook( XmlRpcCallableClient.class,
@@ -36,28 +70,40 @@ class XmlRpcCallableClient implements CallableClient {
      * Constructor.
      *
      * @param  xClient  XML-RPC client implementation
-     * @param  SAMP client's private key
+     * @param  privateKey  SAMP client's private key
+     * @param  connection  hub-side connection for the SAMP client,
+     *                     used to report failed calls
      */
-    public XmlRpcCallableClient( SampXmlRpcClient xClient, String privateKey ) {
+    public XmlRpcCallableClient( SampXmlRpcClient xClient, String privateKey,
+                                 HubConnection connection ) {
         xClient_ = xClient;
         privateKey_ = privateKey;
+        connection_ = connection;
+        batchQueue_ = new ArrayList();
     }
 
+    /**
+     * Delivers a call to the client.  If the delivery fails after this
+     * method has returned, the hub is sent an error response on the
+     * client's behalf, so that the sender is not left waiting for
+     * a response that will never come.
+     */
     public void receiveCall( String senderId, String msgId, Message msg )
             throws SampException {
-        exec( "receiveCall", new Object[] { senderId, msgId, msg, } );
+        exec( "receiveCall", new Object[] { senderId, msgId, msg, },
+              createCallListener( msgId ) );
     }
 
     public void receiveNotification( String senderId, Message msg )
             throws SampException {
-        exec( "receiveNotification", new Object[] { senderId, msg, } );
+        exec( "receiveNotification", new Object[] { senderId, msg, }, null );
     }
 
     public void receiveResponse( String responderId, String msgTag,
                                  Response response )
             throws SampException {
         exec( "receiveResponse",
-              new Object[] { responderId, msgTag, response, } );
+              new Object[] { responderId, msgTag, response, }, null );
     }
 
     /**
@@ -66,16 +112,25 @@ class XmlRpcCallableClient implements CallableClient {
      *
      * @param   methodName  unqualified SAMP callable client API method name
      * @param   params   array of method parameters
+     * @param   listener  listener for the outcome of asynchronous delivery,
+     *                    or null
      */
-    private void exec( String methodName, Object[] params )
+    private void exec( String methodName, Object[] params,
+                       AsyncSampXmlRpcClient.DeliveryListener listener )
             throws SampException {
+        if ( isShutdown_ ) {
+            dropQueue();
+        }
+        else if ( queueCallback( methodName, params ) ) {
+            return;
+        }
         List paramList = new ArrayList();
         paramList.add( privateKey_ );
         for ( int ip = 0; ip < params.length; ip++ ) {
             paramList.add( params[ ip ] );
         }
         try {
-            rawExec( "samp.client." + methodName, paramList );
+            rawExec( "samp.client." + methodName, paramList, listener );
         }
         catch ( IOException e ) {
             throw new SampException( e.getMessage(), e );
@@ -88,8 +143,12 @@ class XmlRpcCallableClient implements CallableClient {
      *
      * @param   fqName  fully qualified SAMP callable client API method name
      * @param   paramList   list of method parameters
+     * @param   listener  listener for the outcome of asynchronous delivery,
+     *                    or null
      */
-    private void rawExec( String fqName, List paramList ) throws IOException {
+    private void rawExec( String fqName, List paramList,
+                          AsyncSampXmlRpcClient.DeliveryListener listener )
+            throws IOException {
 
         // In most cases, callAndForget is adequate.
         // However, if the JVM is in the process of shutting down, the
@@ -101,8 +160,215 @@ class XmlRpcCallableClient implements CallableClient {
         if ( isShutdown_ ) {
             xClient_.callAndWait( fqName, paramList );
         }
+        else if ( listener != null &&
+                  xClient_ instanceof AsyncSampXmlRpcClient ) {
+            ((AsyncSampXmlRpcClient) xClient_)
+                .callAndForget( fqName, paramList, listener );
+        }
         else {
             xClient_.callAndForget( fqName, paramList );
         }
     }
+
+    /**
+     * Returns a listener which fails a pending call on behalf of the
+     * client if its delivery fails.
+     *
+     * @param  msgId  message ID of call
+     * @return  new listener
+     */
+    private AsyncSampXmlRpcClient.DeliveryListener
+            createCallListener( final String msgId ) {
+        return new AsyncSampXmlRpcClient.DeliveryListener() {
+            public void deliverySucceeded() {
+            }
+            public void deliveryFailed( IOException error ) {
+                failCall( msgId, "Delivery to recipient failed: " + error );
+            }
+        };
+    }
+
+    /**
+     * Replies to a call on behalf of the client with an error response.
+     *
+     * @param  msgId  message ID of call
+     * @param  errortxt  error text
+     */
+    private void failCall( String msgId, String errortxt ) {
+        if ( connection_ == null ) {
+            logger_.warning( "Can't report failure of " + msgId + ": "
+                           + errortxt );
+            return;
+        }
+        try {
+            connection_.reply( msgId,
+                               Response
+                              .createErrorResponse( new ErrInfo( errortxt ) ) );
+        }
+        catch ( SampException e ) {
+            logger_.warning( "Can't report failure of " + msgId + ": " + e );
+        }
+    }
+
+    /**
+     * Sets whether the client has declared that it accepts batched
+     * callbacks.  This should be called when the client's metadata
+     * is declared.
+     *
+     * @param  acceptsBatch  true iff batches may be sent
+     */
+    void setBatchAccepted( boolean acceptsBatch ) {
+        acceptsBatch_ = acceptsBatch;
+    }
+
+    /**
+     * Indicates whether a client's metadata declares that it accepts
+     * batched callbacks.
+     *
+     * @param  meta  metadata map, may be null
+     * @return  true iff batches may be sent
+     */
+    static boolean isBatchDeclared( Map meta ) {
+        return meta != null
+            && "1".equals( meta.get( StandardClientProfile
+                                    .RECEIVE_BATCH_KEY ) );
+    }
+
+    /**
+     * Adds a callback to the batch queue if batched delivery is in use.
+     * If no batch is currently in transit, one is sent.
+     *
+     * @param   methodName  unqualified SAMP callable client API method name
+     * @param   params   array of method parameters, excluding private key
+     * @return  true if the callback has been queued,
+     *          false if it must be delivered directly
+     * @throws  SampException  if the queue is full
+     */
+    private boolean queueCallback( String methodName, Object[] params )
+            throws SampException {
+        if ( ! ( xClient_ instanceof AsyncSampXmlRpcClient ) ) {
+            return false;
+        }
+        synchronized ( batchQueue_ ) {
+
+            // Once a drain is in progress, keep queueing even if the
+            // client has withdrawn its metadata flag, so that callbacks
+            // are not delivered out of order.
+            if ( ! acceptsBatch_ && ! isFlushing_ ) {
+                return false;
+            }
+            if ( batchQueue_.size() >= MAX_QUEUE ) {
+                throw new SampException( "Callback queue full for client "
+                                       + getClientId() );
+            }
+            Map callback = new HashMap();
+            callback.put( "methodName", "samp.client." + methodName );
+            callback.put( "params", new ArrayList( Arrays.asList( params ) ) );
+            batchQueue_.add( callback );
+            if ( isFlushing_ ) {
+                return true;
+            }
+            isFlushing_ = true;
+        }
+        sendBatches();
+        return true;
+    }
+
+    /**
+     * Submits the next batch of queued callbacks for asynchronous delivery.
+     * When delivery is complete, the next batch is sent, until the
+     * queue is empty.
+     */
+    private void sendBatches() {
+        while ( true ) {
+            final List batch = takeBatch( MAX_BATCH );
+            if ( batch.isEmpty() ) {
+                return;
+            }
+            List paramList = new ArrayList( 2 );
+            paramList.add( privateKey_ );
+            paramList.add( batch );
+            try {
+                ((AsyncSampXmlRpcClient) xClient_)
+               .callAndForget( ClientXmlRpcHandler.BATCH_METHOD, paramList,
+                               new AsyncSampXmlRpcClient.DeliveryListener() {
+                    public void deliverySucceeded() {
+                        sendBatches();
+                    }
+                    public void deliveryFailed( IOException error ) {
+                        failBatch( batch, error );
+                        sendBatches();
+                    }
+                } );
+                return;
+            }
+            catch ( IOException e ) {
+                failBatch( batch, e );
+            }
+        }
+    }
+
+    /**
+     * Removes callbacks from the head of the batch queue.
+     * If the queue is empty, the drain is marked as finished.
+     *
+     * @param  max  maximum number of callbacks to remove
+     * @return  list of removed callbacks, empty if none
+     */
+    private List takeBatch( int max ) {
+        synchronized ( batchQueue_ ) {
+            int nq = batchQueue_.size();
+            if ( nq == 0 ) {
+                isFlushing_ = false;
+            }
+            List head = batchQueue_.subList( 0, Math.min( nq, max ) );
+            List batch = new ArrayList( head );
+            head.clear();
+            return batch;
+        }
+    }
+
+    /**
+     * Discards all queued callbacks, answering any calls among them
+     * with error responses.  Used at shutdown, when callbacks are
+     * sent directly, so that they do not overtake queued ones.
+     */
+    private void dropQueue() {
+        List dropped = takeBatch( Integer.MAX_VALUE );
+        if ( ! dropped.isEmpty() ) {
+            failBatch( dropped, new IOException( "Hub shutting down" ) );
+        }
+    }
+
+    /**
+     * Handles failure to deliver a batch of callbacks.
+     * Any calls in the batch are answered with error responses on the
+     * client's behalf.
+     *
+     * @param  batch  list of callbacks which were not delivered
+     * @param  error  reason for failure
+     */
+    private void failBatch( List batch, IOException error ) {
+        logger_.warning( "Batch delivery of " + batch.size() + " callbacks to "
+                       + getClientId() + " failed: " + error );
+        String receiveCall = "samp.client.receiveCall";
+        for ( Iterator it = batch.iterator(); it.hasNext(); ) {
+            Map callback = (Map) it.next();
+            if ( receiveCall.equals( callback.get( "methodName" ) ) ) {
+                String msgId =
+                    (String) ((List) callback.get( "params" )).get( 1 );
+                failCall( msgId, "Delivery to recipient failed: " + error );
+            }
+        }
+    }
+
+    /**
+     * Returns the public client ID of the client, for use in messages.
+     *
+     * @return  client ID
+     */
+    private String getClientId() {
+        return connection_ == null ? "client"
+                                   : connection_.getRegInfo().getSelfId();
+    }
 }
@@ -5,6 +5,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.astrogrid.samp.Metadata;
 import org.astrogrid.samp.RegInfo;
@@ -12,7 +13,7 @@ import org.astrogrid.samp.Response;
 import org.astrogrid.samp.ShutdownManager;
 import org.astrogrid.samp.SampUtils;
 import org.astrogrid.samp.Subscriptions;
-import org.astrogrid.samp.client.HubConnection;
+import org.astrogrid.samp.client.BatchHubConnection;
 import org.astrogrid.samp.client.SampException;
 
 /**
@@ -23,16 +24,21 @@ import org.astrogrid.samp.client.SampException;
  * with the Standard Profile, are made about the way that XML-RPC
  * calls are mapped on to SAMP hub interface calls.
  *
+ * <p>Batches of hub operations are sent using <code>system.multicall</code>
+ * (see {@link XmlRpcBatch}).  If the hub turns out not to support that,
+ * batched operations on this connection are made one at a time.
+ *
  * @author   Mark Taylor
  * @author   Sylvain Lafrasse
  * @since    16 Jul 2008
  */
-public abstract class XmlRpcHubConnection implements HubConnection {
+public abstract class XmlRpcHubConnection implements BatchHubConnection {
 
     private final SampXmlRpcClient xClient_;
     private final String prefix_;
     private final RegInfo regInfo_;
     private boolean unregistered_;
+    private boolean noMulticall_;
     private static final Logger logger_ =
         Logger.getLogger( XmlRpcHubConnection.class.getName() );
 
@@ -143,6 +149,36 @@ public abstract class XmlRpcHubConnection implements HubConnection {
         exec( "reply", new Object[] { msgId, response } );
     }
 
+    public Object[] execBatch( String[] methodNames, Object[][] paramArrays )
+            throws SampException {
+        XmlRpcBatch batch = new XmlRpcBatch();
+        for ( int i = 0; i < methodNames.length; i++ ) {
+            batch.addCall( prefix_ + methodNames[ i ],
+                           toParamList( paramArrays[ i ] ) );
+        }
+        Object[] results = null;
+        if ( ! noMulticall_ ) {
+            try {
+                results = batch.execute( xClient_ );
+            }
+            catch ( IOException e ) {
+                logger_.log( Level.INFO, "Batch execution failed - "
+                           + "make hub calls individually", e );
+                noMulticall_ = true;
+            }
+        }
+        if ( results == null ) {
+            results = batch.executeSequentially( xClient_ );
+        }
+        for ( int i = 0; i < results.length; i++ ) {
+            if ( results[ i ] instanceof IOException ) {
+                IOException e = (IOException) results[ i ];
+                results[ i ] = new SampException( e.getMessage(), e );
+            }
+        }
+        return results;
+    }
+
     /**
      * Returns an object which is used as the first argument of most
      * XML-RPC calls to the hub.
@@ -162,12 +198,23 @@ public abstract class XmlRpcHubConnection implements HubConnection {
      */
     public Object exec( String methodName, Object[] params )
             throws SampException {
+        return rawExec( prefix_ + methodName, toParamList( params ) );
+    }
+
+    /**
+     * Returns the XML-RPC parameter list for a hub call,
+     * which is the given parameters preceded by the client key.
+     *
+     * @param  params   array of method parameters
+     * @return  XML-RPC parameter list
+     */
+    private List toParamList( Object[] params ) {
         List paramList = new ArrayList();
         paramList.add( getClientKey() );
         for ( int ip = 0; ip < params.length; ip++ ) {
             paramList.add( params[ ip ] );
         }
-        return rawExec( prefix_ + methodName, paramList );
+        return paramList;
     }
 
     /**
@@ -26,6 +26,24 @@ public abstract class XmlRpcKit {
     /** Internal implementation variant with verbose logging of RPC calls. */
     public static final XmlRpcKit RPC_LOGGING;
 
+    /**
+     * Internal implementation variant which traces selected XML I/O
+     * to a file.
+     */
+    public static final XmlRpcKit XML_TRACING;
+
+    /**
+     * Internal implementation variant which traces selected RPC calls
+     * to a file.
+     */
+    public static final XmlRpcKit RPC_TRACING;
+
+    /**
+     * Internal implementation variant whose clients use JSON-RPC
+     * where the server supports it.
+     */
+    public static final XmlRpcKit JSON;
+
     /** Array of available known implementations of this class. */
     public static XmlRpcKit[] KNOWN_IMPLS = {
         INTERNAL = createReflectionKit(
@@ -44,6 +62,22 @@ public abstract class XmlRpcKit {
                        + ".RpcLoggingInternalClientFactory",
             "org.astrogrid.samp.xmlrpc.internal"
                        + ".RpcLoggingInternalServerFactory" ),
+        XML_TRACING = createReflectionKit(
+            "xml-trace",
+            "org.astrogrid.samp.xmlrpc.internal"
+                       + ".XmlTracingInternalClientFactory",
+            "org.astrogrid.samp.xmlrpc.internal"
+                       + ".XmlTracingInternalServerFactory" ),
+        RPC_TRACING = createReflectionKit(
+            "rpc-trace",
+            "org.astrogrid.samp.xmlrpc.internal"
+                       + ".RpcTracingInternalClientFactory",
+            "org.astrogrid.samp.xmlrpc.internal"
+                       + ".RpcTracingInternalServerFactory" ),
+        JSON = createReflectionKit(
+            "json",
+            "org.astrogrid.samp.xmlrpc.internal.JsonInternalClientFactory",
+            "org.astrogrid.samp.xmlrpc.internal.InternalServerFactory" ),
         APACHE = createApacheKit( "apache" ),
     };
 
@@ -55,6 +89,9 @@ public abstract class XmlRpcKit {
      * <li>internal</li>
      * <li>xml-log</li>
      * <li>rpc-log</li>
+     * <li>xml-trace</li>
+     * <li>rpc-trace</li>
+     * <li>json</li>
      * <li>apache</li>
      * </ul>
      * Alternatively, it may be the classname of a class which implements
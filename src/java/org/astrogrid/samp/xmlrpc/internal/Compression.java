@@ -0,0 +1,189 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Utilities for HTTP content coding of XML-RPC message bodies.
+ * The gzip coding is used for compression;
+ * gzip and deflate codings are understood on input.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+class Compression {
+
+    /** Content coding token for gzip. */
+    public static final String GZIP = "gzip";
+
+    /** Value for Accept-Encoding headers listing the codings understood. */
+    public static final String ACCEPTED = "gzip, deflate";
+
+    /** Default minimum body size in bytes for compression. */
+    public static final int DEFAULT_THRESHOLD = 4096;
+
+    private static final Logger logger_ =
+        Logger.getLogger( Compression.class.getName() );
+    private static final int THRESHOLD = readThreshold();
+
+    /**
+     * Private constructor prevents instantiation.
+     */
+    private Compression() {
+    }
+
+    /**
+     * Indicates whether a body of a given size is worth compressing.
+     *
+     * @param  nbyte  uncompressed body size in bytes,
+     *                or negative if not known in advance
+     * @return  true iff compression should be used
+     */
+    public static boolean isWorthwhile( long nbyte ) {
+        return THRESHOLD >= 0 && ( nbyte < 0 || nbyte >= THRESHOLD );
+    }
+
+    /**
+     * Indicates whether a list of content codings, as found in an
+     * Accept-Encoding header, includes the gzip coding with a non-zero
+     * quality value.
+     *
+     * @param  codings  header value, may be null
+     * @return  true iff gzip is acceptable
+     */
+    public static boolean acceptsGzip( String codings ) {
+        if ( codings == null ) {
+            return false;
+        }
+        double starQ = 0;
+        String[] items = codings.split( "," );
+        for ( int i = 0; i < items.length; i++ ) {
+            String item = items[ i ];
+            int isemi = item.indexOf( ';' );
+            String name = ( isemi >= 0 ? item.substring( 0, isemi ) : item )
+                         .trim().toLowerCase();
+            double q = isemi >= 0
+                     ? parseQuality( item.substring( isemi + 1 ) )
+                     : 1;
+            if ( GZIP.equals( name ) || "x-gzip".equals( name ) ) {
+                return q > 0;
+            }
+            else if ( "*".equals( name ) ) {
+                starQ = q;
+            }
+        }
+        return starQ > 0;
+    }
+
+    /**
+     * Returns a stream which decodes the content of a given stream
+     * according to a Content-Encoding header value.
+     *
+     * @param  in  raw input stream
+     * @param  coding  value of Content-Encoding header, may be null
+     * @return   stream giving decoded content
+     * @throws  IOException  if the coding is not supported
+     */
+    public static InputStream decode( InputStream in, String coding )
+            throws IOException {
+        String c = coding == null ? "" : coding.trim().toLowerCase();
+        if ( c.length() == 0 || "identity".equals( c ) ) {
+            return in;
+        }
+        else if ( GZIP.equals( c ) || "x-gzip".equals( c ) ) {
+            return new GZIPInputStream( in );
+        }
+        else if ( "deflate".equals( c ) ) {
+            return new InflaterInputStream( in );
+        }
+        else {
+            throw new UnsupportedCodingException( coding );
+        }
+    }
+
+    /**
+     * Compresses a byte array using the gzip coding.
+     *
+     * @param  buf  uncompressed bytes
+     * @return   compressed bytes
+     */
+    public static byte[] gzip( byte[] buf ) throws IOException {
+        ByteArrayOutputStream bout =
+            new ByteArrayOutputStream( buf.length / 4 + 64 );
+        GZIPOutputStream zout = new GZIPOutputStream( bout );
+        zout.write( buf );
+        zout.finish();
+        zout.close();
+        return bout.toByteArray();
+    }
+
+    /**
+     * Parses the parameter part of an Accept-Encoding list item
+     * to find its quality value.
+     *
+     * @param  params  semicolon-separated parameters
+     * @return  quality value, 1 if absent or unparseable
+     */
+    private static double parseQuality( String params ) {
+        String[] pars = params.split( ";" );
+        for ( int i = 0; i < pars.length; i++ ) {
+            String par = pars[ i ].trim();
+            if ( par.startsWith( "q=" ) || par.startsWith( "Q=" ) ) {
+                try {
+                    return Double.parseDouble( par.substring( 2 ).trim() );
+                }
+                catch ( NumberFormatException e ) {
+                    return 1;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Reads the compression threshold from the system properties.
+     *
+     * @return  threshold in bytes, or negative for no compression
+     */
+    private static int readThreshold() {
+        String prop = InternalServer.GZIP_THRESHOLD_PROP;
+        String sval;
+        try {
+            sval = System.getProperty( prop );
+        }
+        catch ( SecurityException e ) {
+            sval = null;
+        }
+        if ( sval != null && sval.trim().length() > 0 ) {
+            try {
+                return Integer.parseInt( sval.trim() );
+            }
+            catch ( NumberFormatException e ) {
+                logger_.warning( "Bad value for " + prop + " \"" + sval
+                               + "\" - use " + DEFAULT_THRESHOLD );
+            }
+        }
+        return DEFAULT_THRESHOLD;
+    }
+
+    /**
+     * Exception indicating that a message body uses a content coding
+     * which is not understood.
+     */
+    static class UnsupportedCodingException extends IOException {
+
+        /**
+         * Constructor.
+         *
+         * @param  coding  content coding name
+         */
+        UnsupportedCodingException( String coding ) {
+            super( "Unsupported Content-Encoding \"" + coding + "\"" );
+        }
+    }
+}
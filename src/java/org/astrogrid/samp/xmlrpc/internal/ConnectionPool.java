@@ -0,0 +1,1052 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Makes HTTP POST requests over persistent connections,
+ * keeping a small pool of idle connections for each endpoint.
+ *
+ * <p>Requests are sent using HTTP/1.1.  When a response body has been
+ * read to the end, its connection is returned to the pool for reuse,
+ * unless the server has indicated that it will close it.
+ * At most a fixed number of idle connections is kept per endpoint,
+ * and connections which have been idle for longer than a fixed time
+ * are closed; this time should be shorter than the keep-alive timeout
+ * of the servers in use.
+ * Pooled connections are checked before reuse for having been closed
+ * by the server.  If a request cannot be written to a pooled connection
+ * it is retried on a new one, but a request which has been sent is
+ * never sent again, even if no response is received, since SAMP calls
+ * are not in general idempotent.
+ *
+ * <p>New connections are subject to a connect timeout,
+ * and callers may request a read timeout for a given request,
+ * so that an unresponsive server cannot hold the calling thread
+ * indefinitely.  A connection on which a read times out is closed.
+ * If a request has been sent but no response is received,
+ * a {@link NoResponseException} is thrown, so that callers can tell
+ * that the server may have acted on the request after all.
+ *
+ * <p>Only <code>http:</code> URLs are handled directly; others are
+ * passed to {@link java.net.HttpURLConnection}, to which the timeouts
+ * do not apply.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public class ConnectionPool {
+
+    private final int maxIdle_;
+    private final long idleMillis_;
+    private final int connectMillis_;
+    private final int readMillis_;
+    private final Map idleMap_;
+    private Thread sweeper_;
+    private long openCount_;
+    private long reuseCount_;
+
+    /**
+     * System property giving the maximum number of idle connections
+     * kept per endpoint by the default pool ({@value}).
+     * Zero disables connection reuse.
+     */
+    public static final String MAXIDLE_PROP = "jsamp.xmlrpc.pool.max";
+
+    /**
+     * System property giving the time in milliseconds after which
+     * idle connections are closed by the default pool ({@value}).
+     */
+    public static final String IDLE_PROP = "jsamp.xmlrpc.pool.idle";
+
+    /**
+     * System property giving the timeout in milliseconds for opening
+     * new connections in the default pool ({@value}).
+     * Zero means no timeout.
+     */
+    public static final String CONNECT_PROP = "jsamp.xmlrpc.pool.connect";
+
+    /**
+     * System property giving the read timeout in milliseconds
+     * for timed requests made by the default pool ({@value}).
+     * Zero means no timeout.
+     */
+    public static final String TIMEOUT_PROP = "jsamp.xmlrpc.pool.timeout";
+
+    /** Default maximum number of idle connections per endpoint. */
+    public static final int DEFAULT_MAXIDLE = 4;
+
+    /** Default idle connection timeout in milliseconds. */
+    public static final int DEFAULT_IDLE_MILLIS = 5000;
+
+    /** Default connect timeout in milliseconds. */
+    public static final int DEFAULT_CONNECT_MILLIS = 10 * 1000;
+
+    /** Default read timeout for timed requests in milliseconds. */
+    public static final int DEFAULT_TIMEOUT_MILLIS = 30 * 1000;
+
+    /** Maximum length of response head. */
+    private static final int MAX_HEAD = 64 * 1024;
+
+    /** Maximum number of unread body bytes skipped to reuse a connection. */
+    private static final int MAX_SKIP = 64 * 1024;
+
+    private static final Logger logger_ =
+        Logger.getLogger( ConnectionPool.class.getName() );
+    private static ConnectionPool defaultInstance_;
+
+    /**
+     * Constructs a pool with default timeouts.
+     *
+     * @param  maxIdle  maximum number of idle connections kept per endpoint
+     * @param  idleMillis  time in milliseconds after which an idle
+     *                     connection is closed
+     */
+    public ConnectionPool( int maxIdle, long idleMillis ) {
+        this( maxIdle, idleMillis, DEFAULT_CONNECT_MILLIS,
+              DEFAULT_TIMEOUT_MILLIS );
+    }
+
+    /**
+     * Constructs a pool with given timeouts.
+     *
+     * @param  maxIdle  maximum number of idle connections kept per endpoint
+     * @param  idleMillis  time in milliseconds after which an idle
+     *                     connection is closed
+     * @param  connectMillis  timeout in milliseconds for opening
+     *                        a connection, or zero for none
+     * @param  readMillis  read timeout in milliseconds for timed requests,
+     *                     or zero for none
+     */
+    public ConnectionPool( int maxIdle, long idleMillis, int connectMillis,
+                           int readMillis ) {
+        maxIdle_ = maxIdle;
+        idleMillis_ = idleMillis;
+        connectMillis_ = connectMillis;
+        readMillis_ = readMillis;
+        idleMap_ = new HashMap();
+    }
+
+    /**
+     * POSTs a request body to a URL and returns the response,
+     * waiting as long as it takes for the server to respond.
+     * The caller must close the returned response when done with it,
+     * preferably after reading its body to the end.
+     *
+     * @param  url   destination URL
+     * @param  headers   map of request header name-&gt;value pairs;
+     *                   Host and Content-Length are supplied automatically
+     * @param  body   request body
+     * @return   response
+     */
+    public Response post( URL url, Map headers, byte[] body )
+            throws IOException {
+        return post( url, headers, body, false );
+    }
+
+    /**
+     * POSTs a request body to a URL and returns the response,
+     * optionally subject to this pool's read timeout.
+     * If timed, a read from the connection which blocks for longer than
+     * the timeout fails and the connection is closed;
+     * if that happens before the response head has been read,
+     * a {@link NoResponseException} is thrown, and if it happens while
+     * reading the returned response body, a
+     * {@link java.net.SocketTimeoutException}.
+     * The caller must close the returned response when done with it,
+     * preferably after reading its body to the end.
+     *
+     * @param  url   destination URL
+     * @param  headers   map of request header name-&gt;value pairs;
+     *                   Host and Content-Length are supplied automatically
+     * @param  body   request body
+     * @param  isTimed  true to apply the read timeout,
+     *                  false to wait indefinitely
+     * @return   response
+     * @throws  NoResponseException  if the request was sent but
+     *          no response was received
+     */
+    public Response post( URL url, Map headers, byte[] body,
+                          boolean isTimed )
+            throws IOException {
+        return post( url, headers, body, isTimed, null );
+    }
+
+    /**
+     * POSTs a request body to a URL and returns the response,
+     * taking an action once the request has been sent.
+     * This is like the four-argument <code>post</code> method,
+     * but <code>sentAction</code> is run once the request has been
+     * written to the server, before the response is read.
+     *
+     * @param  url   destination URL
+     * @param  headers   map of request header name-&gt;value pairs;
+     *                   Host and Content-Length are supplied automatically
+     * @param  body   request body
+     * @param  isTimed  true to apply the read timeout,
+     *                  false to wait indefinitely
+     * @param  sentAction  action to run when the request has been sent,
+     *                     or null
+     * @return   response
+     * @throws  NoResponseException  if the request was sent but
+     *          no response was received
+     */
+    public Response post( URL url, Map headers, byte[] body,
+                          boolean isTimed, Runnable sentAction )
+            throws IOException {
+        if ( ! "http".equalsIgnoreCase( url.getProtocol() ) ) {
+            Response response = postUrlConnection( url, headers, body );
+            if ( sentAction != null ) {
+                sentAction.run();
+            }
+            return response;
+        }
+        String host = url.getHost();
+        int port = url.getPort() >= 0 ? url.getPort() : 80;
+        String key = host + ":" + port;
+        byte[] head = createRequestHead( url, headers, body.length );
+        while ( true ) {
+            Connection conn = checkout( key );
+            boolean isReused = conn != null;
+            if ( ! isReused ) {
+                conn = new Connection( key, host, port, connectMillis_ );
+                synchronized ( this ) {
+                    openCount_++;
+                }
+            }
+
+            // If the request cannot be written to a pooled connection,
+            // the server has closed it without seeing the request,
+            // so it is safe to try again on a new one.  Once the request
+            // has been written it is never resent, since SAMP calls
+            // are not in general safe to repeat.
+            try {
+                conn.socket_.setSoTimeout( isTimed ? readMillis_ : 0 );
+                conn.out_.write( head );
+                conn.out_.write( body );
+                conn.out_.flush();
+            }
+            catch ( IOException e ) {
+                conn.close();
+                if ( isReused ) {
+                    logger_.config( "Stale pooled connection to " + key );
+                    continue;
+                }
+                throw e;
+            }
+            if ( sentAction != null ) {
+                sentAction.run();
+            }
+            Response response;
+            try {
+                response = readResponse( conn );
+            }
+            catch ( IOException e ) {
+                conn.close();
+                NoResponseException nre =
+                    new NoResponseException( "No response from " + url
+                                           + ": " + e );
+                nre.initCause( e );
+                throw nre;
+            }
+            if ( response == null ) {
+                conn.close();
+                throw new NoResponseException( "No response from " + url );
+            }
+            if ( isReused ) {
+                synchronized ( this ) {
+                    reuseCount_++;
+                }
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Returns the read timeout applied to timed requests.
+     *
+     * @return  read timeout in milliseconds, or zero for none
+     */
+    public int getReadTimeout() {
+        return readMillis_;
+    }
+
+    /**
+     * Returns the number of connections opened by this pool.
+     *
+     * @return  open count
+     */
+    public synchronized long getOpenCount() {
+        return openCount_;
+    }
+
+    /**
+     * Returns the number of requests which have been sent on
+     * a reused connection.
+     *
+     * @return   reuse count
+     */
+    public synchronized long getReuseCount() {
+        return reuseCount_;
+    }
+
+    /**
+     * Returns the number of idle connections currently held.
+     *
+     * @return  idle connection count
+     */
+    public synchronized int getIdleCount() {
+        int n = 0;
+        for ( Iterator it = idleMap_.values().iterator(); it.hasNext(); ) {
+            n += ((LinkedList) it.next()).size();
+        }
+        return n;
+    }
+
+    /**
+     * Closes all idle connections.
+     */
+    public void clear() {
+        LinkedList closers = new LinkedList();
+        synchronized ( this ) {
+            for ( Iterator it = idleMap_.values().iterator();
+                  it.hasNext(); ) {
+                closers.addAll( (LinkedList) it.next() );
+            }
+            idleMap_.clear();
+        }
+        for ( Iterator it = closers.iterator(); it.hasNext(); ) {
+            ((Connection) it.next()).close();
+        }
+    }
+
+    /**
+     * Takes the most recently used live idle connection for an endpoint
+     * from the pool.
+     *
+     * @param  key  endpoint key
+     * @return  connection, or null if none is available
+     */
+    private Connection checkout( String key ) {
+        long now = System.currentTimeMillis();
+        while ( true ) {
+            Connection conn;
+            synchronized ( this ) {
+                LinkedList idleList = (LinkedList) idleMap_.get( key );
+                if ( idleList == null ) {
+                    return null;
+                }
+                conn = (Connection) idleList.removeFirst();
+                if ( idleList.isEmpty() ) {
+                    idleMap_.remove( key );
+                }
+            }
+            if ( now - conn.idleSince_ < idleMillis_ && conn.isUsable() ) {
+                return conn;
+            }
+            conn.close();
+        }
+    }
+
+    /**
+     * Returns a connection whose exchange has completed to the pool,
+     * or closes it if the pool for its endpoint is full.
+     *
+     * @param  conn  connection
+     */
+    private void release( Connection conn ) {
+        conn.idleSince_ = System.currentTimeMillis();
+        synchronized ( this ) {
+            LinkedList idleList = (LinkedList) idleMap_.get( conn.key_ );
+            if ( idleList == null ) {
+                idleList = new LinkedList();
+            }
+            if ( idleList.size() < maxIdle_ ) {
+                idleList.addFirst( conn );
+                idleMap_.put( conn.key_, idleList );
+                if ( sweeper_ == null ) {
+                    sweeper_ = new Thread( "XML-RPC connection sweeper" ) {
+                        public void run() {
+                            sweep();
+                        }
+                    };
+                    sweeper_.setDaemon( true );
+                    sweeper_.start();
+                }
+                return;
+            }
+        }
+        conn.close();
+    }
+
+    /**
+     * Loop run by the sweeper thread, which closes connections
+     * that have been idle for too long.  It exits when the pool is empty.
+     */
+    private void sweep() {
+        while ( true ) {
+            try {
+                Thread.sleep( Math.max( idleMillis_ / 2, 100 ) );
+            }
+            catch ( InterruptedException e ) {
+            }
+            long now = System.currentTimeMillis();
+            LinkedList expired = new LinkedList();
+            synchronized ( this ) {
+                for ( Iterator it = idleMap_.values().iterator();
+                      it.hasNext(); ) {
+                    LinkedList idleList = (LinkedList) it.next();
+                    while ( ! idleList.isEmpty() &&
+                            now - ((Connection) idleList.getLast()).idleSince_
+                            >= idleMillis_ ) {
+                        expired.add( idleList.removeLast() );
+                    }
+                    if ( idleList.isEmpty() ) {
+                        it.remove();
+                    }
+                }
+                if ( idleMap_.isEmpty() ) {
+                    sweeper_ = null;
+                }
+            }
+            for ( Iterator it = expired.iterator(); it.hasNext(); ) {
+                ((Connection) it.next()).close();
+            }
+            if ( expired.size() > 0 ) {
+                logger_.config( "Closed " + expired.size()
+                              + " idle connections" );
+            }
+            synchronized ( this ) {
+                if ( sweeper_ != Thread.currentThread() ) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the status line and headers of a response,
+     * and prepares a stream for its body.
+     *
+     * @param  conn  connection on which a request has been sent
+     * @return  response, or null if the connection was closed before
+     *          any response was received
+     */
+    private Response readResponse( Connection conn ) throws IOException {
+        String statusLine;
+        Map hdrMap;
+        conn.in_.mark( 1 );
+        if ( conn.in_.read() < 0 ) {
+            return null;
+        }
+        conn.in_.reset();
+
+        // Skip any informational responses.
+        do {
+            statusLine = readLine( conn.in_ );
+            hdrMap = readHeaders( conn.in_ );
+        } while ( statusLine.matches( "HTTP/\\S+ +1[0-9][0-9]( .*)?" ) );
+        String[] words = statusLine.split( " +", 3 );
+        if ( words.length < 2 || ! words[ 0 ].startsWith( "HTTP/" ) ) {
+            throw new IOException( "Bad HTTP status line: " + statusLine );
+        }
+        int status;
+        try {
+            status = Integer.parseInt( words[ 1 ] );
+        }
+        catch ( NumberFormatException e ) {
+            throw new IOException( "Bad HTTP status line: " + statusLine );
+        }
+        String message = words.length > 2 ? words[ 2 ] : "";
+        boolean http11 = ! "HTTP/1.0".equals( words[ 0 ] );
+        String connHdr = (String) hdrMap.get( "connection" );
+        connHdr = connHdr == null ? "" : connHdr.toLowerCase();
+        boolean keepAlive = http11 ? connHdr.indexOf( "close" ) < 0
+                                   : connHdr.indexOf( "keep-alive" ) >= 0;
+        String te = (String) hdrMap.get( "transfer-encoding" );
+        String cl = (String) hdrMap.get( "content-length" );
+        BodyInputStream body;
+        if ( te != null && te.toLowerCase().indexOf( "chunked" ) >= 0 ) {
+            body = new ChunkedInputStream( conn, keepAlive );
+        }
+        else if ( te == null && cl != null ) {
+            long leng;
+            try {
+                leng = Long.parseLong( cl.trim() );
+            }
+            catch ( NumberFormatException e ) {
+                throw new IOException( "Bad Content-Length: " + cl );
+            }
+            body = new LengthInputStream( conn, keepAlive, leng );
+        }
+        else if ( status == 204 || status == 304 ) {
+            body = new LengthInputStream( conn, keepAlive, 0 );
+        }
+        else {
+            body = new LengthInputStream( conn, false, Long.MAX_VALUE );
+        }
+        return new Response( status, message, hdrMap, body );
+    }
+
+    /**
+     * Returns the bytes of the request line and headers for a POST.
+     *
+     * @param  url   destination URL
+     * @param  headers  map of additional headers
+     * @param  length   body length in bytes
+     * @return   request head bytes
+     */
+    private static byte[] createRequestHead( URL url, Map headers,
+                                             int length ) {
+        String path = url.getFile();
+        StringBuffer sbuf = new StringBuffer()
+            .append( "POST " )
+            .append( path.length() > 0 ? path : "/" )
+            .append( " HTTP/1.1\r\n" )
+            .append( "Host: " )
+            .append( url.getHost() );
+        if ( url.getPort() >= 0 ) {
+            sbuf.append( ':' )
+                .append( url.getPort() );
+        }
+        sbuf.append( "\r\n" );
+        for ( Iterator it = headers.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            sbuf.append( entry.getKey() )
+                .append( ": " )
+                .append( entry.getValue() )
+                .append( "\r\n" );
+        }
+        sbuf.append( "Content-Length: " )
+            .append( length )
+            .append( "\r\n" )
+            .append( "\r\n" );
+        int n = sbuf.length();
+        byte[] buf = new byte[ n ];
+        for ( int i = 0; i < n; i++ ) {
+            buf[ i ] = (byte) sbuf.charAt( i );
+        }
+        return buf;
+    }
+
+    /**
+     * Reads a CRLF- or LF-terminated line of ISO-8859-1 text.
+     *
+     * @param  in  input stream
+     * @return  line without terminator
+     */
+    private static String readLine( InputStream in ) throws IOException {
+        StringBuffer sbuf = new StringBuffer();
+        for ( int c; ( c = in.read() ) != '\n'; ) {
+            if ( c < 0 ) {
+                throw new IOException( "Unexpected end of response" );
+            }
+            if ( sbuf.length() >= MAX_HEAD ) {
+                throw new IOException( "Response header too long" );
+            }
+            sbuf.append( (char) c );
+        }
+        int leng = sbuf.length();
+        if ( leng > 0 && sbuf.charAt( leng - 1 ) == '\r' ) {
+            sbuf.setLength( leng - 1 );
+        }
+        return sbuf.toString();
+    }
+
+    /**
+     * Reads header lines up to and including the blank line which
+     * terminates them.
+     *
+     * @param  in  input stream
+     * @return  map of lower-cased header names to values;
+     *          repeated headers are combined with commas
+     */
+    private static Map readHeaders( InputStream in ) throws IOException {
+        Map hdrMap = new HashMap();
+        for ( int nh = 0; nh < 1000; nh++ ) {
+            String line = readLine( in );
+            if ( line.length() == 0 ) {
+                return hdrMap;
+            }
+            int icolon = line.indexOf( ':' );
+            if ( icolon > 0 ) {
+                String name = line.substring( 0, icolon ).trim()
+                                  .toLowerCase();
+                String value = line.substring( icolon + 1 ).trim();
+                String prev = (String) hdrMap.get( name );
+                hdrMap.put( name, prev == null ? value
+                                               : prev + ", " + value );
+            }
+        }
+        throw new IOException( "Too many response headers" );
+    }
+
+    /**
+     * Makes a POST request using the JRE's HTTP client.
+     *
+     * @param  url   destination URL
+     * @param  headers   map of request header name-&gt;value pairs
+     * @param  body   request body
+     * @return   response
+     */
+    private static Response postUrlConnection( URL url, Map headers,
+                                               byte[] body )
+            throws IOException {
+        final HttpURLConnection connection =
+            (HttpURLConnection) url.openConnection();
+        connection.setDoOutput( true );
+        connection.setDoInput( true );
+        connection.setRequestMethod( "POST" );
+        for ( Iterator it = headers.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            connection.setRequestProperty( (String) entry.getKey(),
+                                           (String) entry.getValue() );
+        }
+        connection.setRequestProperty( "Content-Length",
+                                       Integer.toString( body.length ) );
+        connection.connect();
+        OutputStream out = connection.getOutputStream();
+        out.write( body );
+        out.flush();
+        out.close();
+        int status = connection.getResponseCode();
+        Map hdrMap = new HashMap();
+        for ( int i = 1; connection.getHeaderFieldKey( i ) != null; i++ ) {
+            hdrMap.put( connection.getHeaderFieldKey( i ).toLowerCase(),
+                        connection.getHeaderField( i ) );
+        }
+        InputStream in = status < 400 ? connection.getInputStream()
+                                      : connection.getErrorStream();
+        final InputStream bodyIn = in == null
+                                 ? new ByteArrayInputStream( new byte[ 0 ] )
+                                 : in;
+        InputStream bodyStream = new InputStream() {
+            public int read() throws IOException {
+                return bodyIn.read();
+            }
+            public int read( byte[] b, int off, int len ) throws IOException {
+                return bodyIn.read( b, off, len );
+            }
+            public void close() {
+                connection.disconnect();
+            }
+        };
+        return new Response( status, connection.getResponseMessage(), hdrMap,
+                             bodyStream );
+    }
+
+    /**
+     * Returns the pool used by default for XML-RPC calls.
+     * Its configuration may be set using the {@link #MAXIDLE_PROP},
+     * {@link #IDLE_PROP}, {@link #CONNECT_PROP} and {@link #TIMEOUT_PROP}
+     * system properties.
+     *
+     * @return  default pool
+     */
+    public static synchronized ConnectionPool getDefaultInstance() {
+        if ( defaultInstance_ == null ) {
+            defaultInstance_ =
+                new ConnectionPool( getIntProperty( MAXIDLE_PROP,
+                                                    DEFAULT_MAXIDLE ),
+                                    getIntProperty( IDLE_PROP,
+                                                    DEFAULT_IDLE_MILLIS ),
+                                    getIntProperty( CONNECT_PROP,
+                                                    DEFAULT_CONNECT_MILLIS ),
+                                    getIntProperty( TIMEOUT_PROP,
+                                                    DEFAULT_TIMEOUT_MILLIS ) );
+        }
+        return defaultInstance_;
+    }
+
+    /**
+     * Returns the non-negative integer value of a system property.
+     *
+     * @param  name  property name
+     * @param  dflt  value to use if the property is not set or not valid
+     * @return  property value
+     */
+    private static int getIntProperty( String name, int dflt ) {
+        String txt;
+        try {
+            txt = System.getProperty( name );
+        }
+        catch ( SecurityException e ) {
+            txt = null;
+        }
+        if ( txt != null && txt.trim().length() > 0 ) {
+            try {
+                int value = Integer.parseInt( txt.trim() );
+                if ( value >= 0 ) {
+                    return value;
+                }
+            }
+            catch ( NumberFormatException e ) {
+            }
+            logger_.warning( "Bad value for " + name + " \"" + txt
+                           + "\" - use default" );
+        }
+        return dflt;
+    }
+
+    /**
+     * IOException thrown when a request has been sent but no response
+     * has been received, because the connection failed or the read
+     * timed out.  In this case the server may or may not have acted on
+     * the request.
+     */
+    public static class NoResponseException extends IOException {
+
+        /**
+         * Constructor.
+         *
+         * @param  msg  message
+         */
+        public NoResponseException( String msg ) {
+            super( msg );
+        }
+    }
+
+    /**
+     * HTTP response.
+     */
+    public static class Response {
+        private final int status_;
+        private final String message_;
+        private final Map hdrMap_;
+        private final InputStream body_;
+
+        /**
+         * Constructor.
+         *
+         * @param  status  status code
+         * @param  message  status phrase
+         * @param  hdrMap   map of lower-cased header names to values
+         * @param  body   body input stream
+         */
+        Response( int status, String message, Map hdrMap, InputStream body ) {
+            status_ = status;
+            message_ = message;
+            hdrMap_ = hdrMap;
+            body_ = body;
+        }
+
+        /**
+         * Returns the status code.
+         *
+         * @return  status code
+         */
+        public int getStatusCode() {
+            return status_;
+        }
+
+        /**
+         * Returns the status phrase.
+         *
+         * @return  status phrase
+         */
+        public String getStatusMessage() {
+            return message_;
+        }
+
+        /**
+         * Returns the value of a response header.
+         *
+         * @param  name  header name, case-insensitive
+         * @return   header value, or null if absent
+         */
+        public String getHeader( String name ) {
+            return (String) hdrMap_.get( name.toLowerCase() );
+        }
+
+        /**
+         * Returns a stream containing the body of the response,
+         * with any transfer coding removed.
+         *
+         * @return  body stream
+         */
+        public InputStream getBody() {
+            return body_;
+        }
+
+        /**
+         * Finishes with this response.  If the body has been read to the
+         * end, or nearly so, the connection is made available for reuse.
+         */
+        public void close() {
+            try {
+                body_.close();
+            }
+            catch ( IOException e ) {
+            }
+        }
+    }
+
+    /**
+     * Persistent connection to an HTTP server.
+     */
+    private static class Connection {
+        final String key_;
+        final Socket socket_;
+        final InputStream in_;
+        final OutputStream out_;
+        long idleSince_;
+
+        /**
+         * Constructor.  Opens a socket.
+         *
+         * @param  key   endpoint key
+         * @param  host  host name
+         * @param  port  port number
+         * @param  connectMillis  connect timeout in milliseconds,
+         *                        or zero for none
+         */
+        Connection( String key, String host, int port, int connectMillis )
+                throws IOException {
+            key_ = key;
+            socket_ = new Socket();
+            socket_.connect( new InetSocketAddress( host, port ),
+                             connectMillis );
+            socket_.setTcpNoDelay( true );
+            in_ = new BufferedInputStream( socket_.getInputStream() );
+            out_ = new BufferedOutputStream( socket_.getOutputStream() );
+        }
+
+        /**
+         * Indicates whether this idle connection looks fit for reuse.
+         * A connection with unsolicited input waiting is not,
+         * nor is one which the server has closed; the latter is
+         * detected by a brief read attempt.
+         *
+         * @return  true iff connection may be reused
+         */
+        boolean isUsable() {
+            if ( socket_.isClosed() ) {
+                return false;
+            }
+            try {
+                if ( in_.available() > 0 ) {
+                    return false;
+                }
+                int timeout = socket_.getSoTimeout();
+                socket_.setSoTimeout( 1 );
+                try {
+
+                    // Either end of stream or unexpected data is bad.
+                    in_.read();
+                    return false;
+                }
+                catch ( SocketTimeoutException e ) {
+                    return true;
+                }
+                finally {
+                    socket_.setSoTimeout( timeout );
+                }
+            }
+            catch ( IOException e ) {
+                return false;
+            }
+        }
+
+        /**
+         * Closes this connection.
+         */
+        void close() {
+            try {
+                socket_.close();
+            }
+            catch ( IOException e ) {
+                logger_.log( Level.FINE, "Close error", e );
+            }
+        }
+    }
+
+    /**
+     * Stream for a response body, which returns its connection to the
+     * pool when the end of the body has been read.
+     */
+    private abstract class BodyInputStream extends InputStream {
+        final Connection conn_;
+        private final boolean keepAlive_;
+        private boolean done_;
+
+        /**
+         * Constructor.
+         *
+         * @param  conn  connection
+         * @param  keepAlive  true iff the connection may be reused after
+         *                    the body has been read
+         */
+        BodyInputStream( Connection conn, boolean keepAlive ) {
+            conn_ = conn;
+            keepAlive_ = keepAlive;
+        }
+
+        /**
+         * Reads bytes from the body.  Returns -1 at the end.
+         */
+        abstract int readBody( byte[] b, int off, int len )
+                throws IOException;
+
+        public int read() throws IOException {
+            byte[] b = new byte[ 1 ];
+            return read( b, 0, 1 ) < 0 ? -1 : b[ 0 ] & 0xff;
+        }
+
+        public int read( byte[] b, int off, int len ) throws IOException {
+            if ( done_ ) {
+                return -1;
+            }
+            if ( len == 0 ) {
+                return 0;
+            }
+            int n;
+            try {
+                n = readBody( b, off, len );
+            }
+            catch ( IOException e ) {
+                finish( false );
+                throw e;
+            }
+            if ( n < 0 ) {
+                finish( keepAlive_ );
+            }
+            return n;
+        }
+
+        public void close() {
+            if ( ! done_ ) {
+                byte[] buf = new byte[ 4096 ];
+                try {
+                    for ( int n = 0; n <= MAX_SKIP && ! done_; ) {
+                        int nr = read( buf, 0, buf.length );
+                        if ( nr > 0 ) {
+                            n += nr;
+                        }
+                    }
+                }
+                catch ( IOException e ) {
+                }
+                finish( false );
+            }
+        }
+
+        /**
+         * Releases or closes the connection, once only.
+         *
+         * @param  reuse  true to return the connection to the pool
+         */
+        private void finish( boolean reuse ) {
+            if ( ! done_ ) {
+                done_ = true;
+                if ( reuse ) {
+                    release( conn_ );
+                }
+                else {
+                    conn_.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Body stream for a response with a known length, or delimited by
+     * the end of the connection.
+     */
+    private class LengthInputStream extends BodyInputStream {
+        private long remaining_;
+
+        /**
+         * Constructor.
+         *
+         * @param  conn  connection
+         * @param  keepAlive  true iff the connection may be reused
+         * @param  length  body length, or Long.MAX_VALUE to read to the end
+         */
+        LengthInputStream( Connection conn, boolean keepAlive, long length ) {
+            super( conn, keepAlive );
+            remaining_ = length;
+        }
+
+        int readBody( byte[] b, int off, int len ) throws IOException {
+            if ( remaining_ == 0 ) {
+                return -1;
+            }
+            int n = conn_.in_.read( b, off, (int) Math.min( len, remaining_ ) );
+            if ( n < 0 ) {
+                if ( remaining_ == Long.MAX_VALUE ) {
+                    remaining_ = 0;
+                    return -1;
+                }
+                throw new IOException( "Response body truncated" );
+            }
+            remaining_ -= n;
+            return n;
+        }
+    }
+
+    /**
+     * Body stream for a response with chunked transfer coding.
+     */
+    private class ChunkedInputStream extends BodyInputStream {
+        private long chunkRemaining_;
+        private boolean lastChunk_;
+
+        /**
+         * Constructor.
+         *
+         * @param  conn  connection
+         * @param  keepAlive  true iff the connection may be reused
+         */
+        ChunkedInputStream( Connection conn, boolean keepAlive ) {
+            super( conn, keepAlive );
+        }
+
+        int readBody( byte[] b, int off, int len ) throws IOException {
+            if ( lastChunk_ ) {
+                return -1;
+            }
+            if ( chunkRemaining_ == 0 ) {
+                String line = readLine( conn_.in_ );
+                int isemi = line.indexOf( ';' );
+                String size = ( isemi >= 0 ? line.substring( 0, isemi )
+                                           : line ).trim();
+                try {
+                    chunkRemaining_ = Long.parseLong( size, 16 );
+                }
+                catch ( NumberFormatException e ) {
+                    throw new IOException( "Bad chunk size: " + line );
+                }
+                if ( chunkRemaining_ == 0 ) {
+                    readHeaders( conn_.in_ );
+                    lastChunk_ = true;
+                    return -1;
+                }
+            }
+            int n = conn_.in_.read( b, off,
+                                    (int) Math.min( len, chunkRemaining_ ) );
+            if ( n < 0 ) {
+                throw new IOException( "Response body truncated" );
+            }
+            chunkRemaining_ -= n;
+            if ( chunkRemaining_ == 0 ) {
+                readLine( conn_.in_ );
+            }
+            return n;
+        }
+    }
+}
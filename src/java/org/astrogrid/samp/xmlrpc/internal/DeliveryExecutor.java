@@ -0,0 +1,677 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.astrogrid.samp.ShutdownManager;
+
+/**
+ * Runs asynchronous deliveries to XML-RPC endpoints using a bounded
+ * pool of threads.
+ *
+ * <p>Tasks are queued per endpoint, and the tasks for a given endpoint
+ * are started in the order they were submitted,
+ * so that messages reach each client in the order they were sent.
+ * A task may call {@link #markSent} once it has written its request;
+ * the next task for the same endpoint may then start while the first
+ * is still waiting for its response.  Otherwise the next task waits
+ * until the first has finished.  A limited number of tasks per endpoint
+ * may be in progress at once, so a client which is slow to respond
+ * still holds up later deliveries to itself once that limit is reached,
+ * for up to the connection read timeout, though not deliveries to
+ * other clients.
+ * Different endpoints are served concurrently, up to the maximum
+ * number of threads.  Each endpoint's queue has a maximum length;
+ * what happens when a task is submitted to a full queue is determined
+ * by the executor's {@link Policy}.
+ *
+ * <p>Worker threads are daemons, and are discarded when they have been
+ * idle for a while.  When the JVM shuts down, pending deliveries
+ * are given a short time to complete.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public class DeliveryExecutor {
+
+    private final int maxThreads_;
+    private final int queueCapacity_;
+    private final int maxInFlight_;
+    private final Policy policy_;
+    private final Map queueMap_;
+    private final LinkedList readyList_;
+    private int nThread_;
+    private int nIdle_;
+    private int iThread_;
+    private int pending_;
+    private int maxDepth_;
+    private long completedCount_;
+    private long rejectedCount_;
+    private long discardedCount_;
+
+    /**
+     * System property giving the maximum number of delivery threads
+     * used by the default executor ({@value}).
+     */
+    public static final String THREADS_PROP = "jsamp.xmlrpc.delivery.threads";
+
+    /**
+     * System property giving the maximum number of queued deliveries
+     * per endpoint for the default executor ({@value}).
+     */
+    public static final String QUEUE_PROP = "jsamp.xmlrpc.delivery.queue";
+
+    /**
+     * System property giving the name of the full queue policy
+     * for the default executor ({@value}).
+     * Possible values are "block", "reject" and "discard".
+     */
+    public static final String POLICY_PROP = "jsamp.xmlrpc.delivery.policy";
+
+    /**
+     * System property giving the maximum number of deliveries per endpoint
+     * which may be in progress at once for the default executor
+     * ({@value}).
+     */
+    public static final String INFLIGHT_PROP =
+        "jsamp.xmlrpc.delivery.inflight";
+
+    /** Default maximum number of delivery threads. */
+    public static final int DEFAULT_THREADS = 8;
+
+    /** Default maximum number of queued deliveries per endpoint. */
+    public static final int DEFAULT_QUEUE = 1000;
+
+    /** Default maximum number of deliveries in progress per endpoint. */
+    public static final int DEFAULT_INFLIGHT = 4;
+
+    /** Time in milliseconds after which an idle worker thread exits. */
+    private static final long KEEPALIVE_MILLIS = 10 * 1000;
+
+    /** Time in milliseconds allowed at JVM shutdown for pending tasks. */
+    private static final long SHUTDOWN_MILLIS = 2000;
+
+    private static final Logger logger_ =
+        Logger.getLogger( DeliveryExecutor.class.getName() );
+    private static DeliveryExecutor defaultInstance_;
+    private static final ThreadLocal currentTask_ = new ThreadLocal();
+
+    /**
+     * Constructs an executor with the default per-endpoint limit on
+     * deliveries in progress.
+     *
+     * @param  maxThreads  maximum number of concurrent deliveries
+     * @param  queueCapacity  maximum number of tasks queued per endpoint,
+     *                        not including any task in progress
+     * @param  policy   behaviour when an endpoint's queue is full
+     */
+    public DeliveryExecutor( int maxThreads, int queueCapacity,
+                             Policy policy ) {
+        this( maxThreads, queueCapacity, DEFAULT_INFLIGHT, policy );
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param  maxThreads  maximum number of concurrent deliveries
+     * @param  queueCapacity  maximum number of tasks queued per endpoint,
+     *                        not including any task in progress
+     * @param  maxInFlight  maximum number of tasks per endpoint which
+     *                      may be in progress at once
+     * @param  policy   behaviour when an endpoint's queue is full
+     */
+    public DeliveryExecutor( int maxThreads, int queueCapacity,
+                             int maxInFlight, Policy policy ) {
+        if ( maxThreads < 1 || queueCapacity < 1 || maxInFlight < 1 ) {
+            throw new IllegalArgumentException( "Non-positive size" );
+        }
+        maxThreads_ = maxThreads;
+        queueCapacity_ = queueCapacity;
+        maxInFlight_ = maxInFlight;
+        policy_ = policy;
+        queueMap_ = new HashMap();
+        readyList_ = new LinkedList();
+    }
+
+    /**
+     * Queues a task for execution.
+     * If the queue for the given endpoint is full, the behaviour
+     * depends on this executor's policy.
+     * If the task is a {@link DiscardableTask}, it is informed if it
+     * is later discarded without being run.
+     *
+     * @param  endpoint  key identifying the destination;
+     *                   tasks with equal keys are run in order
+     * @param  task   task to run
+     * @throws  IOException  if the task is rejected
+     */
+    public void submit( Object endpoint, Runnable task ) throws IOException {
+        List discards = enqueue( endpoint, task );
+
+        // Notify outside the lock, since the notification may make
+        // further submissions.
+        for ( Iterator it = discards.iterator(); it.hasNext(); ) {
+            Object discard = it.next();
+            if ( discard instanceof DiscardableTask ) {
+                try {
+                    ((DiscardableTask) discard).discarded();
+                }
+                catch ( Throwable e ) {
+                    logger_.log( Level.WARNING, "Discard notification failed",
+                                 e );
+                }
+            }
+        }
+    }
+
+    /**
+     * Does the work for {@link #submit}.
+     *
+     * @param  endpoint  endpoint key
+     * @param  task   task to run
+     * @return  list of tasks discarded to make room for this one
+     * @throws  IOException  if the task is rejected
+     */
+    private synchronized List enqueue( Object endpoint, Runnable task )
+            throws IOException {
+        List discards = new ArrayList();
+        EndpointQueue queue;
+        while ( ( queue = getQueue( endpoint ) ).tasks_.size()
+                >= queueCapacity_ ) {
+            if ( policy_ == Policy.BLOCK ) {
+                try {
+                    wait();
+                }
+                catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException( "Interrupted waiting for "
+                                         + "delivery queue" );
+                }
+            }
+            else if ( policy_ == Policy.DISCARD ) {
+                discards.add( queue.tasks_.removeFirst() );
+                pending_--;
+                discardedCount_++;
+                logger_.warning( "Delivery queue full for " + endpoint
+                               + " - discard oldest" );
+            }
+            else {
+                rejectedCount_++;
+                throw new IOException( "Delivery queue full for "
+                                     + endpoint );
+            }
+        }
+        queue.tasks_.addLast( task );
+        pending_++;
+        maxDepth_ = Math.max( maxDepth_, queue.tasks_.size() );
+        schedule( queue );
+        return discards;
+    }
+
+    /**
+     * Indicates that the task running in the current thread has sent
+     * its request, so that the next task for the same endpoint may start.
+     * This does nothing if the current thread is not running a task
+     * for an executor, or if it has already been called for this task.
+     */
+    public static void markSent() {
+        RunningTask running = (RunningTask) currentTask_.get();
+        if ( running != null ) {
+            running.executor_.sent( running );
+        }
+    }
+
+    /**
+     * Does the work for {@link #markSent}.
+     *
+     * @param  running  task which has sent its request
+     */
+    private synchronized void sent( RunningTask running ) {
+        if ( ! running.sent_ ) {
+            running.sent_ = true;
+            running.queue_.sending_ = false;
+            schedule( running.queue_ );
+        }
+    }
+
+    /**
+     * Puts a queue on the ready list if it has a task which may be
+     * started now, and makes sure there is a worker to take it.
+     * Called with the lock held.
+     *
+     * @param  queue  endpoint queue
+     */
+    private void schedule( EndpointQueue queue ) {
+        if ( ! queue.ready_ && ! queue.sending_ &&
+             queue.running_ < maxInFlight_ && ! queue.tasks_.isEmpty() ) {
+            queue.ready_ = true;
+            readyList_.addLast( queue );
+
+            // Idle workers may already have been woken for other ready
+            // queues, so start a new one unless there are enough to take
+            // all of them.
+            if ( nIdle_ > 0 ) {
+                notifyAll();
+            }
+            if ( readyList_.size() > nIdle_ && nThread_ < maxThreads_ ) {
+                startWorker();
+            }
+        }
+    }
+
+    /**
+     * Waits until all queued and running tasks have completed.
+     *
+     * @param  millis  maximum wait time in milliseconds
+     * @return  true  iff no tasks are queued or running
+     */
+    public synchronized boolean awaitIdle( long millis ) {
+        long end = System.currentTimeMillis() + millis;
+        while ( ! queueMap_.isEmpty() ) {
+            long wait = end - System.currentTimeMillis();
+            if ( wait <= 0 ) {
+                return false;
+            }
+            try {
+                wait( wait );
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                return queueMap_.isEmpty();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the maximum number of tasks per endpoint which may be
+     * in progress at once.
+     *
+     * @return  per-endpoint in-flight limit
+     */
+    public int getMaxInFlight() {
+        return maxInFlight_;
+    }
+
+    /**
+     * Returns the behaviour of this executor when a queue is full.
+     *
+     * @return  full queue policy
+     */
+    public Policy getPolicy() {
+        return policy_;
+    }
+
+    /**
+     * Returns the number of tasks queued for a given endpoint,
+     * not including any which is in progress.
+     *
+     * @param  endpoint  endpoint key
+     * @return  queue depth
+     */
+    public synchronized int getQueueDepth( Object endpoint ) {
+        EndpointQueue queue = (EndpointQueue) queueMap_.get( endpoint );
+        return queue == null ? 0 : queue.tasks_.size();
+    }
+
+    /**
+     * Returns a snapshot of the queue depths for all endpoints
+     * which currently have tasks queued or running.
+     *
+     * @return  map from endpoint key to Integer queue depth
+     */
+    public synchronized Map getQueueDepths() {
+        Map map = new HashMap();
+        for ( Iterator it = queueMap_.values().iterator(); it.hasNext(); ) {
+            EndpointQueue queue = (EndpointQueue) it.next();
+            map.put( queue.endpoint_, new Integer( queue.tasks_.size() ) );
+        }
+        return map;
+    }
+
+    /**
+     * Returns the total number of tasks queued for all endpoints.
+     *
+     * @return  total queue depth
+     */
+    public synchronized int getPendingCount() {
+        return pending_;
+    }
+
+    /**
+     * Returns the largest depth reached by any endpoint queue.
+     *
+     * @return  maximum queue depth
+     */
+    public synchronized int getMaxQueueDepth() {
+        return maxDepth_;
+    }
+
+    /**
+     * Returns the number of worker threads currently in existence.
+     *
+     * @return  thread count
+     */
+    public synchronized int getThreadCount() {
+        return nThread_;
+    }
+
+    /**
+     * Returns the number of tasks which have been run.
+     *
+     * @return  completed task count
+     */
+    public synchronized long getCompletedCount() {
+        return completedCount_;
+    }
+
+    /**
+     * Returns the number of tasks which have been rejected because
+     * their queue was full.
+     *
+     * @return  rejected task count
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount_;
+    }
+
+    /**
+     * Returns the number of queued tasks which have been discarded
+     * to make room for later ones.
+     *
+     * @return  discarded task count
+     */
+    public synchronized long getDiscardedCount() {
+        return discardedCount_;
+    }
+
+    /**
+     * Returns the queue for a given endpoint, creating it if necessary.
+     * Called with the lock held.
+     *
+     * @param  endpoint  endpoint key
+     * @return  queue
+     */
+    private EndpointQueue getQueue( Object endpoint ) {
+        EndpointQueue queue = (EndpointQueue) queueMap_.get( endpoint );
+        if ( queue == null ) {
+            queue = new EndpointQueue( endpoint );
+            queueMap_.put( endpoint, queue );
+        }
+        return queue;
+    }
+
+    /**
+     * Starts a new worker thread.  Called with the lock held.
+     */
+    private void startWorker() {
+        nThread_++;
+        Thread thread = new Thread( "XML-RPC delivery " + ( ++iThread_ ) ) {
+            public void run() {
+                work();
+            }
+        };
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    /**
+     * Loop run by worker threads.
+     * Each iteration runs the next task from the endpoint queue which
+     * has been waiting longest, so that busy endpoints do not starve
+     * the others.
+     */
+    private void work() {
+        while ( true ) {
+            EndpointQueue queue;
+            Runnable task;
+            synchronized ( this ) {
+                if ( readyList_.isEmpty() ) {
+                    long end = System.currentTimeMillis() + KEEPALIVE_MILLIS;
+                    nIdle_++;
+                    for ( long wait; readyList_.isEmpty() &&
+                          ( wait = end - System.currentTimeMillis() ) > 0; ) {
+                        try {
+                            wait( wait );
+                        }
+                        catch ( InterruptedException e ) {
+                            break;
+                        }
+                    }
+                    nIdle_--;
+                    if ( readyList_.isEmpty() ) {
+                        nThread_--;
+                        return;
+                    }
+                }
+                queue = (EndpointQueue) readyList_.removeFirst();
+                queue.ready_ = false;
+                queue.running_++;
+                queue.sending_ = true;
+                task = (Runnable) queue.tasks_.removeFirst();
+                pending_--;
+
+                // Wakes any submitters blocked on a full queue.
+                notifyAll();
+            }
+            RunningTask running = new RunningTask( this, queue );
+            currentTask_.set( running );
+            try {
+                task.run();
+            }
+            catch ( Throwable e ) {
+                logger_.log( Level.WARNING,
+                             "Delivery to " + queue.endpoint_ + " failed", e );
+            }
+            finally {
+                currentTask_.set( null );
+            }
+            synchronized ( this ) {
+                if ( ! running.sent_ ) {
+                    running.sent_ = true;
+                    queue.sending_ = false;
+                }
+                queue.running_--;
+                completedCount_++;
+                if ( queue.tasks_.isEmpty() ) {
+                    if ( queue.running_ == 0 ) {
+                        queueMap_.remove( queue.endpoint_ );
+                        notifyAll();
+                    }
+                }
+                else {
+                    schedule( queue );
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the executor used by default for asynchronous XML-RPC calls.
+     * Its configuration may be set using the {@link #THREADS_PROP},
+     * {@link #QUEUE_PROP}, {@link #INFLIGHT_PROP} and {@link #POLICY_PROP}
+     * system properties.
+     *
+     * @return  default executor
+     */
+    public static synchronized DeliveryExecutor getDefaultInstance() {
+        if ( defaultInstance_ == null ) {
+            final DeliveryExecutor executor =
+                new DeliveryExecutor( getIntProperty( THREADS_PROP,
+                                                      DEFAULT_THREADS ),
+                                      getIntProperty( QUEUE_PROP,
+                                                      DEFAULT_QUEUE ),
+                                      getIntProperty( INFLIGHT_PROP,
+                                                      DEFAULT_INFLIGHT ),
+                                      Policy.getPolicy( getProperty(
+                                          POLICY_PROP ) ) );
+            ShutdownManager.getInstance()
+                           .registerHook( executor,
+                                          ShutdownManager.PREPARE_SEQUENCE,
+                                          new Runnable() {
+                public void run() {
+                    executor.awaitIdle( SHUTDOWN_MILLIS );
+                }
+            } );
+            defaultInstance_ = executor;
+        }
+        return defaultInstance_;
+    }
+
+    /**
+     * Returns the value of a system property, or null if it is not
+     * set or not accessible.
+     *
+     * @param  name  property name
+     * @return  property value or null
+     */
+    private static String getProperty( String name ) {
+        try {
+            return System.getProperty( name );
+        }
+        catch ( SecurityException e ) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the positive integer value of a system property.
+     *
+     * @param  name  property name
+     * @param  dflt  value to use if the property is not set or not valid
+     * @return  property value
+     */
+    private static int getIntProperty( String name, int dflt ) {
+        String txt = getProperty( name );
+        if ( txt != null && txt.trim().length() > 0 ) {
+            try {
+                int value = Integer.parseInt( txt.trim() );
+                if ( value > 0 ) {
+                    return value;
+                }
+            }
+            catch ( NumberFormatException e ) {
+            }
+            logger_.warning( "Bad value for " + name + " \"" + txt
+                           + "\" - use default" );
+        }
+        return dflt;
+    }
+
+    /**
+     * Task which wants to know if it is discarded without being run.
+     */
+    public interface DiscardableTask extends Runnable {
+
+        /**
+         * Called, instead of <code>run</code>, if this task is discarded
+         * from a full queue.  It is not called with the executor's
+         * lock held.
+         */
+        void discarded();
+    }
+
+    /**
+     * Defines what happens when a task is submitted to an endpoint
+     * whose queue is full.
+     */
+    public static class Policy {
+
+        private final String name_;
+
+        /** Submitter waits until there is space in the queue. */
+        public static final Policy BLOCK = new Policy( "block" );
+
+        /** Submission fails with an IOException. */
+        public static final Policy REJECT = new Policy( "reject" );
+
+        /** Oldest queued task is discarded to make room. */
+        public static final Policy DISCARD = new Policy( "discard" );
+
+        /** Default policy. */
+        public static final Policy DEFAULT = REJECT;
+
+        private static final Policy[] POLICIES =
+            new Policy[] { BLOCK, REJECT, DISCARD, };
+
+        /**
+         * Constructor.
+         *
+         * @param  name  policy name
+         */
+        private Policy( String name ) {
+            name_ = name;
+        }
+
+        /**
+         * Returns the policy with a given name.
+         *
+         * @param  name  policy name, or null for the default
+         * @return  policy
+         */
+        public static Policy getPolicy( String name ) {
+            if ( name == null || name.trim().length() == 0 ) {
+                return DEFAULT;
+            }
+            for ( int i = 0; i < POLICIES.length; i++ ) {
+                if ( POLICIES[ i ].name_.equalsIgnoreCase( name.trim() ) ) {
+                    return POLICIES[ i ];
+                }
+            }
+            logger_.warning( "Unknown delivery policy \"" + name
+                           + "\" - use default" );
+            return DEFAULT;
+        }
+
+        public String toString() {
+            return name_;
+        }
+    }
+
+    /**
+     * Queue of tasks for a single endpoint.
+     */
+    private static class EndpointQueue {
+        final Object endpoint_;
+        final LinkedList tasks_;
+        int running_;
+        boolean sending_;
+        boolean ready_;
+
+        /**
+         * Constructor.
+         *
+         * @param  endpoint  endpoint key
+         */
+        EndpointQueue( Object endpoint ) {
+            endpoint_ = endpoint;
+            tasks_ = new LinkedList();
+        }
+    }
+
+    /**
+     * Records a task in progress in a worker thread.
+     */
+    private static class RunningTask {
+        final DeliveryExecutor executor_;
+        final EndpointQueue queue_;
+        boolean sent_;
+
+        /**
+         * Constructor.
+         *
+         * @param  executor  executor running the task
+         * @param  queue  queue from which the task was taken
+         */
+        RunningTask( DeliveryExecutor executor, EndpointQueue queue ) {
+            executor_ = executor;
+            queue_ = queue;
+        }
+    }
+}
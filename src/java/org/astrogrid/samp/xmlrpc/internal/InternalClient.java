@@ -4,36 +4,50 @@ import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
-import javax.xml.parsers.ParserConfigurationException;
-import org.w3c.dom.DOMException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.xml.sax.SAXException;
 import org.astrogrid.samp.SampUtils;
-import org.astrogrid.samp.xmlrpc.SampXmlRpcClient;
+import org.astrogrid.samp.xmlrpc.AsyncSampXmlRpcClient;
 
 /**
  * XML-RPC client implementation suitable for use with SAMP.
  * This implementation is completely freestanding and requires no other
  * libraries.
+ * Responses compressed using HTTP content coding are understood,
+ * and calls are compressed once the server has indicated that it
+ * accepts that.
+ * HTTP connections are kept open and reused where the server allows.
  *
  * @author   Mark Taylor
  * @since    26 Aug 2008
  */
-public class InternalClient implements SampXmlRpcClient {
+public class InternalClient implements AsyncSampXmlRpcClient {
 
     private final URL endpoint_;
     private final String userAgent_;
+    private volatile boolean gzipCalls_;
+    private volatile DeliveryExecutor executor_;
+    private volatile ConnectionPool pool_;
     private static final Logger logger_ =
         Logger.getLogger( InternalClient.class.getName() );
 
+    /** MIME type for XML-RPC calls. */
+    static final String XML_TYPE = "text/xml";
+
+    /** MIME type for JSON-RPC calls. */
+    static final String JSON_TYPE = "application/json";
+
+    /** Lets a delivery executor start the next delivery once sent. */
+    private static final Runnable MARK_SENT = new Runnable() {
+        public void run() {
+            DeliveryExecutor.markSent();
+        }
+    };
+
     /**
      * Constructor.
      *
@@ -42,79 +56,296 @@ public class InternalClient implements SampXmlRpcClient {
     public InternalClient( URL endpoint ) {
         endpoint_ = endpoint;
         userAgent_ = "JSAMP/" + SampUtils.getSoftwareVersion();
+        executor_ = DeliveryExecutor.getDefaultInstance();
+        pool_ = ConnectionPool.getDefaultInstance();
     }
 
     public Object callAndWait( String method, List params )
             throws IOException {
-        HttpURLConnection connection =
-            (HttpURLConnection) endpoint_.openConnection();
         byte[] callBuf = serializeCall( method, params );
-        connection.setDoOutput( true );
-        connection.setDoInput( true );
-        connection.setRequestMethod( "POST" );
-        connection.setRequestProperty( "Content-Type", "text/xml" );
-        connection.setRequestProperty( "Content-Length",
-                                       Integer.toString( callBuf.length ) );
-        connection.setRequestProperty( "User-Agent", userAgent_ );
-        connection.connect();
-        OutputStream out = connection.getOutputStream();
-        out.write( callBuf );
-        out.flush();
-        out.close();
-        int responseCode = connection.getResponseCode();
-        if ( responseCode != HttpURLConnection.HTTP_OK ) {
-            throw new IOException( responseCode + " "
-                                 + connection.getResponseMessage() );
+        ConnectionPool.Response response =
+            sendCall( callBuf, XML_TYPE, false );
+        try {
+            return deserializeResponse( getResponseStream( response ) );
+        }
+        finally {
+            response.close();
         }
-        InputStream in = new BufferedInputStream( connection.getInputStream() );
-        Object result = deserializeResponse( in );
-        connection.disconnect();
-        return result;
     }
 
-    // NOTE: if this method is invoked from a shutdownHook thread,
-    // the call may not complete because it is completed from a new thread.
+    /**
+     * Serializes the call in the calling thread, and queues it for
+     * delivery by this client's delivery executor.
+     * Calls made through clients with the same endpoint are sent
+     * in the order they were made, though a call may be sent before
+     * the response to the previous one has been received.
+     * Delivery failures are logged.
+     * If this method is invoked from a shutdown hook thread,
+     * the call may not complete.
+     */
     public void callAndForget( String method, List params )
             throws IOException {
-        final HttpURLConnection connection =
-            (HttpURLConnection) endpoint_.openConnection();
-        byte[] callBuf = serializeCall( method, params );
-        connection.setDoOutput( true );
-        connection.setDoInput( true );
-        connection.setRequestMethod( "POST" );
-        connection.setRequestProperty( "Content-Type", "text/xml" );
-        connection.setRequestProperty( "Content-Length",
-                                       Integer.toString( callBuf.length ) );
-        connection.setRequestProperty( "User-Agent", userAgent_ );
-        connection.connect();
-        OutputStream out = connection.getOutputStream();
-        out.write( callBuf );
-        out.flush();
-        out.close();
-
-        // It would be nice to just not read the input stream at all.
-        // However, connection.setDoInput(false) and doing no reads causes
-        // trouble - probably the call doesn't complete at the other end or
-        // something.  So read it to the end asynchronously.
-        new Thread() {
+        callAndForget( method, params, null );
+    }
+
+    /**
+     * Serializes the call in the calling thread, and queues it for
+     * delivery by this client's delivery executor.
+     * Delivery fails if the call cannot be sent, if the response has
+     * a non-200 status, or if the executor discards the call from
+     * a full queue.
+     * If the call is sent but the server does not respond within the
+     * connection pool's read timeout, that is logged but not reported
+     * as a failure, since the server may still act on the call.
+     */
+    public void callAndForget( String method, List params,
+                               DeliveryListener listener )
+            throws IOException {
+        final byte[] callBuf = serializeCall( method, params );
+        submitDelivery( method, listener, new Delivery() {
+            public void deliver() throws IOException {
+                checkDelivered( InternalClient.this
+                               .deliver( callBuf, XML_TYPE ) );
+            }
+        } );
+    }
+
+    /**
+     * Queues a delivery with this client's delivery executor,
+     * logging any failure and reporting the outcome to a listener.
+     *
+     * @param  method  XML-RPC method name, for logging
+     * @param  listener  listener for delivery outcome, may be null
+     * @param  delivery  action which performs the delivery
+     */
+    void submitDelivery( final String method, final DeliveryListener listener,
+                         final Delivery delivery )
+            throws IOException {
+        executor_.submit( endpoint_.toString(),
+                          new DeliveryExecutor.DiscardableTask() {
             public void run() {
                 try {
-                    InputStream in =
-                        new BufferedInputStream( connection.getInputStream() );
-                    while ( in.read() >= 0 ) {}
-                    int responseCode = connection.getResponseCode();
-                    if ( responseCode != HttpURLConnection.HTTP_OK ) {
-                        logger_.warning( responseCode + " " +
-                                         connection.getResponseMessage() );
-                    }
+                    delivery.deliver();
+                }
+                catch ( ConnectionPool.NoResponseException e ) {
+                    logger_.warning( "Delivery of " + method + " to "
+                                   + endpoint_ + " unconfirmed: " + e );
                 }
                 catch ( IOException e ) {
+                    fail( e );
+                    return;
                 }
-                finally {
-                    connection.disconnect();
+                if ( listener != null ) {
+                    listener.deliverySucceeded();
                 }
             }
-        }.start();
+            public void discarded() {
+                fail( new IOException( "Discarded from full delivery "
+                                     + "queue" ) );
+            }
+            private void fail( IOException e ) {
+                logger_.warning( "Delivery of " + method + " to "
+                               + endpoint_ + " failed: " + e );
+                if ( listener != null ) {
+                    listener.deliveryFailed( e );
+                }
+            }
+        } );
+    }
+
+    /**
+     * Sets the executor used to deliver asynchronous calls.
+     * By default {@link DeliveryExecutor#getDefaultInstance} is used.
+     *
+     * @param  executor  delivery executor
+     */
+    public void setDeliveryExecutor( DeliveryExecutor executor ) {
+        executor_ = executor;
+    }
+
+    /**
+     * Returns the executor used to deliver asynchronous calls.
+     *
+     * @return  delivery executor
+     */
+    public DeliveryExecutor getDeliveryExecutor() {
+        return executor_;
+    }
+
+    /**
+     * POSTs a serialized call and reads the response to the end,
+     * discarding it.  The connection pool's read timeout applies,
+     * so that an unresponsive endpoint cannot hold up a delivery
+     * thread indefinitely.  Once the response head has been received
+     * the outcome is known, so a failure reading the body is ignored.
+     *
+     * @param  callBuf  serialized call
+     * @param  contentType  MIME type of serialized call
+     * @return  closed response, whose status and headers may be examined
+     * @throws  ConnectionPool.NoResponseException  if the call was sent
+     *          but no response was received
+     */
+    ConnectionPool.Response deliver( byte[] callBuf, String contentType )
+            throws IOException {
+        ConnectionPool.Response response =
+            sendCall( callBuf, contentType, true );
+        try {
+
+            // Read the response to the end, so that the connection
+            // can be reused.
+            InputStream in = response.getBody();
+            byte[] buf = new byte[ 1024 ];
+            try {
+                while ( in.read( buf ) >= 0 ) {}
+            }
+            catch ( IOException e ) {
+                logger_.config( "Incomplete response body from "
+                              + endpoint_ + ": " + e );
+            }
+            return response;
+        }
+        finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Checks that a delivered call received a successful response.
+     *
+     * @param  response  response to a delivered call
+     * @throws  IOException  if the response status is not 200
+     */
+    static void checkDelivered( ConnectionPool.Response response )
+            throws IOException {
+        int responseCode = response.getStatusCode();
+        if ( responseCode != HttpURLConnection.HTTP_OK ) {
+            throw new IOException( responseCode + " "
+                                 + response.getStatusMessage() );
+        }
+    }
+
+    /**
+     * Sets the pool of HTTP connections used to make calls.
+     * By default {@link ConnectionPool#getDefaultInstance} is used.
+     *
+     * @param  pool  connection pool
+     */
+    public void setConnectionPool( ConnectionPool pool ) {
+        pool_ = pool;
+    }
+
+    /**
+     * Returns the pool of HTTP connections used to make calls.
+     *
+     * @return  connection pool
+     */
+    public ConnectionPool getConnectionPool() {
+        return pool_;
+    }
+
+    /**
+     * Returns the endpoint to which this client makes calls.
+     *
+     * @return  endpoint URL
+     */
+    URL getEndpoint() {
+        return endpoint_;
+    }
+
+    /**
+     * POSTs a serialized call to the endpoint, compressing it
+     * if the server accepts that.
+     *
+     * @param  callBuf  serialized call
+     * @param  contentType  MIME type of serialized call
+     * @param  isTimed  whether the connection pool's read timeout applies
+     * @return   response, which must be closed after use
+     */
+    ConnectionPool.Response sendCall( byte[] callBuf, String contentType,
+                                      boolean isTimed )
+            throws IOException {
+        boolean gzip = gzipCalls_ && Compression.isWorthwhile( callBuf.length );
+        ConnectionPool.Response response =
+            postCall( callBuf, contentType, gzip, isTimed );
+
+        // If the server turns out not to accept compressed calls
+        // after all, try again without compression.
+        if ( gzip && response.getStatusCode() == 415 ) {
+            response.close();
+            gzipCalls_ = false;
+            response = postCall( callBuf, contentType, false, isTimed );
+        }
+        noteAcceptEncoding( response );
+        return response;
+    }
+
+    /**
+     * Returns the body of a successful response, undoing any
+     * content coding.
+     *
+     * @param  response  response to a call
+     * @return   response body stream
+     * @throws  IOException  if the response does not indicate success
+     */
+    static InputStream getResponseStream( ConnectionPool.Response response )
+            throws IOException {
+        int responseCode = response.getStatusCode();
+        if ( responseCode != HttpURLConnection.HTTP_OK ) {
+            throw new IOException( responseCode + " "
+                                 + response.getStatusMessage() );
+        }
+        return new BufferedInputStream(
+                   Compression.decode( response.getBody(),
+                                       response
+                                      .getHeader( "Content-Encoding" ) ) );
+    }
+
+    /**
+     * POSTs a serialized call to the endpoint.
+     *
+     * @param  callBuf  serialized call
+     * @param  contentType  MIME type of serialized call
+     * @param  gzip   whether to compress the request body
+     * @param  isTimed  whether the connection pool's read timeout applies
+     * @return   response, which must be closed after use
+     */
+    private ConnectionPool.Response postCall( byte[] callBuf,
+                                              String contentType,
+                                              boolean gzip, boolean isTimed )
+            throws IOException {
+        byte[] bodyBuf = gzip ? Compression.gzip( callBuf ) : callBuf;
+        Map hdrMap = new LinkedHashMap();
+        hdrMap.put( "Content-Type", contentType );
+        if ( gzip ) {
+            hdrMap.put( "Content-Encoding", Compression.GZIP );
+        }
+        hdrMap.put( "Accept-Encoding", Compression.ACCEPTED );
+        hdrMap.put( "User-Agent", userAgent_ );
+        return pool_.post( endpoint_, hdrMap, bodyBuf, isTimed, MARK_SENT );
+    }
+
+    /**
+     * Indicates whether a Content-Type header value denotes JSON.
+     *
+     * @param  contentType  Content-Type header value, may be null
+     * @return  true iff content is JSON
+     */
+    static boolean isJsonType( String contentType ) {
+        return contentType != null
+            && contentType.trim().toLowerCase().startsWith( JSON_TYPE );
+    }
+
+    /**
+     * Takes note of whether the server has declared that it accepts
+     * compressed requests.
+     *
+     * @param  response  response which has been received
+     */
+    private void noteAcceptEncoding( ConnectionPool.Response response ) {
+        String accepted = response.getHeader( "Accept-Encoding" );
+        if ( accepted != null ) {
+            gzipCalls_ = Compression.acceptsGzip( accepted );
+        }
     }
 
     /**
@@ -128,20 +359,7 @@ public class InternalClient implements SampXmlRpcClient {
     protected byte[] serializeCall( String method, List paramList )
             throws IOException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        XmlWriter xout = new XmlWriter( bos, 2 );
-        xout.start( "methodCall" );
-        xout.inline( "methodName", method );
-        if ( ! paramList.isEmpty() ) {
-            xout.start( "params" );
-            for ( Iterator it = paramList.iterator(); it.hasNext(); ) {
-                xout.start( "param" );
-                xout.sampValue( it.next() );
-                xout.end( "param" );
-            }
-            xout.end( "params" );
-        }
-        xout.end( "methodCall" );
-        xout.close();
+        XmlRpcEncoder.getThreadEncoder().writeCall( method, paramList, bos );
         return bos.toByteArray();
     }
 
@@ -153,47 +371,35 @@ public class InternalClient implements SampXmlRpcClient {
      */
     protected Object deserializeResponse( InputStream in )
             throws IOException {
-        try {
-            Document doc = XmlUtils.createDocumentBuilder().parse( in );
-            Element top =
-                XmlUtils.getChild( XmlUtils.getChild( doc, "methodResponse" ) );
-            String topName = top.getTagName();
-            if ( "fault".equals( topName ) ) {
-                Element value = XmlUtils.getChild( top, "value" );
-                XmlUtils.getChild( value, "struct" );
-                Map faultMap = (Map) XmlUtils.parseSampValue( value );
-                Object fcode = faultMap.get( "faultCode" );
-                Object fmsg = faultMap.get( "faultString" );
-                int code = fcode instanceof Integer
-                         ? ((Integer) fcode).intValue()
-                         : -9999;
-                final String msg = String.valueOf( fmsg );
-                throw new XmlRpcFault( code, msg );
-            }
-            else if ( "params".equals( topName ) ) {
-                Element value =
-                    XmlUtils.getChild( XmlUtils.getChild( top, "param" ),
-                                       "value" );
-                return XmlUtils.parseSampValue( value );
-            }
-            else {
-                throw new XmlRpcFormatException( "Not <fault> or <params>?" );
-            }
+        XmlRpcParser response = XmlRpcParser.parseResponse( in );
+        Map faultMap = response.getFault();
+        if ( faultMap != null ) {
+            Object fcode = faultMap.get( "faultCode" );
+            Object fmsg = faultMap.get( "faultString" );
+            int code = fcode instanceof Integer
+                     ? ((Integer) fcode).intValue()
+                     : -9999;
+            final String msg = String.valueOf( fmsg );
+            throw new XmlRpcFault( code, msg );
         }
-        catch ( ParserConfigurationException e ) {
-            throw (IOException) new IOException( "Trouble with XML parsing" )
-                               .initCause( e );
-        }
-        catch ( SAXException e ) {
-            throw (IOException) new IOException( "Trouble with XML parsing" )
-                               .initCause( e );
-        }
-        catch ( DOMException e ) {
-            throw (IOException) new IOException( "Trouble with XML parsing" )
-                               .initCause( e );
+        else {
+            return response.getResult();
         }
     }
 
+    /**
+     * Action which delivers an asynchronous call.
+     */
+    interface Delivery {
+
+        /**
+         * Performs the delivery.
+         *
+         * @throws  IOException  if delivery fails
+         */
+        void deliver() throws IOException;
+    }
+
     /**
      * IOException representing an incoming XML-RPC fault.
      */
@@ -1,27 +1,28 @@
 package org.astrogrid.samp.xmlrpc.internal;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.ServerSocket;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 import org.astrogrid.samp.SampUtils;
 import org.astrogrid.samp.httpd.HttpServer;
 import org.astrogrid.samp.httpd.UtilServer;
 import org.astrogrid.samp.xmlrpc.SampXmlRpcHandler;
 import org.astrogrid.samp.xmlrpc.SampXmlRpcServer;
-import org.w3c.dom.Document;
+import org.astrogrid.samp.xmlrpc.XmlRpcBatch;
 
 /**
  * SampXmlRpcServer implementation without external dependencies.
@@ -30,6 +31,16 @@ import org.w3c.dom.Document;
  * <code>SampXmlRpcHandler</code>s is the associated
  * {@link org.astrogrid.samp.httpd.HttpServer.Request}.
  *
+ * <p>The <code>system.multicall</code> method is also supported,
+ * so that a client can send several calls in a single HTTP exchange;
+ * each of the batched calls is passed to the registered handlers
+ * in the same way as if it had been made separately.
+ *
+ * <p>As well as XML-RPC, calls may be made using JSON-RPC 2.0 at the
+ * same endpoint.  Requests with a Content-Type of
+ * <code>application/json</code> are treated as JSON-RPC, and answered
+ * in kind; the handlers see no difference.
+ *
  * @author   Mark Taylor
  * @since    27 Aug 2008
  */
@@ -47,6 +58,22 @@ public class InternalServer implements SampXmlRpcServer {
     private static final Logger logger_ =
         Logger.getLogger( InternalServer.class.getName() );
 
+    /** Length in bytes of a methodResponse document excluding its value. */
+    private static final long RESULT_OVERHEAD = getResultOverhead();
+
+    /**
+     * System property key giving the minimum size in bytes of XML-RPC
+     * message bodies which will be gzip-compressed.
+     * This applies to responses from this class, if the client indicates
+     * that it can accept them, and to calls from {@link InternalClient},
+     * if the server has indicated that it accepts them.
+     * A negative value prevents compression.
+     * The default is 4096.
+     * The property name is {@value}.
+     */
+    public static final String GZIP_THRESHOLD_PROP =
+        "jsamp.xmlrpc.gzip.threshold";
+
     /**
      * Constructor based on a given HTTP server.
      * It is the caller's responsibility to configure and start the HttpServer.
@@ -59,12 +86,15 @@ public class InternalServer implements SampXmlRpcServer {
         server_ = httpServer;
         endpoint_ = new URL( server_.getBaseUrl(), path );
         handlerList_ = Collections.synchronizedList( new ArrayList() );
-        serverHandler_ = new HttpServer.Handler() {
+        serverHandler_ = new HttpServer.PrefixHandler() {
+            public String getPathPrefix() {
+                return path;
+            }
             public HttpServer.Response serveRequest( HttpServer.Request req ) {
                 if ( req.getUrl().equals( path ) ) {
                     String method = req.getMethod();
                     if ( "POST".equals( method ) ) {
-                        return getXmlRpcResponse( req );
+                        return serveXmlRpc( req );
                     }
                     else if ( "GET".equals( method ) ) {
                         return GET_RESPONSE;
@@ -126,39 +156,250 @@ public class InternalServer implements SampXmlRpcServer {
         }
     }
 
+    /**
+     * Serves an XML-RPC POST request, handling HTTP content coding
+     * of the request and response bodies.
+     *
+     * @param  request  POSTed HTTP request
+     * @return  HTTP response
+     */
+    private HttpServer.Response serveXmlRpc( HttpServer.Request request ) {
+
+        // Undo any content coding of the request body.
+        String coding = HttpServer.getHeader( request.getHeaderMap(),
+                                              "Content-Encoding" );
+        if ( coding != null && request.getBodyStream() != null ) {
+            try {
+                request = decodeRequest( request, coding );
+            }
+            catch ( Compression.UnsupportedCodingException e ) {
+                HttpServer.Response response =
+                    HttpServer.createErrorResponse( 415,
+                                                    "Unsupported media type" );
+                response.getHeaderMap()
+                        .put( "Accept-Encoding", Compression.ACCEPTED );
+                return response;
+            }
+            catch ( IOException e ) {
+                return HttpServer.createErrorResponse( 400, "Bad request", e );
+            }
+            if ( request == null ) {
+                return HttpServer.createErrorResponse( 413,
+                                                       "Request too large" );
+            }
+        }
+
+        // Get the response, and compress it if appropriate.
+        HttpServer.Response response = getXmlRpcResponse( request );
+        Map hdrMap = response.getHeaderMap();
+        hdrMap.put( "Accept-Encoding", Compression.ACCEPTED );
+        String clength = HttpServer.getHeader( hdrMap, "Content-Length" );
+        if ( response.getStatusCode() == 200 &&
+             HttpServer.getHeader( hdrMap, "Content-Encoding" ) == null &&
+             Compression.acceptsGzip( HttpServer
+                                     .getHeader( request.getHeaderMap(),
+                                                 "Accept-Encoding" ) ) &&
+             Compression.isWorthwhile( clength == null
+                                           ? -1
+                                           : Long.parseLong( clength ) ) ) {
+            try {
+                return compressResponse( response );
+            }
+            catch ( IOException e ) {
+                logger_.log( Level.WARNING, "Compression failed", e );
+                return HttpServer.createErrorResponse( 500, "Server error",
+                                                       e );
+            }
+        }
+        else {
+            return response;
+        }
+    }
+
+    /**
+     * Returns a request like a given one, but with its body decoded
+     * according to a given content coding.
+     *
+     * @param  request  request with content-coded body
+     * @param  coding   content coding
+     * @return   decoded request, or null if the decoded body would exceed
+     *           the HTTP server's maximum body size
+     */
+    private HttpServer.Request decodeRequest( HttpServer.Request request,
+                                              String coding )
+            throws IOException {
+        InputStream in = Compression.decode( request.getBodyStream(),
+                                             coding );
+        long maxSize = server_.getMaxBodySize();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        byte[] buf = new byte[ 8192 ];
+        for ( int nb; ( nb = in.read( buf ) ) >= 0; ) {
+            bout.write( buf, 0, nb );
+            if ( bout.size() > maxSize ) {
+                return null;
+            }
+        }
+        byte[] body = bout.toByteArray();
+        Map hdrMap = new LinkedHashMap();
+        for ( Iterator it = request.getHeaderMap().entrySet().iterator();
+              it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            String key = (String) entry.getKey();
+            if ( ! "Content-Encoding".equalsIgnoreCase( key ) &&
+                 ! "Content-Length".equalsIgnoreCase( key ) ) {
+                hdrMap.put( key, entry.getValue() );
+            }
+        }
+        hdrMap.put( "Content-Length", Integer.toString( body.length ) );
+        return new HttpServer.Request( request.getMethod(), request.getUrl(),
+                                       hdrMap, request.getRemoteAddress(),
+                                       body );
+    }
+
+    /**
+     * Returns a gzip-compressed version of a response.
+     * If the length of the original is declared, the compressed body
+     * is prepared in advance so that its length can be declared too;
+     * otherwise it is compressed as it is written.
+     *
+     * @param  response  uncompressed response
+     * @return   compressed response
+     */
+    private static HttpServer.Response
+            compressResponse( final HttpServer.Response response )
+            throws IOException {
+        Map hdrMap = new LinkedHashMap( response.getHeaderMap() );
+        boolean hasLength = hdrMap.remove( "Content-Length" ) != null;
+        hdrMap.put( "Content-Encoding", Compression.GZIP );
+        hdrMap.put( "Vary", "Accept-Encoding" );
+        int status = response.getStatusCode();
+        String phrase = response.getStatusPhrase();
+        if ( hasLength ) {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            response.writeBody( bout );
+            final byte[] zbuf = Compression.gzip( bout.toByteArray() );
+            hdrMap.put( "Content-Length", Integer.toString( zbuf.length ) );
+            return new HttpServer.Response( status, phrase, hdrMap ) {
+                public void writeBody( OutputStream out ) throws IOException {
+                    out.write( zbuf );
+                }
+            };
+        }
+        else {
+            return new HttpServer.Response( status, phrase, hdrMap ) {
+                public void writeBody( OutputStream out ) throws IOException {
+                    GZIPOutputStream zout = new GZIPOutputStream( out );
+                    response.writeBody( zout );
+                    zout.finish();
+                }
+            };
+        }
+    }
+
     /**
      * Returns the HTTP response object given an incoming XML-RPC POST request.
      * Any error should be handled by returning a fault-type methodResponse
      * element rather than by throwing an exception.
+     * A successful result is not serialized in advance; its length is
+     * calculated, and it is written straight to the connection.
      *
      * @param  request  POSTed HTTP request
      * @return  XML-RPC response (possibly fault)
      */
     protected HttpServer.Response
               getXmlRpcResponse( HttpServer.Request request ) {
-        byte[] rbuf;
+        if ( InternalClient
+            .isJsonType( HttpServer.getHeader( request.getHeaderMap(),
+                                               "Content-Type" ) ) ) {
+            return getJsonRpcResponse( request );
+        }
+        Map hdrMap = new LinkedHashMap();
+        hdrMap.put( "Content-Type", "text/xml" );
         try {
-            rbuf = getResultBytes( getXmlRpcResult( request ) );
+            final Object result = getXmlRpcResult( request );
+            long leng = RESULT_OVERHEAD + XmlWriter.getCompactLength( result );
+            hdrMap.put( "Content-Length", Long.toString( leng ) );
+            return new HttpServer.Response( 200, "OK", hdrMap ) {
+                public void writeBody( OutputStream out ) throws IOException {
+                    writeResult( result, out );
+                }
+            };
         }
         catch ( Throwable e ) {
             boolean isSerious = e instanceof Error;
             logger_.log( isSerious ? Level.WARNING : Level.INFO,
                          "XML-RPC fault return", e );
+            final byte[] faultBuf;
+            try {
+                faultBuf = getFaultBytes( e );
+            }
+            catch ( IOException e2 ) {
+                return HttpServer.createErrorResponse( 500, "Server error",
+                                                       e2 );
+            }
+            hdrMap.put( "Content-Length", Integer.toString( faultBuf.length ) );
+            return new HttpServer.Response( 200, "OK", hdrMap ) {
+                public void writeBody( OutputStream out ) throws IOException {
+                    out.write( faultBuf );
+                }
+            };
+        }
+    }
+
+    /**
+     * Returns the HTTP response object given an incoming JSON-RPC POST
+     * request.  The call is handled in just the same way as an XML-RPC one,
+     * but the request and response are JSON-RPC 2.0 objects.
+     * Any error is handled by returning a JSON-RPC error response.
+     *
+     * @param  request  POSTed HTTP request with JSON content
+     * @return  JSON-RPC response (possibly error)
+     */
+    private HttpServer.Response
+            getJsonRpcResponse( HttpServer.Request request ) {
+        Object id = null;
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        JsonRpcEncoder encoder = JsonRpcEncoder.getThreadEncoder();
+        try {
+            InputStream bodyIn = request.getBodyStream();
+            if ( bodyIn == null || request.getBodyLength() == 0 ) {
+                throw new XmlRpcFormatException( "No body in POSTed request" );
+            }
+            Object call = JsonRpcParser.parse( bodyIn );
+            Map callMap = call instanceof Map ? (Map) call : new HashMap();
+            id = callMap.get( "id" );
+            Object methodName = callMap.get( "method" );
+            Object params = callMap.containsKey( "params" )
+                          ? callMap.get( "params" )
+                          : new ArrayList();
+            if ( ! ( methodName instanceof String ) ||
+                 ! ( params instanceof List ) ) {
+                throw new XmlRpcFormatException( "Bad JSON-RPC request" );
+            }
+            Object result = getCallResult( (String) methodName,
+                                           (List) params, request );
+            encoder.writeResponse( result, id, bout );
+        }
+        catch ( Throwable e ) {
+            boolean isSerious = e instanceof Error;
+            logger_.log( isSerious ? Level.WARNING : Level.INFO,
+                         "JSON-RPC error return", e );
+            bout.reset();
             try {
-                rbuf = getFaultBytes( e );
+                encoder.writeError( 1, e.toString(), id, bout );
             }
             catch ( IOException e2 ) {
                 return HttpServer.createErrorResponse( 500, "Server error",
                                                        e2 );
             }
         }
-        final byte[] replyBuf = rbuf;
+        final byte[] buf = bout.toByteArray();
         Map hdrMap = new LinkedHashMap();
-        hdrMap.put( "Content-Length", Integer.toString( replyBuf.length ) );
-        hdrMap.put( "Content-Type", "text/xml" );
+        hdrMap.put( "Content-Type", InternalClient.JSON_TYPE );
+        hdrMap.put( "Content-Length", Integer.toString( buf.length ) );
         return new HttpServer.Response( 200, "OK", hdrMap ) {
             public void writeBody( OutputStream out ) throws IOException {
-                out.write( replyBuf );
+                out.write( buf );
             }
         };
     }
@@ -173,38 +414,138 @@ public class InternalServer implements SampXmlRpcServer {
      */ 
     private Object getXmlRpcResult( HttpServer.Request request )
             throws Exception {
-        byte[] body = request.getBody();
+        InputStream bodyIn = request.getBodyStream();
 
-        // Parse body as XML document.
-        if ( body == null || body.length == 0 ) {
+        // Decode XML-RPC call from the body, straight from the connection.
+        if ( bodyIn == null || request.getBodyLength() == 0 ) {
             throw new XmlRpcFormatException( "No body in POSTed request" );
         }
-        Document doc = XmlUtils.createDocumentBuilder()
-                      .parse( new ByteArrayInputStream( body ) );
+        XmlRpcCall call = XmlRpcParser.parseCall( bodyIn );
+        return getCallResult( call.getMethodName(), call.getParams(),
+                              request );
+    }
+
+    /**
+     * Returns the SAMP-friendly result of a call received in some format.
+     *
+     * @param   methodName  method name
+     * @param   paramList  list of parameters to call
+     * @param   request  HTTP request from which this call originated
+     * @return   SAMP-friendly object
+     * @throws  Exception  in case of error
+     */
+    private Object getCallResult( String methodName, List paramList,
+                                  HttpServer.Request request )
+            throws Exception {
+
+        // Unpack a batch of calls if required, unless a handler
+        // has taken responsibility for it.
+        if ( XmlRpcBatch.MULTICALL_METHOD.equals( methodName ) &&
+             getHandler( methodName ) == null ) {
+            return multiCall( paramList, request );
+        }
 
-        // Extract XML-RPC information from DOM.
-        XmlRpcCall call = XmlRpcCall.createCall( doc );
-        String methodName = call.getMethodName();
-        List paramList = call.getParams();
+        // Otherwise dispatch the call as normal.
+        return dispatchCall( methodName, paramList, request );
+    }
 
-        // Find one of the registered handlers to handle this request.
-        SampXmlRpcHandler handler = null;
+    /**
+     * Passes a single XML-RPC call to a suitable registered handler.
+     *
+     * @param   methodName  XML-RPC method name
+     * @param   paramList  list of parameters to XML-RPC call
+     * @param   request  HTTP request from which this call originated
+     * @return   SAMP-friendly result object
+     */
+    private Object dispatchCall( String methodName, List paramList,
+                                 HttpServer.Request request )
+            throws Exception {
+        SampXmlRpcHandler handler = getHandler( methodName );
+        if ( handler == null ) {
+            throw new XmlRpcFormatException( "Unknown XML-RPC method "
+                                           + methodName );
+        }
+        return handleCall( handler, methodName, paramList, request );
+    }
+
+    /**
+     * Returns one of the registered handlers which can handle a given
+     * method.
+     *
+     * @param   methodName  XML-RPC method name
+     * @return   handler, or null if none is suitable
+     */
+    private SampXmlRpcHandler getHandler( String methodName ) {
         SampXmlRpcHandler[] handlers =
             (SampXmlRpcHandler[])
             handlerList_.toArray( new SampXmlRpcHandler[ 0 ] );
-        for ( int ih = 0; ih < handlers.length && handler == null; ih++ ) {
+        for ( int ih = 0; ih < handlers.length; ih++ ) {
             SampXmlRpcHandler h = handlers[ ih ];
             if ( h.canHandleCall( methodName ) ) {
-                handler = h;
+                return h;
             }
         }
-        if ( handler == null ) {
-            throw new XmlRpcFormatException( "Unknown XML-RPC method "
-                                           + methodName );
-        }
+        return null;
+    }
 
-        // Pass the call to the handler and return the result.
-        return handleCall( handler, methodName, paramList, request );
+    /**
+     * Executes the calls in a <code>system.multicall</code> request
+     * in sequence.  Following the usual convention, the single parameter
+     * is a list of structs with members <code>methodName</code> and
+     * <code>params</code>, and the result is a list with one element
+     * for each call; this is either a one-element list containing the
+     * call result, or a fault struct.  Failure of one call does not
+     * prevent execution of the others.
+     *
+     * @param   paramList  list of parameters to multicall
+     * @param   request  HTTP request from which this call originated
+     * @return   list of per-call results
+     */
+    private List multiCall( List paramList, HttpServer.Request request )
+            throws XmlRpcFormatException {
+        if ( paramList.size() != 1 ||
+             ! ( paramList.get( 0 ) instanceof List ) ) {
+            throw new XmlRpcFormatException( XmlRpcBatch.MULTICALL_METHOD
+                                           + " takes a single array"
+                                           + " parameter" );
+        }
+        List callList = (List) paramList.get( 0 );
+        List resultList = new ArrayList( callList.size() );
+        for ( Iterator it = callList.iterator(); it.hasNext(); ) {
+            Object callObj = it.next();
+            Object result;
+            try {
+                if ( ! ( callObj instanceof Map ) ) {
+                    throw new XmlRpcFormatException( "Batched call not a "
+                                                   + "struct" );
+                }
+                Map callMap = (Map) callObj;
+                Object name = callMap.get( "methodName" );
+                Object params = callMap.get( "params" );
+                if ( ! ( name instanceof String ) ||
+                     ! ( params instanceof List ) ) {
+                    throw new XmlRpcFormatException( "Bad batched call "
+                                                   + callMap );
+                }
+                if ( XmlRpcBatch.MULTICALL_METHOD.equals( name ) ) {
+                    throw new XmlRpcFormatException( "Recursive " + name
+                                                   + " forbidden" );
+                }
+                result = Collections
+                        .singletonList( dispatchCall( (String) name,
+                                                      (List) params,
+                                                      request ) );
+            }
+            catch ( Exception e ) {
+                logger_.log( Level.INFO, "XML-RPC batched fault return", e );
+                Map faultMap = new LinkedHashMap();
+                faultMap.put( "faultCode", new Integer( 1 ) );
+                faultMap.put( "faultString", e.toString() );
+                result = faultMap;
+            }
+            resultList.add( result );
+        }
+        return resultList;
     }
 
     /**
@@ -232,19 +573,23 @@ public class InternalServer implements SampXmlRpcServer {
      */
     public static byte[] getResultBytes( Object result ) throws IOException {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        BufferedOutputStream bout = new BufferedOutputStream( out );
-        XmlWriter xout = new XmlWriter( bout, 2 );
-        xout.start( "methodResponse" );
-        xout.start( "params" );
-        xout.start( "param" );
-        xout.sampValue( result );
-        xout.end( "param" );
-        xout.end( "params" );
-        xout.end( "methodResponse" );
-        xout.close();
+        writeResult( result, out );
         return out.toByteArray();
     }
 
+    /**
+     * Writes a compact XML-RPC methodResponse document representing
+     * a SAMP-friendly (string, list, map only) object to a stream.
+     * The stream is flushed but not closed.
+     *
+     * @param  result  SAMP-friendly object
+     * @param  out  destination stream
+     */
+    public static void writeResult( Object result, OutputStream out )
+            throws IOException {
+        XmlRpcEncoder.getThreadEncoder().writeResponse( result, out );
+    }
+
     /**
      * Turns an exception into an array of bytes giving an XML-RPC 
      * methodResponse (fault) document.
@@ -260,8 +605,7 @@ public class InternalServer implements SampXmlRpcServer {
         // sampValue method to do the grunt-work here since the faultCode
         // contains an <int>, which is not a known SAMP type.
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        BufferedOutputStream bout = new BufferedOutputStream( out );
-        XmlWriter xout = new XmlWriter( bout, 2 );
+        XmlWriter xout = new XmlWriter( out, 0 );
         xout.start( "methodResponse" );
         xout.start( "fault" );
         xout.start( "value" );
@@ -284,6 +628,22 @@ public class InternalServer implements SampXmlRpcServer {
         return out.toByteArray();
     }
 
+    /**
+     * Calculates the number of bytes in a result document
+     * which do not depend on the result value.
+     *
+     * @return  methodResponse document length minus value length
+     */
+    private static long getResultOverhead() {
+        try {
+            return getResultBytes( "" ).length
+                 - XmlWriter.getCompactLength( "" );
+        }
+        catch ( IOException e ) {
+            throw (AssertionError) new AssertionError().initCause( e );
+        }
+    }
+
     /**
      * Returns a simple response suitable for GET/HEAD at the XML-RPC
      * server's endpoint.
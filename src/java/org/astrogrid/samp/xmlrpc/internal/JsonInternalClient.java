@@ -0,0 +1,174 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * InternalClient variant which makes calls using JSON-RPC 2.0
+ * rather than XML-RPC where the server supports it.
+ * JSON is considerably cheaper than XML-RPC to encode and decode,
+ * and more compact on the wire.
+ *
+ * <p>The server is assumed to understand JSON-RPC if it replies to a
+ * JSON-RPC call with JSON content, as {@link InternalServer} does.
+ * If it replies in any other way, for instance because it is an
+ * XML-RPC-only server which has rejected the call as badly-formed,
+ * the call is repeated using XML-RPC, and all subsequent calls from
+ * this client use XML-RPC as well.  Once the server has replied using
+ * JSON however, any other reply is treated as a failure of that call.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public class JsonInternalClient extends InternalClient {
+
+    /** Whether JSON is known to work (TRUE), not to work (FALSE), or null. */
+    private volatile Boolean jsonOk_;
+
+    private static final Logger logger_ =
+        Logger.getLogger( JsonInternalClient.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param  endpoint  endpoint
+     */
+    public JsonInternalClient( URL endpoint ) {
+        super( endpoint );
+    }
+
+    public Object callAndWait( String method, List params )
+            throws IOException {
+        if ( ! Boolean.FALSE.equals( jsonOk_ ) ) {
+            byte[] callBuf = serializeJsonCall( method, params );
+            ConnectionPool.Response response =
+                sendCall( callBuf, JSON_TYPE, false );
+            try {
+                if ( isJsonType( response.getHeader( "Content-Type" ) ) ) {
+                    jsonOk_ = Boolean.TRUE;
+                    return deserializeJsonResponse(
+                               getResponseStream( response ) );
+                }
+
+                // If the server has previously accepted JSON, this is
+                // just a failure; don't repeat the call.
+                else if ( Boolean.TRUE.equals( jsonOk_ ) ) {
+                    getResponseStream( response );
+                    throw new XmlRpcFormatException( "Non-JSON response" );
+                }
+            }
+            finally {
+                response.close();
+            }
+            noteNoJson();
+        }
+        return super.callAndWait( method, params );
+    }
+
+    public void callAndForget( final String method, List params,
+                               DeliveryListener listener )
+            throws IOException {
+        if ( Boolean.FALSE.equals( jsonOk_ ) ) {
+            super.callAndForget( method, params, listener );
+            return;
+        }
+
+        // Serialize in the calling thread.  If it's not yet known whether
+        // the server accepts JSON, prepare an XML-RPC version as well
+        // in case it turns out to be required.
+        final byte[] jsonBuf = serializeJsonCall( method, params );
+        final byte[] xmlBuf = Boolean.TRUE.equals( jsonOk_ )
+                            ? null
+                            : serializeCall( method, params );
+        submitDelivery( method, listener, new Delivery() {
+            public void deliver() throws IOException {
+                ConnectionPool.Response response =
+                    JsonInternalClient.this.deliver( jsonBuf, JSON_TYPE );
+                if ( isJsonType( response.getHeader( "Content-Type" ) ) ) {
+                    jsonOk_ = Boolean.TRUE;
+                    checkDelivered( response );
+                }
+                else {
+                    noteNoJson();
+                    if ( xmlBuf != null ) {
+                        checkDelivered( JsonInternalClient.this
+                                       .deliver( xmlBuf, XML_TYPE ) );
+                    }
+                    else {
+                        throw new XmlRpcFormatException( "Not JSON-RPC" );
+                    }
+                }
+            }
+        } );
+    }
+
+    /**
+     * Indicates whether this client is known to be making calls using
+     * JSON-RPC.
+     *
+     * @return  true if JSON-RPC has been used successfully,
+     *          false if it is not in use (yet)
+     */
+    public boolean isUsingJson() {
+        return Boolean.TRUE.equals( jsonOk_ );
+    }
+
+    /**
+     * Generates the JSON-RPC request object corresponding to a method call.
+     *
+     * @param   method  method name
+     * @param   paramList  list of parameters
+     * @return   JSON document as byte array
+     */
+    protected byte[] serializeJsonCall( String method, List paramList )
+            throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        JsonRpcEncoder.getThreadEncoder().writeCall( method, paramList, bos );
+        return bos.toByteArray();
+    }
+
+    /**
+     * Deserializes a JSON-RPC response object to a Java object.
+     *
+     * @param   in  input stream containing response document
+     * @return   call result
+     * @throws   IOException  if the response signals an error
+     */
+    protected Object deserializeJsonResponse( InputStream in )
+            throws IOException {
+        Object response = JsonRpcParser.parse( in );
+        if ( ! ( response instanceof Map ) ) {
+            throw new XmlRpcFormatException( "Bad JSON-RPC response" );
+        }
+        Map responseMap = (Map) response;
+        Object error = responseMap.get( "error" );
+        if ( error instanceof Map ) {
+            Map errMap = (Map) error;
+            throw new IOException( "JSON-RPC Error ("
+                                 + errMap.get( "code" ) + ": "
+                                 + errMap.get( "message" ) + ")" );
+        }
+        Object result = responseMap.get( "result" );
+        if ( result == null ) {
+            throw new XmlRpcFormatException( "No result in JSON-RPC "
+                                           + "response" );
+        }
+        return result;
+    }
+
+    /**
+     * Records that the server does not accept JSON-RPC.
+     */
+    private void noteNoJson() {
+        if ( ! Boolean.FALSE.equals( jsonOk_ ) ) {
+            logger_.info( "No JSON-RPC at " + getEndpoint()
+                        + " - using XML-RPC" );
+        }
+        jsonOk_ = Boolean.FALSE;
+    }
+}
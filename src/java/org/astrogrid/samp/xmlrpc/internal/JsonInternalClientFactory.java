@@ -0,0 +1,19 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.IOException;
+import java.net.URL;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcClient;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcClientFactory;
+
+/**
+ * Freestanding SampXmlRpcClientFactory implementation which makes
+ * calls using JSON-RPC where the server supports it.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public class JsonInternalClientFactory implements SampXmlRpcClientFactory {
+    public SampXmlRpcClient createClient( URL endpoint ) throws IOException {
+        return new JsonInternalClient( endpoint );
+    }
+}
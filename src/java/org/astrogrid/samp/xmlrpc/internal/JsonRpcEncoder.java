@@ -0,0 +1,416 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.astrogrid.samp.EncodingCache;
+
+/**
+ * Writes JSON-RPC 2.0 documents containing SAMP-friendly values
+ * directly as UTF-8 bytes.
+ *
+ * <p>This is the JSON counterpart of {@link XmlRpcEncoder}, and works
+ * in the same way: markup is copied from pre-encoded byte arrays,
+ * text is escaped and encoded into a byte buffer by a single loop,
+ * and the buffer is written to the destination stream whenever it
+ * fills up.  Encoded forms of maps which are
+ * {@link EncodingCache}s are likewise stored and reused.
+ *
+ * <p>An encoder may be reused for any number of documents, but is not
+ * thread-safe; {@link #getThreadEncoder} provides an instance per thread.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+class JsonRpcEncoder {
+
+    private final byte[] buf_;
+    private final int limit_;
+    private OutputStream out_;
+    private int pos_;
+
+    /** Default size of the byte buffer. */
+    public static final int DEFAULT_BUFSIZ = 8 * 1024;
+
+    /** Maximum number of bytes written for a single char of text. */
+    private static final int MAX_CHAR_BYTES = 6;
+
+    private static final byte[] CALL_START =
+        toBytes( "{\"jsonrpc\":\"2.0\",\"method\":" );
+    private static final byte[] CALL_PARAMS = toBytes( ",\"params\":" );
+    private static final byte[] CALL_END = toBytes( ",\"id\":1}" );
+    private static final byte[] RESULT_START =
+        toBytes( "{\"jsonrpc\":\"2.0\",\"result\":" );
+    private static final byte[] ERROR_START =
+        toBytes( "{\"jsonrpc\":\"2.0\",\"error\":{\"code\":" );
+    private static final byte[] ERROR_MESSAGE = toBytes( ",\"message\":" );
+    private static final byte[] ERROR_END = toBytes( "}" );
+    private static final byte[] ID = toBytes( ",\"id\":" );
+    private static final byte[] NULL = toBytes( "null" );
+    private static final byte[] QUOTE = toBytes( "\"" );
+    private static final byte[] COMMA = toBytes( "," );
+    private static final byte[] COLON = toBytes( ":" );
+    private static final byte[] ARRAY_START = toBytes( "[" );
+    private static final byte[] ARRAY_END = toBytes( "]" );
+    private static final byte[] OBJECT_START = toBytes( "{" );
+    private static final byte[] OBJECT_END = toBytes( "}" );
+    private static final byte[] HEX = toBytes( "0123456789abcdef" );
+
+    /** Key for encodings stored in broadcast messages. */
+    private static final Object ENCODING_KEY = JsonRpcEncoder.class;
+
+    private static final ThreadLocal threadEncoder_ = new ThreadLocal() {
+        protected Object initialValue() {
+            return new JsonRpcEncoder( DEFAULT_BUFSIZ );
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param  bufsiz  size of byte buffer; must be at least a few hundred
+     */
+    public JsonRpcEncoder( int bufsiz ) {
+        buf_ = new byte[ bufsiz ];
+        limit_ = bufsiz - MAX_CHAR_BYTES;
+    }
+
+    /**
+     * Writes a JSON-RPC request object.
+     * The stream is flushed but not closed.
+     *
+     * @param  method  method name
+     * @param  paramList  list of SAMP-friendly parameters
+     * @param  out  destination stream
+     */
+    public void writeCall( String method, List paramList, OutputStream out )
+            throws IOException {
+        start( out );
+        try {
+            markup( CALL_START );
+            string( method );
+            markup( CALL_PARAMS );
+            value( paramList );
+            markup( CALL_END );
+            finish();
+        }
+        finally {
+            out_ = null;
+        }
+    }
+
+    /**
+     * Writes a successful JSON-RPC response object.
+     * The stream is flushed but not closed.
+     *
+     * @param  result  SAMP-friendly result value
+     * @param  id   request identifier; a string, number or null
+     * @param  out  destination stream
+     */
+    public void writeResponse( Object result, Object id, OutputStream out )
+            throws IOException {
+        start( out );
+        try {
+            markup( RESULT_START );
+            value( result );
+            markup( ID );
+            id( id );
+            markup( OBJECT_END );
+            finish();
+        }
+        finally {
+            out_ = null;
+        }
+    }
+
+    /**
+     * Writes a JSON-RPC error response object.
+     * The stream is flushed but not closed.
+     *
+     * @param  code  error code
+     * @param  message  error message
+     * @param  id   request identifier; a string, number or null
+     * @param  out  destination stream
+     */
+    public void writeError( int code, String message, Object id,
+                            OutputStream out )
+            throws IOException {
+        start( out );
+        try {
+            markup( ERROR_START );
+            text( Integer.toString( code ) );
+            markup( ERROR_MESSAGE );
+            string( message );
+            markup( ERROR_END );
+            markup( ID );
+            id( id );
+            markup( OBJECT_END );
+            finish();
+        }
+        finally {
+            out_ = null;
+        }
+    }
+
+    /**
+     * Returns an encoder for the exclusive use of the calling thread.
+     *
+     * @return  encoder
+     */
+    public static JsonRpcEncoder getThreadEncoder() {
+        return (JsonRpcEncoder) threadEncoder_.get();
+    }
+
+    /**
+     * Returns the encoded bytes of a map as written
+     * within a document by this class.
+     *
+     * @param  value  map with string keys and SAMP-friendly values
+     * @return   compact JSON object as UTF-8 bytes
+     */
+    private static byte[] encodeValue( Map value ) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonRpcEncoder encoder = new JsonRpcEncoder( DEFAULT_BUFSIZ );
+        encoder.out_ = out;
+        try {
+            encoder.mapValue( value );
+            encoder.drain();
+        }
+        finally {
+            encoder.out_ = null;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Prepares to write a document.
+     *
+     * @param  out  destination stream
+     */
+    private void start( OutputStream out ) {
+        if ( out_ != null ) {
+            throw new IllegalStateException( "Encoder in use" );
+        }
+        out_ = out;
+        pos_ = 0;
+    }
+
+    /**
+     * Writes any buffered bytes and flushes the destination stream.
+     */
+    private void finish() throws IOException {
+        drain();
+        out_.flush();
+    }
+
+    /**
+     * Writes any buffered bytes to the destination stream.
+     */
+    private void drain() throws IOException {
+        if ( pos_ > 0 ) {
+            out_.write( buf_, 0, pos_ );
+            pos_ = 0;
+        }
+    }
+
+    /**
+     * Writes a SAMP-friendly object as JSON.
+     *
+     * @param  value  object to serialize; must be a string, list or map
+     *                (or integer, as for XmlWriter)
+     */
+    private void value( Object value ) throws IOException {
+        if ( value instanceof String ) {
+            string( (String) value );
+        }
+        else if ( value instanceof List ) {
+            markup( ARRAY_START );
+            boolean first = true;
+            for ( Iterator it = ((List) value).iterator(); it.hasNext(); ) {
+                if ( ! first ) {
+                    markup( COMMA );
+                }
+                first = false;
+                value( it.next() );
+            }
+            markup( ARRAY_END );
+        }
+        else if ( value instanceof EncodingCache && value instanceof Map ) {
+            EncodingCache cache = (EncodingCache) value;
+            byte[] encoded = (byte[]) cache.getEncoding( ENCODING_KEY );
+            if ( encoded == null ) {
+                encoded = encodeValue( (Map) value );
+                cache.setEncoding( ENCODING_KEY, encoded );
+            }
+            bulk( encoded );
+        }
+        else if ( value instanceof Map ) {
+            mapValue( (Map) value );
+        }
+        else if ( value instanceof Integer ) {
+            text( value.toString() );
+        }
+        else if ( value == null ) {
+            throw new XmlRpcFormatException( "Null value not permitted" );
+        }
+        else {
+            throw new XmlRpcFormatException( "Unsupported object type "
+                                           + value.getClass().getName() );
+        }
+    }
+
+    /**
+     * Writes a map as a JSON object.
+     *
+     * @param  map  map with string keys and SAMP-friendly values
+     */
+    private void mapValue( Map map ) throws IOException {
+        markup( OBJECT_START );
+        boolean first = true;
+        for ( Iterator it = map.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            if ( ! first ) {
+                markup( COMMA );
+            }
+            first = false;
+            string( entry.getKey().toString() );
+            markup( COLON );
+            value( entry.getValue() );
+        }
+        markup( OBJECT_END );
+    }
+
+    /**
+     * Writes a request identifier.
+     *
+     * @param  id  string, number or null
+     */
+    private void id( Object id ) throws IOException {
+        if ( id instanceof String ) {
+            string( (String) id );
+        }
+        else if ( id instanceof Number ) {
+            text( id.toString() );
+        }
+        else {
+            markup( NULL );
+        }
+    }
+
+    /**
+     * Writes a quoted JSON string.
+     *
+     * @param  txt  string content
+     */
+    private void string( String txt ) throws IOException {
+        markup( QUOTE );
+        text( txt );
+        markup( QUOTE );
+    }
+
+    /**
+     * Writes pre-encoded bytes of any length.
+     *
+     * @param  bytes  encoded bytes
+     */
+    private void bulk( byte[] bytes ) throws IOException {
+        if ( bytes.length <= buf_.length ) {
+            markup( bytes );
+        }
+        else {
+            drain();
+            out_.write( bytes );
+        }
+    }
+
+    /**
+     * Writes pre-encoded markup, draining the buffer first if required.
+     *
+     * @param  bytes  markup bytes, shorter than the buffer
+     */
+    private void markup( byte[] bytes ) throws IOException {
+        if ( pos_ + bytes.length > buf_.length ) {
+            drain();
+        }
+        System.arraycopy( bytes, 0, buf_, pos_, bytes.length );
+        pos_ += bytes.length;
+    }
+
+    /**
+     * Writes text as escaped UTF-8, suitable for the content of a
+     * JSON string.
+     * Unpaired surrogates are written as '?', as OutputStreamWriter does.
+     *
+     * @param  txt  text
+     */
+    private void text( String txt ) throws IOException {
+        byte[] buf = buf_;
+        int pos = pos_;
+        int leng = txt.length();
+        for ( int i = 0; i < leng; i++ ) {
+            if ( pos > limit_ ) {
+                pos_ = pos;
+                drain();
+                pos = 0;
+            }
+            char c = txt.charAt( i );
+            if ( c >= 0x20 && c < 0x80 && c != '"' && c != '\\' ) {
+                buf[ pos++ ] = (byte) c;
+            }
+            else if ( c == '"' || c == '\\' ) {
+                buf[ pos++ ] = (byte) '\\';
+                buf[ pos++ ] = (byte) c;
+            }
+            else if ( c < 0x20 ) {
+                buf[ pos++ ] = (byte) '\\';
+                buf[ pos++ ] = (byte) 'u';
+                buf[ pos++ ] = (byte) '0';
+                buf[ pos++ ] = (byte) '0';
+                buf[ pos++ ] = HEX[ c >> 4 ];
+                buf[ pos++ ] = HEX[ c & 0xf ];
+            }
+            else if ( c < 0x800 ) {
+                buf[ pos++ ] = (byte) ( 0xc0 | ( c >> 6 ) );
+                buf[ pos++ ] = (byte) ( 0x80 | ( c & 0x3f ) );
+            }
+            else if ( c < 0xd800 || c > 0xdfff ) {
+                buf[ pos++ ] = (byte) ( 0xe0 | ( c >> 12 ) );
+                buf[ pos++ ] = (byte) ( 0x80 | ( ( c >> 6 ) & 0x3f ) );
+                buf[ pos++ ] = (byte) ( 0x80 | ( c & 0x3f ) );
+            }
+            else if ( c <= 0xdbff && i + 1 < leng &&
+                      txt.charAt( i + 1 ) >= 0xdc00 &&
+                      txt.charAt( i + 1 ) <= 0xdfff ) {
+                int cp = 0x10000 + ( ( c - 0xd800 ) << 10 )
+                                 + ( txt.charAt( ++i ) - 0xdc00 );
+                buf[ pos++ ] = (byte) ( 0xf0 | ( cp >> 18 ) );
+                buf[ pos++ ] = (byte) ( 0x80 | ( ( cp >> 12 ) & 0x3f ) );
+                buf[ pos++ ] = (byte) ( 0x80 | ( ( cp >> 6 ) & 0x3f ) );
+                buf[ pos++ ] = (byte) ( 0x80 | ( cp & 0x3f ) );
+            }
+            else {
+                buf[ pos++ ] = (byte) '?';
+            }
+        }
+        pos_ = pos;
+    }
+
+    /**
+     * Encodes an ASCII string as bytes.
+     *
+     * @param  txt  string
+     * @return  byte array
+     */
+    private static byte[] toBytes( String txt ) {
+        try {
+            return txt.getBytes( "US-ASCII" );
+        }
+        catch ( UnsupportedEncodingException e ) {
+            throw (AssertionError) new AssertionError().initCause( e );
+        }
+    }
+}
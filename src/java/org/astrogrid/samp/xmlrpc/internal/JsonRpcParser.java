@@ -0,0 +1,387 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses UTF-8 encoded JSON as used in JSON-RPC documents.
+ * Strings, arrays and objects are decoded to Strings, Lists and Maps
+ * as usual for SAMP.  Since JSON-RPC envelopes may also contain other
+ * values, numbers are decoded to Integers or Doubles, booleans to
+ * Booleans, and <code>null</code> to null.
+ *
+ * <p>The whole document is read into memory and decoded from a byte
+ * array, which is considerably faster than a general-purpose streaming
+ * parser.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+class JsonRpcParser {
+
+    private final byte[] buf_;
+    private final int end_;
+    private int pos_;
+    private char[] cbuf_;
+
+    /**
+     * Constructor.
+     *
+     * @param  buf  buffer containing UTF-8 bytes
+     * @param  off  offset of document start
+     * @param  leng  length of document in bytes
+     */
+    private JsonRpcParser( byte[] buf, int off, int leng ) {
+        buf_ = buf;
+        pos_ = off;
+        end_ = off + leng;
+        cbuf_ = new char[ 64 ];
+    }
+
+    /**
+     * Parses a JSON document from a stream.
+     * The stream is read to the end but not closed.
+     *
+     * @param  in  input stream
+     * @return  decoded value
+     * @throws  XmlRpcFormatException  if the input is not valid JSON
+     */
+    public static Object parse( InputStream in ) throws IOException {
+        byte[] buf = new byte[ 8192 ];
+        int leng = 0;
+        for ( int nb; ( nb = in.read( buf, leng, buf.length - leng ) ) >= 0; ) {
+            leng += nb;
+            if ( leng == buf.length ) {
+                byte[] buf1 = new byte[ buf.length * 2 ];
+                System.arraycopy( buf, 0, buf1, 0, leng );
+                buf = buf1;
+            }
+        }
+        return parse( buf, 0, leng );
+    }
+
+    /**
+     * Parses a JSON document from a byte array.
+     *
+     * @param  buf  buffer containing UTF-8 bytes
+     * @param  off  offset of document start
+     * @param  leng  length of document in bytes
+     * @return  decoded value
+     * @throws  XmlRpcFormatException  if the input is not valid JSON
+     */
+    public static Object parse( byte[] buf, int off, int leng )
+            throws XmlRpcFormatException {
+        JsonRpcParser parser = new JsonRpcParser( buf, off, leng );
+        Object value = parser.readValue();
+        if ( parser.skipSpace() ) {
+            throw parser.error( "Trailing content" );
+        }
+        return value;
+    }
+
+    /**
+     * Reads a value starting at the current position.
+     *
+     * @return  decoded value
+     */
+    private Object readValue() throws XmlRpcFormatException {
+        if ( ! skipSpace() ) {
+            throw error( "Unexpected end of input" );
+        }
+        byte b = buf_[ pos_ ];
+        switch ( b ) {
+            case '"':
+                pos_++;
+                return readString();
+            case '[':
+                pos_++;
+                return readArray();
+            case '{':
+                pos_++;
+                return readObject();
+            case 't':
+                readWord( "true" );
+                return Boolean.TRUE;
+            case 'f':
+                readWord( "false" );
+                return Boolean.FALSE;
+            case 'n':
+                readWord( "null" );
+                return null;
+            default:
+                if ( b == '-' || ( b >= '0' && b <= '9' ) ) {
+                    return readNumber();
+                }
+                else {
+                    throw error( "Unexpected character '" + (char) b + "'" );
+                }
+        }
+    }
+
+    /**
+     * Reads the remainder of an array following its opening bracket.
+     *
+     * @return  list
+     */
+    private List readArray() throws XmlRpcFormatException {
+        List list = new ArrayList();
+        if ( skipSpace() && buf_[ pos_ ] == ']' ) {
+            pos_++;
+            return list;
+        }
+        while ( true ) {
+            list.add( readValue() );
+            byte b = nextToken();
+            if ( b == ']' ) {
+                return list;
+            }
+            else if ( b != ',' ) {
+                throw error( "Expected ',' or ']' in array" );
+            }
+        }
+    }
+
+    /**
+     * Reads the remainder of an object following its opening brace.
+     *
+     * @return  map
+     */
+    private Map readObject() throws XmlRpcFormatException {
+        Map map = new HashMap();
+        if ( skipSpace() && buf_[ pos_ ] == '}' ) {
+            pos_++;
+            return map;
+        }
+        while ( true ) {
+            if ( nextToken() != '"' ) {
+                throw error( "Expected string key in object" );
+            }
+            String key = readString();
+            if ( nextToken() != ':' ) {
+                throw error( "Expected ':' in object" );
+            }
+            map.put( key, readValue() );
+            byte b = nextToken();
+            if ( b == '}' ) {
+                return map;
+            }
+            else if ( b != ',' ) {
+                throw error( "Expected ',' or '}' in object" );
+            }
+        }
+    }
+
+    /**
+     * Reads the remainder of a string following its opening quote,
+     * decoding escapes and UTF-8 sequences.
+     *
+     * @return  string
+     */
+    private String readString() throws XmlRpcFormatException {
+        byte[] buf = buf_;
+        int pos = pos_;
+        int nc = 0;
+        while ( true ) {
+            if ( pos >= end_ ) {
+                pos_ = pos;
+                throw error( "Unterminated string" );
+            }
+            if ( nc + 2 > cbuf_.length ) {
+                char[] cbuf1 = new char[ cbuf_.length * 2 ];
+                System.arraycopy( cbuf_, 0, cbuf1, 0, nc );
+                cbuf_ = cbuf1;
+            }
+            int b = buf[ pos++ ];
+            if ( b == '"' ) {
+                pos_ = pos;
+                return new String( cbuf_, 0, nc );
+            }
+            else if ( b == '\\' ) {
+                if ( pos >= end_ ) {
+                    pos_ = pos;
+                    throw error( "Unterminated string" );
+                }
+                int e = buf[ pos++ ];
+                char c;
+                switch ( e ) {
+                    case '"':  c = '"';  break;
+                    case '\\': c = '\\'; break;
+                    case '/':  c = '/';  break;
+                    case 'b':  c = '\b'; break;
+                    case 'f':  c = '\f'; break;
+                    case 'n':  c = '\n'; break;
+                    case 'r':  c = '\r'; break;
+                    case 't':  c = '\t'; break;
+                    case 'u':
+                        if ( pos + 4 > end_ ) {
+                            pos_ = pos;
+                            throw error( "Bad unicode escape" );
+                        }
+                        int code = 0;
+                        for ( int i = 0; i < 4; i++ ) {
+                            int d = Character.digit( (char) buf[ pos++ ], 16 );
+                            if ( d < 0 ) {
+                                pos_ = pos;
+                                throw error( "Bad unicode escape" );
+                            }
+                            code = ( code << 4 ) | d;
+                        }
+                        c = (char) code;
+                        break;
+                    default:
+                        pos_ = pos;
+                        throw error( "Bad escape" );
+                }
+                cbuf_[ nc++ ] = c;
+            }
+            else if ( b >= 0 ) {
+                cbuf_[ nc++ ] = (char) b;
+            }
+            else {
+                int nextra;
+                int cp;
+                if ( ( b & 0xe0 ) == 0xc0 ) {
+                    nextra = 1;
+                    cp = b & 0x1f;
+                }
+                else if ( ( b & 0xf0 ) == 0xe0 ) {
+                    nextra = 2;
+                    cp = b & 0x0f;
+                }
+                else if ( ( b & 0xf8 ) == 0xf0 ) {
+                    nextra = 3;
+                    cp = b & 0x07;
+                }
+                else {
+                    pos_ = pos;
+                    throw error( "Bad UTF-8" );
+                }
+                if ( pos + nextra > end_ ) {
+                    pos_ = pos;
+                    throw error( "Bad UTF-8" );
+                }
+                for ( int i = 0; i < nextra; i++ ) {
+                    int b1 = buf[ pos++ ];
+                    if ( ( b1 & 0xc0 ) != 0x80 ) {
+                        pos_ = pos;
+                        throw error( "Bad UTF-8" );
+                    }
+                    cp = ( cp << 6 ) | ( b1 & 0x3f );
+                }
+                if ( cp >= 0x10000 ) {
+                    cp -= 0x10000;
+                    cbuf_[ nc++ ] = (char) ( 0xd800 + ( cp >> 10 ) );
+                    cbuf_[ nc++ ] = (char) ( 0xdc00 + ( cp & 0x3ff ) );
+                }
+                else {
+                    cbuf_[ nc++ ] = (char) cp;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a number.
+     *
+     * @return  Integer if possible, otherwise Double
+     */
+    private Number readNumber() throws XmlRpcFormatException {
+        int start = pos_;
+        boolean isInt = true;
+        while ( pos_ < end_ ) {
+            byte b = buf_[ pos_ ];
+            if ( ( b >= '0' && b <= '9' ) || b == '-' ) {
+                pos_++;
+            }
+            else if ( b == '.' || b == 'e' || b == 'E' || b == '+' ) {
+                isInt = false;
+                pos_++;
+            }
+            else {
+                break;
+            }
+        }
+        char[] chars = new char[ pos_ - start ];
+        for ( int i = 0; i < chars.length; i++ ) {
+            chars[ i ] = (char) buf_[ start + i ];
+        }
+        String txt = new String( chars );
+        try {
+            if ( isInt ) {
+                try {
+                    return new Integer( Integer.parseInt( txt ) );
+                }
+                catch ( NumberFormatException e ) {
+                    // too large - fall through
+                }
+            }
+            return new Double( Double.parseDouble( txt ) );
+        }
+        catch ( NumberFormatException e ) {
+            throw error( "Bad number " + txt );
+        }
+    }
+
+    /**
+     * Reads a literal word.
+     *
+     * @param  word  expected word
+     */
+    private void readWord( String word ) throws XmlRpcFormatException {
+        int leng = word.length();
+        if ( pos_ + leng > end_ ) {
+            throw error( "Unexpected end of input" );
+        }
+        for ( int i = 0; i < leng; i++ ) {
+            if ( buf_[ pos_ + i ] != word.charAt( i ) ) {
+                throw error( "Unexpected token" );
+            }
+        }
+        pos_ += leng;
+    }
+
+    /**
+     * Skips whitespace and returns the next byte, advancing past it.
+     *
+     * @return  next non-whitespace byte
+     */
+    private byte nextToken() throws XmlRpcFormatException {
+        if ( ! skipSpace() ) {
+            throw error( "Unexpected end of input" );
+        }
+        return buf_[ pos_++ ];
+    }
+
+    /**
+     * Advances the current position past any whitespace.
+     *
+     * @return  true if there is more input
+     */
+    private boolean skipSpace() {
+        while ( pos_ < end_ ) {
+            byte b = buf_[ pos_ ];
+            if ( b == ' ' || b == '\n' || b == '\r' || b == '\t' ) {
+                pos_++;
+            }
+            else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns an exception describing a parse error at the current position.
+     *
+     * @param  msg  error message
+     * @return  exception
+     */
+    private XmlRpcFormatException error( String msg ) {
+        return new XmlRpcFormatException( "JSON parse error at byte "
+                                        + pos_ + ": " + msg );
+    }
+}
@@ -0,0 +1,19 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.IOException;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcServer;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcServerFactory;
+
+/**
+ * Freestanding ServerFactory implementation which logs an abbreviated form of
+ * selected XML-RPC calls/responses to the default {@link WireLog}.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public class RpcTracingInternalServerFactory
+        implements SampXmlRpcServerFactory {
+    public synchronized SampXmlRpcServer getServer() throws IOException {
+        return new TracingInternalServer( WireLog.getDefaultInstance(), false );
+    }
+}
@@ -0,0 +1,121 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.List;
+import org.astrogrid.samp.SampUtils;
+
+/**
+ * InternalClient subclass which additionally logs selected XML-RPC
+ * calls and responses to a {@link WireLog}.
+ * Records contain either the XML documents as sent and received,
+ * or an abbreviated form of the call parameters and results.
+ * Responses are logged only for synchronous calls.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public class TracingInternalClient extends InternalClient {
+
+    private final WireLog log_;
+    private final boolean isXml_;
+    private final ThreadLocal sampleLocal_;
+
+    /**
+     * Constructor.
+     *
+     * @param  endpoint  endpoint
+     * @param  log   destination for trace records
+     * @param  isXml  true to log XML documents, false to log abbreviated
+     *                call and response content
+     */
+    public TracingInternalClient( URL endpoint, WireLog log, boolean isXml ) {
+        super( endpoint );
+        log_ = log;
+        isXml_ = isXml;
+        sampleLocal_ = new ThreadLocal();
+    }
+
+    protected byte[] serializeCall( String method, List paramList )
+            throws IOException {
+        byte[] buf = super.serializeCall( method, paramList );
+        long id = log_.startCall( paramList );
+        if ( id > 0 ) {
+            Sample sample = new Sample( id, getEndpoint() + " " + method );
+            if ( isXml_ ) {
+                log_.log( id, "CLIENT OUT", sample.detail_,
+                          buf, 0, buf.length );
+            }
+            else {
+                log_.log( id, "CLIENT OUT", sample.detail_,
+                          SampUtils.formatObject( paramList, 2 ) );
+            }
+            sampleLocal_.set( sample );
+        }
+        else {
+            sampleLocal_.set( null );
+        }
+        return buf;
+    }
+
+    protected Object deserializeResponse( InputStream in )
+            throws IOException {
+
+        // Serialization and deserialization of a synchronous call
+        // take place in the same thread, so this identifies the call
+        // to which the response belongs.
+        Sample sample = (Sample) sampleLocal_.get();
+        sampleLocal_.set( null );
+        if ( sample == null ) {
+            return super.deserializeResponse( in );
+        }
+        if ( isXml_ ) {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            byte[] buf = new byte[ 1024 ];
+            for ( int nb; ( nb = in.read( buf ) ) >= 0; ) {
+                bout.write( buf, 0, nb );
+            }
+            byte[] ibuf = bout.toByteArray();
+            log_.log( sample.id_, "CLIENT IN", sample.detail_,
+                      ibuf, 0, ibuf.length );
+            return super.deserializeResponse(
+                       new ByteArrayInputStream( ibuf ) );
+        }
+        else {
+            Object result;
+            try {
+                result = super.deserializeResponse( in );
+            }
+            catch ( IOException e ) {
+                log_.log( sample.id_, "CLIENT ERROR", sample.detail_,
+                          e.toString() );
+                throw e;
+            }
+            log_.log( sample.id_, "CLIENT IN", sample.detail_,
+                      SampUtils.formatObject( result, 2 ) );
+            return result;
+        }
+    }
+
+    /**
+     * Identifies a call which is being logged.
+     */
+    private static class Sample {
+        final long id_;
+        final String detail_;
+
+        /**
+         * Constructor.
+         *
+         * @param  id  call identifier
+         * @param  detail  call description
+         */
+        Sample( long id, String detail ) {
+            id_ = id;
+            detail_ = detail;
+        }
+    }
+}
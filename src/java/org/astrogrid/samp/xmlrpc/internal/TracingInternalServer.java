@@ -0,0 +1,143 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import org.astrogrid.samp.SampUtils;
+import org.astrogrid.samp.httpd.HttpServer;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcHandler;
+
+/**
+ * InternalServer subclass which additionally logs selected XML-RPC
+ * calls and responses to a {@link WireLog}.
+ * Records contain either the XML-RPC form of the calls and results,
+ * or an abbreviated form of their content.
+ * Since the XML form is regenerated from the decoded call,
+ * it may differ in layout from the document actually received.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public class TracingInternalServer extends InternalServer {
+
+    private final WireLog log_;
+    private final boolean isXml_;
+
+    /**
+     * Constructor based on a given HTTP server.
+     * It is the caller's responsibility to configure and start the HttpServer.
+     *
+     * @param  server  server for processing HTTP requests
+     * @param  path   path part of server endpoint (starts with "/");
+     * @param  log   destination for trace records
+     * @param  isXml  true to log XML documents, false to log abbreviated
+     *                call and response content
+     */
+    public TracingInternalServer( HttpServer server, String path,
+                                  WireLog log, boolean isXml )
+            throws IOException {
+        super( server, path );
+        log_ = log;
+        isXml_ = isXml;
+    }
+
+    /**
+     * Constructs a server running with default characteristics
+     * on any free port.  The server is started as a daemon thread.
+     *
+     * @param  log   destination for trace records
+     * @param  isXml  true to log XML documents, false to log abbreviated
+     *                call and response content
+     */
+    public TracingInternalServer( WireLog log, boolean isXml )
+            throws IOException {
+        super();
+        log_ = log;
+        isXml_ = isXml;
+    }
+
+    protected Object handleCall( SampXmlRpcHandler handler, String methodName,
+                                 List paramList, HttpServer.Request request )
+            throws Exception {
+        long id = log_.startCall( paramList );
+        if ( id == 0 ) {
+            return super.handleCall( handler, methodName, paramList,
+                                     request );
+        }
+        String detail = request.getRemoteAddress() + " " + methodName;
+        logCall( id, detail, methodName, paramList );
+        final Object result;
+        try {
+            result = super.handleCall( handler, methodName, paramList,
+                                       request );
+        }
+        catch ( Throwable e ) {
+            log_.log( id, "SERVER ERROR", detail, e.toString() );
+            if ( e instanceof Error ) {
+                throw (Error) e;
+            }
+            else {
+                throw (Exception) e;
+            }
+        }
+        logResult( id, detail, result );
+        return result;
+    }
+
+    /**
+     * Logs an incoming call.
+     *
+     * @param  id  call identifier
+     * @param  detail  call description
+     * @param  methodName  XML-RPC method name
+     * @param  paramList  list of parameters to XML-RPC call
+     */
+    private void logCall( long id, String detail, String methodName,
+                          List paramList ) {
+        if ( isXml_ ) {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            try {
+                XmlRpcEncoder.getThreadEncoder()
+                             .writeCall( methodName, paramList, bout );
+            }
+            catch ( IOException e ) {
+                log_.log( id, "SERVER IN", detail, e.toString() );
+                return;
+            }
+            byte[] buf = bout.toByteArray();
+            log_.log( id, "SERVER IN", detail, buf, 0, buf.length );
+        }
+        else {
+            log_.log( id, "SERVER IN", detail,
+                      SampUtils.formatObject( paramList, 2 ) );
+        }
+    }
+
+    /**
+     * Logs the result of a call.
+     *
+     * @param  id  call identifier
+     * @param  detail  call description
+     * @param  result  call result
+     */
+    private void logResult( long id, String detail, Object result ) {
+        if ( result == null ) {
+            result = "";
+        }
+        if ( isXml_ ) {
+            byte[] buf;
+            try {
+                buf = getResultBytes( result );
+            }
+            catch ( IOException e ) {
+                log_.log( id, "SERVER OUT", detail, e.toString() );
+                return;
+            }
+            log_.log( id, "SERVER OUT", detail, buf, 0, buf.length );
+        }
+        else {
+            log_.log( id, "SERVER OUT", detail,
+                      SampUtils.formatObject( result, 2 ) );
+        }
+    }
+}
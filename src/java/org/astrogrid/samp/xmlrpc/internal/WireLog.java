@@ -0,0 +1,528 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.astrogrid.samp.Message;
+import org.astrogrid.samp.ShutdownManager;
+import org.astrogrid.samp.Subscriptions;
+
+/**
+ * Writes a trace of XML-RPC traffic to a file, in a way which is
+ * cheap enough to leave switched on in a running hub.
+ *
+ * <p>Calls may be selected for logging by MType, so that only calls
+ * which carry a message matching one of a given list of MType patterns
+ * are eligible, and by sampling, so that only one in every
+ * <em>n</em> eligible calls is logged.
+ * Payloads longer than a given limit are truncated.
+ * Records are queued and written by a separate thread,
+ * so that the threads handling the calls never wait for file I/O;
+ * if the queue fills up, further records are discarded and
+ * the number lost is noted in the file.
+ * When the file exceeds a given size it is renamed with a ".1" suffix,
+ * any earlier ".1" file becomes ".2", and so on, and a new file is started.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public class WireLog {
+
+    private final File file_;
+    private final int sampleInterval_;
+    private final String[] mtypePatterns_;
+    private final int maxPayload_;
+    private final long maxBytes_;
+    private final LinkedList queue_;
+    private long nCall_;
+    private int nDropped_;
+    private boolean isIdle_;
+    private Thread writer_;
+    private OutputStream out_;
+    private long fileSize_;
+    private boolean isBroken_;
+
+    /**
+     * System property giving the name of the trace file used by the
+     * default instance ({@value}).
+     */
+    public static final String FILE_PROP = "jsamp.xmlrpc.log.file";
+
+    /**
+     * System property giving the sampling interval for the default
+     * instance ({@value}).  A value of <em>n</em> means that
+     * one in every <em>n</em> eligible calls is logged.
+     */
+    public static final String SAMPLE_PROP = "jsamp.xmlrpc.log.sample";
+
+    /**
+     * System property giving a comma-separated list of MType patterns
+     * restricting the calls logged by the default instance ({@value}).
+     */
+    public static final String MTYPES_PROP = "jsamp.xmlrpc.log.mtypes";
+
+    /**
+     * System property giving the maximum number of characters
+     * (or bytes, for XML) of each payload logged by the default instance
+     * ({@value}).
+     */
+    public static final String PAYLOAD_PROP = "jsamp.xmlrpc.log.payload";
+
+    /**
+     * System property giving the size in bytes at which the trace file
+     * of the default instance is rotated ({@value}).
+     */
+    public static final String ROTATE_PROP = "jsamp.xmlrpc.log.rotate";
+
+    /** Default trace file name. */
+    public static final String DEFAULT_FILE = "jsamp-wire.log";
+
+    /** Default maximum payload length. */
+    public static final int DEFAULT_PAYLOAD = 4000;
+
+    /** Default trace file rotation size in bytes. */
+    public static final int DEFAULT_ROTATE = 10 * 1000 * 1000;
+
+    /** Number of rotated files kept. */
+    private static final int KEEP_FILES = 4;
+
+    /** Maximum number of records waiting to be written. */
+    private static final int MAX_QUEUE = 10000;
+
+    /** Time in milliseconds allowed at JVM shutdown for pending records. */
+    private static final long SHUTDOWN_MILLIS = 2000;
+
+    private static final Logger logger_ =
+        Logger.getLogger( WireLog.class.getName() );
+    private static WireLog defaultInstance_;
+
+    /**
+     * Constructor.
+     *
+     * @param  file  trace file
+     * @param  sampleInterval  one in every <code>sampleInterval</code>
+     *                         eligible calls is logged
+     * @param  mtypePatterns   if non-null, only calls carrying a message
+     *                         whose MType matches one of these patterns
+     *                         are eligible for logging
+     * @param  maxPayload   maximum number of characters or bytes logged
+     *                      for each payload
+     * @param  maxBytes    size in bytes at which the file is rotated
+     */
+    public WireLog( File file, int sampleInterval, String[] mtypePatterns,
+                    int maxPayload, long maxBytes ) {
+        file_ = file;
+        sampleInterval_ = Math.max( 1, sampleInterval );
+        mtypePatterns_ = mtypePatterns;
+        maxPayload_ = maxPayload;
+        maxBytes_ = maxBytes;
+        queue_ = new LinkedList();
+        isIdle_ = true;
+    }
+
+    /**
+     * Returns the file to which this log writes.
+     *
+     * @return  trace file
+     */
+    public File getFile() {
+        return file_;
+    }
+
+    /**
+     * Determines whether a call is to be logged.
+     * This should be invoked once for each call, since it advances
+     * the sampling counter.
+     *
+     * @param  params  call parameters
+     * @return   positive identifier to label the call's log records
+     *           if it is to be logged, or 0 if it is not
+     */
+    public long startCall( List params ) {
+        if ( mtypePatterns_ != null && ! hasMatchingMType( params ) ) {
+            return 0;
+        }
+        synchronized ( queue_ ) {
+            long ic = ++nCall_;
+            return ( ic - 1 ) % sampleInterval_ == 0 ? ic : 0;
+        }
+    }
+
+    /**
+     * Queues a textual record for writing.
+     *
+     * @param  id   call identifier from {@link #startCall}
+     * @param  label  record type, for instance "CLIENT OUT"
+     * @param  detail  short description of the call
+     * @param  payload  text content of record
+     */
+    public void log( long id, String label, String detail, String payload ) {
+        int leng = payload.length();
+        Record rec = leng > maxPayload_
+                   ? new Record( id, label, detail,
+                                 payload.substring( 0, maxPayload_ ), leng )
+                   : new Record( id, label, detail, payload, -1 );
+        submit( rec );
+    }
+
+    /**
+     * Queues a record containing UTF-8 bytes for writing.
+     * The buffer is not retained, so it may be reused by the caller.
+     *
+     * @param  id   call identifier from {@link #startCall}
+     * @param  label  record type, for instance "CLIENT OUT"
+     * @param  detail  short description of the call
+     * @param  buf   buffer containing payload
+     * @param  off   offset of payload in buffer
+     * @param  leng  length of payload
+     */
+    public void log( long id, String label, String detail,
+                     byte[] buf, int off, int leng ) {
+        int nb = Math.min( leng, maxPayload_ );
+        byte[] payload = new byte[ nb ];
+        System.arraycopy( buf, off, payload, 0, nb );
+        submit( new Record( id, label, detail, payload,
+                            leng > nb ? leng : -1 ) );
+    }
+
+    /**
+     * Waits until all records queued so far have been written,
+     * or until a timeout has elapsed.
+     *
+     * @param  timeout  maximum wait in milliseconds
+     * @return   true iff all queued records have been written
+     */
+    public boolean awaitIdle( long timeout ) {
+        long end = System.currentTimeMillis() + timeout;
+        synchronized ( queue_ ) {
+            while ( ! ( isIdle_ && queue_.isEmpty() ) ) {
+                long wait = end - System.currentTimeMillis();
+                if ( wait <= 0 ) {
+                    return false;
+                }
+                try {
+                    queue_.wait( wait );
+                }
+                catch ( InterruptedException e ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Adds a record to the queue, starting the writer thread if required.
+     *
+     * @param  rec  record
+     */
+    private void submit( Record rec ) {
+        synchronized ( queue_ ) {
+            if ( queue_.size() >= MAX_QUEUE ) {
+                nDropped_++;
+                return;
+            }
+            queue_.addLast( rec );
+            if ( writer_ == null ) {
+                writer_ = new Thread( "XML-RPC wire log" ) {
+                    public void run() {
+                        runWriter();
+                    }
+                };
+                writer_.setDaemon( true );
+                writer_.start();
+            }
+            queue_.notifyAll();
+        }
+    }
+
+    /**
+     * Body of the writer thread.  Waits for records and writes them
+     * to the file.
+     */
+    private void runWriter() {
+        SimpleDateFormat dateFormat =
+            new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ss.SSS" );
+        while ( true ) {
+            List recs;
+            int nDropped;
+            synchronized ( queue_ ) {
+                while ( queue_.isEmpty() && nDropped_ == 0 ) {
+                    isIdle_ = true;
+                    queue_.notifyAll();
+                    try {
+                        queue_.wait();
+                    }
+                    catch ( InterruptedException e ) {
+                        return;
+                    }
+                }
+                isIdle_ = false;
+                recs = new ArrayList( queue_ );
+                queue_.clear();
+                nDropped = nDropped_;
+                nDropped_ = 0;
+            }
+            try {
+                for ( Iterator it = recs.iterator(); it.hasNext(); ) {
+                    write( ((Record) it.next()).format( dateFormat ) );
+                }
+                if ( nDropped > 0 ) {
+                    write( dateFormat.format( new Date() ) + " ["
+                         + nDropped + " records dropped - queue full]\n\n" );
+                }
+                if ( out_ != null ) {
+                    out_.flush();
+                }
+            }
+            catch ( IOException e ) {
+                noteFailure( e );
+            }
+        }
+    }
+
+    /**
+     * Writes text to the file, opening or rotating it as required.
+     * Called only from the writer thread.
+     *
+     * @param  txt  text to write
+     */
+    private void write( String txt ) throws IOException {
+        if ( isBroken_ ) {
+            return;
+        }
+        if ( out_ == null ) {
+            fileSize_ = file_.exists() ? file_.length() : 0;
+            out_ = new BufferedOutputStream(
+                       new FileOutputStream( file_, true ) );
+        }
+        byte[] bbuf = txt.getBytes( "UTF-8" );
+        out_.write( bbuf );
+        fileSize_ += bbuf.length;
+        if ( fileSize_ >= maxBytes_ ) {
+            out_.close();
+            out_ = null;
+            rotate();
+        }
+    }
+
+    /**
+     * Renames the trace file and its predecessors to make room for
+     * a new one.
+     */
+    private void rotate() {
+        String path = file_.getPath();
+        new File( path + "." + KEEP_FILES ).delete();
+        for ( int i = KEEP_FILES - 1; i > 0; i-- ) {
+            File f = new File( path + "." + i );
+            if ( f.exists() ) {
+                f.renameTo( new File( path + "." + ( i + 1 ) ) );
+            }
+        }
+        if ( ! file_.renameTo( new File( path + ".1" ) ) ) {
+            logger_.warning( "Failed to rotate " + file_ );
+        }
+    }
+
+    /**
+     * Records that output has failed.  Logging is discontinued.
+     *
+     * @param  e  error
+     */
+    private void noteFailure( IOException e ) {
+        logger_.warning( "XML-RPC wire logging to " + file_
+                       + " failed: " + e );
+        isBroken_ = true;
+        if ( out_ != null ) {
+            try {
+                out_.close();
+            }
+            catch ( IOException e2 ) {
+            }
+            out_ = null;
+        }
+    }
+
+    /**
+     * Indicates whether a parameter list contains a message whose
+     * MType matches one of this log's patterns.
+     *
+     * @param  params  call parameters
+     * @return  true iff there is a match
+     */
+    private boolean hasMatchingMType( List params ) {
+        for ( Iterator it = params.iterator(); it.hasNext(); ) {
+            Object param = it.next();
+            if ( param instanceof Map ) {
+                Object mtype = ((Map) param).get( Message.MTYPE_KEY );
+                if ( mtype instanceof String ) {
+                    for ( int ip = 0; ip < mtypePatterns_.length; ip++ ) {
+                        if ( Subscriptions.matchLevel( mtypePatterns_[ ip ],
+                                                       (String) mtype )
+                             >= 0 ) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the log used by the tracing XML-RPC implementations.
+     * Its configuration may be set using the {@link #FILE_PROP},
+     * {@link #SAMPLE_PROP}, {@link #MTYPES_PROP}, {@link #PAYLOAD_PROP}
+     * and {@link #ROTATE_PROP} system properties.
+     *
+     * @return  default instance
+     */
+    public static synchronized WireLog getDefaultInstance() {
+        if ( defaultInstance_ == null ) {
+            String fname = getProperty( FILE_PROP );
+            String mtypes = getProperty( MTYPES_PROP );
+            String[] patterns = null;
+            if ( mtypes != null && mtypes.trim().length() > 0 ) {
+                List patList = new ArrayList();
+                String[] items = mtypes.split( "," );
+                for ( int i = 0; i < items.length; i++ ) {
+                    if ( items[ i ].trim().length() > 0 ) {
+                        patList.add( items[ i ].trim() );
+                    }
+                }
+                patterns = (String[]) patList.toArray( new String[ 0 ] );
+            }
+            final WireLog log =
+                new WireLog( new File( fname == null || fname.length() == 0
+                                           ? DEFAULT_FILE
+                                           : fname ),
+                             getIntProperty( SAMPLE_PROP, 1 ),
+                             patterns,
+                             getIntProperty( PAYLOAD_PROP, DEFAULT_PAYLOAD ),
+                             getIntProperty( ROTATE_PROP, DEFAULT_ROTATE ) );
+            ShutdownManager.getInstance()
+                           .registerHook( log,
+                                          ShutdownManager.HUB_SEQUENCE + 100,
+                                          new Runnable() {
+                public void run() {
+                    log.awaitIdle( SHUTDOWN_MILLIS );
+                }
+            } );
+            logger_.info( "Writing XML-RPC trace to " + log.getFile() );
+            defaultInstance_ = log;
+        }
+        return defaultInstance_;
+    }
+
+    /**
+     * Returns the value of a system property, or null if it is not
+     * set or not accessible.
+     *
+     * @param  name  property name
+     * @return  property value or null
+     */
+    private static String getProperty( String name ) {
+        try {
+            return System.getProperty( name );
+        }
+        catch ( SecurityException e ) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the positive integer value of a system property.
+     *
+     * @param  name  property name
+     * @param  dflt  value to use if the property is not set or not valid
+     * @return  property value
+     */
+    private static int getIntProperty( String name, int dflt ) {
+        String txt = getProperty( name );
+        if ( txt != null && txt.trim().length() > 0 ) {
+            try {
+                int value = Integer.parseInt( txt.trim() );
+                if ( value > 0 ) {
+                    return value;
+                }
+            }
+            catch ( NumberFormatException e ) {
+            }
+            logger_.warning( "Bad value for " + name + " \"" + txt
+                           + "\" - use default" );
+        }
+        return dflt;
+    }
+
+    /**
+     * Log record awaiting output.
+     * The payload is either a String or a byte array containing UTF-8.
+     */
+    private static class Record {
+        final long time_;
+        final long id_;
+        final String label_;
+        final String detail_;
+        final Object payload_;
+        final int fullLength_;
+
+        /**
+         * Constructor.
+         *
+         * @param  id   call identifier
+         * @param  label  record type
+         * @param  detail  short description of call
+         * @param  payload  String or byte[] payload, already truncated
+         * @param  fullLength  length of untruncated payload if truncation
+         *                     has taken place, otherwise -1
+         */
+        Record( long id, String label, String detail, Object payload,
+                int fullLength ) {
+            time_ = System.currentTimeMillis();
+            id_ = id;
+            label_ = label;
+            detail_ = detail;
+            payload_ = payload;
+            fullLength_ = fullLength;
+        }
+
+        /**
+         * Returns the text of this record as written to the file.
+         *
+         * @param  dateFormat  timestamp formatter
+         * @return   formatted record
+         */
+        String format( SimpleDateFormat dateFormat ) throws IOException {
+            String payload = payload_ instanceof byte[]
+                           ? new String( (byte[]) payload_, "UTF-8" )
+                           : (String) payload_;
+            StringBuffer sbuf = new StringBuffer();
+            sbuf.append( dateFormat.format( new Date( time_ ) ) )
+                .append( " #" )
+                .append( id_ )
+                .append( ' ' )
+                .append( label_ )
+                .append( ' ' )
+                .append( detail_ )
+                .append( '\n' )
+                .append( payload );
+            if ( fullLength_ >= 0 ) {
+                sbuf.append( "... [truncated from " )
+                    .append( fullLength_ )
+                    .append( ']' );
+            }
+            sbuf.append( "\n\n" );
+            return sbuf.toString();
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.astrogrid.samp.EncodingCache;
+
+/**
+ * Writes XML-RPC documents containing SAMP-friendly values
+ * directly as UTF-8 bytes.
+ *
+ * <p>This does the same job as {@link XmlWriter} with compact output,
+ * and produces identical bytes, but is considerably faster.
+ * Markup is copied from pre-encoded byte arrays, and text is encoded
+ * into a byte buffer by a single loop which only branches away from
+ * the common case for XML special characters and non-ASCII characters
+ * (SAMP strings are normally 7-bit ASCII, but others are encoded
+ * correctly).  The buffer is written to the destination stream
+ * whenever it fills up, so documents of any size may be written
+ * without being held in memory.
+ *
+ * <p>The encoded form of a map which is also an {@link EncodingCache},
+ * such as a hub broadcast message, is stored in the map the first time
+ * it is written, and subsequently copied rather than re-encoded,
+ * so that delivering a broadcast to many recipients only serializes
+ * the message once.
+ *
+ * <p>An encoder may be reused for any number of documents, but is not
+ * thread-safe; {@link #getThreadEncoder} provides an instance per thread.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+class XmlRpcEncoder {
+
+    private final byte[] buf_;
+    private final int limit_;
+    private OutputStream out_;
+    private int pos_;
+
+    /** Default size of the byte buffer. */
+    public static final int DEFAULT_BUFSIZ = 8 * 1024;
+
+    /** Maximum number of bytes written for a single char of text. */
+    private static final int MAX_CHAR_BYTES = 5;
+
+    private static final byte[] PROLOG =
+        toBytes( "<?xml version='1.0' encoding='UTF-8'?>" );
+    private static final byte[] CALL_START =
+        toBytes( "<methodCall><methodName>" );
+    private static final byte[] CALL_NAME_END = toBytes( "</methodName>" );
+    private static final byte[] CALL_END = toBytes( "</methodCall>" );
+    private static final byte[] PARAMS_START = toBytes( "<params>" );
+    private static final byte[] PARAMS_END = toBytes( "</params>" );
+    private static final byte[] PARAM_START = toBytes( "<param>" );
+    private static final byte[] PARAM_END = toBytes( "</param>" );
+    private static final byte[] RESPONSE_START =
+        toBytes( "<methodResponse><params><param>" );
+    private static final byte[] RESPONSE_END =
+        toBytes( "</param></params></methodResponse>" );
+    private static final byte[] VALUE_START = toBytes( "<value>" );
+    private static final byte[] VALUE_END = toBytes( "</value>" );
+    private static final byte[] ARRAY_START =
+        toBytes( "<value><array><data>" );
+    private static final byte[] ARRAY_END =
+        toBytes( "</data></array></value>" );
+    private static final byte[] STRUCT_START = toBytes( "<value><struct>" );
+    private static final byte[] STRUCT_END = toBytes( "</struct></value>" );
+    private static final byte[] MEMBER_START = toBytes( "<member><name>" );
+    private static final byte[] MEMBER_NAME_END = toBytes( "</name>" );
+    private static final byte[] MEMBER_END = toBytes( "</member>" );
+    private static final byte[] INT_START = toBytes( "<value><int>" );
+    private static final byte[] INT_END = toBytes( "</int></value>" );
+    private static final byte[] AMP = toBytes( "&amp;" );
+    private static final byte[] LT = toBytes( "&lt;" );
+    private static final byte[] GT = toBytes( "&gt;" );
+
+    /** Key for encodings stored in broadcast messages. */
+    private static final Object ENCODING_KEY = XmlRpcEncoder.class;
+
+    private static final ThreadLocal threadEncoder_ = new ThreadLocal() {
+        protected Object initialValue() {
+            return new XmlRpcEncoder( DEFAULT_BUFSIZ );
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param  bufsiz  size of byte buffer; must be at least a few hundred
+     */
+    public XmlRpcEncoder( int bufsiz ) {
+        buf_ = new byte[ bufsiz ];
+        limit_ = bufsiz - MAX_CHAR_BYTES;
+    }
+
+    /**
+     * Writes an XML-RPC methodCall document.
+     * The stream is flushed but not closed.
+     *
+     * @param  method  method name
+     * @param  paramList  list of SAMP-friendly parameters
+     * @param  out  destination stream
+     */
+    public void writeCall( String method, List paramList, OutputStream out )
+            throws IOException {
+        start( out );
+        try {
+            markup( CALL_START );
+            text( method );
+            markup( CALL_NAME_END );
+            if ( ! paramList.isEmpty() ) {
+                markup( PARAMS_START );
+                for ( Iterator it = paramList.iterator(); it.hasNext(); ) {
+                    markup( PARAM_START );
+                    sampValue( it.next() );
+                    markup( PARAM_END );
+                }
+                markup( PARAMS_END );
+            }
+            markup( CALL_END );
+            finish();
+        }
+        finally {
+            out_ = null;
+        }
+    }
+
+    /**
+     * Writes a non-fault XML-RPC methodResponse document.
+     * The stream is flushed but not closed.
+     *
+     * @param  result  SAMP-friendly result value
+     * @param  out  destination stream
+     */
+    public void writeResponse( Object result, OutputStream out )
+            throws IOException {
+        start( out );
+        try {
+            markup( RESPONSE_START );
+            sampValue( result );
+            markup( RESPONSE_END );
+            finish();
+        }
+        finally {
+            out_ = null;
+        }
+    }
+
+    /**
+     * Returns the encoded bytes of a map as written
+     * within a document by this class.
+     *
+     * @param  value  map with string keys and SAMP-friendly values
+     * @return   compact XML-RPC value element as UTF-8 bytes
+     */
+    private static byte[] encodeValue( Map value ) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlRpcEncoder encoder = new XmlRpcEncoder( DEFAULT_BUFSIZ );
+        encoder.out_ = out;
+        try {
+            encoder.mapValue( value );
+            encoder.drain();
+        }
+        finally {
+            encoder.out_ = null;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns an encoder for the exclusive use of the calling thread.
+     *
+     * @return  encoder
+     */
+    public static XmlRpcEncoder getThreadEncoder() {
+        return (XmlRpcEncoder) threadEncoder_.get();
+    }
+
+    /**
+     * Prepares to write a document.
+     *
+     * @param  out  destination stream
+     */
+    private void start( OutputStream out ) {
+        if ( out_ != null ) {
+            throw new IllegalStateException( "Encoder in use" );
+        }
+        out_ = out;
+        pos_ = 0;
+        write( PROLOG );
+    }
+
+    /**
+     * Writes any buffered bytes and flushes the destination stream.
+     */
+    private void finish() throws IOException {
+        drain();
+        out_.flush();
+    }
+
+    /**
+     * Writes any buffered bytes to the destination stream.
+     */
+    private void drain() throws IOException {
+        if ( pos_ > 0 ) {
+            out_.write( buf_, 0, pos_ );
+            pos_ = 0;
+        }
+    }
+
+    /**
+     * Writes a SAMP-friendly object in XML-RPC form.
+     *
+     * @param  value  object to serialize; must be a string, list or map
+     *                (or integer, as for XmlWriter)
+     */
+    private void sampValue( Object value ) throws IOException {
+        if ( value instanceof String ) {
+            markup( VALUE_START );
+            text( (String) value );
+            markup( VALUE_END );
+        }
+        else if ( value instanceof List ) {
+            markup( ARRAY_START );
+            for ( Iterator it = ((List) value).iterator(); it.hasNext(); ) {
+                sampValue( it.next() );
+            }
+            markup( ARRAY_END );
+        }
+        else if ( value instanceof EncodingCache && value instanceof Map ) {
+            EncodingCache cache = (EncodingCache) value;
+            byte[] encoded = (byte[]) cache.getEncoding( ENCODING_KEY );
+            if ( encoded == null ) {
+                encoded = encodeValue( (Map) value );
+                cache.setEncoding( ENCODING_KEY, encoded );
+            }
+            bulk( encoded );
+        }
+        else if ( value instanceof Map ) {
+            mapValue( (Map) value );
+        }
+        else if ( value instanceof Integer ) {
+            markup( INT_START );
+            text( value.toString() );
+            markup( INT_END );
+        }
+        else if ( value == null ) {
+            throw new XmlRpcFormatException( "Null value not permitted" );
+        }
+        else {
+            throw new XmlRpcFormatException( "Unsupported object type "
+                                           + value.getClass().getName() );
+        }
+    }
+
+    /**
+     * Writes a map in XML-RPC form.
+     *
+     * @param  map  map with string keys and SAMP-friendly values
+     */
+    private void mapValue( Map map ) throws IOException {
+        markup( STRUCT_START );
+        for ( Iterator it = map.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            markup( MEMBER_START );
+            text( entry.getKey().toString() );
+            markup( MEMBER_NAME_END );
+            sampValue( entry.getValue() );
+            markup( MEMBER_END );
+        }
+        markup( STRUCT_END );
+    }
+
+    /**
+     * Writes pre-encoded bytes of any length.
+     *
+     * @param  bytes  encoded bytes
+     */
+    private void bulk( byte[] bytes ) throws IOException {
+        if ( bytes.length <= buf_.length ) {
+            markup( bytes );
+        }
+        else {
+            drain();
+            out_.write( bytes );
+        }
+    }
+
+    /**
+     * Writes pre-encoded markup, draining the buffer first if required.
+     *
+     * @param  bytes  markup bytes, shorter than the buffer
+     */
+    private void markup( byte[] bytes ) throws IOException {
+        if ( pos_ + bytes.length > buf_.length ) {
+            drain();
+        }
+        write( bytes );
+    }
+
+    /**
+     * Copies pre-encoded markup into the buffer, which must have room.
+     *
+     * @param  bytes  markup bytes
+     */
+    private void write( byte[] bytes ) {
+        System.arraycopy( bytes, 0, buf_, pos_, bytes.length );
+        pos_ += bytes.length;
+    }
+
+    /**
+     * Writes text as escaped UTF-8.
+     * Unpaired surrogates are written as '?', as OutputStreamWriter does.
+     *
+     * @param  txt  text
+     */
+    private void text( String txt ) throws IOException {
+        byte[] buf = buf_;
+        int pos = pos_;
+        int leng = txt.length();
+        for ( int i = 0; i < leng; i++ ) {
+            if ( pos > limit_ ) {
+                pos_ = pos;
+                drain();
+                pos = 0;
+            }
+            char c = txt.charAt( i );
+            if ( c < 0x80 && c != '&' && c != '<' && c != '>' ) {
+                buf[ pos++ ] = (byte) c;
+            }
+            else if ( c < 0x80 ) {
+                byte[] ent = c == '&' ? AMP : ( c == '<' ? LT : GT );
+                System.arraycopy( ent, 0, buf, pos, ent.length );
+                pos += ent.length;
+            }
+            else if ( c < 0x800 ) {
+                buf[ pos++ ] = (byte) ( 0xc0 | ( c >> 6 ) );
+                buf[ pos++ ] = (byte) ( 0x80 | ( c & 0x3f ) );
+            }
+            else if ( c < 0xd800 || c > 0xdfff ) {
+                buf[ pos++ ] = (byte) ( 0xe0 | ( c >> 12 ) );
+                buf[ pos++ ] = (byte) ( 0x80 | ( ( c >> 6 ) & 0x3f ) );
+                buf[ pos++ ] = (byte) ( 0x80 | ( c & 0x3f ) );
+            }
+            else if ( c <= 0xdbff && i + 1 < leng &&
+                      txt.charAt( i + 1 ) >= 0xdc00 &&
+                      txt.charAt( i + 1 ) <= 0xdfff ) {
+                int cp = 0x10000 + ( ( c - 0xd800 ) << 10 )
+                                 + ( txt.charAt( ++i ) - 0xdc00 );
+                buf[ pos++ ] = (byte) ( 0xf0 | ( cp >> 18 ) );
+                buf[ pos++ ] = (byte) ( 0x80 | ( ( cp >> 12 ) & 0x3f ) );
+                buf[ pos++ ] = (byte) ( 0x80 | ( ( cp >> 6 ) & 0x3f ) );
+                buf[ pos++ ] = (byte) ( 0x80 | ( cp & 0x3f ) );
+            }
+            else {
+                buf[ pos++ ] = (byte) '?';
+            }
+        }
+        pos_ = pos;
+    }
+
+    /**
+     * Encodes an ASCII string as bytes.
+     *
+     * @param  txt  string
+     * @return  byte array
+     */
+    private static byte[] toBytes( String txt ) {
+        try {
+            return txt.getBytes( "US-ASCII" );
+        }
+        catch ( UnsupportedEncodingException e ) {
+            throw (AssertionError) new AssertionError().initCause( e );
+        }
+    }
+}
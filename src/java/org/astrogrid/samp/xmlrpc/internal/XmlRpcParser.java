@@ -0,0 +1,426 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Streaming decoder for XML-RPC <code>methodCall</code> and
+ * <code>methodResponse</code> documents.
+ * SAX events are turned directly into the SAMP-friendly
+ * (String, List and Map) values, without building a DOM.
+ * The values produced are the same as for {@link XmlRpcCall#createCall}
+ * and {@link XmlUtils#parseSampValue}, though unexpected elements
+ * which those methods ignore are rejected here.
+ *
+ * <p>An instance may only be used to parse a single document.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public class XmlRpcParser extends DefaultHandler {
+
+    private final List tagStack_;
+    private final List frameStack_;
+    private final StringBuffer text_;
+    private String rootName_;
+    private String methodName_;
+    private List params_;
+    private Map fault_;
+    private static SAXParserFactory spFact_;
+    private static final Logger logger_ =
+        Logger.getLogger( XmlRpcParser.class.getName() );
+
+    /**
+     * Constructor.
+     */
+    public XmlRpcParser() {
+        tagStack_ = new ArrayList();
+        frameStack_ = new ArrayList();
+        text_ = new StringBuffer();
+    }
+
+    /**
+     * Parses an XML-RPC <code>methodCall</code> document.
+     *
+     * @param  in  input stream containing the document
+     * @return  call
+     * @throws  XmlRpcFormatException  if the document is not a
+     *                                 SAMP-compatible XML-RPC call
+     * @throws  IOException  in case of I/O or XML parsing error
+     */
+    public static XmlRpcCall parseCall( InputStream in ) throws IOException {
+        XmlRpcParser parser = new XmlRpcParser();
+        parser.parse( in );
+        if ( ! "methodCall".equals( parser.rootName_ ) ) {
+            throw new XmlRpcFormatException( "Not <methodCall>" );
+        }
+        if ( parser.methodName_ == null ) {
+            throw new XmlRpcFormatException( "No methodName element" );
+        }
+        return new XmlRpcCall( parser.methodName_, parser.params_ );
+    }
+
+    /**
+     * Parses an XML-RPC <code>methodResponse</code> document.
+     * The result is available from {@link #getFault} or
+     * {@link #getResult}.
+     *
+     * @param  in  input stream containing the document
+     * @return  parser containing the response content
+     * @throws  XmlRpcFormatException  if the document is not a
+     *                                 SAMP-compatible XML-RPC response
+     * @throws  IOException  in case of I/O or XML parsing error
+     */
+    public static XmlRpcParser parseResponse( InputStream in )
+            throws IOException {
+        XmlRpcParser parser = new XmlRpcParser();
+        parser.parse( in );
+        if ( ! "methodResponse".equals( parser.rootName_ ) ) {
+            throw new XmlRpcFormatException( "Not <methodResponse>" );
+        }
+        if ( parser.fault_ == null && parser.params_.size() != 1 ) {
+            throw new XmlRpcFormatException( "Not <fault> or <params>?" );
+        }
+        return parser;
+    }
+
+    /**
+     * Returns the fault struct of a parsed <code>methodResponse</code>.
+     *
+     * @return  fault map, or null if the response was not a fault
+     */
+    public Map getFault() {
+        return fault_;
+    }
+
+    /**
+     * Returns the single parameter value of a parsed non-fault
+     * <code>methodResponse</code>.
+     *
+     * @return  SAMP-friendly result value
+     */
+    public Object getResult() {
+        return params_.get( 0 );
+    }
+
+    /**
+     * Parses a document, populating this object.
+     *
+     * @param  in  input stream containing the document
+     */
+    private void parse( InputStream in ) throws IOException {
+        try {
+            getParserFactory().newSAXParser().parse( in, this );
+        }
+        catch ( ParserConfigurationException e ) {
+            throw (IOException) new IOException( "Trouble with XML parsing" )
+                               .initCause( e );
+        }
+        catch ( SAXException e ) {
+            Exception cause = e.getException();
+            if ( cause instanceof IOException ) {
+                throw (IOException) cause;
+            }
+            throw (IOException) new IOException( "Trouble with XML parsing: "
+                                               + e.getMessage() )
+                               .initCause( e );
+        }
+    }
+
+    public void startElement( String uri, String localName, String qName,
+                              Attributes atts ) throws SAXException {
+        String parent = peekTag();
+        if ( parent == null ) {
+            if ( ! "methodCall".equals( qName ) &&
+                 ! "methodResponse".equals( qName ) ) {
+                throw formatError( "Unexpected top-level element <"
+                                 + qName + ">" );
+            }
+            rootName_ = qName;
+            params_ = new ArrayList();
+        }
+        else if ( isTextOnly( parent ) ) {
+            throw formatError( "Unexpected element <" + qName + "> in "
+                             + parent + " content" );
+        }
+        else if ( "value".equals( qName ) ) {
+            if ( ! ( "param".equals( parent ) ||
+                     "data".equals( parent ) ||
+                     "member".equals( parent ) ||
+                     "fault".equals( parent ) ) ) {
+                throw formatError( "Unexpected <value> in <" + parent + ">" );
+            }
+            if ( "param".equals( parent ) || "fault".equals( parent ) ) {
+                if ( ((Frame) peekFrame()).hasChild_ ) {
+                    throw formatError( "Multiple children of " + parent );
+                }
+                ((Frame) peekFrame()).hasChild_ = true;
+            }
+            frameStack_.add( new Frame() );
+        }
+        else if ( "value".equals( parent ) ) {
+            Frame valueFrame = (Frame) peekFrame();
+            if ( valueFrame.hasChild_ ) {
+                throw formatError( "Multiple children of value" );
+            }
+            valueFrame.hasChild_ = true;
+            if ( "struct".equals( qName ) ) {
+                frameStack_.add( new HashMap() );
+            }
+            else if ( "dateTime.iso8601".equals( qName ) ||
+                      "base64".equals( qName ) ) {
+                throw formatError( qName + " not used in SAMP" );
+            }
+            else if ( ! "array".equals( qName ) && ! isScalar( qName ) ) {
+                throw formatError( "Unknown XML-RPC element <"
+                                 + qName + ">" );
+            }
+        }
+        else if ( "data".equals( qName ) && "array".equals( parent ) ) {
+            if ( ((Frame) peekFrame()).value_ != null ) {
+                throw formatError( "Multiple children of array" );
+            }
+            frameStack_.add( new ArrayList() );
+        }
+        else if ( "member".equals( qName ) && "struct".equals( parent ) ) {
+            frameStack_.add( new Member() );
+        }
+        else if ( "name".equals( qName ) && "member".equals( parent ) ) {
+        }
+        else if ( "param".equals( qName ) && "params".equals( parent ) ) {
+            frameStack_.add( new Frame() );
+        }
+        else if ( "params".equals( qName ) && rootName_.equals( parent ) ) {
+        }
+        else if ( "methodName".equals( qName ) &&
+                  "methodCall".equals( parent ) ) {
+        }
+        else if ( "fault".equals( qName ) &&
+                  "methodResponse".equals( parent ) ) {
+            frameStack_.add( new Frame() );
+        }
+        else if ( "params".equals( parent ) ) {
+            throw formatError( "Non-param child of params" );
+        }
+        else {
+            throw formatError( "Unexpected element <" + qName + "> in <"
+                             + parent + ">" );
+        }
+        tagStack_.add( qName );
+        text_.setLength( 0 );
+    }
+
+    public void endElement( String uri, String localName, String qName )
+            throws SAXException {
+        tagStack_.remove( tagStack_.size() - 1 );
+        String text = text_.toString();
+        text_.setLength( 0 );
+        if ( "value".equals( qName ) ) {
+            Frame frame = (Frame) popFrame();
+            Object value = frame.hasChild_ ? frame.value_ : text;
+            String parent = peekTag();
+            Object container = peekFrame();
+            if ( "data".equals( parent ) ) {
+                ((List) container).add( value );
+            }
+            else if ( "member".equals( parent ) ) {
+                ((Member) container).value_ = value;
+            }
+            else {
+                ((Frame) container).value_ = value;
+            }
+        }
+        else if ( "string".equals( qName ) ) {
+            setValue( text );
+        }
+        else if ( "int".equals( qName ) || "i4".equals( qName ) ) {
+            try {
+                setValue( Integer.valueOf( text ) );
+            }
+            catch ( NumberFormatException e ) {
+                throw formatError( "Bad int " + text );
+            }
+        }
+        else if ( "boolean".equals( qName ) ) {
+            if ( "0".equals( text ) ) {
+                setValue( Boolean.FALSE );
+            }
+            else if ( "1".equals( text ) ) {
+                setValue( Boolean.TRUE );
+            }
+            else {
+                throw formatError( "Bad boolean " + text );
+            }
+        }
+        else if ( "double".equals( qName ) ) {
+            try {
+                setValue( Double.valueOf( text ) );
+            }
+            catch ( NumberFormatException e ) {
+                throw formatError( "Bad double " + text );
+            }
+        }
+        else if ( "data".equals( qName ) || "struct".equals( qName ) ) {
+            setValue( popFrame() );
+        }
+        else if ( "array".equals( qName ) ) {
+            if ( ((Frame) peekFrame()).value_ == null ) {
+                throw formatError( "No child element of array" );
+            }
+        }
+        else if ( "name".equals( qName ) ) {
+            ((Member) peekFrame()).name_ = text;
+        }
+        else if ( "member".equals( qName ) ) {
+            Member member = (Member) popFrame();
+            if ( member.name_ == null ) {
+                throw formatError( "<name> missing in struct member" );
+            }
+            if ( member.value_ == null ) {
+                throw formatError( "<value> missing in struct member" );
+            }
+            Map map = (Map) peekFrame();
+            if ( map.containsKey( member.name_ ) ) {
+                logger_.warning( "Re-used key " + member.name_ + " in map" );
+            }
+            map.put( member.name_, member.value_ );
+        }
+        else if ( "param".equals( qName ) ) {
+            Frame frame = (Frame) popFrame();
+            if ( ! frame.hasChild_ ) {
+                throw formatError( "No child element of param" );
+            }
+            params_.add( frame.value_ );
+        }
+        else if ( "fault".equals( qName ) ) {
+            Frame frame = (Frame) popFrame();
+            if ( ! ( frame.value_ instanceof Map ) ) {
+                throw formatError( "No <struct> in <fault>" );
+            }
+            fault_ = (Map) frame.value_;
+        }
+        else if ( "methodName".equals( qName ) ) {
+            methodName_ = text;
+        }
+    }
+
+    public void characters( char[] ch, int start, int length ) {
+        text_.append( ch, start, length );
+    }
+
+    /**
+     * Sets the value of the innermost <code>value</code> element
+     * being parsed.
+     *
+     * @param  value  SAMP-friendly value
+     */
+    private void setValue( Object value ) {
+        ((Frame) peekFrame()).value_ = value;
+    }
+
+    /**
+     * Returns the name of the innermost open element.
+     *
+     * @return  tag name, or null at top level
+     */
+    private String peekTag() {
+        int n = tagStack_.size();
+        return n == 0 ? null : (String) tagStack_.get( n - 1 );
+    }
+
+    /**
+     * Returns the innermost value container.
+     *
+     * @return  Frame, Member, List or Map
+     */
+    private Object peekFrame() {
+        return frameStack_.get( frameStack_.size() - 1 );
+    }
+
+    /**
+     * Removes and returns the innermost value container.
+     *
+     * @return  Frame, Member, List or Map
+     */
+    private Object popFrame() {
+        return frameStack_.remove( frameStack_.size() - 1 );
+    }
+
+    /**
+     * Indicates whether an element is a SAMP-compatible scalar
+     * value element.
+     *
+     * @param  tagName  element name
+     * @return  true for scalar value elements
+     */
+    private static boolean isScalar( String tagName ) {
+        return "string".equals( tagName )
+            || "int".equals( tagName )
+            || "i4".equals( tagName )
+            || "boolean".equals( tagName )
+            || "double".equals( tagName );
+    }
+
+    /**
+     * Indicates whether an element may contain only text.
+     *
+     * @param  tagName  element name
+     * @return  true for scalar value and name elements
+     */
+    private static boolean isTextOnly( String tagName ) {
+        return isScalar( tagName )
+            || "name".equals( tagName )
+            || "methodName".equals( tagName );
+    }
+
+    /**
+     * Returns a SAXException wrapping an XmlRpcFormatException,
+     * for throwing from a SAX callback.
+     *
+     * @param  msg  message
+     * @return  exception
+     */
+    private static SAXException formatError( String msg ) {
+        return new SAXException( new XmlRpcFormatException( msg ) );
+    }
+
+    /**
+     * Returns a factory for SAX parsers.
+     *
+     * @return  factory
+     */
+    private static synchronized SAXParserFactory getParserFactory() {
+        if ( spFact_ == null ) {
+            spFact_ = SAXParserFactory.newInstance();
+        }
+        return spFact_;
+    }
+
+    /**
+     * Holds the content of a <code>value</code>, <code>param</code>
+     * or <code>fault</code> element during parsing.
+     */
+    private static class Frame {
+        Object value_;
+        boolean hasChild_;
+    }
+
+    /**
+     * Holds the content of a struct <code>member</code> element
+     * during parsing.
+     */
+    private static class Member {
+        String name_;
+        Object value_;
+    }
+}
@@ -0,0 +1,21 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.IOException;
+import java.net.URL;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcClient;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcClientFactory;
+
+/**
+ * Freestanding ClientFactory implementation which logs the XML-RPC documents of
+ * selected XML-RPC calls/responses to the default {@link WireLog}.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public class XmlTracingInternalClientFactory
+        implements SampXmlRpcClientFactory {
+    public SampXmlRpcClient createClient( URL endpoint ) throws IOException {
+        return new TracingInternalClient( endpoint,
+                                          WireLog.getDefaultInstance(), true );
+    }
+}
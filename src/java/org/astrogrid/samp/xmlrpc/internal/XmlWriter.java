@@ -23,6 +23,8 @@ class XmlWriter {
 
     /**
      * Constructor.
+     * If the indent is zero, output is compact, with no line breaks
+     * or padding at all.
      *
      * @param   out  destination stream
      * @param   indent  number of spaces to indent each element level
@@ -114,16 +116,21 @@ class XmlWriter {
     }
 
     /**
-     * Writes a new line character.
+     * Writes a new line character, unless output is compact.
      */
     public void newline() throws IOException {
-        out_.write( '\n' );
+        if ( indent_ > 0 ) {
+            out_.write( '\n' );
+        }
     }
 
     /**
      * Writes a SAMP-friendly object in XML-RPC form.
+     * Integers are also permitted, as an XML-RPC <code>int</code>;
+     * these are not SAMP-friendly, but appear in XML-RPC fault structures.
      *
      * @param  value  object to serialize; must be a string, list or map
+     *                (or integer)
      */
     public void sampValue( Object value ) throws IOException {
         if ( value instanceof String ) {
@@ -154,6 +161,11 @@ class XmlWriter {
             end( "struct" );
             end( "value" );
         }
+        else if ( value instanceof Integer ) {
+            start( "value" );
+            inline( "int", value.toString() );
+            end( "value" );
+        }
         else if ( value == null ) {
             throw new XmlRpcFormatException( "Null value not permitted" );
         }
@@ -163,6 +175,13 @@ class XmlWriter {
         }
     }
 
+    /**
+     * Flushes output to the destination stream without closing it.
+     */
+    public void flush() throws IOException {
+        out_.flush();
+    }
+
     /**
      * Closes the stream.
      */
@@ -170,6 +189,105 @@ class XmlWriter {
         out_.close();
     }
 
+    /**
+     * Returns the number of bytes that {@link #sampValue} will write
+     * for a given object when output is compact.
+     * This is calculated without serializing the object.
+     *
+     * @param  value  object to serialize; must be a string, list or map
+     *                (or integer)
+     * @return  number of bytes
+     * @throws  XmlRpcFormatException  if <code>sampValue</code> would
+     *                                 fail for this object
+     */
+    public static long getCompactLength( Object value )
+            throws XmlRpcFormatException {
+        if ( value instanceof String ) {
+            // <value>...</value>
+            return 15 + getTextLength( (String) value );
+        }
+        else if ( value instanceof List ) {
+            // <value><array><data>...</data></array></value>
+            long leng = 43;
+            for ( Iterator it = ((List) value).iterator(); it.hasNext(); ) {
+                leng += getCompactLength( it.next() );
+            }
+            return leng;
+        }
+        else if ( value instanceof Map ) {
+            // <value><struct>...</struct></value>
+            long leng = 32;
+            for ( Iterator it = ((Map) value).entrySet().iterator();
+                  it.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) it.next();
+                // <member><name>...</name>...</member>
+                leng += 30 + getTextLength( entry.getKey().toString() )
+                      + getCompactLength( entry.getValue() );
+            }
+            return leng;
+        }
+        else if ( value instanceof Integer ) {
+            // <value><int>...</int></value>
+            return 26 + value.toString().length();
+        }
+        else if ( value == null ) {
+            throw new XmlRpcFormatException( "Null value not permitted" );
+        }
+        else {
+            throw new XmlRpcFormatException( "Unsupported object type "
+                                           + value.getClass().getName() );
+        }
+    }
+
+    /**
+     * Returns the number of bytes that {@link #text} will write
+     * for a given string.
+     *
+     * @param  txt  text
+     * @return  length in bytes of escaped UTF-8 text
+     */
+    private static long getTextLength( String txt ) {
+        int leng = txt.length();
+        long nb = 0;
+        for ( int i = 0; i < leng; i++ ) {
+            char c = txt.charAt( i );
+            if ( c < 0x80 ) {
+                switch ( c ) {
+                    case '&':
+                        nb += 5;
+                        break;
+                    case '<':
+                    case '>':
+                        nb += 4;
+                        break;
+                    default:
+                        nb += 1;
+                }
+            }
+            else if ( c < 0x800 ) {
+                nb += 2;
+            }
+            else if ( c >= 0xd800 && c <= 0xdfff ) {
+
+                // A surrogate pair is encoded as 4 bytes; an unpaired
+                // surrogate is replaced by a single '?'.
+                if ( c <= 0xdbff && i + 1 < leng &&
+                     txt.charAt( i + 1 ) >= 0xdc00 &&
+                     txt.charAt( i + 1 ) <= 0xdfff ) {
+                    nb += 4;
+                    i++;
+                }
+                else {
+                    nb += 1;
+                }
+            }
+            else {
+                nb += 3;
+            }
+        }
+        return nb;
+    }
+
     /**
      * Outputs start-of-line padding for a given level of indentation.
      *
@@ -0,0 +1,109 @@
+package org.astrogrid.samp.httpd;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the speed of request head parsing by {@link RequestReader}
+ * with the regular-expression based parsing which it replaced.
+ * Run with no arguments; the number of iterations may optionally
+ * be given.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public class ParseBench {
+
+    private static final Pattern REQUEST_LINE_PATTERN =
+        Pattern.compile( "([a-zA-Z0-9_\\.\\-]+) (\\S+) (HTTP/[0-9]+\\.[0-9]+)" );
+    private static final Pattern HEADER_PATTERN =
+        Pattern.compile( "([^\\s:]+):\\s*(.*)" );
+
+    /** Typical head of an XML-RPC POST from a SAMP client. */
+    private static final String REQUEST =
+          "POST /xmlrpc HTTP/1.1\r\n"
+        + "Content-Type: text/xml\r\n"
+        + "User-Agent: Java/1.8.0\r\n"
+        + "Host: 127.0.0.1:21012\r\n"
+        + "Accept: text/html, image/gif, image/jpeg, *; q=.2, */*; q=.2\r\n"
+        + "Connection: keep-alive\r\n"
+        + "Content-Length: 0\r\n"
+        + "\r\n";
+
+    /**
+     * Parses a request head in the way that HttpServer used to.
+     *
+     * @param  in  input stream
+     * @return   content length
+     */
+    private static int legacyParse( InputStream in ) throws IOException {
+        List lineList = new ArrayList();
+        StringBuffer sbuf = new StringBuffer();
+        for ( int c; ( c = in.read() ) >= 0; ) {
+            if ( c == '\r' ) {
+                in.read();
+                if ( sbuf.length() == 0 ) {
+                    break;
+                }
+                lineList.add( sbuf.toString() );
+                sbuf.setLength( 0 );
+            }
+            else {
+                sbuf.append( (char) c );
+            }
+        }
+        String[] lines = (String[]) lineList.toArray( new String[ 0 ] );
+        Matcher fullMatcher = REQUEST_LINE_PATTERN.matcher( lines[ 0 ] );
+        if ( ! fullMatcher.matches() ) {
+            throw new IOException( "Bad request" );
+        }
+        HttpServer.HttpHeaderMap headerMap = new HttpServer.HttpHeaderMap();
+        int contentLength = 0;
+        for ( int i = 1; i < lines.length; i++ ) {
+            Matcher headerMatcher = HEADER_PATTERN.matcher( lines[ i ] );
+            if ( headerMatcher.matches() ) {
+                String key = headerMatcher.group( 1 );
+                String value = headerMatcher.group( 2 );
+                headerMap.addHeader( key, value );
+                if ( key.equalsIgnoreCase( "Content-Length" ) ) {
+                    contentLength = Integer.parseInt( value.trim() );
+                }
+            }
+        }
+        return contentLength;
+    }
+
+    /**
+     * Times a number of parses by each method and reports the results.
+     *
+     * @param  args  optional single argument giving iteration count
+     */
+    public static void main( String[] args ) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt( args[ 0 ] )
+                                    : 200000;
+        byte[] bytes = REQUEST.getBytes( "ISO-8859-1" );
+        for ( int ir = 0; ir < 3; ir++ ) {
+            long t0 = System.currentTimeMillis();
+            for ( int i = 0; i < count; i++ ) {
+                legacyParse( new BufferedInputStream(
+                                 new ByteArrayInputStream( bytes ) ) );
+            }
+            long t1 = System.currentTimeMillis();
+            for ( int i = 0; i < count; i++ ) {
+                new RequestReader( new ByteArrayInputStream( bytes ) )
+                   .readHead();
+            }
+            long t2 = System.currentTimeMillis();
+            System.out.println( "regex: "
+                              + ( ( t1 - t0 ) * 1000000L / count ) + "ns"
+                              + "\t" + "bytes: "
+                              + ( ( t2 - t1 ) * 1000000L / count ) + "ns" );
+        }
+    }
+}
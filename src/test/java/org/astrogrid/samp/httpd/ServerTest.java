@@ -1,13 +1,24 @@
 package org.astrogrid.samp.httpd;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
 import java.net.URL;
 import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import junit.framework.TestCase;
 
 public class ServerTest extends TestCase {
@@ -77,4 +88,1019 @@ public class ServerTest extends TestCase {
         assertEquals( "CC, DD, EE", HttpServer.getHeader( hdrMap, "c" ) );
         assertEquals( "CC, DD, EE", HttpServer.getHeader( hdrMap, "C" ) );
     }
+
+    public void testRouter() throws IOException {
+        HttpServer.Handler hA = createPrefixHandler( "/a/" );
+        HttpServer.Handler hAb = createPrefixHandler( "/a/b" );
+        HttpServer.Handler hX = createPrefixHandler( "/x" );
+        HttpServer.Handler hAny = createPrefixHandler( null );
+        HttpServer.Handler[] handlers =
+            new HttpServer.Handler[] { hAb, hAny, hA, hX };
+        HandlerRouter router = new HandlerRouter( handlers );
+        assertEquals( Arrays.asList( new HttpServer.Handler[] { hAb, hAny,
+                                                                hA } ),
+                      Arrays.asList( router.getHandlers( "/a/b/c" ) ) );
+        assertEquals( Arrays.asList( new HttpServer.Handler[] { hAny, hA } ),
+                      Arrays.asList( router.getHandlers( "/a/c" ) ) );
+        assertEquals( Arrays.asList( new HttpServer.Handler[] { hAny } ),
+                      Arrays.asList( router.getHandlers( "/a" ) ) );
+        assertEquals( Arrays.asList( new HttpServer.Handler[] { hAny, hX } ),
+                      Arrays.asList( router.getHandlers( "/x" ) ) );
+        assertEquals( Arrays.asList( new HttpServer.Handler[] { hAny } ),
+                      Arrays.asList( router.getHandlers( "" ) ) );
+        assertEquals( 0, HandlerRouter.EMPTY.getHandlers( "/a" ).length );
+
+        HttpServer server = new HttpServer();
+        for ( int i = 0; i < handlers.length; i++ ) {
+            server.addHandler( handlers[ i ] );
+        }
+        assertEquals( "/a/b", getServedPrefix( server, "/a/b/c" ) );
+        assertEquals( "/x", getServedPrefix( server, "/xyz" ) );
+        server.removeHandler( hAb );
+        assertEquals( "/a/", getServedPrefix( server, "/a/b/c" ) );
+        server.removeHandler( hA );
+        server.removeHandler( hX );
+        assertEquals( 404, server.serve( createGetRequest( "/a/b/c" ) )
+                                 .getStatusCode() );
+        server.getSocket().close();
+    }
+
+    private static HttpServer.Handler createPrefixHandler( final String pre ) {
+        return new HttpServer.PrefixHandler() {
+            public String getPathPrefix() {
+                return pre;
+            }
+            public HttpServer.Response serveRequest( HttpServer.Request req ) {
+                return pre != null && req.getUrl().startsWith( pre )
+                     ? HttpServer.createErrorResponse( 200, pre )
+                     : null;
+            }
+        };
+    }
+
+    private static HttpServer.Request createGetRequest( String path ) {
+        return new HttpServer.Request( "GET", path, new HashMap(), null,
+                                       null );
+    }
+
+    private static String getServedPrefix( HttpServer server, String path ) {
+        return server.serve( createGetRequest( path ) ).getStatusPhrase();
+    }
+
+    public void testRequestReader() throws IOException {
+        StringBuffer hbuf = new StringBuffer();
+        for ( int i = 0; i < 2000; i++ ) {
+            hbuf.append( 'x' );
+        }
+        String longValue = hbuf.toString();
+        String txt = "POST /a%20b?x=1 HTTP/1.1\r\n"
+                   + "content-LENGTH:  4 \r\n"
+                   + "X-Long: " + longValue + "\r\n"
+                   + "X-Long-2: " + longValue + "\r\n"
+                   + "X-Long-3: " + longValue + "\r\n"
+                   + "X-Long-4: " + longValue + "\r\n"
+                   + "Accept: a\n"
+                   + "ACCEPT: b\r\n"
+                   + "X-Folded: one\r\n"
+                   + "   two  \r\n"
+                   + "not a header\r\n"
+                   + "\r\n"
+                   + "bodyGET /next HTTP/1.0\r\n\r\n";
+
+        // Supply bytes in small pieces to exercise buffer refills.
+        final byte[] bytes = txt.getBytes( "ISO-8859-1" );
+        InputStream in = new InputStream() {
+            int pos_;
+            public int read() {
+                return pos_ < bytes.length ? bytes[ pos_++ ] & 0xff : -1;
+            }
+            public int read( byte[] b, int off, int len ) {
+                if ( pos_ >= bytes.length ) {
+                    return -1;
+                }
+                int n = Math.min( 7, Math.min( len, bytes.length - pos_ ) );
+                System.arraycopy( bytes, pos_, b, off, n );
+                pos_ += n;
+                return n;
+            }
+        };
+        RequestReader rdr = new RequestReader( in );
+        RequestReader.RequestHead head = rdr.readHead();
+        assertEquals( "POST", head.method_ );
+        assertEquals( "/a%20b?x=1", head.uri_ );
+        assertEquals( "HTTP/1.1", head.version_ );
+        assertEquals( 4, head.contentLength_ );
+        Map hdrs = head.headerMap_;
+        assertEquals( "4 ", HttpServer.getHeader( hdrs, "Content-Length" ) );
+        assertEquals( longValue, HttpServer.getHeader( hdrs, "x-long-4" ) );
+        assertEquals( "a, b", HttpServer.getHeader( hdrs, "accept" ) );
+        assertEquals( "onetwo", HttpServer.getHeader( hdrs, "X-Folded" ) );
+        assertEquals( 7, hdrs.size() );
+        byte[] body = new byte[ 4 ];
+        assertEquals( 4, rdr.read( body ) );
+        assertEquals( "body", new String( body, "ISO-8859-1" ) );
+        head = rdr.readHead();
+        assertEquals( "GET", head.method_ );
+        assertEquals( "/next", head.uri_ );
+        assertEquals( "HTTP/1.0", head.version_ );
+        assertEquals( -1, head.contentLength_ );
+        assertEquals( 0, head.headerMap_.size() );
+        assertNull( rdr.readHead() );
+
+        assertEquals( "/simple", readHead( "GET /simple\r\n\r\n" ).uri_ );
+        assertNull( readHead( "GET /simple\n" ).version_ );
+        assertEquals( "HTTP/2.10",
+                      readHead( "X /u HTTP/2.10\n\n" ).version_ );
+        assertHttpError( 400, "\r\n" );
+        assertHttpError( 400, "GET /x HTTP/1.1 \r\n\r\n" );
+        assertHttpError( 400, "G\tET /x HTTP/1.1\r\n\r\n" );
+        assertHttpError( 400, "GET /x HTTP/1.1\r\nA: b\rc\r\n\r\n" );
+        assertHttpError( 400, "GET /x HTTP/1.1\r\n"
+                            + "Content-Length: -1\r\n\r\n" );
+        assertHttpError( 400, "GET /x HTTP/1.1\r\n"
+                            + "Content-Length: 1\r\n"
+                            + "Content-Length: 1\r\n\r\n" );
+        assertHttpError( 500, "GET /x HTTP/1.1\r\nHost: h\r\n" );
+        StringBuffer huge = new StringBuffer( "GET /x HTTP/1.1\r\n" );
+        while ( huge.length() <= RequestReader.MAX_HEAD ) {
+            huge.append( "X-Pad: " + longValue + "\r\n" );
+        }
+        assertHttpError( 431, huge.append( "\r\n" ).toString() );
+    }
+
+    private static RequestReader.RequestHead readHead( String txt )
+            throws IOException {
+        return new RequestReader( new ByteArrayInputStream(
+                                      txt.getBytes( "ISO-8859-1" ) ) )
+              .readHead();
+    }
+
+    private static void assertHttpError( int code, String txt )
+            throws IOException {
+        try {
+            readHead( txt );
+            fail();
+        }
+        catch ( HttpServer.HttpException e ) {
+            assertEquals( code, e.createResponse().getStatusCode() );
+        }
+    }
+
+    public void testEngines() throws IOException {
+        HttpServer sockServer = new HttpServer();
+        sockServer.setUseNio( false );
+        exerciseServer( sockServer );
+
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().bind( null );
+        HttpServer nioServer = new HttpServer( channel.socket() );
+        nioServer.setUseNio( true );
+        exerciseServer( nioServer );
+    }
+
+    public void testExecutor() throws IOException, InterruptedException {
+        checkExecutor( false );
+        checkExecutor( true );
+    }
+
+    private void checkExecutor( boolean isNio )
+            throws IOException, InterruptedException {
+        HttpServer server = new HttpServer();
+        server.setUseNio( isNio );
+        server.setExecutor( RequestExecutor.createPoolExecutor( 1, 0, true ) );
+        final Object lock = new Object();
+        final boolean[] state = new boolean[ 2 ];  // { busy, released }
+        server.addHandler( new HttpServer.Handler() {
+            public HttpServer.Response serveRequest( HttpServer.Request req ) {
+                synchronized ( lock ) {
+                    state[ 0 ] = true;
+                    lock.notifyAll();
+                    while ( ! state[ 1 ] ) {
+                        try {
+                            lock.wait();
+                        }
+                        catch ( InterruptedException e ) {
+                        }
+                    }
+                }
+                return HttpServer.createErrorResponse( 200, "OK" );
+            }
+        } );
+        server.start();
+        int port = server.getSocket().getLocalPort();
+
+        // Occupy the only worker.
+        Socket sock1 = new Socket( "localhost", port );
+        OutputStream out1 = sock1.getOutputStream();
+        out1.write( ( "GET /block HTTP/1.1\r\n"
+                    + "Connection: close\r\n\r\n" ).getBytes( "US-ASCII" ) );
+        out1.flush();
+        synchronized ( lock ) {
+            while ( ! state[ 0 ] ) {
+                lock.wait();
+            }
+        }
+
+        // No worker or queue slot is available, so the next connection
+        // is refused straight away.
+        assertEquals( 0, server.getRejectedCount() );
+        Socket sock2 = new Socket( "localhost", port );
+        OutputStream out2 = sock2.getOutputStream();
+        out2.write( "GET /next HTTP/1.1\r\n\r\n".getBytes( "US-ASCII" ) );
+        out2.flush();
+        InputStream in2 = sock2.getInputStream();
+        StringBuffer sbuf = new StringBuffer();
+        for ( int c; ( c = in2.read() ) >= 0 && c != '\r'; ) {
+            sbuf.append( (char) c );
+        }
+        sock2.close();
+        assertEquals( "HTTP/1.1 503 Service unavailable", sbuf.toString() );
+        assertEquals( 1, server.getRejectedCount() );
+
+        synchronized ( lock ) {
+            state[ 1 ] = true;
+            lock.notifyAll();
+        }
+        assertEquals( "", readResponseBody( sock1.getInputStream() ) );
+        sock1.close();
+        server.stop();
+    }
+
+    public void testBodyTooLarge() throws IOException, InterruptedException {
+        HttpServer sockServer = new HttpServer();
+        sockServer.setUseNio( false );
+        checkBodyTooLarge( sockServer );
+
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().bind( null );
+        HttpServer nioServer = new HttpServer( channel.socket() );
+        nioServer.setUseNio( true );
+        checkBodyTooLarge( nioServer );
+    }
+
+    /**
+     * Checks that a client sending an oversized body sees the 413
+     * response rather than a reset connection.
+     */
+    private void checkBodyTooLarge( HttpServer server )
+            throws IOException, InterruptedException {
+        server.setMaxBodySize( 1000 );
+        server.addHandler( new HttpServer.Handler() {
+            public HttpServer.Response serveRequest( HttpServer.Request req ) {
+                return HttpServer.createErrorResponse( 200, "OK" );
+            }
+        } );
+        server.start();
+        final Socket sock =
+            new Socket( "localhost", server.getSocket().getLocalPort() );
+        sock.setSoTimeout( 5000 );
+        final int leng = 512 * 1024;
+        final IOException[] error = new IOException[ 1 ];
+        Thread writer = new Thread( "Body writer" ) {
+            public void run() {
+                try {
+                    OutputStream out = sock.getOutputStream();
+                    out.write( ( "POST /x HTTP/1.1\r\n"
+                               + "Content-Length: " + leng + "\r\n\r\n" )
+                              .getBytes( "US-ASCII" ) );
+                    out.write( new byte[ leng ] );
+                    out.flush();
+                }
+                catch ( IOException e ) {
+                    error[ 0 ] = e;
+                }
+            }
+        };
+        writer.start();
+        Thread.sleep( 500 );
+        assertEquals( "HTTP/1.1 413 Request body too large",
+                      readLine( sock.getInputStream() ) );
+        writer.join( 5000 );
+
+        // The server reads and discards the rest of the body before
+        // closing, so the client can finish sending it.
+        assertNull( error[ 0 ] );
+        assertTrue( new String( readAll( sock.getInputStream() ), "US-ASCII" )
+                   .endsWith( "\r\n\r\n" ) );
+        sock.close();
+        server.stop();
+    }
+
+    public void testSharedResponse() throws IOException {
+        Map hdrMap = new LinkedHashMap();
+        hdrMap.put( "Content-Type", "text/plain" );
+        final Map sharedHdrMap = Collections.unmodifiableMap( hdrMap );
+        final HttpServer.Response shared =
+                new HttpServer.Response( 200, "OK", sharedHdrMap ) {
+            public void writeBody( OutputStream out ) throws IOException {
+                out.write( "shared".getBytes( "US-ASCII" ) );
+            }
+        };
+        HttpServer server = new HttpServer();
+        server.addHandler( new HttpServer.Handler() {
+            public HttpServer.Response serveRequest( HttpServer.Request req ) {
+                return shared;
+            }
+        } );
+        server.start();
+        int port = server.getSocket().getLocalPort();
+
+        // The server chooses the connection headers for each exchange
+        // without touching the handler's header map, so one response
+        // can be served to clients that want different things.
+        Socket sock = new Socket( "localhost", port );
+        sock.setSoTimeout( 5000 );
+        OutputStream out = sock.getOutputStream();
+        InputStream in = sock.getInputStream();
+        for ( int i = 0; i < 2; i++ ) {
+            out.write( ( "GET /s HTTP/1.1\r\nHost: localhost\r\n\r\n" )
+                      .getBytes( "US-ASCII" ) );
+            out.flush();
+            assertEquals( "shared", readResponseBody( in ) );
+        }
+        out.write( ( "GET /s HTTP/1.1\r\nConnection: close\r\n\r\n" )
+                  .getBytes( "US-ASCII" ) );
+        out.flush();
+        assertEquals( "HTTP/1.1 200 OK", readLine( in ) );
+        Map respHdrs = new HashMap();
+        for ( String line; ( line = readLine( in ) ).length() > 0; ) {
+            int icolon = line.indexOf( ':' );
+            respHdrs.put( line.substring( 0, icolon ).toLowerCase(),
+                          line.substring( icolon + 1 ).trim() );
+        }
+        assertEquals( "close", respHdrs.get( "connection" ) );
+        assertEquals( "chunked", respHdrs.get( "transfer-encoding" ) );
+        sock.close();
+        assertEquals( 1, sharedHdrMap.size() );
+        server.stop();
+    }
+
+    public void testIdleConnections() throws IOException {
+        HttpServer sockServer = new HttpServer();
+        sockServer.setUseNio( false );
+        checkIdleConnections( sockServer, false );
+
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().bind( null );
+        HttpServer nioServer = new HttpServer( channel.socket() );
+        nioServer.setUseNio( true );
+        checkIdleConnections( nioServer, true );
+    }
+
+    /**
+     * Checks that idle persistent connections do not use up the
+     * threads of a bounded executor.
+     */
+    private void checkIdleConnections( HttpServer server, boolean isNio )
+            throws IOException {
+        int nthread = 2;
+        server.setExecutor( RequestExecutor
+                           .createPoolExecutor( nthread, 0, true ) );
+        server.addHandler( new HttpServer.Handler() {
+            public HttpServer.Response serveRequest( HttpServer.Request req ) {
+                return HttpServer.createErrorResponse( 200, "OK" );
+            }
+        } );
+        server.start();
+        int port = server.getSocket().getLocalPort();
+        byte[] req = "GET /x HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    .getBytes( "US-ASCII" );
+        Socket[] idleSocks = new Socket[ nthread ];
+        for ( int i = 0; i < nthread; i++ ) {
+            Socket sock = new Socket( "localhost", port );
+            sock.getOutputStream().write( req );
+            sock.getOutputStream().flush();
+            assertEquals( "", readResponseBody( sock.getInputStream() ) );
+            idleSocks[ i ] = sock;
+        }
+
+        // Without NIO, the server closes each connection rather than
+        // hold a thread waiting for its next request.
+        if ( ! isNio ) {
+            for ( int i = 0; i < nthread; i++ ) {
+                idleSocks[ i ].setSoTimeout( 5000 );
+                assertEquals( -1, idleSocks[ i ].getInputStream().read() );
+            }
+        }
+        try {
+            Thread.sleep( 200 );
+        }
+        catch ( InterruptedException e ) {
+        }
+        for ( int i = 0; i < 2; i++ ) {
+            Socket sock = new Socket( "localhost", port );
+            sock.setSoTimeout( 5000 );
+            sock.getOutputStream().write( req );
+            sock.getOutputStream().flush();
+            assertEquals( 200, readStatus( sock ) );
+        }
+        assertEquals( 0, server.getRejectedCount() );
+        for ( int i = 0; i < nthread; i++ ) {
+            idleSocks[ i ].close();
+        }
+        server.stop();
+    }
+
+    public void testFileResponse() throws IOException {
+        assertEquals( "[0, 99]", rangeText( "bytes=0-" ) );
+        assertEquals( "[10, 19]", rangeText( "bytes=10-19" ) );
+        assertEquals( "[90, 99]", rangeText( "bytes=-10" ) );
+        assertEquals( "[0, 99]", rangeText( "bytes=-1000" ) );
+        assertEquals( "[50, 99]", rangeText( "bytes=50-1000" ) );
+        assertEquals( "[]", rangeText( "bytes=100-" ) );
+        assertEquals( "[]", rangeText( "bytes=-0" ) );
+        assertNull( FileResponse.parseRange( "bytes=0-1,5-6", 100 ) );
+        assertNull( FileResponse.parseRange( "bytes=9-1", 100 ) );
+        assertNull( FileResponse.parseRange( "lines=1-2", 100 ) );
+        assertNull( FileResponse.parseRange( "bytes=x-", 100 ) );
+
+        File file = File.createTempFile( "range", ".dat" );
+        file.deleteOnExit();
+        byte[] data = new byte[ 100000 ];
+        for ( int i = 0; i < data.length; i++ ) {
+            data[ i ] = (byte) ( i * 7 );
+        }
+        OutputStream fout = new FileOutputStream( file );
+        fout.write( data );
+        fout.close();
+
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().bind( null );
+        HttpServer[] servers = new HttpServer[] {
+            new HttpServer( channel.socket() ),
+            new HttpServer(),
+        };
+        servers[ 0 ].setUseNio( true );
+        servers[ 1 ].setUseNio( false );
+        for ( int is = 0; is < servers.length; is++ ) {
+            HttpServer server = servers[ is ];
+            MultiURLMapperHandler mHandler =
+                new MultiURLMapperHandler( server, "files" );
+            server.addHandler( mHandler );
+            server.start();
+            URL url = mHandler.addLocalUrl( file.toURL() );
+
+            HttpURLConnection conn =
+                (HttpURLConnection) url.openConnection();
+            assertEquals( 200, conn.getResponseCode() );
+            assertEquals( "bytes", conn.getHeaderField( "Accept-Ranges" ) );
+            String lastMod = conn.getHeaderField( "Last-Modified" );
+            assertEquals( file.lastModified() / 1000,
+                          HttpServer.parseDate( lastMod ) / 1000 );
+            assertTrue( Arrays.equals( data,
+                                       readAll( conn.getInputStream() ) ) );
+
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestProperty( "Range", "bytes=99990-" );
+            conn.setRequestProperty( "If-Range", lastMod );
+            assertEquals( 206, conn.getResponseCode() );
+            assertEquals( "bytes 99990-99999/100000",
+                          conn.getHeaderField( "Content-Range" ) );
+            byte[] tail = new byte[ 10 ];
+            System.arraycopy( data, 99990, tail, 0, 10 );
+            assertTrue( Arrays.equals( tail,
+                                       readAll( conn.getInputStream() ) ) );
+
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestProperty( "Range", "bytes=99990-" );
+            conn.setRequestProperty( "If-Range",
+                                     HttpServer.formatDate( 0 ) );
+            assertEquals( 200, conn.getResponseCode() );
+            assertEquals( data.length, readAll( conn.getInputStream() )
+                                      .length );
+
+            String etag = conn.getHeaderField( "ETag" );
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestProperty( "If-None-Match", "\"x\", " + etag );
+            assertEquals( 304, conn.getResponseCode() );
+            assertEquals( etag, conn.getHeaderField( "ETag" ) );
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestProperty( "If-None-Match", "\"x\"" );
+            conn.setRequestProperty( "If-Modified-Since", lastMod );
+            assertEquals( 200, conn.getResponseCode() );
+            readAll( conn.getInputStream() );
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setIfModifiedSince( file.lastModified() );
+            assertEquals( 304, conn.getResponseCode() );
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setIfModifiedSince( file.lastModified() - 2000 );
+            assertEquals( 200, conn.getResponseCode() );
+            readAll( conn.getInputStream() );
+
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestProperty( "Range", "bytes=100000-" );
+            assertEquals( 416, conn.getResponseCode() );
+            assertEquals( "bytes */100000",
+                          conn.getHeaderField( "Content-Range" ) );
+            server.stop();
+        }
+        file.delete();
+    }
+
+    public void testResourceEtag() throws IOException {
+        HttpServer server = new HttpServer();
+        ResourceHandler rHandler = new ResourceHandler( server, "res" );
+        server.addHandler( rHandler );
+        final byte[] content = "some content".getBytes( "US-ASCII" );
+        URL url = rHandler.addResource( "x.txt", new ServerResource() {
+            public String getContentType() {
+                return "text/plain";
+            }
+            public long getContentLength() {
+                return content.length;
+            }
+            public void writeBody( OutputStream out ) throws IOException {
+                out.write( content );
+            }
+        } );
+        Map hdrs = new HashMap();
+        HttpServer.Request req =
+            new HttpServer.Request( "GET", url.getPath(), hdrs, null, null );
+        HttpServer.Response resp = server.serve( req );
+        assertEquals( 200, resp.getStatusCode() );
+        String etag = HttpServer.getHeader( resp.getHeaderMap(), "ETag" );
+        assertTrue( etag.startsWith( "\"" ) && etag.endsWith( "\"" ) );
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        resp.writeBody( bout );
+        assertTrue( Arrays.equals( content, bout.toByteArray() ) );
+
+        hdrs.put( "if-none-match", "W/" + etag );
+        resp = server.serve( req );
+        assertEquals( 304, resp.getStatusCode() );
+        assertEquals( etag,
+                      HttpServer.getHeader( resp.getHeaderMap(), "ETag" ) );
+        hdrs.put( "if-none-match", "\"other\"" );
+        assertEquals( 200, server.serve( req ).getStatusCode() );
+        server.getSocket().close();
+    }
+
+    public void testMetrics() throws IOException, InterruptedException {
+        HttpServer server = new HttpServer();
+        server.addHandler( createPrefixHandler( "/a" ) );
+        server.addHandler( new HttpServer.PrefixHandler() {
+            public String getPathPrefix() {
+                return "/b";
+            }
+            public HttpServer.Response serveRequest( HttpServer.Request req ) {
+                Map hdrs = new HashMap();
+                hdrs.put( "Content-Type", "text/plain" );
+                return new HttpServer.Response( 200, "OK", hdrs ) {
+                    public void writeBody( OutputStream out )
+                            throws IOException {
+                        out.write( new byte[ 1000 ] );
+                    }
+                };
+            }
+        } );
+        server.setMetrics( null );
+        URL statusUrl = new UtilServer( server ).addStatusHandler();
+        ServerMetrics metrics = server.getMetrics();
+        assertNotNull( metrics );
+        server.start();
+        URL base = server.getBaseUrl();
+        readAll( new URL( base, "/a" ).openStream() );
+        readAll( new URL( base, "/a" ).openStream() );
+        assertEquals( 1000, readAll( new URL( base, "/b" ).openStream() )
+                           .length );
+        HttpURLConnection conn =
+            (HttpURLConnection) new URL( base, "/c" ).openConnection();
+        assertEquals( 404, conn.getResponseCode() );
+        for ( int i = 0; i < 100 && metrics.getRequestCount() < 4; i++ ) {
+            Thread.sleep( 20 );
+        }
+        assertEquals( 4, metrics.getRequestCount() );
+        assertEquals( 0, metrics.getInFlight() );
+        String[] summaries = metrics.getHandlerSummaries();
+        assertEquals( 3, summaries.length );
+        assertTrue( summaries[ 0 ].startsWith( "/a: requests=2, inFlight=0, "
+                                             + "status={200=2}" ) );
+
+        // Unknown-length body is chunked, and the count includes delimiters.
+        assertTrue( summaries[ 1 ].indexOf( "responseBytes=1012," ) > 0 );
+        assertTrue( summaries[ 2 ].startsWith( "(none): requests=1, " ) );
+
+        String json =
+            new String( readAll( statusUrl.openStream() ), "UTF-8" );
+        assertTrue( json.indexOf( "\"inFlight\": 1," ) > 0 );
+        assertTrue( json.indexOf( "{\"name\": \"/b\", \"requests\": 1, "
+                                + "\"inFlight\": 0, \"status\": {\"200\": 1}, "
+                                + "\"requestBytes\": 0, "
+                                + "\"responseBytes\": 1012, " ) > 0 );
+        assertTrue( json.indexOf( "\"status\": {\"200\": 3, \"404\": 1}" )
+                    > 0 );
+        metrics.reset();
+        assertEquals( 0, metrics.getRequestCount() );
+        server.stop();
+    }
+
+    public void testAccessLog() throws IOException {
+        File file = File.createTempFile( "access", ".log" );
+        File file1 = new File( file.getPath() + ".1" );
+        file.deleteOnExit();
+        file1.deleteOnExit();
+        HttpServer server = new HttpServer();
+        server.addHandler( createPrefixHandler( "/a" ) );
+        AccessLog log = new AccessLog( file, 4, 400, 1 );
+        server.setAccessLog( log );
+        server.start();
+        URL base = server.getBaseUrl();
+        for ( int i = 0; i < 8; i++ ) {
+            readAll( new URL( base, "/a?i=" + i ).openStream() );
+        }
+        server.stop();
+        assertTrue( file1.exists() );
+        String txt = new String( readAll( new FileInputStream( file1 ) ),
+                                 "UTF-8" )
+                   + new String( readAll( new FileInputStream( file ) ),
+                                 "UTF-8" );
+        String[] lines = txt.split( "\n" );
+        int nreq = 0;
+        for ( int i = 0; i < lines.length; i++ ) {
+            String line = lines[ i ];
+            if ( ! line.startsWith( "#" ) ) {
+                assertTrue( line,
+                            line.matches( "\\S+ - - \\[.*\\] "
+                                        + "\"GET /a\\?i=[0-7]\" "
+                                        + "200 [0-9]+ 0 [0-9]+" ) );
+                nreq++;
+            }
+        }
+        assertEquals( 8, nreq + log.getDropCount() );
+        assertTrue( file.length() <= 400 );
+    }
+
+    public void testSlowClients() throws IOException, InterruptedException {
+        for ( int i = 0; i < 2; i++ ) {
+            HttpServer server = new HttpServer();
+            server.setUseNio( i == 1 );
+            server.setIdleTimeout( 300 );
+            server.setHeaderTimeout( 800 );
+            server.setBodyTimeout( 300 );
+            server.setMaxAddressConnections( 1 );
+            server.addHandler( new HttpServer.Handler() {
+                public HttpServer.Response
+                        serveRequest( HttpServer.Request req ) {
+                    req.getBody();
+                    return HttpServer.createErrorResponse( 200, "OK" );
+                }
+            } );
+            server.start();
+            int port = server.getSocket().getLocalPort();
+
+            // A connection over the per-address limit is closed at once,
+            // and one that sends nothing is dropped when idle.
+            Socket sock1 = new Socket( "localhost", port );
+            Thread.sleep( 100 );
+            Socket sock2 = new Socket( "localhost", port );
+            assertEquals( "", readLine( sock2.getInputStream() ) );
+            sock2.close();
+            assertEquals( 408, readStatus( sock1 ) );
+            server.setMaxAddressConnections( 0 );
+
+            // A header trickled in is dropped at the header deadline.
+            Socket sock3 = new Socket( "localhost", port );
+            OutputStream out3 = sock3.getOutputStream();
+            out3.write( "GET /a HTTP/1.1\r\n".getBytes( "US-ASCII" ) );
+            try {
+                for ( int j = 0; j < 30 &&
+                                 sock3.getInputStream().available() == 0;
+                      j++ ) {
+                    Thread.sleep( 100 );
+                    out3.write( ( "X-Pad: " + j + "\r\n" )
+                               .getBytes( "US-ASCII" ) );
+                }
+            }
+            catch ( IOException e ) {
+            }
+            assertEquals( 408, readStatus( sock3 ) );
+
+            // A body which stops arriving is dropped.
+            Socket sock4 = new Socket( "localhost", port );
+            sock4.getOutputStream()
+                 .write( ( "POST /a HTTP/1.1\r\n"
+                         + "Content-Length: 10\r\n\r\nabc" )
+                        .getBytes( "US-ASCII" ) );
+            assertEquals( 408, readStatus( sock4 ) );
+
+            // A well-behaved client is unaffected.
+            assertEquals( 0, post( new URL( server.getBaseUrl(), "/a" ),
+                                   "abc".getBytes() ).length );
+
+            Map counts = server.getDropCounts();
+            assertEquals( new Long( 1 ), counts.get( HttpServer.DROP_IDLE ) );
+            assertEquals( new Long( 1 ),
+                          counts.get( HttpServer.DROP_HEADER ) );
+            assertEquals( new Long( 1 ), counts.get( HttpServer.DROP_BODY ) );
+            assertEquals( new Long( 0 ), counts.get( HttpServer.DROP_SLOW ) );
+            assertEquals( new Long( 1 ), counts.get( HttpServer.DROP_LIMIT ) );
+            server.stop();
+        }
+    }
+
+    public void testDrain() throws IOException, InterruptedException {
+        for ( int i = 0; i < 2; i++ ) {
+            final Object lock = new Object();
+            HttpServer server = new HttpServer();
+            server.setUseNio( i == 1 );
+            server.setDrainTimeout( 2000 );
+            server.addHandler( new HttpServer.Handler() {
+                public HttpServer.Response
+                        serveRequest( HttpServer.Request req ) {
+                    synchronized ( lock ) {
+                        try {
+                            lock.wait( 300 );
+                        }
+                        catch ( InterruptedException e ) {
+                        }
+                    }
+                    return HttpServer.createErrorResponse( 200, "OK" );
+                }
+            } );
+            server.start();
+            int port = server.getSocket().getLocalPort();
+
+            // An idle connection is closed straight away, and a request
+            // in progress is allowed to complete.
+            Socket idleSock = new Socket( "localhost", port );
+            Socket slowSock = new Socket( "localhost", port );
+            slowSock.getOutputStream()
+                    .write( "GET /slow HTTP/1.1\r\n\r\n"
+                           .getBytes( "US-ASCII" ) );
+            Thread.sleep( 100 );
+            long t0 = System.currentTimeMillis();
+            server.stop();
+            assertTrue( System.currentTimeMillis() - t0 < 1500 );
+            assertEquals( "", readLine( idleSock.getInputStream() ) );
+            idleSock.close();
+            assertEquals( "", readResponseBody( slowSock.getInputStream() ) );
+            slowSock.close();
+            assertEquals( 0, server.getAbortedCount() );
+
+            // A request which does not complete within the drain timeout
+            // is aborted.
+            server = new HttpServer();
+            server.setUseNio( i == 1 );
+            server.setDrainTimeout( 200 );
+            server.addHandler( new HttpServer.Handler() {
+                public HttpServer.Response
+                        serveRequest( HttpServer.Request req ) {
+                    synchronized ( lock ) {
+                        try {
+                            lock.wait( 10000 );
+                        }
+                        catch ( InterruptedException e ) {
+                        }
+                    }
+                    return HttpServer.createErrorResponse( 200, "OK" );
+                }
+            } );
+            server.start();
+            Socket stuckSock =
+                new Socket( "localhost", server.getSocket().getLocalPort() );
+            stuckSock.getOutputStream()
+                     .write( "GET /stuck HTTP/1.1\r\n\r\n"
+                            .getBytes( "US-ASCII" ) );
+            Thread.sleep( 100 );
+            server.stop();
+            assertEquals( 1, server.getAbortedCount() );
+            assertEquals( "", readLine( stuckSock.getInputStream() ) );
+            stuckSock.close();
+            synchronized ( lock ) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private static int readStatus( Socket sock ) throws IOException {
+        String line = readLine( sock.getInputStream() );
+        sock.close();
+        return Integer.parseInt( line.split( " " )[ 1 ] );
+    }
+
+    private static String rangeText( String range ) {
+        long[] span = FileResponse.parseRange( range, 100 );
+        StringBuffer sbuf = new StringBuffer( "[" );
+        for ( int i = 0; i < span.length; i++ ) {
+            if ( i > 0 ) {
+                sbuf.append( ", " );
+            }
+            sbuf.append( span[ i ] );
+        }
+        return sbuf.append( "]" ).toString();
+    }
+
+    private static byte[] readAll( InputStream in ) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        UtilServer.copy( in, bout );
+        return bout.toByteArray();
+    }
+
+    private void exerciseServer( HttpServer server ) throws IOException {
+        server.addHandler( new HttpServer.Handler() {
+            public HttpServer.Response serveRequest( HttpServer.Request req ) {
+                final byte[] rbuf;
+                if ( req.getUrl().equals( "/echo" ) ) {
+                    byte[] body = req.getBody();
+                    rbuf = body == null ? new byte[ 0 ] : body;
+                }
+
+                // Echoes the body with no declared length.
+                else if ( req.getUrl().equals( "/stream" ) ) {
+                    byte[] body = req.getBody();
+                    final byte[] sbuf = body == null ? new byte[ 0 ] : body;
+                    return new HttpServer.Response( 200, "OK",
+                                                    new HashMap() ) {
+                        public void writeBody( OutputStream out )
+                                throws IOException {
+                            for ( int i = 0; i < sbuf.length; i++ ) {
+                                out.write( sbuf[ i ] );
+                            }
+                        }
+                    };
+                }
+
+                // Reads only the first byte of the body.
+                else if ( req.getUrl().equals( "/first" ) ) {
+                    try {
+                        rbuf = new byte[] { (byte) req.getBodyStream()
+                                                      .read() };
+                    }
+                    catch ( IOException e ) {
+                        return HttpServer.createErrorResponse( 500, "Oops" );
+                    }
+                }
+                else {
+                    return null;
+                }
+                Map hdrMap = new LinkedHashMap();
+                hdrMap.put( "Content-Length", Integer.toString( rbuf.length ) );
+                return new HttpServer.Response( 200, "OK", hdrMap ) {
+                    public void writeBody( OutputStream out )
+                            throws IOException {
+                        out.write( rbuf );
+                    }
+                };
+            }
+        } );
+        server.start();
+        assertTrue( server.isRunning() );
+        URL echoUrl = new URL( server.getBaseUrl(), "/echo" );
+        URL streamUrl = new URL( server.getBaseUrl(), "/stream" );
+        for ( int i = 0; i < 20; i++ ) {
+            byte[] body = new byte[ i * 1000 ];
+            for ( int j = 0; j < body.length; j++ ) {
+                body[ j ] = (byte) ( j + i );
+            }
+            assertTrue( Arrays.equals( body, post( echoUrl, body ) ) );
+            assertTrue( Arrays.equals( body, post( streamUrl, body ) ) );
+        }
+        HttpURLConnection conn =
+            (HttpURLConnection)
+            new URL( server.getBaseUrl(), "/not-there" ).openConnection();
+        assertEquals( 404, conn.getResponseCode() );
+        conn.disconnect();
+
+        // Persistent connections, including a pipelined pair of requests.
+        Socket sock = new Socket( "localhost", server.getSocket()
+                                                     .getLocalPort() );
+        OutputStream sout = sock.getOutputStream();
+        InputStream sin = sock.getInputStream();
+        String req1 = "POST /echo HTTP/1.1\r\n"
+                    + "Content-Length: 3\r\n\r\nabc";
+        String req2 = "POST /echo HTTP/1.1\r\n"
+                    + "Content-Length: 2\r\n\r\nxy";
+        sout.write( req1.getBytes( "US-ASCII" ) );
+        sout.flush();
+        assertEquals( "abc", readResponseBody( sin ) );
+        sout.write( ( req1 + req2 ).getBytes( "US-ASCII" ) );
+        sout.flush();
+        assertEquals( "abc", readResponseBody( sin ) );
+        assertEquals( "xy", readResponseBody( sin ) );
+        sout.write( ( "POST /first HTTP/1.1\r\n"
+                    + "Content-Length: 5\r\n\r\nfghij" + req2 )
+                   .getBytes( "US-ASCII" ) );
+        sout.flush();
+        assertEquals( "f", readResponseBody( sin ) );
+        assertEquals( "xy", readResponseBody( sin ) );
+        StringBuffer lbuf = new StringBuffer();
+        while ( lbuf.length() < 20000 ) {
+            lbuf.append( "0123456789" );
+        }
+        sout.write( ( "POST /stream HTTP/1.1\r\n"
+                    + "Content-Length: " + lbuf.length() + "\r\n\r\n"
+                    + lbuf + req2 ).getBytes( "US-ASCII" ) );
+        sout.flush();
+        assertEquals( lbuf.toString(), readResponseBody( sin ) );
+        assertEquals( "xy", readResponseBody( sin ) );
+
+        // Large body, much larger than the engine buffers before
+        // dispatch, followed by a pipelined request.
+        byte[] big = new byte[ 1024 * 1024 ];
+        for ( int j = 0; j < big.length; j++ ) {
+            big[ j ] = (byte) ( 'a' + j % 26 );
+        }
+        sout.write( ( "POST /echo HTTP/1.1\r\n"
+                    + "Content-Length: " + big.length + "\r\n\r\n" )
+                   .getBytes( "US-ASCII" ) );
+        sout.write( big );
+        sout.write( req2.getBytes( "US-ASCII" ) );
+        sout.flush();
+        assertEquals( new String( big, "US-ASCII" ), readResponseBody( sin ) );
+        assertEquals( "xy", readResponseBody( sin ) );
+        sout.write( ( "GET /echo HTTP/1.1\r\n"
+                    + "Connection: close\r\n\r\n" ).getBytes( "US-ASCII" ) );
+        sout.flush();
+        assertEquals( "", readResponseBody( sin ) );
+        assertEquals( -1, sin.read() );
+        sock.close();
+
+        // An HTTP/0.9 simple request is served without waiting for
+        // the blank line that would end a header.
+        sock = new Socket( "localhost", server.getSocket().getLocalPort() );
+        sock.setSoTimeout( 5000 );
+        sock.getOutputStream().write( "GET /echo\r\n".getBytes( "US-ASCII" ) );
+        assertTrue( readLine( sock.getInputStream() ).startsWith( "HTTP/" ) );
+        readAll( sock.getInputStream() );
+        sock.close();
+        assertTrue( Arrays.equals( big, post( echoUrl, big ) ) );
+
+        // Oversized body.
+        server.setMaxBodySize( 10 );
+        sock = new Socket( "localhost", server.getSocket().getLocalPort() );
+        sock.getOutputStream()
+            .write( ( "POST /echo HTTP/1.1\r\n"
+                    + "Content-Length: 11\r\n\r\n" )
+                   .getBytes( "US-ASCII" ) );
+        sin = sock.getInputStream();
+        StringBuffer sbuf = new StringBuffer();
+        for ( int c; ( c = sin.read() ) >= 0 && c != '\r'; ) {
+            sbuf.append( (char) c );
+        }
+        assertEquals( "HTTP/1.1 413 Request body too large", sbuf.toString() );
+        sock.close();
+
+        server.stop();
+        assertTrue( ! server.isRunning() );
+    }
+
+    private static byte[] post( URL url, byte[] body ) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setDoOutput( true );
+        conn.setRequestMethod( "POST" );
+        OutputStream out = conn.getOutputStream();
+        out.write( body );
+        out.close();
+        assertEquals( 200, conn.getResponseCode() );
+        InputStream in = conn.getInputStream();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for ( int b; ( b = in.read() ) >= 0; ) {
+            bos.write( b );
+        }
+        in.close();
+        conn.disconnect();
+        return bos.toByteArray();
+    }
+
+    private static String readResponseBody( InputStream in )
+            throws IOException {
+        assertEquals( "HTTP/1.1 200 OK", readLine( in ) );
+        int leng = -1;
+        boolean chunked = false;
+        for ( String txt; ( txt = readLine( in ) ).length() > 0; ) {
+            String ltxt = txt.toLowerCase();
+            if ( ltxt.startsWith( "content-length:" ) ) {
+                leng = Integer.parseInt( txt.substring( 15 ).trim() );
+            }
+            else if ( ltxt.startsWith( "transfer-encoding:" ) ) {
+                assertEquals( "chunked", txt.substring( 18 ).trim() );
+                chunked = true;
+            }
+        }
+        StringBuffer body = new StringBuffer();
+        if ( chunked ) {
+            assertEquals( -1, leng );
+            for ( int nc; ( nc = Integer.parseInt( readLine( in ), 16 ) ) > 0;
+                  assertEquals( "", readLine( in ) ) ) {
+                for ( int i = 0; i < nc; i++ ) {
+                    body.append( (char) in.read() );
+                }
+            }
+            assertEquals( "", readLine( in ) );
+        }
+        else {
+            assertTrue( leng >= 0 );
+            for ( int i = 0; i < leng; i++ ) {
+                body.append( (char) in.read() );
+            }
+        }
+        return body.toString();
+    }
+
+    private static String readLine( InputStream in ) throws IOException {
+        StringBuffer line = new StringBuffer();
+        for ( int c; ( c = in.read() ) >= 0 && c != '\n'; ) {
+            line.append( (char) c );
+        }
+        return line.toString().trim();
+    }
 }
@@ -1,9 +1,40 @@
 package org.astrogrid.samp.xmlrpc;
 
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import junit.framework.TestCase;
+import org.astrogrid.samp.Message;
+import org.astrogrid.samp.Metadata;
+import org.astrogrid.samp.RegInfo;
+import org.astrogrid.samp.Response;
+import org.astrogrid.samp.Subscriptions;
+import org.astrogrid.samp.client.CallableClient;
+import org.astrogrid.samp.client.HubConnection;
+import org.astrogrid.samp.hub.BasicHubService;
+import org.astrogrid.samp.hub.MessageRestriction;
+import org.astrogrid.samp.hub.ProfileToken;
+import org.astrogrid.samp.xmlrpc.internal.InternalClient;
 
 public class XmlRpcTest extends TestCase {
 
+    private static final ProfileToken TEST_PROFILE = new ProfileToken() {
+        public String getProfileName() {
+            return "XmlRpcTest";
+        }
+        public MessageRestriction getMessageRestriction() {
+            return null;
+        }
+    };
+
     public void testImplementations() {
         assertTrue( XmlRpcKit.APACHE.isAvailable() );
         assertTrue( XmlRpcKit.INTERNAL.isAvailable() );
@@ -16,4 +47,147 @@ public class XmlRpcTest extends TestCase {
         assertEquals( XmlRpcKit.INTERNAL,
                       XmlRpcKit.getInstanceByName( "internal" ) );
     }
+
+    public void testBatchCallbacks() throws Exception {
+        BasicHubService service = new BasicHubService( new Random( 2301L ) );
+        service.start();
+        HubConnection connection = service.register( TEST_PROFILE );
+        String privateKey = "batch-test-key";
+        connection.getRegInfo().put( RegInfo.PRIVATEKEY_KEY, privateKey );
+        final ClientXmlRpcHandler handler = new ClientXmlRpcHandler();
+        final Set received = Collections.synchronizedSet( new HashSet() );
+        handler.addClient( connection, new CallableClient() {
+            public void receiveNotification( String senderId, Message msg ) {
+                received.add( msg.getParam( "i" ) );
+            }
+            public void receiveCall( String senderId, String msgId,
+                                     Message msg ) {
+            }
+            public void receiveResponse( String responderId, String msgTag,
+                                         Response response ) {
+            }
+        } );
+        final Object gate = new Object();
+        final List methods = Collections.synchronizedList( new ArrayList() );
+        final List sent = Collections.synchronizedList( new ArrayList() );
+        AsyncSampXmlRpcClient xClient = new AsyncSampXmlRpcClient() {
+            public Object callAndWait( String method, List params )
+                    throws IOException {
+                synchronized ( gate ) {
+                    methods.add( method );
+                    if ( ClientXmlRpcHandler.BATCH_METHOD.equals( method ) ) {
+                        for ( Iterator it = ((List) params.get( 1 ))
+                                           .iterator(); it.hasNext(); ) {
+                            Map item = (Map) it.next();
+                            Map msg = (Map) ((List) item.get( "params" ))
+                                           .get( 1 );
+                            sent.add( ((Map) msg.get( "samp.params" ))
+                                     .get( "i" ) );
+                        }
+                    }
+                    try {
+                        return handler.handleCall( method, params, null );
+                    }
+                    catch ( Exception e ) {
+                        throw new IOException( e.toString() );
+                    }
+                }
+            }
+            public void callAndForget( String method, List params )
+                    throws IOException {
+                callAndWait( method, params );
+            }
+            public void callAndForget( final String method, final List params,
+                                       final DeliveryListener listener ) {
+                new Thread() {
+                    public void run() {
+                        try {
+                            callAndWait( method, params );
+                        }
+                        catch ( IOException e ) {
+                            listener.deliveryFailed( e );
+                            return;
+                        }
+                        listener.deliverySucceeded();
+                    }
+                }.start();
+            }
+        };
+        XmlRpcCallableClient callable =
+            new XmlRpcCallableClient( xClient, privateKey, connection );
+
+        // Without the metadata flag, callbacks go one at a time.
+        callable.receiveNotification( "c0", createMessage( -1 ) );
+        assertEquals( Collections.singletonList( "samp.client."
+                                               + "receiveNotification" ),
+                      methods );
+        methods.clear();
+
+        // With it, they are queued up behind the gate and batched.
+        Metadata meta = new Metadata();
+        meta.setName( "Batcher" );
+        meta.put( StandardClientProfile.RECEIVE_BATCH_KEY, "1" );
+        connection.declareMetadata( meta );
+        callable.setBatchAccepted( XmlRpcCallableClient
+                                  .isBatchDeclared( meta ) );
+        int nmsg = 100;
+        List expected = new ArrayList();
+        synchronized ( gate ) {
+            for ( int i = 0; i < nmsg; i++ ) {
+                callable.receiveNotification( "c0", createMessage( i ) );
+                expected.add( Integer.toString( i ) );
+            }
+        }
+        for ( int it = 0; it < 100 && received.size() <= nmsg; it++ ) {
+            Thread.sleep( 50 );
+        }
+        assertEquals( nmsg + 1, received.size() );
+        assertEquals( expected, sent );
+        assertTrue( methods.size() <= 2 );
+        assertEquals( Collections.singleton( ClientXmlRpcHandler
+                                            .BATCH_METHOD ),
+                      new HashSet( methods ) );
+        connection.unregister();
+    }
+
+    public void testFailedDelivery() throws Exception {
+        BasicHubService service = new BasicHubService( new Random( 2302L ) );
+        service.start();
+        HubConnection sender = service.register( TEST_PROFILE );
+        HubConnection recipient = service.register( TEST_PROFILE );
+
+        // Point the recipient's callbacks at a port with no server.
+        ServerSocket sock = new ServerSocket( 0 );
+        URL deadUrl = new URL( "http://127.0.0.1:" + sock.getLocalPort()
+                             + "/xmlrpc" );
+        sock.close();
+        XmlRpcCallableClient callable =
+            new XmlRpcCallableClient( new InternalClient( deadUrl ),
+                                      "fail-test-key", recipient );
+        recipient.setCallable( callable );
+        Subscriptions subs = new Subscriptions();
+        subs.addMType( "test.fail" );
+        recipient.declareSubscriptions( subs );
+
+        // The failed delivery is reported, rather than the sender waiting
+        // until its timeout expires.  This is true for direct and
+        // batched delivery.
+        String recipientId = recipient.getRegInfo().getSelfId();
+        for ( int i = 0; i < 2; i++ ) {
+            callable.setBatchAccepted( i > 0 );
+            Response response =
+                sender.callAndWait( recipientId,
+                                    new Message( "test.fail" ), 60 );
+            assertEquals( Response.ERROR_STATUS, response.getStatus() );
+            assertTrue( response.getErrInfo().getErrortxt()
+                                .startsWith( "Delivery" ) );
+        }
+        sender.unregister();
+        recipient.unregister();
+    }
+
+    private static Message createMessage( int i ) {
+        return new Message( "test.batch" )
+              .addParam( "i", Integer.toString( i ) );
+    }
 }
@@ -0,0 +1,98 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the speed of XML-RPC response serialization by
+ * {@link XmlRpcEncoder} with that by {@link XmlWriter}.
+ * Run with no arguments; the number of iterations may optionally
+ * be given.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public class EncodeBench {
+
+    /**
+     * Returns a value resembling the result of a typical hub
+     * getMetadata or callAll operation.
+     *
+     * @return  SAMP-friendly map
+     */
+    static Map createValue() {
+        Map map = new HashMap();
+        for ( int i = 0; i < 8; i++ ) {
+            Map meta = new HashMap();
+            meta.put( "samp.name", "client-" + i );
+            meta.put( "samp.description.text",
+                      "Test client number " + i + " <for benchmarking>" );
+            meta.put( "samp.icon.url",
+                      "http://127.0.0.1:21012/icons/client" + i + ".png" );
+            meta.put( "author.affiliation", "Astrophysics Group & Friends" );
+            List list = new ArrayList();
+            for ( int j = 0; j < 6; j++ ) {
+                list.add( "table.load.votable." + j );
+            }
+            meta.put( "subscriptions", list );
+            map.put( "c" + i, meta );
+        }
+        return map;
+    }
+
+    /**
+     * Serializes a methodResponse in the way that InternalServer used to.
+     *
+     * @param  value  result value
+     * @param  out  destination stream
+     */
+    private static void writerSerialize( Object value,
+                                         ByteArrayOutputStream out )
+            throws IOException {
+        XmlWriter xout = new XmlWriter( out, 0 );
+        xout.start( "methodResponse" );
+        xout.start( "params" );
+        xout.start( "param" );
+        xout.sampValue( value );
+        xout.end( "param" );
+        xout.end( "params" );
+        xout.end( "methodResponse" );
+        xout.flush();
+    }
+
+    /**
+     * Times a number of serializations by each method and reports
+     * the results.
+     *
+     * @param  args  optional single argument giving iteration count
+     */
+    public static void main( String[] args ) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt( args[ 0 ] )
+                                    : 20000;
+        Object value = createValue();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlRpcEncoder encoder = new XmlRpcEncoder( 8192 );
+        for ( int ir = 0; ir < 5; ir++ ) {
+            long t0 = System.currentTimeMillis();
+            for ( int i = 0; i < count; i++ ) {
+                out.reset();
+                writerSerialize( value, out );
+            }
+            long t1 = System.currentTimeMillis();
+            for ( int i = 0; i < count; i++ ) {
+                out.reset();
+                encoder.writeResponse( value, out );
+            }
+            long t2 = System.currentTimeMillis();
+            System.out.println( "writer: "
+                              + ( ( t1 - t0 ) * 1000000L / count ) + "ns"
+                              + "\t" + "encoder: "
+                              + ( ( t2 - t1 ) * 1000000L / count ) + "ns"
+                              + "\t" + "(" + out.size() + " bytes)" );
+        }
+    }
+}
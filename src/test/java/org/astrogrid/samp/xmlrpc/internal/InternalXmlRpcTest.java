@@ -0,0 +1,880 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.astrogrid.samp.Message;
+import org.astrogrid.samp.hub.BroadcastMessage;
+import org.astrogrid.samp.httpd.HttpServer;
+import org.astrogrid.samp.xmlrpc.AsyncSampXmlRpcClient;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcHandler;
+import org.astrogrid.samp.xmlrpc.XmlRpcBatch;
+
+public class InternalXmlRpcTest extends TestCase {
+
+    public void testAcceptEncoding() {
+        assertTrue( Compression.acceptsGzip( "gzip" ) );
+        assertTrue( Compression.acceptsGzip( "deflate, GZIP;q=0.5" ) );
+        assertTrue( Compression.acceptsGzip( "*" ) );
+        assertTrue( Compression.acceptsGzip( "x-gzip" ) );
+        assertFalse( Compression.acceptsGzip( null ) );
+        assertFalse( Compression.acceptsGzip( "" ) );
+        assertFalse( Compression.acceptsGzip( "deflate" ) );
+        assertFalse( Compression.acceptsGzip( "gzip;q=0" ) );
+        assertFalse( Compression.acceptsGzip( "gzip; q=0.0, *" ) );
+        assertFalse( Compression.acceptsGzip( "*;q=0" ) );
+    }
+
+    public void testCompression() throws IOException {
+        HttpServer hServer = new HttpServer();
+        hServer.start();
+        final List codings = new ArrayList();
+        hServer.addHandler( new HttpServer.Handler() {
+            public HttpServer.Response serveRequest( HttpServer.Request req ) {
+                codings.add( HttpServer.getHeader( req.getHeaderMap(),
+                                                   "Content-Encoding" ) );
+                return null;
+            }
+        } );
+        InternalServer xServer = new InternalServer( hServer, "/xmlrpc" );
+        final List bodyLengths = new ArrayList();
+        xServer.addHandler( new SampXmlRpcHandler() {
+            public boolean canHandleCall( String method ) {
+                return "echo".equals( method );
+            }
+            public Object handleCall( String method, List params,
+                                      Object reqInfo ) {
+                HttpServer.Request req = (HttpServer.Request) reqInfo;
+                bodyLengths.add( new Long( req.getBodyLength() ) );
+                assertNull( HttpServer.getHeader( req.getHeaderMap(),
+                                                  "Content-Encoding" ) );
+                return params.get( 0 );
+            }
+        } );
+        StringBuffer sbuf = new StringBuffer();
+        for ( int i = 0; i < 2000; i++ ) {
+            sbuf.append( "row " ).append( i ).append( ' ' );
+        }
+        Map big = new HashMap();
+        big.put( "text", sbuf.toString() );
+        List params = Collections.singletonList( big );
+
+        // First call is uncompressed, but the response tells the client
+        // that it can compress subsequent ones.
+        InternalClient client = new InternalClient( xServer.getEndpoint() );
+        assertEquals( big, client.callAndWait( "echo", params ) );
+        assertEquals( big, client.callAndWait( "echo", params ) );
+        assertEquals( 2, bodyLengths.size() );
+        assertNull( codings.get( 0 ) );
+        assertEquals( "gzip", codings.get( 1 ) );
+        assertEquals( bodyLengths.get( 0 ), bodyLengths.get( 1 ) );
+        assertTrue( ((Long) bodyLengths.get( 0 )).longValue()
+                    > sbuf.length() );
+
+        // Check the response is compressed only on request.
+        byte[] callBuf = new InternalClient( xServer.getEndpoint() )
+                        .serializeCall( "echo", params );
+        HttpURLConnection conn = post( xServer.getEndpoint(), callBuf, null );
+        assertNull( conn.getContentEncoding() );
+        int rawLeng = readAll( conn.getInputStream() ).length;
+        assertEquals( "gzip, deflate",
+                      conn.getHeaderField( "Accept-Encoding" ) );
+        conn = post( xServer.getEndpoint(), callBuf, "gzip" );
+        assertEquals( "gzip", conn.getContentEncoding() );
+        byte[] zbuf = readAll( conn.getInputStream() );
+        assertTrue( zbuf.length < rawLeng / 2 );
+        assertEquals( rawLeng,
+                      readAll( Compression
+                              .decode( new ByteArrayInputStream( zbuf ),
+                                       "gzip" ) ).length );
+
+        // Unknown request codings are rejected.
+        conn = (HttpURLConnection) xServer.getEndpoint().openConnection();
+        conn.setDoOutput( true );
+        conn.setRequestProperty( "Content-Encoding", "compress" );
+        OutputStream out = conn.getOutputStream();
+        out.write( callBuf );
+        out.close();
+        assertEquals( 415, conn.getResponseCode() );
+        hServer.stop();
+    }
+
+    public void testConnectionPool() throws Exception {
+        HttpServer hServer = new HttpServer();
+        hServer.setKeepAliveTimeout( 500 );
+        hServer.start();
+        final byte[] text = "chunk of text\n".getBytes( "UTF-8" );
+        hServer.addHandler( new HttpServer.Handler() {
+            public HttpServer.Response serveRequest( HttpServer.Request req ) {
+                if ( req.getUrl().equals( "/slow" ) ) {
+                    try {
+                        Thread.sleep( 2000 );
+                    }
+                    catch ( InterruptedException e ) {
+                    }
+                    return HttpServer.createErrorResponse( 404, "Slow" );
+                }
+                if ( ! req.getUrl().equals( "/chunked" ) ) {
+                    return null;
+                }
+                return new HttpServer.Response( 200, "OK", new HashMap() ) {
+                    public void writeBody( OutputStream out )
+                            throws IOException {
+                        for ( int i = 0; i < 1000; i++ ) {
+                            out.write( text );
+                        }
+                    }
+                };
+            }
+        } );
+        InternalServer xServer = new InternalServer( hServer, "/xmlrpc" );
+        xServer.addHandler( new SampXmlRpcHandler() {
+            public boolean canHandleCall( String method ) {
+                return "echo".equals( method );
+            }
+            public Object handleCall( String method, List params,
+                                      Object reqInfo ) {
+                return params.get( 0 );
+            }
+        } );
+        ConnectionPool pool = new ConnectionPool( 2, 60 * 1000 );
+        InternalClient client = new InternalClient( xServer.getEndpoint() );
+        client.setConnectionPool( pool );
+        for ( int i = 0; i < 5; i++ ) {
+            List params = Collections.singletonList( "x" + i );
+            assertEquals( "x" + i, client.callAndWait( "echo", params ) );
+        }
+        assertEquals( 1, pool.getOpenCount() );
+        assertEquals( 4, pool.getReuseCount() );
+        assertEquals( 1, pool.getIdleCount() );
+
+        ConnectionPool.Response resp =
+            pool.post( new URL( hServer.getBaseUrl(), "/chunked" ),
+                       new HashMap(), new byte[ 0 ] );
+        assertEquals( 200, resp.getStatusCode() );
+        assertEquals( "chunked", resp.getHeader( "transfer-encoding" ) );
+        assertEquals( text.length * 1000, readAll( resp.getBody() ).length );
+        resp.close();
+        assertEquals( 1, pool.getOpenCount() );
+        assertEquals( 1, pool.getIdleCount() );
+
+        // Once the server has closed the idle connection, it is not
+        // reused, and the next call is made on a new one.
+        Thread.sleep( 1500 );
+        assertEquals( "y", client.callAndWait( "echo",
+                                               Collections
+                                              .singletonList( "y" ) ) );
+        assertEquals( 2, pool.getOpenCount() );
+        pool.clear();
+        assertEquals( 0, pool.getIdleCount() );
+
+        // A pool keeping no idle connections opens one per call.
+        ConnectionPool noPool = new ConnectionPool( 0, 60 * 1000 );
+        client.setConnectionPool( noPool );
+        for ( int i = 0; i < 3; i++ ) {
+            client.callAndWait( "echo", Collections.singletonList( "z" ) );
+        }
+        assertEquals( 3, noPool.getOpenCount() );
+        assertEquals( 0, noPool.getReuseCount() );
+
+        // A timed request to an unresponsive server fails, and does not
+        // leave its connection in the pool.
+        ConnectionPool timedPool = new ConnectionPool( 2, 60 * 1000, 0, 200 );
+        URL slowUrl = new URL( hServer.getBaseUrl(), "/slow" );
+        try {
+            timedPool.post( slowUrl, new HashMap(), new byte[ 0 ], true );
+            fail();
+        }
+        catch ( ConnectionPool.NoResponseException e ) {
+        }
+        assertEquals( 0, timedPool.getIdleCount() );
+        assertEquals( 200, timedPool.getReadTimeout() );
+
+        // An asynchronous call which has been sent is not reported as
+        // failed just because the response is slow, since the recipient
+        // may yet act on it; one which cannot be sent is.
+        final List outcomes = Collections.synchronizedList( new ArrayList() );
+        AsyncSampXmlRpcClient.DeliveryListener listener =
+                new AsyncSampXmlRpcClient.DeliveryListener() {
+            public void deliverySucceeded() {
+                outcomes.add( "ok" );
+            }
+            public void deliveryFailed( IOException error ) {
+                outcomes.add( "fail" );
+            }
+        };
+        DeliveryExecutor executor =
+            new DeliveryExecutor( 2, 10, DeliveryExecutor.Policy.REJECT );
+        InternalClient slowClient = new InternalClient( slowUrl );
+        slowClient.setConnectionPool( timedPool );
+        slowClient.setDeliveryExecutor( executor );
+        slowClient.callAndForget( "m", new ArrayList(), listener );
+        assertTrue( executor.awaitIdle( 5000 ) );
+        assertEquals( Collections.singletonList( "ok" ), outcomes );
+        outcomes.clear();
+        hServer.stop();
+        InternalClient deadClient = new InternalClient( slowUrl );
+        deadClient.setDeliveryExecutor( executor );
+        deadClient.callAndForget( "m", new ArrayList(), listener );
+        assertTrue( executor.awaitIdle( 5000 ) );
+        assertEquals( Collections.singletonList( "fail" ), outcomes );
+    }
+
+    public void testParser() throws Exception {
+        Map map = new HashMap();
+        map.put( "a", "x &amp; <y>" );
+        map.put( "list", Arrays.asList( new Object[] {
+            "1", new ArrayList(), new HashMap(), "",
+        } ) );
+        List params = Arrays.asList( new Object[] { "p1", map, } );
+        byte[] callBuf = new InternalClient( new URL( "http://localhost/" ) )
+                        .serializeCall( "do.it", params );
+        XmlRpcCall call =
+            XmlRpcParser.parseCall( new ByteArrayInputStream( callBuf ) );
+        assertEquals( "do.it", call.getMethodName() );
+        assertEquals( params, call.getParams() );
+        XmlRpcCall domCall =
+            XmlRpcCall.createCall( XmlUtils.createDocumentBuilder()
+                                  .parse( new ByteArrayInputStream( callBuf )
+                                  ) );
+        assertEquals( domCall.getParams(), call.getParams() );
+
+        XmlRpcParser response = XmlRpcParser.parseResponse( toStream(
+            "<methodResponse><params><param><value>"
+          + "<struct><member><name>n</name><value><int>23</int></value>"
+          + "</member><member><name>b</name><value><boolean>1</boolean>"
+          + "</value></member></struct>"
+          + "</value></param></params></methodResponse>" ) );
+        assertNull( response.getFault() );
+        Map result = (Map) response.getResult();
+        assertEquals( new Integer( 23 ), result.get( "n" ) );
+        assertEquals( Boolean.TRUE, result.get( "b" ) );
+        response = XmlRpcParser.parseResponse( toStream(
+            "<methodResponse><fault><value><struct><member>"
+          + "<name>faultString</name><value>oops</value>"
+          + "</member></struct></value></fault></methodResponse>" ) );
+        assertEquals( "oops", response.getFault().get( "faultString" ) );
+
+        String[] badCalls = new String[] {
+            "<methodCall><params/></methodCall>",
+            "<methodCall><methodName>m</methodName><params><param><value>"
+          + "<base64>AA==</base64></value></param></params></methodCall>",
+            "<methodCall><methodName>m</methodName><params><param><value>"
+          + "<string>a</string><string>b</string>"
+          + "</value></param></params></methodCall>",
+            "<methodCall><methodName>m</methodName><params><param><value>"
+          + "<struct><member><value>x</value></member></struct>"
+          + "</value></param></params></methodCall>",
+            "<methodCall><methodName>m</methodName><params><value>x</value>"
+          + "</params></methodCall>",
+            "<methodCall><methodName>m</methodName><params>",
+        };
+        for ( int i = 0; i < badCalls.length; i++ ) {
+            try {
+                XmlRpcParser.parseCall( toStream( badCalls[ i ] ) );
+                fail( badCalls[ i ] );
+            }
+            catch ( IOException e ) {
+            }
+        }
+    }
+
+    public void testCompactOutput() throws Exception {
+        Map map = new HashMap();
+        map.put( "a&b", "x < y > z" );
+        map.put( "\u00e9t\u00e9", "\u20ac\ud834\udd1e" );
+        map.put( "list", Arrays.asList( new Object[] {
+            "1", new ArrayList(), new HashMap(), "",
+        } ) );
+        Object[] values = new Object[] {
+            "", "plain", "\ud800", map, new ArrayList(),
+            Collections.singletonList( map ),
+        };
+        ByteArrayOutputStream out0 = new ByteArrayOutputStream();
+        new XmlWriter( out0, 0 ).flush();
+        int prologLeng = out0.size();
+        for ( int i = 0; i < values.length; i++ ) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            XmlWriter xout = new XmlWriter( out, 0 );
+            xout.sampValue( values[ i ] );
+            xout.flush();
+            byte[] buf = out.toByteArray();
+            assertEquals( buf.length - prologLeng,
+                          XmlWriter.getCompactLength( values[ i ] ) );
+            assertTrue( new String( buf, "UTF-8" ).indexOf( '\n' ) < 0 );
+        }
+        StringBuffer sbuf = new StringBuffer();
+        for ( int i = 0; i < 200; i++ ) {
+            sbuf.append( "a<\u00e9\u20ac\ud834\udd1e&" );
+        }
+        map.put( "long", sbuf.toString() );
+        List params = Arrays.asList( new Object[] { map, "x", } );
+        XmlRpcEncoder encoder = new XmlRpcEncoder( 256 );
+        for ( int i = 0; i < 2; i++ ) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            encoder.writeCall( "do.it", params, out );
+            ByteArrayOutputStream xmlOut = new ByteArrayOutputStream();
+            XmlWriter xout = new XmlWriter( xmlOut, 0 );
+            xout.start( "methodCall" );
+            xout.inline( "methodName", "do.it" );
+            xout.start( "params" );
+            for ( int ip = 0; ip < params.size(); ip++ ) {
+                xout.start( "param" );
+                xout.sampValue( params.get( ip ) );
+                xout.end( "param" );
+            }
+            xout.end( "params" );
+            xout.end( "methodCall" );
+            xout.flush();
+            assertTrue( Arrays.equals( xmlOut.toByteArray(),
+                                       out.toByteArray() ) );
+        }
+        try {
+            encoder.writeResponse( new Object(), new ByteArrayOutputStream() );
+            fail();
+        }
+        catch ( XmlRpcFormatException e ) {
+        }
+
+        try {
+            XmlWriter.getCompactLength( new Double( 1 ) );
+            fail();
+        }
+        catch ( XmlRpcFormatException e ) {
+        }
+
+        byte[] respBuf = InternalServer.getResultBytes( map );
+        assertTrue( new String( respBuf, "UTF-8" ).indexOf( '\n' ) < 0 );
+        XmlRpcParser response =
+            XmlRpcParser.parseResponse( new ByteArrayInputStream( respBuf ) );
+        assertEquals( map, response.getResult() );
+    }
+
+    public void testMulticall() throws Exception {
+        HttpServer hServer = new HttpServer();
+        hServer.start();
+        final int[] nreq = new int[ 1 ];
+        hServer.addHandler( new HttpServer.Handler() {
+            public HttpServer.Response serveRequest( HttpServer.Request req ) {
+                nreq[ 0 ]++;
+                return null;
+            }
+        } );
+        InternalServer xServer = new InternalServer( hServer, "/xmlrpc" );
+        final List methods = new ArrayList();
+        xServer.addHandler( new SampXmlRpcHandler() {
+            public boolean canHandleCall( String method ) {
+                return method.startsWith( "t." );
+            }
+            public Object handleCall( String method, List params,
+                                      Object reqInfo ) throws IOException {
+                methods.add( method );
+                if ( "t.fail".equals( method ) ) {
+                    throw new IOException( "failed" );
+                }
+                return params.get( 0 );
+            }
+        } );
+        Map map = new HashMap();
+        map.put( "x", "1" );
+        XmlRpcBatch batch = new XmlRpcBatch();
+        assertEquals( 0,
+                      batch.addCall( "t.echo",
+                                     Collections.singletonList( "a" ) ) );
+        assertEquals( 1,
+                      batch.addCall( "t.fail",
+                                     Collections.singletonList( "b" ) ) );
+        assertEquals( 2,
+                      batch.addCall( "t.echo",
+                                     Collections.singletonList( map ) ) );
+        assertEquals( 3, batch.addCall( "nope", new ArrayList() ) );
+        assertEquals( 4, batch.getCallCount() );
+
+        InternalClient client = new InternalClient( xServer.getEndpoint() );
+        Object[] results = batch.execute( client );
+        assertEquals( 1, nreq[ 0 ] );
+        assertEquals( Arrays.asList( new String[] { "t.echo", "t.fail",
+                                                    "t.echo" } ),
+                      methods );
+        assertEquals( 4, results.length );
+        assertEquals( "a", results[ 0 ] );
+        assertTrue( results[ 1 ] instanceof IOException );
+        assertEquals( map, results[ 2 ] );
+        assertTrue( results[ 3 ] instanceof IOException );
+
+        Object[] seqResults = batch.executeSequentially( client );
+        assertEquals( 5, nreq[ 0 ] );
+        assertEquals( "a", seqResults[ 0 ] );
+        assertTrue( seqResults[ 1 ] instanceof IOException );
+        assertEquals( map, seqResults[ 2 ] );
+        assertTrue( seqResults[ 3 ] instanceof IOException );
+
+        // Nested and malformed batches are rejected.
+        XmlRpcBatch batch2 = new XmlRpcBatch();
+        batch2.addCall( XmlRpcBatch.MULTICALL_METHOD, new ArrayList() );
+        assertTrue( batch2.execute( client )[ 0 ] instanceof IOException );
+        try {
+            client.callAndWait( XmlRpcBatch.MULTICALL_METHOD,
+                                Collections.singletonList( "x" ) );
+            fail();
+        }
+        catch ( IOException e ) {
+        }
+        hServer.stop();
+    }
+
+    public void testJson() throws Exception {
+
+        // Encoding and decoding.
+        Map map = new HashMap();
+        map.put( "txt", "q\" b\\ c\u0001\n \u00e9 \u20ac \ud834\udd1e <&>" );
+        map.put( "empty", new HashMap() );
+        map.put( "list", Arrays.asList( new Object[] {
+                             "", new ArrayList(), "x" } ) );
+        List params = Arrays.asList( new Object[] { "a/b", map } );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonRpcEncoder encoder = new JsonRpcEncoder( 256 );
+        encoder.writeCall( "samp.hub.x", params, out );
+        Map call = (Map) JsonRpcParser
+                        .parse( new ByteArrayInputStream( out.toByteArray() ) );
+        assertEquals( "2.0", call.get( "jsonrpc" ) );
+        assertEquals( "samp.hub.x", call.get( "method" ) );
+        assertEquals( params, call.get( "params" ) );
+        assertEquals( new Integer( 1 ), call.get( "id" ) );
+        assertEquals( map.get( "txt" ),
+                      JsonRpcParser.parse( new ByteArrayInputStream(
+                          ( "\"q\\\" b\\\\ c\\u0001\\n \u00e9 \\u20AC "
+                          + "\ud834\udd1e <&>\"" ).getBytes( "UTF-8" ) ) ) );
+        String[] bads = { "", "[", "{\"a\"}", "[1,]x", "\"abc", "[1] 2", };
+        for ( int i = 0; i < bads.length; i++ ) {
+            byte[] buf = bads[ i ].getBytes( "UTF-8" );
+            try {
+                JsonRpcParser.parse( buf, 0, buf.length );
+                fail( bads[ i ] );
+            }
+            catch ( XmlRpcFormatException e ) {
+            }
+        }
+
+        // Calls to a JSAMP server use JSON-RPC.
+        HttpServer hServer = new HttpServer();
+        hServer.start();
+        final List types = new ArrayList();
+        hServer.addHandler( new HttpServer.Handler() {
+            public HttpServer.Response serveRequest( HttpServer.Request req ) {
+                types.add( HttpServer.getHeader( req.getHeaderMap(),
+                                                 "Content-Type" ) );
+                return null;
+            }
+        } );
+        InternalServer xServer = new InternalServer( hServer, "/xmlrpc" );
+        final List received = new ArrayList();
+        xServer.addHandler( new SampXmlRpcHandler() {
+            public boolean canHandleCall( String method ) {
+                return method.startsWith( "t." );
+            }
+            public Object handleCall( String method, List params,
+                                      Object reqInfo ) throws IOException {
+                received.add( params.get( 0 ) );
+                if ( "t.fail".equals( method ) ) {
+                    throw new IOException( "failed" );
+                }
+                return params.get( 0 );
+            }
+        } );
+        JsonInternalClient client =
+            new JsonInternalClient( xServer.getEndpoint() );
+        assertFalse( client.isUsingJson() );
+        assertEquals( map,
+                      client.callAndWait( "t.echo",
+                                          Collections.singletonList( map ) ) );
+        assertTrue( client.isUsingJson() );
+        try {
+            client.callAndWait( "t.fail", params );
+            fail();
+        }
+        catch ( IOException e ) {
+            assertTrue( e.getMessage().indexOf( "failed" ) >= 0 );
+        }
+        DeliveryExecutor executor =
+            new DeliveryExecutor( 1, 4, DeliveryExecutor.Policy.BLOCK );
+        client.setDeliveryExecutor( executor );
+        client.callAndForget( "t.echo", Collections.singletonList( "f" ) );
+        assertTrue( executor.awaitIdle( 5000 ) );
+        assertEquals( "f", received.get( received.size() - 1 ) );
+        assertEquals( Collections.nCopies( 3, InternalClient.JSON_TYPE ),
+                      types );
+
+        // Calls to a server without JSON-RPC support fall back to XML-RPC.
+        hServer.addHandler( new HttpServer.Handler() {
+            public HttpServer.Response serveRequest( HttpServer.Request req ) {
+                return InternalClient
+                      .isJsonType( HttpServer.getHeader( req.getHeaderMap(),
+                                                         "Content-Type" ) )
+                     ? HttpServer.createErrorResponse( 400, "Bad request" )
+                     : null;
+            }
+        } );
+        InternalServer xServer2 = new InternalServer( hServer, "/xmlrpc2" );
+        xServer2.addHandler( new SampXmlRpcHandler() {
+            public boolean canHandleCall( String method ) {
+                return true;
+            }
+            public Object handleCall( String method, List params,
+                                      Object reqInfo ) {
+                return params.get( 0 );
+            }
+        } );
+        types.clear();
+        JsonInternalClient client2 =
+            new JsonInternalClient( xServer2.getEndpoint() );
+        assertEquals( "x", client2.callAndWait( "t.echo",
+                                                Collections
+                                               .singletonList( "x" ) ) );
+        assertFalse( client2.isUsingJson() );
+        assertEquals( "y", client2.callAndWait( "t.echo",
+                                                Collections
+                                               .singletonList( "y" ) ) );
+        assertEquals( Arrays.asList( new String[] {
+                          InternalClient.JSON_TYPE, InternalClient.XML_TYPE,
+                          InternalClient.XML_TYPE } ),
+                      types );
+        hServer.stop();
+    }
+
+    public void testBroadcast() throws Exception {
+        Map params = new HashMap();
+        params.put( "url", "http://localhost/data?a=1&b=2" );
+        List names = new ArrayList( Arrays.asList( new Object[] { "x",
+                                                                  "y" } ) );
+        params.put( "names", names );
+        Message msg = new Message( "table.load.votable", params );
+        BroadcastMessage bmsg = new BroadcastMessage( msg );
+        InternalClient client =
+            new InternalClient( new URL( "http://localhost/" ) );
+        for ( int i = 0; i < 3; i++ ) {
+            String key = "key&" + i;
+            byte[] buf =
+                client.serializeCall( "samp.client.receiveNotification",
+                                      Arrays.asList( new Object[] {
+                                          key, "c0", bmsg, } ) );
+            byte[] plainBuf =
+                client.serializeCall( "samp.client.receiveNotification",
+                                      Arrays.asList( new Object[] {
+                                          key, "c0", msg, } ) );
+            assertTrue( Arrays.equals( plainBuf, buf ) );
+            assertNotNull( bmsg.getEncoding( XmlRpcEncoder.class ) );
+        }
+        assertEquals( msg, bmsg );
+        assertNull( bmsg.remove( "no-such-key" ) );
+
+        // The broadcast message is a read-only snapshot, so its stored
+        // encodings cannot go stale.
+        try {
+            bmsg.put( "extra", "1" );
+            fail();
+        }
+        catch ( UnsupportedOperationException e ) {
+        }
+        try {
+            bmsg.remove( Message.MTYPE_KEY );
+            fail();
+        }
+        catch ( UnsupportedOperationException e ) {
+        }
+        try {
+            ((Map.Entry) bmsg.entrySet().iterator().next()).setValue( "x" );
+            fail();
+        }
+        catch ( UnsupportedOperationException e ) {
+        }
+        try {
+            bmsg.keySet().clear();
+            fail();
+        }
+        catch ( UnsupportedOperationException e ) {
+        }
+        try {
+            bmsg.getParams().put( "extra", "2" );
+            fail();
+        }
+        catch ( UnsupportedOperationException e ) {
+        }
+        try {
+            ((List) bmsg.getParams().get( "names" )).add( "z" );
+            fail();
+        }
+        catch ( UnsupportedOperationException e ) {
+        }
+        assertEquals( msg, bmsg );
+        assertNotNull( bmsg.getEncoding( XmlRpcEncoder.class ) );
+
+        // Later changes to the original message are not seen.
+        msg.put( "extra", "3" );
+        params.put( "extra", "4" );
+        names.add( "z" );
+        assertNull( bmsg.get( "extra" ) );
+        assertEquals( 2, bmsg.getParams().size() );
+        assertEquals( 2, ((List) bmsg.getParams().get( "names" )).size() );
+        XmlRpcCall call = XmlRpcParser.parseCall(
+            new ByteArrayInputStream(
+                client.serializeCall( "m", Collections
+                                          .singletonList( bmsg ) ) ) );
+        assertEquals( bmsg, call.getParams().get( 0 ) );
+    }
+
+    public void testDeliveryExecutor() throws Exception {
+        DeliveryExecutor.Policy reject = DeliveryExecutor.Policy.REJECT;
+        DeliveryExecutor.Policy discard = DeliveryExecutor.Policy.DISCARD;
+        assertEquals( reject, DeliveryExecutor.Policy.getPolicy( null ) );
+        assertEquals( discard,
+                      DeliveryExecutor.Policy.getPolicy( "Discard" ) );
+
+        List done = Collections.synchronizedList( new ArrayList() );
+        Gate gate = new Gate();
+        DeliveryExecutor executor = new DeliveryExecutor( 2, 3, reject );
+        executor.submit( "a", new Task( "a1", done, gate ) );
+        gate.awaitStarted();
+        for ( int i = 2; i <= 4; i++ ) {
+            executor.submit( "a", new Task( "a" + i, done, null ) );
+        }
+        assertEquals( 3, executor.getQueueDepth( "a" ) );
+        try {
+            executor.submit( "a", new Task( "a5", done, null ) );
+            fail();
+        }
+        catch ( IOException e ) {
+        }
+        executor.submit( "b", new Task( "b1", done, null ) );
+        assertFalse( executor.awaitIdle( 0 ) );
+        long t0 = System.currentTimeMillis();
+        while ( ! done.contains( "b1" ) ) {
+            assertTrue( System.currentTimeMillis() - t0 < 5000 );
+            Thread.sleep( 10 );
+        }
+        gate.open();
+        assertTrue( executor.awaitIdle( 5000 ) );
+        done.remove( "b1" );
+        assertEquals( Arrays.asList( new String[] { "a1", "a2", "a3", "a4" } ),
+                      done );
+        assertEquals( 1, executor.getRejectedCount() );
+        assertEquals( 5, executor.getCompletedCount() );
+        assertEquals( 3, executor.getMaxQueueDepth() );
+        assertEquals( 0, executor.getPendingCount() );
+        assertTrue( executor.getQueueDepths().isEmpty() );
+
+        done.clear();
+        gate = new Gate();
+        executor = new DeliveryExecutor( 1, 2, discard );
+        executor.submit( "a", new Task( "a1", done, gate ) );
+        gate.awaitStarted();
+        for ( int i = 2; i <= 4; i++ ) {
+            executor.submit( "a", new Task( "a" + i, done, null ) );
+        }
+        gate.open();
+        assertTrue( executor.awaitIdle( 5000 ) );
+        assertEquals( Arrays.asList( new String[] { "a1", "a3", "a4" } ),
+                      done );
+        assertEquals( 1, executor.getDiscardedCount() );
+
+        // Once a task has marked itself sent, the next one for the same
+        // endpoint may start, up to the in-flight limit.
+        done.clear();
+        Gate gate1 = new Gate();
+        Gate gate2 = new Gate();
+        executor = new DeliveryExecutor( 4, 10, 2, reject );
+        assertEquals( 2, executor.getMaxInFlight() );
+        executor.submit( "a", new SentTask( "a1", done, gate1 ) );
+        gate1.awaitStarted();
+        executor.submit( "a", new SentTask( "a2", done, gate2 ) );
+        gate2.awaitStarted();
+        executor.submit( "a", new Task( "a3", done, null ) );
+        Thread.sleep( 200 );
+        assertEquals( 1, executor.getQueueDepth( "a" ) );
+        assertTrue( done.isEmpty() );
+        gate1.open();
+        t0 = System.currentTimeMillis();
+        while ( ! done.contains( "a3" ) ) {
+            assertTrue( System.currentTimeMillis() - t0 < 5000 );
+            Thread.sleep( 10 );
+        }
+        assertFalse( done.contains( "a2" ) );
+        gate2.open();
+        assertTrue( executor.awaitIdle( 5000 ) );
+        assertEquals( 3, done.size() );
+        assertTrue( executor.getQueueDepths().isEmpty() );
+    }
+
+    public void testWireLog() throws Exception {
+        File sFile = File.createTempFile( "wire", ".log" );
+        File cFile = File.createTempFile( "wire", ".log" );
+        String[] patterns = new String[] { "test.*" };
+        WireLog sLog = new WireLog( sFile, 2, patterns, 40, 300 );
+        WireLog cLog = new WireLog( cFile, 2, patterns, 40, 1000000 );
+        HttpServer hServer = new HttpServer();
+        hServer.start();
+        InternalServer xServer =
+            new TracingInternalServer( hServer, "/xmlrpc", sLog, false );
+        xServer.addHandler( new SampXmlRpcHandler() {
+            public boolean canHandleCall( String method ) {
+                return method.startsWith( "t." );
+            }
+            public Object handleCall( String method, List params,
+                                      Object reqInfo ) {
+                return params.get( 0 );
+            }
+        } );
+        InternalClient client =
+            new TracingInternalClient( xServer.getEndpoint(), cLog, true );
+        Message msg = new Message( "test.wire" );
+        msg.addParam( "txt", "abcdefghijklmnopqrstuvwxyz"
+                           + "abcdefghijklmnopqrstuvwxyz" );
+        for ( int i = 0; i < 4; i++ ) {
+            assertEquals( msg, client.callAndWait( "t.echo",
+                                     Collections.singletonList( msg ) ) );
+            assertEquals( "x", client.callAndWait( "t.echo",
+                                     Collections.singletonList( "x" ) ) );
+        }
+        assertTrue( sLog.awaitIdle( 5000 ) );
+        assertTrue( cLog.awaitIdle( 5000 ) );
+        hServer.stop();
+
+        // One in two calls with matching MTypes is logged,
+        // and the server log is rotated as it goes.
+        File sFile1 = new File( sFile.getPath() + ".1" );
+        assertTrue( sFile1.exists() );
+        String sTxt = readFile( sFile1 ) + readFile( sFile );
+        assertTrue( sTxt.indexOf( "#1 SERVER IN" ) >= 0 );
+        assertTrue( sTxt.indexOf( "#3 SERVER OUT" ) >= 0 );
+        assertTrue( sTxt.indexOf( "#2 " ) < 0 );
+        assertTrue( sTxt.indexOf( "#4 " ) < 0 );
+        assertTrue( sTxt.indexOf( "truncated" ) > 0 );
+        String cTxt = readFile( cFile );
+        assertTrue( cTxt.indexOf( "#1 CLIENT OUT" ) >= 0 );
+        assertTrue( cTxt.indexOf( "#1 CLIENT IN" ) >= 0 );
+        assertTrue( cTxt.indexOf( "#3 CLIENT IN" ) >= 0 );
+        assertTrue( cTxt.indexOf( "<?xml" ) > 0 );
+        assertTrue( cTxt.indexOf( "#2 " ) < 0 );
+        for ( int i = 1; i <= 4; i++ ) {
+            new File( sFile.getPath() + "." + i ).delete();
+        }
+        sFile.delete();
+        cFile.delete();
+    }
+
+    private static InputStream toStream( String txt ) throws IOException {
+        return new ByteArrayInputStream( txt.getBytes( "UTF-8" ) );
+    }
+
+    /**
+     * Task which records its completion, optionally waiting for a gate
+     * to open first.
+     */
+    private static class Task implements Runnable {
+        final String name_;
+        final List done_;
+        final Gate gate_;
+        Task( String name, List done, Gate gate ) {
+            name_ = name;
+            done_ = done;
+            gate_ = gate;
+        }
+        public void run() {
+            if ( gate_ != null ) {
+                gate_.pass();
+            }
+            done_.add( name_ );
+        }
+    }
+
+    /**
+     * Task which marks itself sent before doing anything else.
+     */
+    private static class SentTask extends Task {
+        SentTask( String name, List done, Gate gate ) {
+            super( name, done, gate );
+        }
+        public void run() {
+            DeliveryExecutor.markSent();
+            super.run();
+        }
+    }
+
+    /**
+     * Holds up a task until released.
+     */
+    private static class Gate {
+        private boolean started_;
+        private boolean open_;
+        synchronized void pass() {
+            started_ = true;
+            notifyAll();
+            while ( ! open_ ) {
+                try {
+                    wait();
+                }
+                catch ( InterruptedException e ) {
+                    return;
+                }
+            }
+        }
+        synchronized void awaitStarted() throws InterruptedException {
+            while ( ! started_ ) {
+                wait();
+            }
+        }
+        synchronized void open() {
+            open_ = true;
+            notifyAll();
+        }
+    }
+
+    private static HttpURLConnection post( URL url, byte[] body,
+                                           String acceptEncoding )
+            throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setDoOutput( true );
+        conn.setRequestProperty( "Content-Type", "text/xml" );
+        if ( acceptEncoding != null ) {
+            conn.setRequestProperty( "Accept-Encoding", acceptEncoding );
+        }
+        OutputStream out = conn.getOutputStream();
+        out.write( body );
+        out.close();
+        assertEquals( 200, conn.getResponseCode() );
+        return conn;
+    }
+
+    private static String readFile( File file ) throws IOException {
+        InputStream in = new FileInputStream( file );
+        try {
+            return new String( readAll( in ), "UTF-8" );
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readAll( InputStream in ) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        byte[] buf = new byte[ 4096 ];
+        for ( int nb; ( nb = in.read( buf ) ) >= 0; ) {
+            bout.write( buf, 0, nb );
+        }
+        in.close();
+        return bout.toByteArray();
+    }
+}
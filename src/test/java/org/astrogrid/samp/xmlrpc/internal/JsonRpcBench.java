@@ -0,0 +1,81 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Compares the cost of encoding and decoding a typical SAMP
+ * response using JSON-RPC with that using XML-RPC,
+ * as done by the <code>json</code> and <code>internal</code>
+ * XmlRpcKits respectively, and reports the number of bytes
+ * each puts on the wire.
+ * Run with no arguments; the number of iterations may optionally
+ * be given.
+ *
+ * @author   Mark Taylor
+ * @since    17 Oct 2026
+ */
+public class JsonRpcBench {
+
+    /**
+     * Times a number of encodings and decodings by each method
+     * and reports the results.
+     *
+     * @param  args  optional single argument giving iteration count
+     */
+    public static void main( String[] args ) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt( args[ 0 ] )
+                                    : 20000;
+        Object value = EncodeBench.createValue();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlRpcEncoder xmlEncoder = new XmlRpcEncoder( 8192 );
+        JsonRpcEncoder jsonEncoder = new JsonRpcEncoder( 8192 );
+        xmlEncoder.writeResponse( value, out );
+        byte[] xmlBuf = out.toByteArray();
+        out.reset();
+        jsonEncoder.writeResponse( value, new Integer( 1 ), out );
+        byte[] jsonBuf = out.toByteArray();
+        System.out.println( "bytes: xml " + xmlBuf.length
+                          + ", json " + jsonBuf.length );
+        for ( int ir = 0; ir < 5; ir++ ) {
+            long t0 = System.currentTimeMillis();
+            for ( int i = 0; i < count; i++ ) {
+                out.reset();
+                xmlEncoder.writeResponse( value, out );
+            }
+            long t1 = System.currentTimeMillis();
+            for ( int i = 0; i < count; i++ ) {
+                XmlRpcParser.parseResponse( new ByteArrayInputStream( xmlBuf ) )
+                            .getResult();
+            }
+            long t2 = System.currentTimeMillis();
+            for ( int i = 0; i < count; i++ ) {
+                out.reset();
+                jsonEncoder.writeResponse( value, new Integer( 1 ), out );
+            }
+            long t3 = System.currentTimeMillis();
+            for ( int i = 0; i < count; i++ ) {
+                JsonRpcParser.parse( jsonBuf, 0, jsonBuf.length );
+            }
+            long t4 = System.currentTimeMillis();
+            System.out.println( "xml encode: " + perCall( t1 - t0, count )
+                              + "\t" + "decode: " + perCall( t2 - t1, count )
+                              + "\t" + "json encode: "
+                              + perCall( t3 - t2, count )
+                              + "\t" + "decode: "
+                              + perCall( t4 - t3, count ) );
+        }
+    }
+
+    /**
+     * Formats the time per call.
+     *
+     * @param  millis  total time in milliseconds
+     * @param  count  number of calls
+     * @return  formatted time per call
+     */
+    private static String perCall( long millis, int count ) {
+        return ( millis * 1000000L / count ) + "ns";
+    }
+}